@@ -7278,7 +7278,7 @@ public final class Message {
       "\002(\t\022\030\n\007records\030\020 \003(\0132\007.Record\"n\n\006Record\022" +
       "\024\n\014partitionKey\030\021 \001(\t\022\026\n\016sequenceNumber\030",
       "\022 \002(\t\022\014\n\004data\030\023 \001(\014\022\021\n\ttimestamp\030\033 \001(\003\022\025" +
-      "\n\rtimestampType\030\034 \001(\tB1\n&com.g42cloud" +
+      "\n\rtimestampType\030\034 \001(\tB.\n#com.g42cloud" +
       ".dis.iface.api.protobufB\007Message"
     };
     com.google.protobuf.Descriptors.FileDescriptor.InternalDescriptorAssigner assigner =
@@ -75,7 +75,7 @@ public class ProtobufUtils
             Message.PutRecordsRequestEntry.Builder ebuilder = Message.PutRecordsRequestEntry.newBuilder();
             
             if(putRecordsRequestEntry.getData() != null){
-                ebuilder.setData(ByteString.copyFrom(putRecordsRequestEntry.getData().array()));
+                ebuilder.setData(ByteString.copyFrom(putRecordsRequestEntry.getData().duplicate()));
             }
             if(putRecordsRequestEntry.getPartitionKey() != null){
                 ebuilder.setPartitionKey(putRecordsRequestEntry.getPartitionKey());
@@ -0,0 +1,43 @@
+/*
+ * Copyright 2002-2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.g42cloud.dis.iface.data.request;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+
+/**
+ * A {@link PutRecordsRequest} whose protobuf body has already been encoded from its records, so the client sends the
+ * body as it is instead of encoding the records again. The body is only valid as long as the records are not changed.
+ */
+public class EncodedPutRecordsRequest extends PutRecordsRequest
+{
+    /**
+     * protobuf编码后的请求体
+     */
+    @JsonIgnore
+    private byte[] encodedBody;
+
+    @JsonIgnore
+    public byte[] getEncodedBody()
+    {
+        return encodedBody;
+    }
+
+    public void setEncodedBody(byte[] encodedBody)
+    {
+        this.encodedBody = encodedBody;
+    }
+}
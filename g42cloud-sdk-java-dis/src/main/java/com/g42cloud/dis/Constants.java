@@ -77,6 +77,11 @@ public interface Constants
      */
     int HTTP_CODE_REQUEST_ENTITY_TOO_LARGE = 413;
 
+    /**
+     * 错误码: SDK未能发送该记录(如所在的拆分请求失败)
+     */
+    String ERROR_CODE_SDK_SEND_FAILED = "DIS.SDK.SendFailed";
+
     /**
      * 错误码: 通道不存在
      */
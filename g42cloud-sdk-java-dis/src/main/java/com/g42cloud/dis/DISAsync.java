@@ -16,9 +16,11 @@
 
 package com.g42cloud.dis;
 
+import java.util.concurrent.CompletionStage;
 import java.util.concurrent.Future;
 
 import com.g42cloud.dis.core.handler.AsyncHandler;
+import com.g42cloud.dis.core.handler.CompletableHandler;
 import com.g42cloud.dis.iface.app.request.ListAppsRequest;
 import com.g42cloud.dis.iface.app.request.ListStreamConsumingStateRequest;
 import com.g42cloud.dis.iface.app.response.DescribeAppResult;
@@ -482,4 +484,289 @@ public interface DISAsync extends DIS
     
     java.util.concurrent.Future<DescribeTransferTaskResult> describeTransferTaskAsync(
         DescribeTransferTaskRequest describeTransferTaskRequest, AsyncHandler<DescribeTransferTaskResult> asyncHandler);
+    
+    // 以下接口返回CompletionStage，由HTTP回调线程直接完成，无需占用线程等待结果
+
+    /**
+     * <p>
+     * 上传多条数据到DIS实例中。
+     * </p>
+     *
+     * @param putRecordsParam 请求参数
+     * @return 包含响应结果的 CompletionStage 对象
+     */
+    default CompletionStage<PutRecordsResult> putRecordsStage(PutRecordsRequest putRecordsParam)
+    {
+        return CompletableHandler.start(handler -> putRecordsAsync(putRecordsParam, handler));
+    }
+    
+    /**
+     * <p>
+     * 用户获取迭代器。
+     * </p>
+     *
+     * @param getPartitionCursorParam 请求参数
+     * @return 包含响应结果的 CompletionStage 对象
+     */
+    default CompletionStage<GetPartitionCursorResult> getPartitionCursorStage(
+        GetPartitionCursorRequest getPartitionCursorParam)
+    {
+        return CompletableHandler.start(handler -> getPartitionCursorAsync(getPartitionCursorParam, handler));
+    }
+    
+    /**
+     * <p>
+     * 从DIS实例中下载数据。
+     * </p>
+     *
+     * @param getRecordsParam 请求参数
+     * @return 包含响应结果的 CompletionStage 对象
+     */
+    default CompletionStage<GetRecordsResult> getRecordsStage(GetRecordsRequest getRecordsParam)
+    {
+        return CompletableHandler.start(handler -> getRecordsAsync(getRecordsParam, handler));
+    }
+    
+    /**
+     * <p>
+     * 创建流。
+     * </p>
+     *
+     * @param createStreamRequest 请求参数
+     * @return 包含响应结果的 CompletionStage 对象
+     */
+    default CompletionStage<CreateStreamResult> createStreamStage(CreateStreamRequest createStreamRequest)
+    {
+        return CompletableHandler.start(handler -> createStreamAsync(createStreamRequest, handler));
+    }
+    
+    /**
+     * <p>
+     * 删除流。
+     * </p>
+     *
+     * @param deleteStreamRequest 请求参数
+     * @return 包含响应结果的 CompletionStage 对象
+     */
+    default CompletionStage<DeleteStreamResult> deleteStreamStage(DeleteStreamRequest deleteStreamRequest)
+    {
+        return CompletableHandler.start(handler -> deleteStreamAsync(deleteStreamRequest, handler));
+    }
+    
+    /**
+     * <p>
+     * 查询流列表。
+     * </p>
+     *
+     * @param listStreamsRequest 请求参数
+     * @return 包含响应结果的 CompletionStage 对象
+     */
+    default CompletionStage<ListStreamsResult> listStreamsStage(ListStreamsRequest listStreamsRequest)
+    {
+        return CompletableHandler.start(handler -> listStreamsAsync(listStreamsRequest, handler));
+    }
+    
+    /**
+     * <p>
+     * 查询指定通道详情。
+     * </p>
+     *
+     * @param describeStreamRequest 请求参数
+     * @return 包含响应结果的 CompletionStage 对象
+     */
+    default CompletionStage<DescribeStreamResult> describeStreamStage(DescribeStreamRequest describeStreamRequest)
+    {
+        return CompletableHandler.start(handler -> describeStreamAsync(describeStreamRequest, handler));
+    }
+    
+    /**
+     * <p>
+     * 提交Checkpoint。
+     * </p>
+     *
+     * @param commitCheckpointRequest 请求参数
+     * @return 包含响应结果的 CompletionStage 对象
+     */
+    default CompletionStage<CommitCheckpointResult> commitCheckpointStage(
+        CommitCheckpointRequest commitCheckpointRequest)
+    {
+        return CompletableHandler.start(handler -> commitCheckpointAsync(commitCheckpointRequest, handler));
+    }
+    
+    /**
+     * <p>
+     * 删除Checkpoint。
+     * </p>
+     *
+     * @param deleteCheckpointRequest 请求参数
+     * @return 包含响应结果的 CompletionStage 对象
+     */
+    default CompletionStage<DeleteCheckpointResult> deleteCheckpointStage(
+        DeleteCheckpointRequest deleteCheckpointRequest)
+    {
+        return CompletableHandler.start(handler -> deleteCheckpointAsync(deleteCheckpointRequest, handler));
+    }
+    
+    /**
+     * <p>
+     * 查询流的消费状态。
+     * </p>
+     *
+     * @param listStreamConsumingStateRequest 请求参数
+     * @return 包含响应结果的 CompletionStage 对象
+     */
+    default CompletionStage<ListStreamConsumingStateResult> listStreamConsumingStateStage(
+        ListStreamConsumingStateRequest listStreamConsumingStateRequest)
+    {
+        return CompletableHandler.start(handler -> listStreamConsumingStateAsync(listStreamConsumingStateRequest, handler));
+    }
+    
+    /**
+     * <p>
+     * 获取Checkpoint。
+     * </p>
+     *
+     * @param getCheckpointRequest 请求参数
+     * @return 包含响应结果的 CompletionStage 对象
+     */
+    default CompletionStage<GetCheckpointResult> getCheckpointStage(GetCheckpointRequest getCheckpointRequest)
+    {
+        return CompletableHandler.start(handler -> getCheckpointAsync(getCheckpointRequest, handler));
+    }
+    
+    /**
+     * <p>
+     * 创建App。
+     * </p>
+     *
+     * @param appName App名称
+     * @return 包含响应结果的 CompletionStage 对象
+     */
+    default CompletionStage<Void> createAppStage(String appName)
+    {
+        return CompletableHandler.start(handler -> createAppAsync(appName, handler));
+    }
+    
+    /**
+     * <p>
+     * 删除App。
+     * </p>
+     *
+     * @param appName App名称
+     * @return 包含响应结果的 CompletionStage 对象
+     */
+    default CompletionStage<Void> deleteAppStage(String appName)
+    {
+        return CompletableHandler.start(handler -> deleteAppAsync(appName, handler));
+    }
+    
+    /**
+     * <p>
+     * 描述App。
+     * </p>
+     *
+     * @param appName App名称
+     * @return 包含响应结果的 CompletionStage 对象
+     */
+    default CompletionStage<DescribeAppResult> describeAppStage(String appName)
+    {
+        return CompletableHandler.start(handler -> describeAppAsync(appName, handler));
+    }
+    
+    /**
+     * <p>
+     * 获取App列表。
+     * </p>
+     *
+     * @param listAppsRequest 请求参数
+     * @return 包含响应结果的 CompletionStage 对象
+     */
+    default CompletionStage<ListAppsResult> listAppsStage(ListAppsRequest listAppsRequest)
+    {
+        return CompletableHandler.start(handler -> listAppsAsync(listAppsRequest, handler));
+    }
+    
+    /**
+     * <p>
+     * 变更分区数量。
+     * </p>
+     *
+     * @param updatePartitionCountRequest 请求参数
+     * @return 包含响应结果的 CompletionStage 对象
+     */
+    default CompletionStage<UpdatePartitionCountResult> updatePartitionCountStage(
+        UpdatePartitionCountRequest updatePartitionCountRequest)
+    {
+        return CompletableHandler.start(handler -> updatePartitionCountAsync(updatePartitionCountRequest, handler));
+    }
+    
+    /**
+     * <p>
+     * 创建转储任务。
+     * </p>
+     *
+     * @param createTransferTaskRequest 请求参数
+     * @return 包含响应结果的 CompletionStage 对象
+     */
+    default CompletionStage<CreateTransferTaskResult> createTransferTaskStage(
+        CreateTransferTaskRequest createTransferTaskRequest)
+    {
+        return CompletableHandler.start(handler -> createTransferTaskAsync(createTransferTaskRequest, handler));
+    }
+    
+    /**
+     * <p>
+     * 更新转储任务。
+     * </p>
+     *
+     * @param updateTransferTaskRequest 请求参数
+     * @return 包含响应结果的 CompletionStage 对象
+     */
+    default CompletionStage<UpdateTransferTaskResult> updateTransferTaskStage(
+        UpdateTransferTaskRequest updateTransferTaskRequest)
+    {
+        return CompletableHandler.start(handler -> updateTransferTaskAsync(updateTransferTaskRequest, handler));
+    }
+    
+    /**
+     * <p>
+     * 删除转储任务。
+     * </p>
+     *
+     * @param deleteTransferTaskRequest 请求参数
+     * @return 包含响应结果的 CompletionStage 对象
+     */
+    default CompletionStage<DeleteTransferTaskResult> deleteTransferTaskStage(
+        DeleteTransferTaskRequest deleteTransferTaskRequest)
+    {
+        return CompletableHandler.start(handler -> deleteTransferTaskAsync(deleteTransferTaskRequest, handler));
+    }
+    
+    /**
+     * <p>
+     * 查询转储任务列表。
+     * </p>
+     *
+     * @param listTransferTasksRequest 请求参数
+     * @return 包含响应结果的 CompletionStage 对象
+     */
+    default CompletionStage<ListTransferTasksResult> listTransferTasksStage(
+        ListTransferTasksRquest listTransferTasksRequest)
+    {
+        return CompletableHandler.start(handler -> listTransferTasksAsync(listTransferTasksRequest, handler));
+    }
+    
+    /**
+     * <p>
+     * 查询指定转储任务详情。
+     * </p>
+     *
+     * @param describeTransferTaskRequest 请求参数
+     * @return 包含响应结果的 CompletionStage 对象
+     */
+    default CompletionStage<DescribeTransferTaskResult> describeTransferTaskStage(
+        DescribeTransferTaskRequest describeTransferTaskRequest)
+    {
+        return CompletableHandler.start(handler -> describeTransferTaskAsync(describeTransferTaskRequest, handler));
+    }
 }
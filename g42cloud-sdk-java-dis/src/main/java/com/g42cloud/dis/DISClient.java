@@ -19,6 +19,13 @@ package com.g42cloud.dis;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -44,6 +51,8 @@ import com.g42cloud.dis.DISConfig.BodySerializeType;
 import com.g42cloud.dis.core.http.HttpMethodName;
 import com.g42cloud.dis.core.restresource.*;
 import com.g42cloud.dis.core.util.StringUtils;
+import com.g42cloud.dis.exception.DISClientException;
+import com.g42cloud.dis.exception.DISRequestEntityTooLargeException;
 import com.g42cloud.dis.http.AbstractDISClient;
 import com.g42cloud.dis.http.exception.HttpClientErrorException;
 import com.g42cloud.dis.iface.api.protobuf.ProtobufUtils;
@@ -57,6 +66,8 @@ import com.g42cloud.dis.iface.stream.response.*;
 import com.g42cloud.dis.iface.transfertask.request.*;
 import com.g42cloud.dis.iface.transfertask.response.*;
 import com.g42cloud.dis.util.ExponentialBackOff;
+import com.g42cloud.dis.util.GroupCommit;
+import com.g42cloud.dis.util.RequestSizeCeiling;
 import com.g42cloud.dis.util.Utils;
 import com.g42cloud.dis.util.cache.CacheResenderThread;
 import com.g42cloud.dis.util.cache.CacheUtils;
@@ -68,8 +79,28 @@ public class DISClient extends AbstractDISClient implements DIS {
 
     private CacheResenderThread cacheResenderThread;
 
+    // 拆分后的请求并行发送，没有空闲线程时由调用线程发送
+    private static final ExecutorService SPLIT_EXECUTOR = new ThreadPoolExecutor(0,
+            Math.max(4, Runtime.getRuntime().availableProcessors()), 60L, TimeUnit.SECONDS,
+            new SynchronousQueue<Runnable>(), new ThreadFactory() {
+                private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "dis-request-splitter-" + threadNumber.getAndIncrement());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            }, new ThreadPoolExecutor.CallerRunsPolicy());
+
+    protected final RequestSizeCeiling requestSizeCeiling = new RequestSizeCeiling();
+
+    // 开启合并提交时，同一通道的并发同步调用合并为一个请求发送
+    private final GroupCommit groupCommit;
+
     public DISClient(DISConfig disConfig) {
         super(disConfig);
+        this.groupCommit = newGroupCommit();
     }
 
     /**
@@ -77,10 +108,29 @@ public class DISClient extends AbstractDISClient implements DIS {
      */
     public DISClient() {
         super();
+        this.groupCommit = newGroupCommit();
+    }
+
+    private GroupCommit newGroupCommit() {
+        if (!disConfig.isGroupCommitEnabled()) {
+            return null;
+        }
+        return new GroupCommit(disConfig.getGroupCommitLingerMs(), disConfig.getBatchCount(), disConfig.getBatchSize(),
+                this::innerPutRecordsSupportingCache);
+    }
+
+    /**
+     * @return 各通道可接受的请求大小，从被服务端以413拒绝的请求中得出
+     */
+    public RequestSizeCeiling getRequestSizeCeiling() {
+        return requestSizeCeiling;
     }
 
     @Override
     public PutRecordsResult putRecords(PutRecordsRequest putRecordsParam) {
+        if (groupCommit != null && putRecordsParam.getRecords() != null && !putRecordsParam.getRecords().isEmpty()) {
+            return groupCommit.putRecords(putRecordsParam);
+        }
         return innerPutRecordsSupportingCache(putRecordsParam);
     }
 
@@ -252,6 +302,59 @@ public class DISClient extends AbstractDISClient implements DIS {
         // Decorate PutRecordsRequest if needed
         putRecordsParam = decorateRecords(putRecordsParam);
 
+        // 数据已处理(压缩/加密)，拆分重发时不能再次处理
+        return putDecoratedRecords(putRecordsParam);
+    }
+
+    /*
+     * Send the decorated records. A request the stream is known to reject as too large, or which gets 413, is split in
+     * half recursively and the halves are sent in parallel; the result is merged back in the order of the records.
+     */
+    private PutRecordsResult putDecoratedRecords(PutRecordsRequest putRecordsParam) {
+        if (!requestSizeCeiling.exceeds(putRecordsParam)) {
+            try {
+                return sendRecords(putRecordsParam);
+            } catch (DISRequestEntityTooLargeException e) {
+                if (putRecordsParam.getRecords().size() < 2) {
+                    throw e;
+                }
+                requestSizeCeiling.onRejected(putRecordsParam);
+                LOG.warn("Put {} records ({}B) to stream {} is too large, split and resend.",
+                        putRecordsParam.getRecords().size(),
+                        RequestSizeCeiling.sizeOf(putRecordsParam.getRecords()),
+                        putRecordsParam.getStreamName());
+            }
+        }
+
+        List<PutRecordsRequest> halves = RequestSizeCeiling.split(putRecordsParam);
+        PutRecordsResult[] results = new PutRecordsResult[2];
+        RuntimeException[] exceptions = new RuntimeException[2];
+        Future<PutRecordsResult> first = SPLIT_EXECUTOR.submit(() -> putDecoratedRecords(halves.get(0)));
+        try {
+            results[1] = putDecoratedRecords(halves.get(1));
+        } catch (RuntimeException e) {
+            exceptions[1] = e;
+        }
+        try {
+            results[0] = first.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            exceptions[0] = e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause()
+                    : new DISClientException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            exceptions[0] = new DISClientException(e);
+        }
+
+        if (exceptions[0] != null && exceptions[1] != null) {
+            throw exceptions[0];
+        }
+        return RequestSizeCeiling.merge(halves, Arrays.asList(results), Arrays.asList(exceptions));
+    }
+
+    private PutRecordsResult sendRecords(PutRecordsRequest putRecordsParam) {
         Request<HttpRequest> request = new DefaultRequest<>(Constants.SERVICENAME);
         request.setHttpMethod(HttpMethodName.POST);
 
@@ -265,9 +368,12 @@ public class DISClient extends AbstractDISClient implements DIS {
         if (BodySerializeType.protobuf.equals(disConfig.getBodySerializeType())) {
             request.addHeader("Content-Type", "application/x-protobuf; charset=utf-8");
 
-            Message.PutRecordsRequest protoRequest = ProtobufUtils.toProtobufPutRecordsRequest(putRecordsParam);
+            byte[] body = encodedBody(putRecordsParam);
+            if (body == null) {
+                body = ProtobufUtils.toProtobufPutRecordsRequest(putRecordsParam).toByteArray();
+            }
 
-            Message.PutRecordsResult putRecordsResult = request(protoRequest.toByteArray(), request, Message.PutRecordsResult.class);
+            Message.PutRecordsResult putRecordsResult = request(body, request, Message.PutRecordsResult.class);
 
             PutRecordsResult result = ProtobufUtils.toPutRecordsResult(putRecordsResult);
 
@@ -279,6 +385,17 @@ public class DISClient extends AbstractDISClient implements DIS {
     }
 
 
+    /*
+     * The body encoded as the records were appended, null if there is none or the records have been compressed or
+     * encrypted since
+     */
+    private byte[] encodedBody(PutRecordsRequest putRecordsParam) {
+        if (!(putRecordsParam instanceof EncodedPutRecordsRequest) || disConfig.isDataCompressEnabled() || isEncrypt()) {
+            return null;
+        }
+        return ((EncodedPutRecordsRequest) putRecordsParam).getEncodedBody();
+    }
+
     @Override
     public GetPartitionCursorResult getPartitionCursor(GetPartitionCursorRequest getPartitionCursorParam) {
         return innerGetPartitionCursor(getPartitionCursorParam);
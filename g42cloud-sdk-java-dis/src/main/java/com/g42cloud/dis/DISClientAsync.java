@@ -418,6 +418,8 @@ public class DISClientAsync extends DISClient implements DISAsync
         {
             executorService.shutdown();
         }
+        // 释放共享的HTTP客户端，尚未完成的请求将失败
+        super.close();
     }
     
     @Override
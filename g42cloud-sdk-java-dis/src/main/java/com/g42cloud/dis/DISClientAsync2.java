@@ -2,6 +2,7 @@ package com.g42cloud.dis;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletionStage;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
@@ -11,6 +12,7 @@ import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
 
 import com.g42cloud.dis.iface.transfertask.request.*;
 import com.g42cloud.dis.iface.transfertask.response.*;
@@ -18,6 +20,7 @@ import com.g42cloud.dis.core.DISCredentials;
 import com.g42cloud.dis.core.Request;
 import com.g42cloud.dis.core.builder.DefaultExecutorFactory;
 import com.g42cloud.dis.core.handler.AsyncHandler;
+import com.g42cloud.dis.core.handler.CompletableHandler;
 import com.g42cloud.dis.http.AbstractFutureAdapter;
 import com.g42cloud.dis.iface.api.protobuf.Message;
 import com.g42cloud.dis.iface.app.response.DescribeAppResult;
@@ -70,6 +73,7 @@ import com.g42cloud.dis.iface.stream.request.UpdatePartitionCountRequest;
 import com.g42cloud.dis.iface.stream.request.UpdateStreamRequest;
 import com.g42cloud.dis.iface.stream.response.CreateStreamResult;
 import com.g42cloud.dis.iface.stream.response.UpdatePartitionCountResult;
+import com.g42cloud.dis.util.RetryScheduler;
 import com.g42cloud.dis.util.Utils;
 
 public class DISClientAsync2 extends AbstractDISClientAsync implements DISAsync{
@@ -134,6 +138,72 @@ public class DISClientAsync2 extends AbstractDISClientAsync implements DISAsync{
         return getRecordsDecorateFuture;
     }
 
+	/**
+	 * Completes the stage from the response callback, converting and decorating the records in one step instead of
+	 * through the future and callback adapters of {@link #getRecordsAsync(GetRecordsRequest, AsyncHandler)}.
+	 */
+	@Override
+	public CompletionStage<GetRecordsResult> getRecordsStage(GetRecordsRequest getRecordsParam)
+	{
+		CompletableHandler<GetRecordsResult> handler = new CompletableHandler<>();
+		try
+		{
+			Request<HttpRequest> request = buildRequest(HttpMethodName.GET, disConfig.getEndpoint(),
+				ResourcePathBuilder.standard()
+					.withProjectId(disConfig.getProjectId())
+					.withResource(new RecordResource(null))
+					.build());
+			if (BodySerializeType.protobuf.equals(disConfig.getBodySerializeType()))
+			{
+				request.addHeader("Content-Type", "application/x-protobuf; charset=utf-8");
+				requestAsync(getRecordsParam, request, Message.GetRecordsResult.class,
+					new GetRecordsStageCallback<>(handler, ProtobufUtils::toGetRecordsResult));
+			}
+			else
+			{
+				requestAsync(getRecordsParam, request, GetRecordsResult.class,
+					new GetRecordsStageCallback<>(handler, Function.identity()));
+			}
+		}
+		catch (RuntimeException e)
+		{
+			handler.completeExceptionally(e);
+		}
+		return handler;
+	}
+
+	private class GetRecordsStageCallback<R> implements AsyncHandler<R>
+	{
+		private final CompletableHandler<GetRecordsResult> handler;
+
+		private final Function<R, GetRecordsResult> converter;
+
+		GetRecordsStageCallback(CompletableHandler<GetRecordsResult> handler, Function<R, GetRecordsResult> converter)
+		{
+			this.handler = handler;
+			this.converter = converter;
+		}
+
+		@Override
+		public void onError(Exception exception)
+		{
+			handler.completeExceptionally(exception);
+		}
+
+		@Override
+		public void onSuccess(R result)
+		{
+			try
+			{
+				handler.complete(decorateRecords(converter.apply(result)));
+			}
+			catch (RuntimeException e)
+			{
+				handler.completeExceptionally(e);
+			}
+		}
+	}
+
 	private class GetRecordsDecorateFuture extends AbstractFutureAdapter<GetRecordsResult, GetRecordsResult> implements Future<GetRecordsResult>{
 		private GetRecordsResult finalResult = null;
     	
@@ -380,13 +450,13 @@ public class DISClientAsync2 extends AbstractDISClientAsync implements DISAsync{
                 retryPutRecordsRequest.setStreamId(putRecordsParam.getStreamId());
 	            retryPutRecordsRequest.setRecords(retryRecordEntrys);
 	            
-	    		PutRecordsTrafficLimitRetryCallback trafficLimitRetryCallback = null;
-	        	if(asyncHandler != null) {
-	        		trafficLimitRetryCallback = new PutRecordsTrafficLimitRetryCallback(asyncHandler, this, tmpRetryIndex);
-	        	}
-	        	LOG.warn("traffic limit retry [{}] [{}] [{}]", putRecordsParam.getStreamName(), this.hashCode(), retryIndex);
-	            Future<PutRecordsResult> recordRetryFuture = innerPutRecordsAsync(retryPutRecordsRequest, request, trafficLimitRetryCallback);
-	            this.setInnerFuture(recordRetryFuture);
+	    		PutRecordsTrafficLimitRetryCallback trafficLimitRetryCallback = asyncHandler != null
+	    				? new PutRecordsTrafficLimitRetryCallback(asyncHandler, this, tmpRetryIndex) : null;
+	    		long delayMs = RetryScheduler.nextDelayMs(retryIndex, disConfig.getBackOffMaxIntervalMs());
+	        	LOG.warn("traffic limit retry [{}] [{}] [{}] after {}ms", putRecordsParam.getStreamName(), this.hashCode(), retryIndex, delayMs);
+	        	// 等待退避时间后由调度线程发起重试，不阻塞回调线程
+	            this.setInnerFuture(RetryScheduler.schedule(
+	            		() -> resend(retryPutRecordsRequest, trafficLimitRetryCallback), delayMs));
 	            
 	            return null;
 			}finally {
@@ -394,6 +464,19 @@ public class DISClientAsync2 extends AbstractDISClientAsync implements DISAsync{
 			}
 		}
 		
+		private Future<PutRecordsResult> resend(PutRecordsRequest retryPutRecordsRequest,
+				PutRecordsTrafficLimitRetryCallback trafficLimitRetryCallback) throws Exception {
+			try {
+				return innerPutRecordsAsync(retryPutRecordsRequest, request, trafficLimitRetryCallback);
+			}catch(RuntimeException e) {
+				// 调度线程中发送失败时同样通知回调
+				if(trafficLimitRetryCallback != null) {
+					trafficLimitRetryCallback.onError(e);
+				}
+				throw e;
+			}
+		}
+		
 		private void mergeResult(PutRecordsResult putRecordsResult, int retryIndex,
 				List<PutRecordsRequestEntry> retryRecordEntrys, List<Integer> retryIndexTemp) {
 			this.putRecordsResultRef.compareAndSet(null, putRecordsResult);
@@ -436,6 +519,13 @@ public class DISClientAsync2 extends AbstractDISClientAsync implements DISAsync{
             	this.putRecordsResultRef.get().getFailedRecordCount().addAndGet(-curSuccessCount);
             }
             
+            // 重试预算耗尽时不再重试，失败的记录保留在结果中
+            if(!retryRecordEntrys.isEmpty() && !retryBudget.tryAcquire()) {
+            	LOG.warn("retry budget exhausted, give up traffic limit retry [{}] [{}] [{}]", putRecordsParam.getStreamName(), this.hashCode(), retryIndex);
+            	retryRecordEntrys.clear();
+            	retryIndexTemp.clear();
+            }
+            
             if(retryRecordEntrys.isEmpty()) {
             	finished.set(true);
             }
@@ -775,6 +865,8 @@ public class DISClientAsync2 extends AbstractDISClientAsync implements DISAsync{
         {
             executorService.shutdown();
         }
+        // 释放共享的HTTP客户端，尚未完成的请求将失败
+        super.close();
 	}
 
 	@Override
@@ -25,6 +25,7 @@ import com.g42cloud.dis.util.compress.CompressionType;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
@@ -58,6 +59,49 @@ public class DISConfig extends Properties implements ClientParams {
     private static final BodySerializeType DEFAULT_VALUE_BODY_SERIALIZE_TYPE = BodySerializeType.json;
     private static final boolean DEFAULT_VALUE_ORDER_BY_PARTITION = false;
     private static final int DEFAULT_VALUE_METADATA_TIMEOUT_MS = 600000;
+    private static final int DEFAULT_VALUE_ACCUMULATOR_STRIPES = Runtime.getRuntime().availableProcessors();
+    private static final int DEFAULT_VALUE_SENDER_THREADS = Math.min(4, Runtime.getRuntime().availableProcessors());
+    private static final int DEFAULT_VALUE_MAX_IN_FLIGHT_REQUESTS_PER_PARTITION = 5;
+
+    private static final long DEFAULT_VALUE_DELIVERY_TIMEOUT_MS = 120000L;
+
+    private static final boolean DEFAULT_VALUE_ADAPTIVE_BATCHING_ENABLED = false;
+
+    private static final boolean DEFAULT_VALUE_PRODUCER_SPILL_ENABLED = false;
+
+    private static final long DEFAULT_VALUE_PRODUCER_SPILL_SEGMENT_BYTES = 64 * 1024 * 1024L;
+
+    private static final boolean DEFAULT_VALUE_PRODUCER_JOURNAL_ENABLED = false;
+
+    private static final String DEFAULT_VALUE_PRODUCER_JOURNAL_DIR_NAME = "producer-journal";
+
+    private static final long DEFAULT_VALUE_PRODUCER_JOURNAL_SEGMENT_BYTES = 64 * 1024 * 1024L;
+
+    private static final long DEFAULT_VALUE_PRODUCER_JOURNAL_FSYNC_INTERVAL_MS = 50L;
+
+    private static final boolean DEFAULT_VALUE_PRODUCER_RATE_LIMIT_ENABLED = false;
+
+    private static final long DEFAULT_VALUE_PRODUCER_RATE_LIMIT_RECORDS_PER_SECOND = 0L;
+
+    private static final long DEFAULT_VALUE_PRODUCER_RATE_LIMIT_BYTES_PER_SECOND = 0L;
+
+    private static final boolean DEFAULT_VALUE_PRODUCER_AGGREGATION_ENABLED = false;
+
+    private static final long DEFAULT_VALUE_PRODUCER_AGGREGATION_MAX_BYTES = 512 * 1024L;
+
+    private static final boolean DEFAULT_VALUE_PRODUCER_AGGREGATION_COMPRESS_ENABLED = false;
+
+    private static final boolean DEFAULT_VALUE_PRODUCER_BUFFER_OFFHEAP_ENABLED = false;
+
+    private static final int DEFAULT_VALUE_PRODUCER_BUFFER_OFFHEAP_SLAB_BYTES = 256 * 1024;
+
+    private static final boolean DEFAULT_VALUE_GROUP_COMMIT_ENABLED = false;
+
+    private static final long DEFAULT_VALUE_GROUP_COMMIT_LINGER_MS = 5L;
+
+    private static final double DEFAULT_VALUE_RETRY_BUDGET_RATIO = 0.2;
+
+    private static final int DEFAULT_VALUE_RETRY_BUDGET_MIN_PER_SECOND = 10;
 
     private static final int DEFAULT_NIO_IO_THREADS = Runtime.getRuntime().availableProcessors();
 
@@ -139,6 +183,54 @@ public class DISConfig extends Properties implements ClientParams {
 
     public static final String PROPERTY_METADATA_TIMEOUT_MS = "metadata.timeout.ms";
 
+    public static final String PROPERTY_PRODUCER_ACCUMULATOR_STRIPES = "accumulator.stripes";
+
+    public static final String PROPERTY_PRODUCER_SENDER_THREADS = "sender.threads";
+
+    public static final String PROPERTY_MAX_IN_FLIGHT_REQUESTS_PER_PARTITION = "max.in.flight.requests.per.partition";
+
+    public static final String PROPERTY_DELIVERY_TIMEOUT_MS = "delivery.timeout.ms";
+
+    public static final String PROPERTY_ADAPTIVE_BATCHING_ENABLED = "adaptive.batching.enabled";
+
+    public static final String PROPERTY_PARTITIONER_CLASS = "partitioner.class";
+
+    public static final String PROPERTY_PRODUCER_SPILL_ENABLED = "producer.spill.enabled";
+
+    public static final String PROPERTY_PRODUCER_SPILL_SEGMENT_BYTES = "producer.spill.segment.bytes";
+
+    public static final String PROPERTY_PRODUCER_JOURNAL_ENABLED = "producer.journal.enabled";
+
+    public static final String PROPERTY_PRODUCER_JOURNAL_DIR = "producer.journal.dir";
+
+    public static final String PROPERTY_PRODUCER_JOURNAL_SEGMENT_BYTES = "producer.journal.segment.bytes";
+
+    public static final String PROPERTY_PRODUCER_JOURNAL_FSYNC_INTERVAL_MS = "producer.journal.fsync.interval.ms";
+
+    public static final String PROPERTY_PRODUCER_RATE_LIMIT_ENABLED = "producer.rate.limit.enabled";
+
+    public static final String PROPERTY_PRODUCER_RATE_LIMIT_RECORDS_PER_SECOND = "producer.rate.limit.records.per.second";
+
+    public static final String PROPERTY_PRODUCER_RATE_LIMIT_BYTES_PER_SECOND = "producer.rate.limit.bytes.per.second";
+
+    public static final String PROPERTY_PRODUCER_AGGREGATION_ENABLED = "producer.aggregation.enabled";
+
+    public static final String PROPERTY_PRODUCER_AGGREGATION_MAX_BYTES = "producer.aggregation.max.bytes";
+
+    public static final String PROPERTY_PRODUCER_AGGREGATION_COMPRESS_ENABLED = "producer.aggregation.compress.enabled";
+
+    public static final String PROPERTY_PRODUCER_BUFFER_OFFHEAP_ENABLED = "producer.buffer.offheap.enabled";
+
+    public static final String PROPERTY_PRODUCER_BUFFER_OFFHEAP_SLAB_BYTES = "producer.buffer.offheap.slab.bytes";
+
+    public static final String PROPERTY_GROUP_COMMIT_ENABLED = "group.commit.enabled";
+
+    public static final String PROPERTY_GROUP_COMMIT_LINGER_MS = "group.commit.linger.ms";
+
+    public static final String PROPERTY_RETRY_BUDGET_RATIO = "retry.budget.ratio";
+
+    public static final String PROPERTY_RETRY_BUDGET_MIN_PER_SECOND = "retry.budget.min.per.second";
+
     public static final String PROPERTY_BODY_COMPRESS_ENABLED = "body.compress.enabled";
 
     public static final String PROPERTY_BODY_COMPRESS_TYPE = "body.compress.type";
@@ -352,6 +444,212 @@ public class DISConfig extends Properties implements ClientParams {
         return (long) getInt(PROPERTY_METADATA_TIMEOUT_MS, DEFAULT_VALUE_METADATA_TIMEOUT_MS);
     }
 
+    /**
+     * @return 每个分片缓冲队列的锁分段数，按分片保序时不生效
+     */
+    public int getAccumulatorStripes() {
+        int stripes = getInt(PROPERTY_PRODUCER_ACCUMULATOR_STRIPES, DEFAULT_VALUE_ACCUMULATOR_STRIPES);
+        return stripes <= 0 ? DEFAULT_VALUE_ACCUMULATOR_STRIPES : stripes;
+    }
+
+    /**
+     * @return 发送线程数，每个分片固定由其中一个线程发送
+     */
+    public int getSenderThreads() {
+        int threads = getInt(PROPERTY_PRODUCER_SENDER_THREADS, DEFAULT_VALUE_SENDER_THREADS);
+        return threads <= 0 ? DEFAULT_VALUE_SENDER_THREADS : threads;
+    }
+
+    /**
+     * 每个分片同时在发送中的最大请求数
+     * 按分片保序时默认为1；大于1时，若前一个请求失败而后一个请求成功，分片内的数据可能乱序
+     *
+     * @return 每个分片在发送中的最大请求数
+     */
+    public int getMaxInFlightRequestsPerPartition() {
+        int defaultValue = isOrderByPartition() ? 1 : DEFAULT_VALUE_MAX_IN_FLIGHT_REQUESTS_PER_PARTITION;
+        int maxInFlight = getInt(PROPERTY_MAX_IN_FLIGHT_REQUESTS_PER_PARTITION, defaultValue);
+        return maxInFlight <= 0 ? defaultValue : maxInFlight;
+    }
+
+    /**
+     * 数据从进入缓冲到发送完成的最长时间，包括等待发送、发送中与重试的时间；超时的数据以DISDeliveryTimeoutException失败并释放缓冲
+     * 小于等于0表示不限制
+     *
+     * @return 发送超时时间(ms)
+     */
+    public long getDeliveryTimeoutMs() {
+        long deliveryTimeoutMs = Long.valueOf(get(PROPERTY_DELIVERY_TIMEOUT_MS, String.valueOf(DEFAULT_VALUE_DELIVERY_TIMEOUT_MS)));
+        return deliveryTimeoutMs <= 0 ? Long.MAX_VALUE : deliveryTimeoutMs;
+    }
+
+    /**
+     * 是否根据数据到达速率、请求耗时与流控情况自适应调整批量发送延迟时间与批次大小，
+     * 开启后linger.ms、batch.size与batch.count作为上限
+     *
+     * @return 是否开启自适应批量
+     */
+    public boolean isAdaptiveBatchingEnabled() {
+        return getBoolean(PROPERTY_ADAPTIVE_BATCHING_ENABLED, DEFAULT_VALUE_ADAPTIVE_BATCHING_ENABLED);
+    }
+
+    /**
+     * 生产者的分区选择策略，需实现com.g42cloud.dis.producer.Partitioner并提供无参构造函数，为空时使用DefaultPartitioner
+     *
+     * @return 分区选择策略的类名
+     */
+    public String getPartitionerClass() {
+        return get(PROPERTY_PARTITIONER_CLASS, null);
+    }
+
+    /**
+     * 生产者缓冲(buffer.memory/buffer.count)已满时是否将新数据溢写到本地磁盘而不阻塞发送线程，
+     * 溢写文件位于data.cache.dir下，总大小受data.cache.disk.max.size限制，缓冲释放后按写入顺序读回发送
+     *
+     * @return 是否开启溢写
+     */
+    public boolean isProducerSpillEnabled() {
+        return getBoolean(PROPERTY_PRODUCER_SPILL_ENABLED, DEFAULT_VALUE_PRODUCER_SPILL_ENABLED);
+    }
+
+    /**
+     * @return 溢写文件的单个分段大小(字节)，写满后新建分段，已全部读回的分段被删除
+     */
+    public long getProducerSpillSegmentBytes() {
+        return Long.valueOf(get(PROPERTY_PRODUCER_SPILL_SEGMENT_BYTES, String.valueOf(DEFAULT_VALUE_PRODUCER_SPILL_SEGMENT_BYTES)));
+    }
+
+    /**
+     * 是否开启生产者预写日志：数据进入缓冲前先写入本地日志，发送完成后删除，进程崩溃后重启时重新发送未完成的数据
+     *
+     * @return 是否开启预写日志
+     */
+    public boolean isProducerJournalEnabled() {
+        return getBoolean(PROPERTY_PRODUCER_JOURNAL_ENABLED, DEFAULT_VALUE_PRODUCER_JOURNAL_ENABLED);
+    }
+
+    /**
+     * @return 预写日志目录，默认为data.cache.dir下的producer-journal；同一时刻只能被一个生产者使用
+     */
+    public String getProducerJournalDir() {
+        return get(PROPERTY_PRODUCER_JOURNAL_DIR, getDataCacheDir() + File.separator + DEFAULT_VALUE_PRODUCER_JOURNAL_DIR_NAME);
+    }
+
+    /**
+     * @return 预写日志的单个分段大小(字节)
+     */
+    public long getProducerJournalSegmentBytes() {
+        return Long.valueOf(get(PROPERTY_PRODUCER_JOURNAL_SEGMENT_BYTES, String.valueOf(DEFAULT_VALUE_PRODUCER_JOURNAL_SEGMENT_BYTES)));
+    }
+
+    /**
+     * 预写日志的刷盘间隔，0表示每次写入返回前刷盘(同时写入的请求合并刷盘)，小于0表示只由操作系统刷盘；
+     * 写入后即使未刷盘，进程崩溃也不会丢失数据，刷盘间隔只影响操作系统崩溃或断电时丢失的数据量
+     *
+     * @return 刷盘间隔(ms)
+     */
+    public long getProducerJournalFsyncIntervalMs() {
+        return Long.valueOf(get(PROPERTY_PRODUCER_JOURNAL_FSYNC_INTERVAL_MS, String.valueOf(DEFAULT_VALUE_PRODUCER_JOURNAL_FSYNC_INTERVAL_MS)));
+    }
+
+    /**
+     * 是否开启生产者限流：按每个分区的写入配额控制发送速率，超出配额的批次在缓冲中等待，而不是发送后被服务端流控
+     *
+     * @return 是否开启限流
+     */
+    public boolean isProducerRateLimitEnabled() {
+        return getBoolean(PROPERTY_PRODUCER_RATE_LIMIT_ENABLED, DEFAULT_VALUE_PRODUCER_RATE_LIMIT_ENABLED);
+    }
+
+    /**
+     * @return 每个分区每秒发送的记录数上限，0表示按通道类型取值(COMMON为1000，ADVANCED为2000)
+     */
+    public long getProducerRateLimitRecordsPerSecond() {
+        return Long.valueOf(get(PROPERTY_PRODUCER_RATE_LIMIT_RECORDS_PER_SECOND, String.valueOf(DEFAULT_VALUE_PRODUCER_RATE_LIMIT_RECORDS_PER_SECOND)));
+    }
+
+    /**
+     * @return 每个分区每秒发送的字节数上限，0表示按通道类型取值(COMMON为1MB，ADVANCED为5MB)
+     */
+    public long getProducerRateLimitBytesPerSecond() {
+        return Long.valueOf(get(PROPERTY_PRODUCER_RATE_LIMIT_BYTES_PER_SECOND, String.valueOf(DEFAULT_VALUE_PRODUCER_RATE_LIMIT_BYTES_PER_SECOND)));
+    }
+
+    /**
+     * 是否开启记录聚合：发送前将同一分区的多条小记录打包为一条记录，消费时使用RecordAggregation.deaggregate展开
+     *
+     * @return 是否开启记录聚合
+     */
+    public boolean isProducerAggregationEnabled() {
+        return getBoolean(PROPERTY_PRODUCER_AGGREGATION_ENABLED, DEFAULT_VALUE_PRODUCER_AGGREGATION_ENABLED);
+    }
+
+    /**
+     * @return 单条聚合记录的最大字节数，不能超过服务端单条记录的大小上限
+     */
+    public long getProducerAggregationMaxBytes() {
+        return Long.valueOf(get(PROPERTY_PRODUCER_AGGREGATION_MAX_BYTES, String.valueOf(DEFAULT_VALUE_PRODUCER_AGGREGATION_MAX_BYTES)));
+    }
+
+    /**
+     * @return 是否使用snappy压缩聚合记录
+     */
+    public boolean isProducerAggregationCompressEnabled() {
+        return getBoolean(PROPERTY_PRODUCER_AGGREGATION_COMPRESS_ENABLED, DEFAULT_VALUE_PRODUCER_AGGREGATION_COMPRESS_ENABLED);
+    }
+
+    /**
+     * 是否将缓冲中的记录数据复制到堆外内存：堆内只保留记录的索引，减少buffer.memory较大时的老年代GC压力
+     *
+     * @return 是否使用堆外内存缓冲记录数据
+     */
+    public boolean isProducerBufferOffHeapEnabled() {
+        return getBoolean(PROPERTY_PRODUCER_BUFFER_OFFHEAP_ENABLED, DEFAULT_VALUE_PRODUCER_BUFFER_OFFHEAP_ENABLED);
+    }
+
+    /**
+     * @return 单个堆外内存块的字节数，大于该值的记录数据仍保留在堆内
+     */
+    public int getProducerBufferOffHeapSlabBytes() {
+        return getInt(PROPERTY_PRODUCER_BUFFER_OFFHEAP_SLAB_BYTES, DEFAULT_VALUE_PRODUCER_BUFFER_OFFHEAP_SLAB_BYTES);
+    }
+
+    /**
+     * 同步客户端是否合并提交：同一通道上并发的putRecord/putRecords调用在短时间内合并为一个请求发送，
+     * 合并的条数和大小受batch.count和batch.size限制
+     *
+     * @return 是否合并提交
+     */
+    public boolean isGroupCommitEnabled() {
+        return getBoolean(PROPERTY_GROUP_COMMIT_ENABLED, DEFAULT_VALUE_GROUP_COMMIT_ENABLED);
+    }
+
+    /**
+     * @return 合并提交时等待其他调用加入的最长时间(ms)
+     */
+    public long getGroupCommitLingerMs() {
+        long lingerMs = Long.valueOf(get(PROPERTY_GROUP_COMMIT_LINGER_MS, String.valueOf(DEFAULT_VALUE_GROUP_COMMIT_LINGER_MS)));
+        return lingerMs < 0 ? 0 : lingerMs;
+    }
+
+    /**
+     * 异步请求每秒可重试的次数占上一秒成功请求数的比例，用于限制故障时重试造成的请求放大
+     *
+     * @return 重试预算比例
+     */
+    public double getRetryBudgetRatio() {
+        double ratio = Double.valueOf(get(PROPERTY_RETRY_BUDGET_RATIO, String.valueOf(DEFAULT_VALUE_RETRY_BUDGET_RATIO)));
+        return ratio < 0 ? 0 : ratio;
+    }
+
+    /**
+     * @return 不论成功请求数多少，异步请求每秒至少可重试的次数
+     */
+    public int getRetryBudgetMinPerSecond() {
+        int minPerSecond = getInt(PROPERTY_RETRY_BUDGET_MIN_PER_SECOND, DEFAULT_VALUE_RETRY_BUDGET_MIN_PER_SECOND);
+        return minPerSecond < 0 ? 0 : minPerSecond;
+    }
+
     /**
      * @return 批量发送延迟时间
      */
@@ -30,6 +30,7 @@ import com.g42cloud.dis.core.auth.signer.internal.SignerKey;
 import com.g42cloud.dis.core.auth.signer.internal.SignerRequestParams;
 import com.g42cloud.dis.core.auth.signer.internal.SignerUtils;
 import com.g42cloud.dis.core.internal.FIFOCache;
+import com.g42cloud.dis.core.internal.HashedInputStream;
 import com.g42cloud.dis.core.util.BinaryUtils;
 import com.g42cloud.dis.core.util.DateUtils;
 import com.g42cloud.dis.core.util.HttpUtils;
@@ -362,6 +363,10 @@ public class DefaultSigner extends AbstractSigner implements ServiceSigner, Regi
      * relating to content-encoding and content-length.)
      */
     protected String calculateContentHash(Request< ? > request) {
+        if (request.getContent() instanceof HashedInputStream) {
+            // 请求体写入时已计算摘要
+            return ((HashedInputStream) request.getContent()).getContentSha256();
+        }
         InputStream payloadStream = getBinaryRequestPayloadStream(request);
         WebServiceRequest req = request.getOriginalRequest();
         payloadStream.mark(req == null ? -1 : req.getReadLimit());
@@ -0,0 +1,63 @@
+/*
+ * Copyright 2002-2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.g42cloud.dis.core.handler;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.function.Function;
+
+/**
+ * An {@link AsyncHandler} which is also the {@link CompletableFuture} of its result: the future is completed directly
+ * by the thread invoking the callback, so no thread waits on the result and no adapter future is chained in between.
+ *
+ * @param <RESULT> the result type
+ */
+public class CompletableHandler<RESULT> extends CompletableFuture<RESULT> implements AsyncHandler<RESULT>
+{
+    /**
+     * Start an asynchronous operation with a new handler.
+     *
+     * @param operation the operation, which calls the handler once it completes
+     * @param <RESULT> the result type
+     * @return the stage of the result, completed exceptionally as well when the operation fails before it is started
+     */
+    public static <RESULT> CompletionStage<RESULT> start(Function<AsyncHandler<RESULT>, ?> operation)
+    {
+        CompletableHandler<RESULT> handler = new CompletableHandler<>();
+        try
+        {
+            operation.apply(handler);
+        }
+        catch (RuntimeException e)
+        {
+            handler.completeExceptionally(e);
+        }
+        return handler;
+    }
+
+    @Override
+    public void onError(Exception exception)
+    {
+        completeExceptionally(exception);
+    }
+
+    @Override
+    public void onSuccess(RESULT result)
+    {
+        complete(result);
+    }
+}
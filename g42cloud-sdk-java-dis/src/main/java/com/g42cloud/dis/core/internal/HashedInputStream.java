@@ -0,0 +1,45 @@
+/*
+ * Copyright 2002-2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.g42cloud.dis.core.internal;
+
+import java.io.ByteArrayInputStream;
+
+/**
+ * A request payload whose SHA-256 hash was computed while the payload was written, so the signer takes the hash as it
+ * is instead of reading the payload again.
+ */
+public class HashedInputStream extends ByteArrayInputStream {
+    private final String contentSha256;
+
+    /**
+     * @param buf the buffer holding the payload, which is not copied
+     * @param offset the offset of the payload in the buffer
+     * @param length the length of the payload
+     * @param contentSha256 the hex encoded SHA-256 hash of the payload
+     */
+    public HashedInputStream(byte[] buf, int offset, int length, String contentSha256) {
+        super(buf, offset, length);
+        this.contentSha256 = contentSha256;
+    }
+
+    /**
+     * @return the hex encoded SHA-256 hash of the payload
+     */
+    public String getContentSha256() {
+        return contentSha256;
+    }
+}
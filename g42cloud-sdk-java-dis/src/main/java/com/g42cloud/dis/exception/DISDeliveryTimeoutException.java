@@ -0,0 +1,38 @@
+/*
+ * Copyright 2002-2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.g42cloud.dis.exception;
+
+/**
+ * 数据在delivery.timeout.ms内未能发送成功，生产者放弃发送
+ */
+public class DISDeliveryTimeoutException extends DISClientException
+{
+    public DISDeliveryTimeoutException(String message)
+    {
+        super(message);
+    }
+
+    public DISDeliveryTimeoutException(String message, Throwable cause)
+    {
+        super(message, cause);
+    }
+
+    public DISDeliveryTimeoutException(Throwable cause)
+    {
+        super(cause);
+    }
+}
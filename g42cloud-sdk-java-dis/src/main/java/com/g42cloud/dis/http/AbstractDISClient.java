@@ -39,7 +39,6 @@ import javax.crypto.BadPaddingException;
 import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.NoSuchPaddingException;
 import javax.net.ssl.SSLException;
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
@@ -79,6 +78,16 @@ public class AbstractDISClient {
 
     protected ICredentialsProvider credentialsProvider;
 
+    // 异步请求的重试预算，由该客户端的所有异步请求共享
+    protected RetryBudget retryBudget;
+
+    // 按传输配置共享的HTTP客户端，首次使用时获取，关闭时释放
+    private volatile RestClient restClient;
+
+    private volatile RestClientAsync restClientAsync;
+
+    private volatile boolean closed;
+
     public AbstractDISClient(DISConfig disConfig) {
         this.disConfig = DISConfig.buildConfig(disConfig);
         init();
@@ -87,6 +96,7 @@ public class AbstractDISClient {
     private void init() {
         this.credentials = new DISCredentials(this.disConfig);
         this.region = this.disConfig.getRegion();
+        this.retryBudget = new RetryBudget(this.disConfig.getRetryBudgetRatio(), this.disConfig.getRetryBudgetMinPerSecond());
         check();
         initCredentialsProvider();
     }
@@ -99,6 +109,64 @@ public class AbstractDISClient {
         init();
     }
 
+    protected RestClient restClient() {
+        RestClient client = restClient;
+        if (client == null) {
+            synchronized (this) {
+                checkNotClosed();
+                client = restClient;
+                if (client == null) {
+                    client = RestClient.acquire(disConfig);
+                    restClient = client;
+                }
+            }
+        }
+        return client;
+    }
+
+    protected RestClientAsync restClientAsync() {
+        RestClientAsync client = restClientAsync;
+        if (client == null) {
+            synchronized (this) {
+                checkNotClosed();
+                client = restClientAsync;
+                if (client == null) {
+                    client = RestClientAsync.acquire(disConfig);
+                    restClientAsync = client;
+                }
+            }
+        }
+        return client;
+    }
+
+    private void checkNotClosed() {
+        if (closed) {
+            throw new DISClientException("The client is closed.");
+        }
+    }
+
+    /**
+     * 释放客户端使用的HTTP连接池，传输配置相同的其他客户端仍在使用时连接池不会关闭
+     */
+    public void close() {
+        RestClient client;
+        RestClientAsync asyncClient;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            client = restClient;
+            asyncClient = restClientAsync;
+        }
+        if (client != null) {
+            RestClient.release(disConfig, client);
+        }
+        if (asyncClient != null) {
+            RestClientAsync.release(disConfig, asyncClient);
+        }
+    }
+
     protected Request<HttpRequest> buildRequest(HttpMethodName httpMethod, String endpoint, String resourcePath) {
         Request<HttpRequest> request = new DefaultRequest<>(Constants.SERVICENAME);
         request.setHttpMethod(httpMethod);
@@ -120,7 +188,7 @@ public class AbstractDISClient {
         if (disConfig.isDataCompressEnabled()) {
             if (putRecordsParam.getRecords() != null) {
                 for (PutRecordsRequestEntry record : putRecordsParam.getRecords()) {
-                    byte[] input = record.getData().array();
+                    byte[] input = toBytes(record.getData());
                     try {
                         byte[] compressedInput = SnappyUtils.compress(input);
                         record.setData(ByteBuffer.wrap(compressedInput));
@@ -179,6 +247,19 @@ public class AbstractDISClient {
         return getRecordsResult;
     }
 
+    /*
+     * The content of the buffer, which may be a view of off-heap memory
+     */
+    private static byte[] toBytes(ByteBuffer data) {
+        if (data.hasArray() && data.arrayOffset() == 0 && data.position() == 0
+                && data.remaining() == data.array().length) {
+            return data.array();
+        }
+        byte[] bytes = new byte[data.remaining()];
+        data.duplicate().get(bytes);
+        return bytes;
+    }
+
     protected boolean isEncrypt() {
         return disConfig.getIsDefaultDataEncryptEnabled() && !StringUtils.isNullOrEmpty(disConfig.getDataPassword());
     }
@@ -186,7 +267,7 @@ public class AbstractDISClient {
     protected ByteBuffer encrypt(ByteBuffer src) {
         String cipher = null;
         try {
-            cipher = EncryptUtils.gen(new String[]{disConfig.getDataPassword()}, src.array());
+            cipher = EncryptUtils.gen(new String[]{disConfig.getDataPassword()}, toBytes(src));
         } catch (InvalidKeyException | NoSuchAlgorithmException | InvalidKeySpecException | NoSuchPaddingException
                 | IllegalBlockSizeException | BadPaddingException | InvalidAlgorithmParameterException e) {
             LOG.error(e.getMessage(), e);
@@ -209,7 +290,8 @@ public class AbstractDISClient {
         return ByteBuffer.wrap(src.getBytes(utf8));
     }
 
-    private byte[] beforeRequest(Request<HttpRequest> request, Object requestContent, String region, String projectId, String securityToken) {
+    private RequestBody beforeRequest(Request<HttpRequest> request, Object requestContent, String region, String projectId,
+                                      String securityToken, boolean pooled) {
         request.addHeader(HTTP_X_PROJECT_ID, projectId);
 
         if (!StringUtils.isNullOrEmpty(securityToken)) {
@@ -219,33 +301,38 @@ public class AbstractDISClient {
         // set request header
         setContentType(request);
         setSdkVersion(request);
+        setAcceptEncoding(request);
 
         // set request parameters
         setParameters(request, requestContent);
 
         // set request content
-        return setContent(request, requestContent);
+        return setContent(request, requestContent, pooled);
     }
 
-    private byte[] setContent(Request<HttpRequest> request, Object requestContent) {
+    private RequestBody setContent(Request<HttpRequest> request, Object requestContent, boolean pooled) {
         HttpMethodName methodName = request.getHttpMethod();
         if (methodName.equals(HttpMethodName.POST) || methodName.equals(HttpMethodName.PUT)) {
 
-            byte[] content = null;
+            RequestBody body;
             if (requestContent instanceof byte[]) {
-                content = (byte[]) requestContent;
+                body = RequestBody.wrap((byte[]) requestContent);
             } else if (requestContent instanceof String || requestContent instanceof Integer) {
-                content = Utils.encodingBytes(requestContent.toString());
+                body = RequestBody.wrap(Utils.encodingBytes(requestContent.toString()));
             } else {
-                String reqJson = JsonUtils.objToJson(requestContent);
-                content = Utils.encodingBytes(reqJson);
+                // 直接序列化到缓冲区，同时计算摘要，签名和发送时不再复制
+                body = RequestBody.json(requestContent, pooled);
             }
 
-            content = compressBody(request, content);
+            if (disConfig.getBoolean(DISConfig.PROPERTY_BODY_COMPRESS_ENABLED, false)) {
+                RequestBody compressed = RequestBody.wrap(compressBody(request, body.toByteArray()));
+                body.release();
+                body = compressed;
+            }
 
-            request.setContent(new ByteArrayInputStream(content));
+            request.setContent(body.newInputStream());
 
-            return content;
+            return body;
         }
         return null;
     }
@@ -260,12 +347,10 @@ public class AbstractDISClient {
         byte[] target = null;
         if (Constants.COMPRESS_LZ4.equals(compressType)) {
             request.addHeader("Content-Encoding", Constants.COMPRESS_LZ4);
-            request.addHeader("Accept-Encoding", Constants.COMPRESS_LZ4);
             request.addHeader(Constants.COMPRESS_LZ4_CONTENT_LENGTH, String.valueOf(source.length));
             target = Lz4Util.compressByte(source);
         } else if (Constants.COMPRESS_SNAPPY.equals(compressType)) {
             request.addHeader("Content-Encoding", Constants.COMPRESS_SNAPPY);
-            request.addHeader("Accept-Encoding", Constants.COMPRESS_SNAPPY);
             try {
                 target = SnappyUtils.compress(source);
             } catch (IOException e) {
@@ -273,7 +358,6 @@ public class AbstractDISClient {
             }
         } else if (Constants.COMPRESS_ZSTD.equals(compressType)) {
             request.addHeader("Content-Encoding", Constants.COMPRESS_ZSTD);
-            request.addHeader("Accept-Encoding", Constants.COMPRESS_ZSTD);
             request.addHeader(Constants.COMPRESS_ZSTD_CONTENT_LENGTH, String.valueOf(source.length));
             target = ZstdUtil.compressByte(source);
         }
@@ -296,6 +380,14 @@ public class AbstractDISClient {
         request.addHeader(HEADER_SDK_VERSION, VersionUtils.getVersion() + "/" + VersionUtils.getPlatform());
     }
 
+    private void setAcceptEncoding(Request<HttpRequest> request) {
+        // 无请求体的请求(如GetRecords)同样接受压缩的响应，由ContentDecoder解压
+        if (disConfig.getBoolean(DISConfig.PROPERTY_BODY_COMPRESS_ENABLED, false)) {
+            request.addHeader("Accept-Encoding",
+                disConfig.get(DISConfig.PROPERTY_BODY_COMPRESS_TYPE, Constants.COMPRESS_LZ4));
+        }
+    }
+
     private void setParameters(Request<HttpRequest> request, Object requestContent) {
         if (request.getHttpMethod().equals(HttpMethodName.GET) || request.getHttpMethod().equals(HttpMethodName.DELETE)) {
             if (requestContent != null) {
@@ -337,13 +429,20 @@ public class AbstractDISClient {
             }
         }
 
-        byte[] bodyBytes = beforeRequest(request, param, region, disConfig.getProjectId(), credentials.getSecurityToken());
+        RequestBody body = beforeRequest(request, param, region, disConfig.getProjectId(), credentials.getSecurityToken(), true);
 
-        if (credentials.getAuthToken() == null) {
-            // 发送请求--通过ak sk
-            return doRequest(request, bodyBytes, credentials.getAccessKeyId(), credentials.getSecretKey(), region, clazz);
-        } else { //发送请求--通过x-auth-token
-            return doRequest(request, bodyBytes, credentials.getAuthToken(), region, clazz);
+        try {
+            if (credentials.getAuthToken() == null) {
+                // 发送请求--通过ak sk
+                return doRequest(request, body, credentials.getAccessKeyId(), credentials.getSecretKey(), region, clazz);
+            } else { //发送请求--通过x-auth-token
+                return doRequest(request, body, credentials.getAuthToken(), region, clazz);
+            }
+        } finally {
+            // 同步请求(含重试)已结束，缓冲区可复用
+            if (body != null) {
+                body.release();
+            }
         }
 
     }
@@ -358,9 +457,10 @@ public class AbstractDISClient {
             }
         }
 
-        byte[] bodyBytes = beforeRequest(request, param, region, disConfig.getProjectId(), credentials.getSecurityToken());
+        // 异步请求的重试可能在任意线程发起，请求体不复用
+        RequestBody body = beforeRequest(request, param, region, disConfig.getProjectId(), credentials.getSecurityToken(), false);
 
-        return doRequestAsync(request, bodyBytes, credentials.getAccessKeyId(), credentials.getSecretKey(), region, clazz, callback);
+        return doRequestAsync(request, body, credentials.getAccessKeyId(), credentials.getSecretKey(), region, clazz, callback);
     }
 
     private <T> Future<T> doRequestAsync(Request<HttpRequest> request, Object requestContent, String ak, String sk,
@@ -377,7 +477,7 @@ public class AbstractDISClient {
             connectRetryCallback = new ConnectRetryCallback<T>(callback, connectRetryFuture, 0);
         }
 
-        Future<T> restFuture = RestClientAsync.getInstance(disConfig).exchangeAsync(uri,
+        Future<T> restFuture = restClientAsync().exchangeAsync(uri,
                 request.getHttpMethod(), request.getHeaders(), requestContent, returnType, connectRetryCallback);
 
         connectRetryFuture.setInnerFuture(restFuture);
@@ -467,27 +567,47 @@ public class AbstractDISClient {
                     return;
                 }
 
-                int tmpRetryIndex = retryCount.incrementAndGet();
-
-                request.getHeaders().remove(SignerConstants.AUTHORIZATION);
-                request = SignUtil.sign(request, ak, sk, region, disConfig);
-
-                ConnectRetryCallback<T> connectRetryCallback = null;
-                if (callback != null) {
-                    connectRetryCallback = new ConnectRetryCallback<T>(callback, this, tmpRetryIndex);
+                // 重试预算耗尽时不再重试，避免故障期间重试放大请求量
+                if (!retryBudget.tryAcquire()) {
+                    LOG.warn("retry budget exhausted, give up retry [{}] [{}] [{}]", this.hashCode(), retryIndex, errorMsg);
+                    handleError(t, errorMsg, isRetriable);
                 }
 
-                LOG.warn("connect or system error retry [{}] [{}] [{}]", this.hashCode(), retryIndex, errorMsg);
-                Future<T> restFuture = RestClientAsync.getInstance(disConfig).exchangeAsync(uri,
-                        request.getHttpMethod(), request.getHeaders(), requestContent, returnType, connectRetryCallback);
+                int tmpRetryIndex = retryCount.incrementAndGet();
 
-                this.setInnerFuture(restFuture);
+                ConnectRetryCallback<T> connectRetryCallback =
+                        callback != null ? new ConnectRetryCallback<T>(callback, this, tmpRetryIndex) : null;
+
+                long delayMs = RetryScheduler.nextDelayMs(retryIndex, disConfig.getBackOffMaxIntervalMs());
+                LOG.warn("connect or system error retry [{}] [{}] [{}] after {}ms", this.hashCode(), retryIndex, errorMsg, delayMs);
+                // 等待退避时间后由调度线程发起重试，不阻塞回调线程
+                this.setInnerFuture(RetryScheduler.schedule(() -> resend(connectRetryCallback), delayMs));
             } finally {
                 retryLock.unlock();
             }
 
         }
 
+        private Future<T> resend(ConnectRetryCallback<T> connectRetryCallback) {
+            try {
+                request.getHeaders().remove(SignerConstants.AUTHORIZATION);
+                // 每次重传需要重新签名
+                request = SignUtil.sign(request, ak, sk, region, disConfig);
+                return restClientAsync().exchangeAsync(uri,
+                        request.getHttpMethod(), request.getHeaders(), requestContent, returnType, connectRetryCallback);
+            } catch (RuntimeException e) {
+                // 调度线程中发送失败时同样通知回调
+                if (connectRetryCallback != null) {
+                    try {
+                        connectRetryCallback.onError(e);
+                    } catch (Exception callbackException) {
+                        LOG.error(callbackException.getMessage(), callbackException);
+                    }
+                }
+                throw e;
+            }
+        }
+
         @Override
         public T get() throws InterruptedException, ExecutionException {
             retryLock.lock();
@@ -527,6 +647,7 @@ public class AbstractDISClient {
 
         @Override
         protected T toT(T innerT) {
+            retryBudget.onSuccess();
             return innerT;
         }
     }
@@ -571,7 +692,7 @@ public class AbstractDISClient {
                 request.getHeaders().remove(SignerConstants.AUTHORIZATION);
                 // 每次重传需要重新签名
                 request = SignUtil.sign(request, ak, sk, region, disConfig);
-                return RestClient.getInstance(disConfig).exchange(uri,
+                return restClient().exchange(uri,
                         request.getHttpMethod(), request.getHeaders(), requestContent, returnType);
             } catch (Throwable t) {
                 String errorMsg = t.getMessage();
@@ -616,7 +737,7 @@ public class AbstractDISClient {
 
             try {
                 request.addHeader("X-Auth-Token", authToken);
-                return RestClient.getInstance(disConfig).exchange(uri,
+                return restClient().exchange(uri,
                         request.getHttpMethod(), request.getHeaders(), requestContent, returnType);
             } catch (Throwable t) {
                 String errorMsg = t.getMessage();
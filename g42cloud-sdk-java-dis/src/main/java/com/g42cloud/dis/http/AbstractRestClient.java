@@ -196,7 +196,11 @@ public abstract class AbstractRestClient
     {
         
         // TODO 使用 HttpMessageConverter 来实现
-        if (data instanceof byte[])
+        if (data instanceof RequestBody)
+        {
+            return ((RequestBody) data).toEntity();
+        }
+        else if (data instanceof byte[])
         {
             return new ByteArrayEntity((byte[])data);
         }
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2002-2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.g42cloud.dis.http;
+
+import java.io.IOException;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.util.EntityUtils;
+
+import com.g42cloud.dis.Constants;
+import com.g42cloud.dis.util.SnappyUtils;
+import com.g42cloud.dis.util.compress.Lz4Util;
+import com.g42cloud.dis.util.compress.ZstdUtil;
+
+/**
+ * Decode the body of a response compressed with one of the {@code Content-Encoding}s the client accepts when
+ * {@code body.compress.enabled} is set.
+ * <p>
+ * The entity of the response is replaced by the decompressed body and the {@code Content-Encoding} header is removed,
+ * so the error handler and the message converters see the body as if it had been sent uncompressed. Responses with
+ * any other encoding are left as they are.
+ */
+public final class ContentDecoder
+{
+    private static final String HEADER_CONTENT_ENCODING = "Content-Encoding";
+
+    private ContentDecoder()
+    {
+    }
+
+    /**
+     * @param response the response, whose entity is replaced if its body is compressed
+     * @throws IOException if the body cannot be read or is not a valid compressed body
+     */
+    public static void decode(HttpResponse response)
+        throws IOException
+    {
+        Header contentEncoding = response.getFirstHeader(HEADER_CONTENT_ENCODING);
+        HttpEntity entity = response.getEntity();
+        if (contentEncoding == null || entity == null)
+        {
+            return;
+        }
+
+        String encoding = contentEncoding.getValue().trim().toLowerCase();
+        if (!Constants.COMPRESS_LZ4.equals(encoding) && !Constants.COMPRESS_SNAPPY.equals(encoding)
+            && !Constants.COMPRESS_ZSTD.equals(encoding))
+        {
+            return;
+        }
+
+        byte[] compressed = EntityUtils.toByteArray(entity);
+        byte[] decoded;
+        if (compressed.length == 0)
+        {
+            decoded = compressed;
+        }
+        else if (Constants.COMPRESS_SNAPPY.equals(encoding))
+        {
+            // snappy的数据中已包含原始长度
+            decoded = SnappyUtils.uncompress(compressed);
+        }
+        else
+        {
+            String lengthHeader = Constants.COMPRESS_LZ4.equals(encoding) ? Constants.COMPRESS_LZ4_CONTENT_LENGTH
+                : Constants.COMPRESS_ZSTD_CONTENT_LENGTH;
+            int length = originalLength(response, lengthHeader);
+            try
+            {
+                decoded = Constants.COMPRESS_LZ4.equals(encoding) ? Lz4Util.decompressByte(compressed, length)
+                    : ZstdUtil.decompressByte(compressed, length);
+            }
+            catch (RuntimeException e)
+            {
+                throw new IOException("Failed to decode " + encoding + " response: " + e.getMessage(), e);
+            }
+        }
+
+        ByteArrayEntity decodedEntity = new ByteArrayEntity(decoded);
+        decodedEntity.setContentType(entity.getContentType());
+        response.setEntity(decodedEntity);
+        response.removeHeaders(HEADER_CONTENT_ENCODING);
+    }
+
+    private static int originalLength(HttpResponse response, String lengthHeader)
+        throws IOException
+    {
+        Header header = response.getFirstHeader(lengthHeader);
+        if (header == null)
+        {
+            throw new IOException("Missing header " + lengthHeader + " of compressed response");
+        }
+        try
+        {
+            int length = Integer.parseInt(header.getValue().trim());
+            if (length >= 0)
+            {
+                return length;
+            }
+        }
+        catch (NumberFormatException e)
+        {
+            // 下面统一抛出异常
+        }
+        throw new IOException("Invalid header " + lengthHeader + ": " + header.getValue());
+    }
+}
@@ -20,6 +20,7 @@ public class HttpFutureAdapter<T> extends AbstractFutureAdapter<T, HttpResponse>
 	@Override
 	protected T toT(HttpResponse innerT) {
 		try {
+			ContentDecoder.decode(innerT);
 			if (errorHandler.hasError(innerT))
 	        {
 	            errorHandler.handleError(innerT);
@@ -28,6 +28,7 @@ public class HttpFutureCallbackAdapter<T> implements FutureCallback<HttpResponse
 	public void completed(HttpResponse result) {
 		T t = null;
 		try {
+			ContentDecoder.decode(result);
 			if (errorHandler.hasError(result))
 	        {
 	            errorHandler.handleError(result);
@@ -0,0 +1,162 @@
+/*
+ * Copyright 2002-2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.g42cloud.dis.http;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.ByteArrayEntity;
+
+import com.g42cloud.dis.core.internal.HashedInputStream;
+import com.g42cloud.dis.core.util.BinaryUtils;
+import com.g42cloud.dis.exception.DISClientException;
+import com.g42cloud.dis.util.JsonUtils;
+
+/**
+ * The body of a request, written once and then both signed and sent from the same buffer.
+ * <p>
+ * The request object is serialized straight into the buffer through a {@link DigestOutputStream}, so the SHA-256 hash
+ * the signer needs is known once the body is written, and the buffer is handed to the HTTP entity without another
+ * copy. The buffers of the bodies of synchronous requests are pooled and reused once the request is completed.
+ */
+public final class RequestBody extends ByteArrayOutputStream
+{
+    private static final int INITIAL_CAPACITY = 4096;
+
+    // 最多复用的缓冲区数，以及可复用的单个缓冲区的最大字节数
+    private static final int MAX_POOLED_BUFFERS = 8;
+
+    private static final int MAX_POOLED_CAPACITY = 8 * 1024 * 1024;
+
+    private static final Queue<byte[]> POOL = new ConcurrentLinkedQueue<>();
+
+    private static final AtomicInteger POOLED_BUFFERS = new AtomicInteger();
+
+    private final boolean pooled;
+
+    private String contentSha256;
+
+    private RequestBody(byte[] buffer, int length, boolean pooled)
+    {
+        super(0);
+        this.buf = buffer;
+        this.count = length;
+        this.pooled = pooled;
+    }
+
+    /**
+     * Serialize a request object as JSON.
+     *
+     * @param requestContent the request object
+     * @param pooled whether the buffer is taken from the pool, it must then be given back by {@link #release()}
+     * @return the body
+     */
+    public static RequestBody json(Object requestContent, boolean pooled)
+    {
+        RequestBody body = new RequestBody(pooled ? takeBuffer() : new byte[INITIAL_CAPACITY], 0, pooled);
+        MessageDigest md = sha256();
+        try (DigestOutputStream out = new DigestOutputStream(body, md))
+        {
+            JsonUtils.writeJson(requestContent, out);
+        }
+        catch (IOException e)
+        {
+            body.release();
+            throw new DISClientException("Failed to serialize request: " + e.getMessage(), e);
+        }
+        body.contentSha256 = BinaryUtils.toHex(md.digest());
+        return body;
+    }
+
+    /**
+     * @param content the content of the body, which is not copied
+     * @return the body
+     */
+    public static RequestBody wrap(byte[] content)
+    {
+        RequestBody body = new RequestBody(content, content.length, false);
+        MessageDigest md = sha256();
+        md.update(content);
+        body.contentSha256 = BinaryUtils.toHex(md.digest());
+        return body;
+    }
+
+    /**
+     * @return the content to sign, with its hash already computed
+     */
+    public HashedInputStream newInputStream()
+    {
+        return new HashedInputStream(buf, 0, count, contentSha256);
+    }
+
+    /**
+     * @return the entity to send, backed by the buffer of the body
+     */
+    public HttpEntity toEntity()
+    {
+        return new ByteArrayEntity(buf, 0, count);
+    }
+
+    /**
+     * Give the buffer back to the pool, the body must not be used any more.
+     */
+    public void release()
+    {
+        if (!pooled || buf.length > MAX_POOLED_CAPACITY)
+        {
+            return;
+        }
+        if (POOLED_BUFFERS.incrementAndGet() <= MAX_POOLED_BUFFERS)
+        {
+            POOL.offer(buf);
+        }
+        else
+        {
+            POOLED_BUFFERS.decrementAndGet();
+        }
+    }
+
+    private static byte[] takeBuffer()
+    {
+        byte[] buffer = POOL.poll();
+        if (buffer == null)
+        {
+            return new byte[INITIAL_CAPACITY];
+        }
+        POOLED_BUFFERS.decrementAndGet();
+        return buffer;
+    }
+
+    private static MessageDigest sha256()
+    {
+        try
+        {
+            return MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new DISClientException(e);
+        }
+    }
+}
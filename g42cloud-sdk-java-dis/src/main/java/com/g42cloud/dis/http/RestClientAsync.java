@@ -1,5 +1,7 @@
 package com.g42cloud.dis.http;
 
+import java.io.Closeable;
+import java.io.IOException;
 import java.security.KeyManagementException;
 import java.security.NoSuchAlgorithmException;
 import java.security.cert.CertificateException;
@@ -40,12 +42,14 @@ import org.slf4j.LoggerFactory;
 import com.g42cloud.dis.core.http.HttpMethodName;
 import com.g42cloud.dis.exception.DISClientException;
 
-public class RestClientAsync extends AbstractRestClient{
+public class RestClientAsync extends AbstractRestClient implements Closeable{
 	private static final Logger logger = LoggerFactory.getLogger(RestClientAsync.class);
     
     private ResponseErrorHandler errorHandler = new DefaultResponseErrorHandler();
     
-    private static RestClientAsync restAsyncClient;
+    // 传输配置相同的DIS客户端共享同一个HTTP客户端及其连接池
+    private static final SharedClients<RestClientAsync> SHARED_CLIENTS =
+        new SharedClients<>(RestClientAsync::newInstance);
     
     private CloseableHttpAsyncClient httpAsyncClient;
     
@@ -60,17 +64,49 @@ public class RestClientAsync extends AbstractRestClient{
     	httpAsyncClient = getHttpAsyncClient();
     }
     
-    public synchronized static RestClientAsync getInstance(DISConfig disConfig)
+    private static RestClientAsync newInstance(DISConfig disConfig)
     {
-        if (restAsyncClient == null)
-        {
-        	restAsyncClient = new RestClientAsync(disConfig);
-        	restAsyncClient.init();
-        }
-        
+        RestClientAsync restAsyncClient = new RestClientAsync(disConfig);
+        restAsyncClient.init();
         return restAsyncClient;
     }
     
+    /**
+     * @param disConfig DIS客户端参数
+     * @return 与该配置的传输参数相同的共享客户端，不会被关闭
+     */
+    public static RestClientAsync getInstance(DISConfig disConfig)
+    {
+        return SHARED_CLIENTS.get(disConfig);
+    }
+    
+    /**
+     * @param disConfig DIS客户端参数
+     * @return 与该配置的传输参数相同的共享客户端，使用完后需调用{@link #release(DISConfig, RestClientAsync)}
+     */
+    public static RestClientAsync acquire(DISConfig disConfig)
+    {
+        return SHARED_CLIENTS.acquire(disConfig);
+    }
+    
+    /**
+     * 释放{@link #acquire(DISConfig)}获取的客户端，最后一个引用释放时关闭连接池及IO线程
+     * 
+     * @param disConfig 获取客户端时的参数
+     * @param restAsyncClient 客户端
+     */
+    public static void release(DISConfig disConfig, RestClientAsync restAsyncClient)
+    {
+        SHARED_CLIENTS.release(disConfig, restAsyncClient);
+    }
+    
+    @Override
+    public void close()
+        throws IOException
+    {
+        httpAsyncClient.close();
+    }
+    
     /**
      * Set the message body converters to use.
      * <p>
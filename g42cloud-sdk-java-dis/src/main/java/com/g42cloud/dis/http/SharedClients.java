@@ -0,0 +1,172 @@
+/*
+ * Copyright 2002-2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.g42cloud.dis.http;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Function;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.g42cloud.dis.DISConfig;
+
+/**
+ * HTTP clients shared by the configurations with the same transport settings (timeouts, connection pool, proxy and
+ * TLS), so that each set of settings gets its own client and connection pool.
+ * <p>
+ * A DIS client acquires its HTTP client once and releases it when it is closed, the HTTP client is closed with the last
+ * reference. A client got through {@link #get(DISConfig)} is never closed, as the former JVM-wide singletons.
+ *
+ * @param <C> the HTTP client type
+ */
+public final class SharedClients<C extends Closeable>
+{
+    private static final Logger LOG = LoggerFactory.getLogger(SharedClients.class);
+
+    private final ConcurrentMap<String, Shared<C>> clients = new ConcurrentHashMap<>();
+
+    private final Function<DISConfig, C> factory;
+
+    /**
+     * @param factory 根据配置创建HTTP客户端
+     */
+    public SharedClients(Function<DISConfig, C> factory)
+    {
+        this.factory = factory;
+    }
+
+    /**
+     * Take a reference on the client of the transport settings of a configuration, created if there is none.
+     *
+     * @param disConfig the configuration
+     * @return the client, to be given back with {@link #release(DISConfig, Closeable)}
+     */
+    public C acquire(DISConfig disConfig)
+    {
+        return clients.compute(transportKey(disConfig), (key, shared) -> {
+            if (shared == null)
+            {
+                shared = new Shared<>(factory.apply(disConfig));
+            }
+            shared.refs++;
+            return shared;
+        }).client;
+    }
+
+    /**
+     * Give back a reference taken by {@link #acquire(DISConfig)}, the client is closed with the last one.
+     *
+     * @param disConfig the configuration the client was acquired with
+     * @param client the client
+     */
+    public void release(DISConfig disConfig, C client)
+    {
+        clients.computeIfPresent(transportKey(disConfig), (key, shared) -> {
+            if (shared.client != client || --shared.refs > 0 || shared.pinned)
+            {
+                return shared;
+            }
+            try
+            {
+                client.close();
+            }
+            catch (IOException e)
+            {
+                LOG.warn("Failed to close http client: {}", e.getMessage());
+            }
+            return null;
+        });
+    }
+
+    /**
+     * @param disConfig the configuration
+     * @return the client of the transport settings of the configuration, which is never closed
+     */
+    public C get(DISConfig disConfig)
+    {
+        String key = transportKey(disConfig);
+        Shared<C> shared = clients.get(key);
+        if (shared != null && shared.pinned)
+        {
+            return shared.client;
+        }
+        return clients.compute(key, (k, current) -> {
+            if (current == null)
+            {
+                current = new Shared<>(factory.apply(disConfig));
+            }
+            current.pinned = true;
+            return current;
+        }).client;
+    }
+
+    /**
+     * @return 当前共享的HTTP客户端数
+     */
+    public int size()
+    {
+        return clients.size();
+    }
+
+    /**
+     * @param disConfig the configuration
+     * @return the settings of the configuration the HTTP client is built from
+     */
+    static String transportKey(DISConfig disConfig)
+    {
+        StringBuilder key = new StringBuilder()
+            .append(disConfig.getConnectionTimeOut()).append('|')
+            .append(disConfig.getSocketTimeOut()).append('|')
+            .append(disConfig.getMaxTotal()).append('|')
+            .append(disConfig.getMaxPerRoute()).append('|')
+            .append(disConfig.getNIOIOThreads()).append('|')
+            .append(disConfig.getIsDefaultTrustedJksEnabled());
+        if (disConfig.isProxyEnabled())
+        {
+            key.append('|').append(disConfig.getProxyProtocol())
+                .append('|').append(disConfig.getProxyHost())
+                .append('|').append(disConfig.getProxyPort())
+                .append('|').append(disConfig.getNonProxyHosts());
+            if (disConfig.isAuthenticatedProxy())
+            {
+                key.append('|').append(disConfig.getProxyUsername())
+                    .append('|').append(disConfig.getProxyPassword())
+                    .append('|').append(disConfig.getProxyDomain())
+                    .append('|').append(disConfig.getProxyWorkstation());
+            }
+        }
+        return key.toString();
+    }
+
+    private static final class Shared<C>
+    {
+        private final C client;
+
+        // 以下字段只在compute中修改
+        private int refs;
+
+        private boolean pinned;
+
+        Shared(C client)
+        {
+            this.client = client;
+        }
+    }
+}
@@ -80,7 +80,11 @@ public class JsonHttpMessageConverter extends AbstractHttpMessageConverter<Objec
 	@Override
 	protected Object readInternal(Class<?> clazz, HttpEntity entity) throws IOException {
 		Charset charset = getContentTypeCharset(ContentType.getOrDefault(entity));
-		return JsonUtils.jsonToObj(StreamUtils.copyToString(entity.getContent(), charset), clazz);
+		if (clazz.isAssignableFrom(String.class)) {
+			return StreamUtils.copyToString(entity.getContent(), charset);
+		}
+		// 直接从响应流解析，不把响应体(如GetRecords的大量base64数据)先转为字符串
+		return JsonUtils.readJson(entity.getContent(), charset, clazz);
 	}
 
 	
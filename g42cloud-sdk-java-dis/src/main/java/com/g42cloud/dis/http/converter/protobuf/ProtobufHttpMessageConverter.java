@@ -26,6 +26,7 @@ import org.apache.http.entity.ContentType;
 
 import com.google.protobuf.ExtensionRegistry;
 import com.google.protobuf.Message;
+import com.google.protobuf.Parser;
 import com.g42cloud.dis.http.converter.AbstractHttpMessageConverter;
 
 /**
@@ -47,7 +48,8 @@ public class ProtobufHttpMessageConverter extends AbstractHttpMessageConverter<M
 
 
 
-	private static final ConcurrentHashMap<Class<?>, Method> methodCache = new ConcurrentHashMap<Class<?>, Method>();
+	private static final ConcurrentHashMap<Class<?>, Parser<? extends Message>> parserCache =
+			new ConcurrentHashMap<Class<?>, Parser<? extends Message>>();
 
 	private final ExtensionRegistry extensionRegistry = ExtensionRegistry.newInstance();
 
@@ -83,10 +85,7 @@ public class ProtobufHttpMessageConverter extends AbstractHttpMessageConverter<M
 		}
 
 		try {
-			Message.Builder builder = getMessageBuilder(clazz);
-			builder.mergeFrom(entity.getContent(), this.extensionRegistry);
-			
-			return builder.build();
+			return getMessageParser(clazz).parseFrom(entity.getContent(), this.extensionRegistry);
 		}
 		catch (Exception ex) {
 			throw new RuntimeException("Could not read Protobuf message: " + ex.getMessage(), ex);
@@ -95,16 +94,18 @@ public class ProtobufHttpMessageConverter extends AbstractHttpMessageConverter<M
 
 
 	/**
-	 * Create a new {@code Message.Builder} instance for the given class.
-	 * <p>This method uses a ConcurrentHashMap for caching method lookups.
+	 * Return the parser of the given class, parsing from the response stream straight into the message without
+	 * going through a builder.
+	 * <p>This method uses a ConcurrentHashMap for caching parser lookups.
 	 */
-	private static Message.Builder getMessageBuilder(Class<? extends Message> clazz) throws Exception {
-		Method method = methodCache.get(clazz);
-		if (method == null) {
-			method = clazz.getMethod("newBuilder");
-			methodCache.put(clazz, method);
+	private static Parser<? extends Message> getMessageParser(Class<? extends Message> clazz) throws Exception {
+		Parser<? extends Message> parser = parserCache.get(clazz);
+		if (parser == null) {
+			Method method = clazz.getMethod("getDefaultInstance");
+			parser = ((Message) method.invoke(clazz)).getParserForType();
+			parserCache.put(clazz, parser);
 		}
-		return (Message.Builder) method.invoke(clazz);
+		return parser;
 	}
 
 }
@@ -16,13 +16,20 @@
 
 package com.g42cloud.dis.producer;
 
+import java.io.File;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletionStage;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
@@ -30,20 +37,34 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.g42cloud.dis.DISAsync;
+import com.g42cloud.dis.DISClient;
 import com.g42cloud.dis.DISClientAsync;
 import com.g42cloud.dis.DISConfig;
+import com.g42cloud.dis.DISConfig.BodySerializeType;
 import com.g42cloud.dis.core.builder.DefaultExecutorFactory;
 import com.g42cloud.dis.core.handler.AsyncHandler;
+import com.g42cloud.dis.core.handler.CompletableHandler;
 import com.g42cloud.dis.core.util.StringUtils;
+import com.g42cloud.dis.exception.DISClientException;
 import com.g42cloud.dis.iface.data.request.PutRecordsRequest;
 import com.g42cloud.dis.iface.data.request.PutRecordsRequestEntry;
 import com.g42cloud.dis.iface.data.response.PutRecordsResult;
 import com.g42cloud.dis.iface.data.response.PutRecordsResultEntry;
 import com.g42cloud.dis.iface.stream.request.DescribeStreamRequest;
 import com.g42cloud.dis.iface.stream.response.DescribeStreamResult;
+import com.g42cloud.dis.iface.stream.response.PartitionResult;
+import com.g42cloud.dis.producer.internals.AdaptiveBatchSizer;
+import com.g42cloud.dis.producer.internals.BufferPool;
+import com.g42cloud.dis.producer.internals.CompositeFutureRecordsMetadata;
+import com.g42cloud.dis.producer.internals.ProducerJournal;
+import com.g42cloud.dis.producer.internals.PayloadArena;
+import com.g42cloud.dis.producer.internals.ProducerRateLimiter;
+import com.g42cloud.dis.producer.internals.RecordAggregator;
 import com.g42cloud.dis.producer.internals.RecordAccumulator;
 import com.g42cloud.dis.producer.internals.Sender;
+import com.g42cloud.dis.producer.internals.SpillLog;
 import com.g42cloud.dis.producer.internals.StreamPartition;
+import com.g42cloud.dis.util.Utils;
 
 
 /**
@@ -63,7 +84,7 @@ public class DISProducer
 
     private RecordAccumulator accumulator;
     
-    private Sender sender;
+    private Sender[] senders;
 
     private DISAsync disAsync;
 
@@ -73,31 +94,67 @@ public class DISProducer
 
     private long metadataTimeoutMS;
 
+    // 后台定时刷新流的分区路由信息
+    private ScheduledExecutorService metadataRefresher;
+
+    // 未指定partitionId的记录的分区选择策略
+    private Partitioner partitioner;
+
+    // 缓冲已满时溢写数据的本地日志，未开启producer.spill.enabled时为空
+    private SpillLog spillLog;
+
+    // 预写日志，未开启producer.journal.enabled时为空
+    private ProducerJournal journal;
+
+    // 分区写入配额，未开启producer.rate.limit.enabled时为空
+    private ProducerRateLimiter rateLimiter;
+
+    // 记录聚合，未开启producer.aggregation.enabled时为空
+    private RecordAggregator aggregator;
+
+    // 存放缓冲记录数据的堆外内存，未开启producer.buffer.offheap.enabled时为空
+    private PayloadArena payloadArena;
+
     public DISProducer(DISConfig disConfig)
     {
         this(disConfig, new DefaultExecutorFactory(disConfig.getMaxInFlightRequestsPerConnection()).newExecutor());
     }
 
+    /**
+     * 使用指定的异步客户端发送数据。部分失败记录的重试由该客户端自身的records.retries负责，生产者不再重试，
+     * 以免同一条记录被生产者与客户端各重试一遍；不使用指定客户端时，生产者负责重试，内部客户端不再重试。
+     *
+     * @param disConfig 配置
+     * @param disAsync 发送数据的异步客户端
+     */
     public DISProducer(DISConfig disConfig, DISAsync disAsync)
     {
-        this(disConfig, disAsync, null);
+        this(disConfig, disAsync, null, null);
     }
 
     public DISProducer(DISConfig disConfig, ExecutorService executorService)
     {
-        this(disConfig, null, executorService);
+        this(disConfig, null, executorService, null);
     }
 
-    private DISProducer(DISConfig disConfig, DISAsync disAsync, ExecutorService executorService)
+    /**
+     * @param disConfig 配置
+     * @param partitioner 分区选择策略，为空时使用partitioner.class指定的策略
+     */
+    public DISProducer(DISConfig disConfig, Partitioner partitioner)
+    {
+        this(disConfig, null,
+            new DefaultExecutorFactory(disConfig.getMaxInFlightRequestsPerConnection()).newExecutor(), partitioner);
+    }
+
+    private DISProducer(DISConfig disConfig, DISAsync disAsync, ExecutorService executorService, Partitioner partitioner)
     {
         DISConfig config = DISConfig.buildConfig(disConfig);
         this.disConfig = config;
+        this.partitioner = partitioner != null ? partitioner : newPartitioner(config);
         this.lingerMs = config.getLingerMs();
         this.maxBlockMs = config.getMaxBlockMs();
-        long batchSize = config.getBatchSize();
-        int batchCount = config.getBatchCount();
         long bufferSize = config.getBufferMemory();
-        int bufferCount = config.getBufferCount();
         boolean orderByPartition = config.isOrderByPartition();
         this.orderByPartition = orderByPartition;
         this.metadataTimeoutMS = config.getMetadataTimeoutMs();
@@ -108,12 +165,192 @@ public class DISProducer
         }
         else
         {
-            this.disAsync = new DISClientAsync(config, executorService);
+            this.disAsync = new DISClientAsync(buildClientConfig(config), executorService);
+        }
+        // 开启本地缓存时，失败记录由客户端重试后写入本地缓存；使用指定的客户端时由该客户端按其配置重试，生产者均不再重试
+        int recordsRetries = config.isDataCacheEnabled() || disAsync != null ? 0 : config.getRecordsRetries();
+        if (config.isProducerSpillEnabled())
+        {
+            // 每个生产者使用各自的溢写目录
+            File spillDir = new File(config.getDataCacheDir(), "producer-spill-" + UUID.randomUUID());
+            this.spillLog = new SpillLog(spillDir, config.getDataCacheDiskMaxSize() * 1024L * 1024L,
+                config.getProducerSpillSegmentBytes());
+            log.info("Records will be spilled to {} when the producer buffer is full.", spillDir.getAbsolutePath());
+        }
+        this.accumulator = new RecordAccumulator(config);
+        this.accumulator.setSpillLog(this.spillLog);
+        if (this.disAsync instanceof DISClient)
+        {
+            // 客户端拆分413的请求时得出的大小上限，合并批次时同样遵守
+            this.accumulator.setRequestSizeCeiling(((DISClient) this.disAsync).getRequestSizeCeiling());
+        }
+        if (config.isProducerAggregationEnabled())
+        {
+            this.aggregator = new RecordAggregator(config.getProducerAggregationMaxBytes(),
+                config.isProducerAggregationCompressEnabled());
+        }
+        if (config.isProducerBufferOffHeapEnabled())
+        {
+            this.payloadArena = new PayloadArena(config.getProducerBufferOffHeapSlabBytes(), bufferSize);
+            this.accumulator.setPayloadArena(this.payloadArena);
+        }
+        // 使用堆外内存时不再在堆内保留一份编码后的数据
+        if (this.disAsync instanceof DISClient && BodySerializeType.protobuf.equals(config.getBodySerializeType())
+            && this.aggregator == null && this.payloadArena == null && !config.isDataCompressEnabled()
+            && !(config.getIsDefaultDataEncryptEnabled() && !StringUtils.isNullOrEmpty(config.getDataPassword())))
+        {
+            // 记录发送前不再被压缩、加密或聚合时，追加时即编码为protobuf请求体
+            this.accumulator.setEncodeProtobuf(true);
+        }
+        if (config.isProducerRateLimitEnabled())
+        {
+            this.rateLimiter = new ProducerRateLimiter(config.getProducerRateLimitRecordsPerSecond(),
+                config.getProducerRateLimitBytesPerSecond(), STABLE_PARTITION_ID,
+                this.aggregator == null ? 0 : config.getProducerAggregationMaxBytes());
+            this.accumulator.setRateLimiter(this.rateLimiter);
+        }
+        int senderThreads = config.getSenderThreads();
+        this.senders = new Sender[senderThreads];
+        for (int i = 0; i < senderThreads; i++)
+        {
+            this.senders[i] = new Sender(this.disAsync, accumulator, this.lingerMs, i, senderThreads, recordsRetries,
+                config.getRecordsRetriesErrorCode(), config.getBackOffMaxIntervalMs(), this.aggregator);
+            this.senders[i].start();
+        }
+
+        this.metadataRefresher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(Runnable r)
+            {
+                Thread thread = Executors.defaultThreadFactory().newThread(r);
+                thread.setName("dis-producer-metadata-refresher");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        if (metadataTimeoutMS > 0)
+        {
+            this.metadataRefresher.scheduleWithFixedDelay(this::refreshMetadata, metadataTimeoutMS, metadataTimeoutMS,
+                TimeUnit.MILLISECONDS);
         }
-        this.accumulator = new RecordAccumulator(batchSize, batchCount, bufferSize, bufferCount, this.lingerMs, orderByPartition);
-        this.sender = new Sender(this.disAsync, accumulator, this.lingerMs);
 
-        sender.start();
+        if (config.isProducerJournalEnabled())
+        {
+            this.journal = new ProducerJournal(new File(config.getProducerJournalDir()),
+                config.getProducerJournalSegmentBytes(), config.getProducerJournalFsyncIntervalMs());
+            recoverJournal();
+        }
+    }
+    
+    /*
+     * Send again the records left in the journal by the previous run. Each recovered segment is deleted once its
+     * records are journaled again. When a request fails, the requests of the segment not sent yet are journaled again
+     * without being sent, so that the requests sent before are not sent again on the next start, and the recovery
+     * stops; the segments left are recovered on the next start.
+     */
+    private void recoverJournal()
+    {
+        for (File segment : journal.getRecoveredSegments())
+        {
+            List<PutRecordsRequest> requests;
+            try
+            {
+                requests = journal.readRecovered(segment);
+            }
+            catch (RuntimeException e)
+            {
+                log.error("Failed to read journal segment {}, it will be recovered on the next start: {}",
+                    segment.getName(), e.getMessage());
+                return;
+            }
+            int recovered = 0;
+            try
+            {
+                for (; recovered < requests.size(); recovered++)
+                {
+                    putRecordsAsync(requests.get(recovered), null);
+                }
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                log.error("Interrupted while recovering journal segment {}.", segment.getName());
+            }
+            catch (RuntimeException e)
+            {
+                log.error("Failed to recover journal segment {}: {}", segment.getName(), e.getMessage());
+            }
+            if (recovered < requests.size())
+            {
+                if (journalRemainder(segment, requests.subList(recovered, requests.size())))
+                {
+                    journal.deleteRecovered(segment);
+                }
+                return;
+            }
+            journal.deleteRecovered(segment);
+            log.info("Recovered {} request(s) from journal segment {}.", recovered, segment.getName());
+        }
+    }
+    
+    /*
+     * Journal the requests of the segment that were not sent again, they are left pending to be recovered on the next
+     * start
+     */
+    private boolean journalRemainder(File segment, List<PutRecordsRequest> remainder)
+    {
+        try
+        {
+            for (PutRecordsRequest putRecordsRequest : remainder)
+            {
+                journal.append(putRecordsRequest);
+            }
+        }
+        catch (RuntimeException e)
+        {
+            log.error("Failed to journal the requests left in journal segment {}, the segment is kept and its requests "
+                + "may be sent again on the next start: {}", segment.getName(), e.getMessage());
+            return false;
+        }
+        log.warn("{} request(s) of journal segment {} were not sent, they will be recovered on the next start.",
+            remainder.size(), segment.getName());
+        return true;
+    }
+    
+    private static Partitioner newPartitioner(DISConfig config)
+    {
+        String partitionerClass = config.getPartitionerClass();
+        if (StringUtils.isNullOrEmpty(partitionerClass))
+        {
+            return new DefaultPartitioner();
+        }
+        try
+        {
+            return (Partitioner) Class.forName(partitionerClass).newInstance();
+        }
+        catch (Exception e)
+        {
+            throw new IllegalArgumentException("Failed to create Partitioner[" + partitionerClass
+                + "], error [" + e.toString() + "]", e);
+        }
+    }
+    
+    /*
+     * The partially failed records are retried by the Sender without blocking, so the internal client does not retry them
+     * again synchronously, unless the local data cache is enabled.
+     */
+    private static DISConfig buildClientConfig(DISConfig config)
+    {
+        if (config.isDataCacheEnabled())
+        {
+            return config;
+        }
+        DISConfig clientConfig = new DISConfig();
+        clientConfig.putAll(config);
+        clientConfig.setCredentials(config.getCredentials());
+        clientConfig.setRecordsRetries(0);
+        return DISConfig.buildConfig(clientConfig);
     }
     
     public Future<PutRecordsResultEntry> putRecordAsync(String streamName, PutRecordsRequestEntry putRecordsRequestEntry, AsyncHandler<PutRecordsResultEntry> callback) throws InterruptedException{
@@ -129,52 +366,78 @@ public class DISProducer
         return new PutRecordsResultEntryFuture(future);
     }
     
+    /**
+     * Same as {@link #putRecordAsync(String, PutRecordsRequestEntry, AsyncHandler)}, the stage is completed by the
+     * thread which completes the batch of the record.
+     *
+     * @param streamName the stream name
+     * @param putRecordsRequestEntry the record
+     * @return the stage of the result of the record
+     * @throws InterruptedException if interrupted while waiting for buffer memory
+     */
+    public CompletionStage<PutRecordsResultEntry> putRecordStage(String streamName, PutRecordsRequestEntry putRecordsRequestEntry) throws InterruptedException
+    {
+        CompletableHandler<PutRecordsResultEntry> handler = new CompletableHandler<>();
+        putRecordAsync(streamName, putRecordsRequestEntry, handler);
+        return handler;
+    }
+    
+    /**
+     * Same as {@link #putRecordsAsync(PutRecordsRequest, AsyncHandler)}, the stage is completed by the thread which
+     * completes the batches of the records.
+     *
+     * @param putRecordsRequest the records
+     * @return the stage of the result of the records
+     * @throws InterruptedException if interrupted while waiting for buffer memory
+     */
+    public CompletionStage<PutRecordsResult> putRecordsStage(PutRecordsRequest putRecordsRequest) throws InterruptedException
+    {
+        CompletableHandler<PutRecordsResult> handler = new CompletableHandler<>();
+        putRecordsAsync(putRecordsRequest, handler);
+        return handler;
+    }
+    
+    // 按流名称(未设置时按流ID)缓存的路由信息
     private ConcurrentHashMap<String, StreamInfo> metadata = new ConcurrentHashMap<String, StreamInfo>();
-    private CopyOnWriteArrayList<String> onSyncStreams = new CopyOnWriteArrayList<>();
     
-    private StreamInfo fetchMetadata(String streamName){
-        StreamInfo streamInfo = metadata.get(streamName);
+    // 每个流各自的加载锁，一个流查询路由信息时不阻塞其他流的发送
+    private ConcurrentHashMap<String, Object> metadataLocks = new ConcurrentHashMap<String, Object>();
+    
+    /*
+     * Get the routing information of the stream, or null if neither the name nor the id of the stream is set
+     */
+    private StreamInfo fetchMetadata(String streamName, String streamId){
+        String stream = streamOf(streamName, streamId);
+        if (stream == null)
+        {
+            return null;
+        }
+        StreamInfo streamInfo = metadata.get(stream);
         if(streamInfo == null){
-            DescribeStreamRequest describeStreamRequest = new DescribeStreamRequest();
-            describeStreamRequest.setStreamName(streamName);
-            DescribeStreamResult describeStreamResult = disAsync.describeStream(describeStreamRequest);
-            
-            streamInfo = new StreamInfo();
-            streamInfo.setStreamName(streamName);
-            streamInfo.setSyncTimestamp(System.currentTimeMillis());
-            streamInfo.setPartitions(describeStreamResult.getWritablePartitionCount());
-            
-            metadata.put(streamName, streamInfo);
-        }else{
-            if(System.currentTimeMillis() - streamInfo.getSyncTimestamp() > metadataTimeoutMS){
-                if(!onSyncStreams.contains(streamName)){
-                    onSyncStreams.add(streamName);
-                    
-                    DescribeStreamRequest describeStreamRequest = new DescribeStreamRequest();
-                    describeStreamRequest.setStreamName(streamName);
-                    disAsync.describeStreamAsync(describeStreamRequest, new AsyncHandler<DescribeStreamResult>()
+            synchronized (metadataLocks.computeIfAbsent(stream, k -> new Object()))
+            {
+                streamInfo = metadata.get(stream);
+                if (streamInfo == null)
+                {
+                    try
                     {
-                        @Override
-                        public void onError(Exception exception)
-                        {
-                            log.error(exception.getMessage());
-                            onSyncStreams.remove(streamName);
-                        }
-
-                        @Override
-                        public void onSuccess(DescribeStreamResult result)
+                        streamInfo = describeStreamInfo(streamName, streamId);
+                    }
+                    catch (RuntimeException e)
+                    {
+                        if (orderByPartition)
                         {
-                            StreamInfo streamInfo = new StreamInfo();
-                            streamInfo.setStreamName(streamName);
-                            streamInfo.setSyncTimestamp(System.currentTimeMillis());
-                            streamInfo.setPartitions(result.getWritablePartitionCount());
-                            
-                            metadata.put(streamName, streamInfo);
-                            
-                            onSyncStreams.remove(streamName);
+                            throw e;
                         }
-                    });
-                
+                        // 不按分片保序时，拿不到路由信息仍可按流发送，等待后台刷新
+                        log.error("Failed to describe stream {}, records will not be routed by partition until the next refresh: {}",
+                            stream, e.getMessage());
+                        streamInfo = new StreamInfo();
+                        streamInfo.setStreamName(streamName);
+                        streamInfo.setStreamId(streamId);
+                        streamInfo.setSyncTimestamp(System.currentTimeMillis());
+                    }
+                    metadata.put(stream, streamInfo);
                 }
             }
         }
@@ -182,29 +445,139 @@ public class DISProducer
         return streamInfo;
     }
     
+    private static String streamOf(String streamName, String streamId)
+    {
+        if (!StringUtils.isNullOrEmpty(streamName))
+        {
+            return streamName;
+        }
+        return StringUtils.isNullOrEmpty(streamId) ? null : streamId;
+    }
+    
+    /*
+     * Describe all the partitions of the stream and build its routing table, by the name of the stream if it is set or
+     * else by its id
+     */
+    private StreamInfo describeStreamInfo(String streamName, String streamId)
+    {
+        String stream = streamOf(streamName, streamId);
+        List<PartitionResult> partitions = new ArrayList<>();
+        int writablePartitionCount;
+        String streamType;
+        String startPartitionId = null;
+        while (true)
+        {
+            DescribeStreamRequest describeStreamRequest = new DescribeStreamRequest();
+            if (stream.equals(streamName))
+            {
+                describeStreamRequest.setStreamName(streamName);
+            }
+            else
+            {
+                describeStreamRequest.setStreamId(streamId);
+            }
+            describeStreamRequest.setStartPartitionId(startPartitionId);
+            DescribeStreamResult describeStreamResult = disAsync.describeStream(describeStreamRequest);
+            writablePartitionCount = describeStreamResult.getWritablePartitionCount();
+            streamType = describeStreamResult.getStreamType();
+            List<PartitionResult> page = describeStreamResult.getPartitions();
+            if (page == null || page.isEmpty())
+            {
+                break;
+            }
+            partitions.addAll(page);
+            if (!Boolean.TRUE.equals(describeStreamResult.getHasMorePartitions()))
+            {
+                break;
+            }
+            startPartitionId = page.get(page.size() - 1).getPartitionId();
+        }
+        
+        StreamInfo streamInfo = new StreamInfo();
+        streamInfo.setStreamName(streamName);
+        streamInfo.setStreamId(streamId);
+        streamInfo.setSyncTimestamp(System.currentTimeMillis());
+        streamInfo.setPartitions(writablePartitionCount);
+        streamInfo.setRoutingTable(PartitionRoutingTable.build(writablePartitionCount, partitions));
+        if (rateLimiter != null)
+        {
+            rateLimiter.setStreamQuota(stream, streamType, writablePartitionCount);
+        }
+        return streamInfo;
+    }
+    
+    /*
+     * Refresh the routing table of every known stream, runs on the metadata refresher thread
+     */
+    private void refreshMetadata()
+    {
+        for (Map.Entry<String, StreamInfo> stream : metadata.entrySet())
+        {
+            try
+            {
+                StreamInfo streamInfo = stream.getValue();
+                metadata.put(stream.getKey(), describeStreamInfo(streamInfo.getStreamName(), streamInfo.getStreamId()));
+            }
+            catch (Exception e)
+            {
+                log.error("Failed to refresh the metadata of stream {}: {}", stream.getKey(), e.getMessage());
+            }
+        }
+    }
+    
     private int calPartitionId(StreamInfo streamInfo, PutRecordsRequestEntry entry)
     {
         if(!StringUtils.isNullOrEmpty(entry.getPartitionId())){
             return PartitionKeyUtils.getPartitionNumberFromShardId(entry.getPartitionId());
         }
         
-        Long hashKey = PartitionKeyUtils.getHashKey(entry.getPartitionKey(), entry.getExplicitHashKey());
-        
-        return PartitionKeyUtils.calPartitionIndex(streamInfo.getPartitions(), hashKey);
+        return partitioner.partition(streamInfo.getStream(), entry, streamInfo.getRoutingTable());
+    }
+    
+    private static boolean isKeyless(PutRecordsRequestEntry entry)
+    {
+        return StringUtils.isNullOrEmpty(entry.getPartitionId()) && StringUtils.isNullOrEmpty(entry.getPartitionKey())
+            && StringUtils.isNullOrEmpty(entry.getExplicitHashKey());
     }
     
     public Future<PutRecordsResult> putRecordsAsync(PutRecordsRequest putRecordsRequest, AsyncHandler<PutRecordsResult> callback) throws InterruptedException
+    {
+        if (journal == null)
+        {
+            return send(putRecordsRequest, callback);
+        }
+        // 先写入预写日志再进入缓冲，发送完成(成功或最终失败)后释放
+        ProducerJournal.Entry entry = journal.append(putRecordsRequest);
+        try
+        {
+            return send(putRecordsRequest, journal.releaseOnCompletion(entry, callback));
+        }
+        catch (InterruptedException | RuntimeException e)
+        {
+            journal.release(entry);
+            throw e;
+        }
+    }
+    
+    private Future<PutRecordsResult> send(PutRecordsRequest putRecordsRequest, AsyncHandler<PutRecordsResult> callback) throws InterruptedException
     {
         String streamName = putRecordsRequest.getStreamName();
         String streamId = putRecordsRequest.getStreamId();
+        List<PutRecordsRequestEntry> records = putRecordsRequest.getRecords();
+        StreamInfo streamInfo = fetchMetadata(streamName, streamId);
+        
+        if (streamInfo == null)
+        {
+            //流名称和流ID都未设置，无法查询路由信息，交由服务端校验
+            return append(new StreamPartition(streamName, streamId, STABLE_PARTITION_ID), putRecordsRequest, callback,
+                false).future;
+        }
         
-        //不按partition排序的话，就不按partition分组,streamPartition表示的其实是流而不是分片，分片字段传固定的
-        String partitionId = STABLE_PARTITION_ID;
         if(orderByPartition){
-            StreamInfo streamInfo = fetchMetadata(streamName);
-            
             int caledPartitionId = -1;
-            for(PutRecordsRequestEntry entry : putRecordsRequest.getRecords()){
+            boolean keyless = true;
+            for(PutRecordsRequestEntry entry : records){
+                keyless &= isKeyless(entry);
                 int tmpPartition = calPartitionId(streamInfo, entry);
                 if(caledPartitionId != -1 && caledPartitionId != tmpPartition){
                     throw new RuntimeException("one batch should in one partition when orderByPartition on.");
@@ -212,31 +585,277 @@ public class DISProducer
                 caledPartitionId = tmpPartition;
             }
             
-            partitionId = Integer.toString(caledPartitionId);
+            return append(streamInfo, streamId, caledPartitionId, putRecordsRequest, callback, keyless);
+        }
+        
+        if (streamInfo.getRoutingTable() == null)
+        {
+            //拿不到流的路由信息，则不按partition分组,streamPartition表示的其实是流而不是分片，分片字段传固定的
+            return append(new StreamPartition(streamName, streamId, STABLE_PARTITION_ID), putRecordsRequest, callback,
+                false).future;
+        }
+        
+        // 按分区路由，每个分区的数据进入各自的批次
+        Map<Integer, List<Integer>> partitionIndexes = new LinkedHashMap<>();
+        for (int i = 0; i < records.size(); i++)
+        {
+            Integer partitionId = calPartitionId(streamInfo, records.get(i));
+            List<Integer> indexes = partitionIndexes.get(partitionId);
+            if (indexes == null)
+            {
+                indexes = new ArrayList<>();
+                partitionIndexes.put(partitionId, indexes);
+            }
+            indexes.add(i);
         }
-       
-        StreamPartition tp = new StreamPartition(streamName, streamId, partitionId);
         
+        if (partitionIndexes.isEmpty())
+        {
+            return append(new StreamPartition(streamName, streamId, STABLE_PARTITION_ID), putRecordsRequest, callback,
+                false).future;
+        }
+        
+        if (partitionIndexes.size() == 1)
+        {
+            boolean keyless = true;
+            for (PutRecordsRequestEntry entry : records)
+            {
+                keyless &= isKeyless(entry);
+            }
+            return append(streamInfo, streamId, partitionIndexes.keySet().iterator().next(), putRecordsRequest,
+                callback, keyless);
+        }
+        
+        CompositeFutureRecordsMetadata future =
+            new CompositeFutureRecordsMetadata(records.size(), partitionIndexes.size(), callback);
+        boolean appended = false;
+        Exception appendException = null;
+        for (Map.Entry<Integer, List<Integer>> slice : partitionIndexes.entrySet())
+        {
+            List<Integer> indexes = slice.getValue();
+            int[] originalIndexes = new int[indexes.size()];
+            List<PutRecordsRequestEntry> sliceRecords = new ArrayList<>(indexes.size());
+            boolean keyless = true;
+            for (int i = 0; i < originalIndexes.length; i++)
+            {
+                originalIndexes[i] = indexes.get(i);
+                sliceRecords.add(records.get(originalIndexes[i]));
+                keyless &= isKeyless(records.get(originalIndexes[i]));
+            }
+            
+            if (appendException != null)
+            {
+                future.failSlice(originalIndexes, appendException);
+                continue;
+            }
+            
+            PutRecordsRequest sliceRequest = new PutRecordsRequest();
+            sliceRequest.setStreamName(streamName);
+            sliceRequest.setStreamId(streamId);
+            sliceRequest.setRecords(sliceRecords);
+            try
+            {
+                append(streamInfo, streamId, slice.getKey(), sliceRequest, future.newSliceHandler(originalIndexes),
+                    keyless);
+                appended = true;
+            }
+            catch (InterruptedException | RuntimeException e)
+            {
+                if (!appended)
+                {
+                    // 还没有任何数据进入缓冲，直接抛出
+                    throw e;
+                }
+                // 部分分区的数据已进入缓冲，剩余分区的记录标记为失败
+                appendException = e;
+                future.failSlice(originalIndexes, e);
+            }
+        }
+        return future;
+    }
+    
+    /*
+     * Append the records of one partition. The keyless records stick to the partition chosen by the partitioner; when a
+     * new batch is needed for that partition the partitioner is told so and may move them to another partition.
+     */
+    private Future<PutRecordsResult> append(StreamInfo streamInfo, String streamId, int partitionId,
+        PutRecordsRequest putRecordsRequest, AsyncHandler<PutRecordsResult> callback, boolean keyless) throws InterruptedException
+    {
+        String streamName = streamInfo.getStreamName();
+        if (keyless)
+        {
+            RecordAccumulator.RecordAppendResult result = append(
+                new StreamPartition(streamName, streamId, Integer.toString(partitionId)),
+                withPartitionId(putRecordsRequest, partitionId), callback, true);
+            if (!result.abortForNewBatch)
+            {
+                return result.future;
+            }
+            partitioner.onNewBatch(streamInfo.getStream(), streamInfo.getRoutingTable(), partitionId);
+            partitionId = partitioner.partition(streamInfo.getStream(), putRecordsRequest.getRecords().get(0),
+                streamInfo.getRoutingTable());
+            return append(new StreamPartition(streamName, streamId, Integer.toString(partitionId)),
+                withPartitionId(putRecordsRequest, partitionId), callback, false).future;
+        }
+        return append(new StreamPartition(streamName, streamId, Integer.toString(partitionId)), putRecordsRequest,
+            callback, false).future;
+    }
+    
+    /*
+     * The server assigns a random partition to the record without any key, so the partition is set explicitly to make the
+     * batch really go to one partition. The partition is set on copies of the records, the records of the caller are
+     * left untouched so that they may be reused or sent again.
+     */
+    private static PutRecordsRequest withPartitionId(PutRecordsRequest putRecordsRequest, int partitionId)
+    {
+        String shardId = Utils.getShardIdFromPartitionId(String.valueOf(partitionId));
+        List<PutRecordsRequestEntry> records = new ArrayList<>(putRecordsRequest.getRecords().size());
+        for (PutRecordsRequestEntry entry : putRecordsRequest.getRecords())
+        {
+            PutRecordsRequestEntry copy = new PutRecordsRequestEntry();
+            copy.setData(entry.getData());
+            copy.setExplicitHashKey(entry.getExplicitHashKey());
+            copy.setPartitionKey(entry.getPartitionKey());
+            copy.setTimestamp(entry.getTimestamp());
+            copy.setPartitionId(shardId);
+            records.add(copy);
+        }
+        PutRecordsRequest request = new PutRecordsRequest();
+        request.setStreamName(putRecordsRequest.getStreamName());
+        request.setStreamId(putRecordsRequest.getStreamId());
+        request.setRecords(records);
+        return request;
+    }
+    
+    private RecordAccumulator.RecordAppendResult append(StreamPartition tp, PutRecordsRequest putRecordsRequest,
+        AsyncHandler<PutRecordsResult> callback, boolean abortOnNewBatch) throws InterruptedException
+    {
         long timestamp = System.currentTimeMillis();
-        log.trace("Sending records {} with callback {} to streampartition ", putRecordsRequest, callback, tp);
+        log.trace("Sending records {} with callback {} to streampartition {}", putRecordsRequest, callback, tp);
 
         RecordAccumulator.RecordAppendResult result =
-            accumulator.append(tp, timestamp, putRecordsRequest, callback, this.maxBlockMs);
+            accumulator.append(tp, timestamp, putRecordsRequest, callback, this.maxBlockMs, abortOnNewBatch);
 //        if (result.batchIsFull || result.newBatchCreated)
-        if (result.batchIsFull || lingerMs == 0)
+        if (!result.abortForNewBatch && (result.batchIsFull || accumulator.batchSizer().getLingerMs() == 0))
         {
             log.trace("Waking up the sender since topic partition {} is either full or getting a new batch", tp);
-            this.sender.wakeup();
+            this.senders[RecordAccumulator.shardOf(tp, senders.length)].wakeup();
         }
-        return result.future;
+        return result;
         // handling exceptions and record the errors;
         // for API exceptions return them in the future,
         // for other exceptions throw directly
     }
 
+    /**
+     * 立即发送缓冲中的数据(不再等待linger.ms)，并阻塞直到调用前已写入缓冲的数据全部发送完成(成功或失败)
+     *
+     * @throws DISClientException 等待时线程被中断
+     */
     public void flush()
     {
-        this.sender.flush();
+        try
+        {
+            flush(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new DISClientException("Flush interrupted.", e);
+        }
+    }
+
+    /**
+     * 立即发送缓冲中的数据(不再等待linger.ms)，并阻塞直到调用前已写入缓冲的数据全部发送完成(成功或失败)，或等待超时
+     *
+     * @param timeout 最长等待时间
+     * @param timeUnit 时间单位
+     * @return {@code true} 全部发送完成 {@code false} 等待超时
+     * @throws InterruptedException 等待时线程被中断
+     */
+    public boolean flush(long timeout, TimeUnit timeUnit) throws InterruptedException
+    {
+        if (timeout < 0)
+        {
+            throw new IllegalArgumentException("The timeout cannot be negative.");
+        }
+        log.trace("Flushing accumulated records in producer.");
+        accumulator.beginFlush();
+        for (Sender sender : senders)
+        {
+            sender.flush();
+        }
+        return accumulator.awaitFlushCompletion(timeUnit.toMillis(timeout));
+    }
+
+    /**
+     * 获取生产者的缓冲区，可用于观察已占用的字节数、阻塞的线程数及阻塞时长
+     *
+     * @return 生产者缓冲区
+     */
+    public BufferPool getBufferPool()
+    {
+        return accumulator.bufferPool();
+    }
+
+    /**
+     * 获取当前生效的批量发送延迟时间与批次大小，开启adaptive.batching.enabled时随流量变化
+     *
+     * @return 批量参数
+     */
+    public AdaptiveBatchSizer getBatchSizer()
+    {
+        return accumulator.batchSizer();
+    }
+
+    /**
+     * 获取缓冲已满时溢写数据的本地日志，可用于观察溢写量与待读回的数据量
+     *
+     * @return 溢写日志，未开启producer.spill.enabled时为空
+     */
+    public SpillLog getSpillLog()
+    {
+        return spillLog;
+    }
+
+    /**
+     * 获取预写日志，可用于观察未完成的请求数与刷盘次数
+     *
+     * @return 预写日志，未开启producer.journal.enabled时为空
+     */
+    public ProducerJournal getJournal()
+    {
+        return journal;
+    }
+
+    /**
+     * 获取分区写入配额，可用于观察因超出配额而延迟发送的次数与时间
+     *
+     * @return 分区写入配额，未开启producer.rate.limit.enabled时为空
+     */
+    public ProducerRateLimiter getRateLimiter()
+    {
+        return rateLimiter;
+    }
+
+    /**
+     * 获取记录聚合，可用于观察聚合前后的记录数
+     *
+     * @return 记录聚合，未开启producer.aggregation.enabled时为空
+     */
+    public RecordAggregator getRecordAggregator()
+    {
+        return aggregator;
+    }
+
+    /**
+     * 获取存放缓冲记录数据的堆外内存，可用于观察内存块的使用与复用情况
+     *
+     * @return 堆外内存，未开启producer.buffer.offheap.enabled时为空
+     */
+    public PayloadArena getPayloadArena()
+    {
+        return payloadArena;
     }
 
     public void close()
@@ -252,8 +871,24 @@ public class DISProducer
         }
         log.debug("Closing the DIS producer with timeoutMillis = {} ms.", timeUnit.toMillis(timeout));
 
+        metadataRefresher.shutdownNow();
         accumulator.close();
-        sender.close(timeUnit.toMillis(timeout));
+        long timeoutMs = timeUnit.toMillis(timeout);
+        long start = System.currentTimeMillis();
+        for (Sender sender : senders)
+        {
+            sender.close(Math.max(0, timeoutMs - (System.currentTimeMillis() - start)));
+        }
+        if (journal != null)
+        {
+            // 未完成的请求保留在日志中，下次启动时重新发送
+            journal.close();
+        }
+        if (spillLog != null)
+        {
+            // 超时仍未读回的溢写数据以失败结束
+            spillLog.close(new DISClientException("The producer is closed before the spilled records are sent."));
+        }
         disAsync.close();
         log.debug("The DIS producer has closed.");
     }
@@ -337,8 +972,10 @@ public class DISProducer
 
     private static class StreamInfo{
         private String streamName;
+        private String streamId;
         private int partitions;
         private long syncTimestamp;
+        private volatile PartitionRoutingTable routingTable;
         public String getStreamName()
         {
             return streamName;
@@ -347,6 +984,19 @@ public class DISProducer
         {
             this.streamName = streamName;
         }
+        public String getStreamId()
+        {
+            return streamId;
+        }
+        public void setStreamId(String streamId)
+        {
+            this.streamId = streamId;
+        }
+        // 流名称，未设置时为流ID
+        public String getStream()
+        {
+            return streamOf(streamName, streamId);
+        }
         public int getPartitions()
         {
             return partitions;
@@ -363,6 +1013,14 @@ public class DISProducer
         {
             this.syncTimestamp = syncTimestamp;
         }
+        public PartitionRoutingTable getRoutingTable()
+        {
+            return routingTable;
+        }
+        public void setRoutingTable(PartitionRoutingTable routingTable)
+        {
+            this.routingTable = routingTable;
+        }
     }
     
 }
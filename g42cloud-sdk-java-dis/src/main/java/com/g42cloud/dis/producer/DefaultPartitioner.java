@@ -0,0 +1,106 @@
+/*
+ * Copyright 2002-2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.g42cloud.dis.producer;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+import com.g42cloud.dis.core.util.StringUtils;
+import com.g42cloud.dis.iface.data.request.PutRecordsRequestEntry;
+
+/**
+ * The default partitioner.
+ * <p>
+ * A record with a partition key or an explicit hash key goes to the partition whose hash range holds its hash key. The
+ * records without any key stick to one partition of the stream until a new batch is needed for it (the last batch is
+ * full or has been sent), then another partition is chosen at random, so that the keyless records are batched together
+ * instead of being scattered over all the partitions.
+ */
+public class DefaultPartitioner implements Partitioner
+{
+    private final ConcurrentMap<String, StickyPartition> stickyPartitions = new ConcurrentHashMap<>();
+
+    @Override
+    public int partition(String streamName, PutRecordsRequestEntry record, PartitionRoutingTable routingTable)
+    {
+        if (StringUtils.isNullOrEmpty(record.getPartitionKey()) && StringUtils.isNullOrEmpty(record.getExplicitHashKey()))
+        {
+            return stickyPartition(streamName, routingTable);
+        }
+        return routingTable.route(PartitionKeyUtils.getHashKey(record.getPartitionKey(), record.getExplicitHashKey()));
+    }
+
+    @Override
+    public void onNewBatch(String streamName, PartitionRoutingTable routingTable, int prevPartition)
+    {
+        StickyPartition current = stickyPartitions.get(streamName);
+        if (current == null || current.partition != prevPartition)
+        {
+            // 其他线程已经切换过分区
+            return;
+        }
+        stickyPartitions.replace(streamName, current, nextPartition(routingTable, prevPartition));
+    }
+
+    private int stickyPartition(String streamName, PartitionRoutingTable routingTable)
+    {
+        StickyPartition current = stickyPartitions.get(streamName);
+        if (current != null && current.routingTable == routingTable)
+        {
+            return current.partition;
+        }
+
+        // 首次发送或路由信息已刷新(分区可能已变化)时重新选择
+        StickyPartition next = nextPartition(routingTable, -1);
+        if (current == null ? stickyPartitions.putIfAbsent(streamName, next) != null
+            : !stickyPartitions.replace(streamName, current, next))
+        {
+            return stickyPartitions.get(streamName).partition;
+        }
+        return next.partition;
+    }
+
+    private static StickyPartition nextPartition(PartitionRoutingTable routingTable, int prevPartition)
+    {
+        int count = routingTable.getPartitionCount();
+        if (count <= 1)
+        {
+            return new StickyPartition(routingTable, count == 1 ? routingTable.getPartition(0) : 0);
+        }
+        int partition;
+        do
+        {
+            partition = routingTable.getPartition(ThreadLocalRandom.current().nextInt(count));
+        }
+        while (partition == prevPartition);
+        return new StickyPartition(routingTable, partition);
+    }
+
+    private static final class StickyPartition
+    {
+        final PartitionRoutingTable routingTable;
+
+        final int partition;
+
+        StickyPartition(PartitionRoutingTable routingTable, int partition)
+        {
+            this.routingTable = routingTable;
+            this.partition = partition;
+        }
+    }
+}
@@ -1,7 +1,9 @@
 package com.g42cloud.dis.producer;
 
+import java.security.DigestException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ThreadLocalRandom;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -35,28 +37,22 @@ public class PartitionKeyUtils
     
     public static int getPartitionNumberFromShardId(String shardId)
     {
-        final String splitToken = "-";
-        final int prefixIndex = 0;
-        final int partitionValueIndex = 1;
-        final int expectedParameters = 2;
-
-        String[] values = shardId.split(splitToken);
-        String partitionIdString;
-        if (values.length != expectedParameters || !values[prefixIndex].equalsIgnoreCase(SHARD_ID))
-        {
-            // Use original method. For backward compact support
-            log.debug("ShardId format is invalid [eg. shardId-0000000001]. Set PartitionId == ShardId");
-            partitionIdString = shardId;
-        }
-        else
-        {
-            partitionIdString = values[partitionValueIndex];
-        }
-
+        // 按"shardId-数字"格式原地解析，不拆分字符串
         int partitionNumber;
         try
         {
-            partitionNumber = Integer.parseInt(partitionIdString);
+            int separator = SHARD_ID.length();
+            if (shardId.length() > separator && shardId.charAt(separator) == '-'
+                && shardId.regionMatches(true, 0, SHARD_ID, 0, separator) && shardId.indexOf('-', separator + 1) < 0)
+            {
+                partitionNumber = parseDigits(shardId, separator + 1);
+            }
+            else
+            {
+                // Use original method. For backward compact support
+                log.debug("ShardId format is invalid [eg. shardId-0000000001]. Set PartitionId == ShardId");
+                partitionNumber = Integer.parseInt(shardId);
+            }
         }
         catch (NumberFormatException ne)
         {
@@ -77,6 +73,34 @@ public class PartitionKeyUtils
         return partitionNumber;
     }
     
+    /*
+     * Parse the decimal digits from the given index to the end, the same as Integer.parseInt on the substring
+     */
+    private static int parseDigits(String value, int fromIndex)
+    {
+        int length = value.length();
+        if (fromIndex >= length)
+        {
+            throw new NumberFormatException("For input string: \"\"");
+        }
+        int result = 0;
+        for (int i = fromIndex; i < length; i++)
+        {
+            int digit = value.charAt(i) - '0';
+            if (digit < 0 || digit > 9)
+            {
+                // 带符号等少见格式交给Integer.parseInt处理
+                return Integer.parseInt(value.substring(fromIndex));
+            }
+            if (result > (Integer.MAX_VALUE - digit) / 10)
+            {
+                throw new NumberFormatException("For input string: \"" + value.substring(fromIndex) + "\"");
+            }
+            result = result * 10 + digit;
+        }
+        return result;
+    }
+    
     public static String getPartitionIdFromShardIdAsString(String shardId)
     {
         Integer partitionId = getPartitionNumberFromShardId(shardId);
@@ -102,38 +126,63 @@ public class PartitionKeyUtils
         return false;
     }
     
-    private static ThreadLocal<MessageDigest> messageDigestThreadLocal = new ThreadLocal<MessageDigest>();
-    private static MessageDigest getMessageDigest()
+    private static ThreadLocal<HashState> hashStateThreadLocal = new ThreadLocal<HashState>();
+    private static HashState getHashState()
     {
-        MessageDigest messageDigest = messageDigestThreadLocal.get();
-        if(messageDigest == null){
+        HashState hashState = hashStateThreadLocal.get();
+        if(hashState == null){
             try
             {
-                messageDigest = MessageDigest.getInstance(hashAlgorithm);
+                hashState = new HashState(MessageDigest.getInstance(hashAlgorithm));
             }
             catch (NoSuchAlgorithmException e)
             {
                 log.error(e.getMessage(), e);
                 return null;
             }
-            messageDigestThreadLocal.set(messageDigest);
+            hashStateThreadLocal.set(hashState);
         }
-        return messageDigest;
+        return hashState;
     }
     
+    // 分区键到哈希值的缓存，直接映射、冲突时覆盖，高频的分区键基本常驻
+    private static final int HASH_CACHE_SIZE = 4096;
+    private static final HashCacheEntry[] hashCache = new HashCacheEntry[HASH_CACHE_SIZE];
+    
     public static long getHash(String value)
     {
-        MessageDigest md = getMessageDigest();
-        if (md == null)
+        int index = value.hashCode() & (HASH_CACHE_SIZE - 1);
+        HashCacheEntry cached = hashCache[index];
+        if (cached != null && cached.key.equals(value))
+        {
+            return cached.hash;
+        }
+        
+        HashState hashState = getHashState();
+        if (hashState == null)
         {
             log.error("Unabled to get Md5 MessageDigest");
             return -1;
         }
 
-        md.update(value.getBytes());
-        byte byteData[] = md.digest();
-
-        return getLong(byteData) & MaxHashValue; // remove negative.
+        // 按UTF-8编码到线程内复用的缓冲区，再计算MD5
+        int length = hashState.encodeUtf8(value);
+        hashState.messageDigest.update(hashState.buffer, 0, length);
+        long hash;
+        try
+        {
+            hashState.messageDigest.digest(hashState.digest, 0, hashState.digest.length);
+            hash = getLong(hashState.digest) & MaxHashValue; // remove negative.
+        }
+        catch (DigestException e)
+        {
+            log.error(e.getMessage(), e);
+            hashState.messageDigest.reset();
+            return -1;
+        }
+        
+        hashCache[index] = new HashCacheEntry(value, hash);
+        return hash;
     }
     
     protected static final long getLong(final byte[] array)
@@ -175,9 +224,90 @@ public class PartitionKeyUtils
         }
         else
         {
-            // 当 explicitHashKey, partitionKey 均为空时，使用时间戳作为 partitionKey
-            hashKey = getHash(String.valueOf(System.nanoTime()));
+            // 当 explicitHashKey, partitionKey 均为空时，随机选择哈希值
+            hashKey = ThreadLocalRandom.current().nextLong() & MaxHashValue;
         }
         return hashKey;
     }
+    
+    private static final class HashCacheEntry
+    {
+        final String key;
+        
+        final long hash;
+        
+        HashCacheEntry(String key, long hash)
+        {
+            this.key = key;
+            this.hash = hash;
+        }
+    }
+    
+    /*
+     * The per thread MD5 digest and buffers, so that hashing a partition key does not allocate
+     */
+    private static final class HashState
+    {
+        final MessageDigest messageDigest;
+        
+        final byte[] digest;
+        
+        byte[] buffer = new byte[256];
+        
+        HashState(MessageDigest messageDigest)
+        {
+            this.messageDigest = messageDigest;
+            this.digest = new byte[messageDigest.getDigestLength()];
+        }
+        
+        /*
+         * Encode the value into the buffer the same as String.getBytes(UTF-8), return the encoded length
+         */
+        int encodeUtf8(String value)
+        {
+            int length = value.length();
+            if (buffer.length < length * 3)
+            {
+                buffer = new byte[length * 3];
+            }
+            byte[] buf = buffer;
+            int pos = 0;
+            for (int i = 0; i < length; i++)
+            {
+                char c = value.charAt(i);
+                if (c < 0x80)
+                {
+                    buf[pos++] = (byte) c;
+                }
+                else if (c < 0x800)
+                {
+                    buf[pos++] = (byte) (0xC0 | (c >> 6));
+                    buf[pos++] = (byte) (0x80 | (c & 0x3F));
+                }
+                else if (Character.isSurrogate(c))
+                {
+                    if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1)))
+                    {
+                        int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                        buf[pos++] = (byte) (0xF0 | (codePoint >> 18));
+                        buf[pos++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                        buf[pos++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                        buf[pos++] = (byte) (0x80 | (codePoint & 0x3F));
+                    }
+                    else
+                    {
+                        // 不成对的代理字符，与String.getBytes一样替换为'?'
+                        buf[pos++] = (byte) '?';
+                    }
+                }
+                else
+                {
+                    buf[pos++] = (byte) (0xE0 | (c >> 12));
+                    buf[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                    buf[pos++] = (byte) (0x80 | (c & 0x3F));
+                }
+            }
+            return pos;
+        }
+    }
 }
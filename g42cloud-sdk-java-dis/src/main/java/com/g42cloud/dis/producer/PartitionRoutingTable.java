@@ -0,0 +1,192 @@
+/*
+ * Copyright 2002-2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.g42cloud.dis.producer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.g42cloud.dis.core.util.StringUtils;
+import com.g42cloud.dis.iface.stream.response.PartitionResult;
+
+/**
+ * The hash key ranges of the writable partitions of one stream, used to route a record to its partition on the client.
+ * <p>
+ * When the hash ranges are not available (e.g. an older server), the hash space is divided evenly by the writable
+ * partition count, the same as {@link PartitionKeyUtils#calPartitionIndex(int, long)}.
+ */
+public final class PartitionRoutingTable
+{
+    private static final Logger log = LoggerFactory.getLogger(PartitionRoutingTable.class);
+
+    private static final String PARTITION_STATUS_ACTIVE = "ACTIVE";
+
+    private static final String HASH_RANGE_SEPARATOR = ":";
+
+    private final int writablePartitionCount;
+
+    // 以下数组按startHash升序排列
+    private final long[] startHashes;
+
+    private final long[] endHashes;
+
+    private final int[] partitionIds;
+
+    private PartitionRoutingTable(int writablePartitionCount, long[] startHashes, long[] endHashes, int[] partitionIds)
+    {
+        this.writablePartitionCount = writablePartitionCount;
+        this.startHashes = startHashes;
+        this.endHashes = endHashes;
+        this.partitionIds = partitionIds;
+    }
+
+    /**
+     * @param writablePartitionCount 可写分区数
+     * @param partitions 分区详情，可为空
+     * @return 路由表
+     */
+    static PartitionRoutingTable build(int writablePartitionCount, List<PartitionResult> partitions)
+    {
+        List<long[]> ranges = new ArrayList<>();
+        if (partitions != null)
+        {
+            for (PartitionResult partition : partitions)
+            {
+                if (!PARTITION_STATUS_ACTIVE.equalsIgnoreCase(partition.getStatus()))
+                {
+                    continue;
+                }
+                long[] range = parseHashRange(partition.getHashRange());
+                if (range == null)
+                {
+                    // 任一分区的哈希范围不可用，则整体退化为按分区数均分
+                    ranges.clear();
+                    break;
+                }
+                ranges.add(new long[] {range[0], range[1],
+                    PartitionKeyUtils.getPartitionNumberFromShardId(partition.getPartitionId())});
+            }
+        }
+
+        Collections.sort(ranges, (a, b) -> Long.compare(a[0], b[0]));
+        long[] startHashes = new long[ranges.size()];
+        long[] endHashes = new long[ranges.size()];
+        int[] partitionIds = new int[ranges.size()];
+        for (int i = 0; i < ranges.size(); i++)
+        {
+            startHashes[i] = ranges.get(i)[0];
+            endHashes[i] = ranges.get(i)[1];
+            partitionIds[i] = (int) ranges.get(i)[2];
+        }
+        return new PartitionRoutingTable(writablePartitionCount, startHashes, endHashes, partitionIds);
+    }
+
+    /*
+     * The hash range looks like "[0 : 4611686018427387902]"
+     */
+    static long[] parseHashRange(String hashRange)
+    {
+        if (StringUtils.isNullOrEmpty(hashRange))
+        {
+            return null;
+        }
+        String value = hashRange.trim();
+        if (value.startsWith("["))
+        {
+            value = value.substring(1);
+        }
+        if (value.endsWith("]"))
+        {
+            value = value.substring(0, value.length() - 1);
+        }
+        int index = value.indexOf(HASH_RANGE_SEPARATOR);
+        if (index < 0)
+        {
+            return null;
+        }
+        try
+        {
+            long start = Long.parseLong(value.substring(0, index).trim());
+            long end = Long.parseLong(value.substring(index + 1).trim());
+            return start <= end ? new long[] {start, end} : null;
+        }
+        catch (NumberFormatException e)
+        {
+            log.warn("Invalid hash range {}", hashRange);
+            return null;
+        }
+    }
+
+    /**
+     * @param hashKey 记录的哈希值
+     * @return 记录所属的分区编号
+     */
+    public int route(long hashKey)
+    {
+        if (startHashes.length == 0)
+        {
+            return PartitionKeyUtils.calPartitionIndex(writablePartitionCount, hashKey);
+        }
+
+        int low = 0;
+        int high = startHashes.length - 1;
+        while (low <= high)
+        {
+            int mid = (low + high) >>> 1;
+            if (startHashes[mid] > hashKey)
+            {
+                high = mid - 1;
+            }
+            else if (endHashes[mid] < hashKey)
+            {
+                low = mid + 1;
+            }
+            else
+            {
+                return partitionIds[mid];
+            }
+        }
+
+        // 路由表存在空洞(如分区正在分裂合并)，退化为按分区数均分
+        return PartitionKeyUtils.calPartitionIndex(writablePartitionCount, hashKey);
+    }
+
+    public int getWritablePartitionCount()
+    {
+        return writablePartitionCount;
+    }
+
+    /**
+     * @return 可路由的分区数
+     */
+    public int getPartitionCount()
+    {
+        return partitionIds.length == 0 ? writablePartitionCount : partitionIds.length;
+    }
+
+    /**
+     * @param index 分区序号，取值范围[0, {@link #getPartitionCount()})
+     * @return 分区编号
+     */
+    public int getPartition(int index)
+    {
+        return partitionIds.length == 0 ? index : partitionIds[index];
+    }
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright 2002-2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.g42cloud.dis.producer;
+
+import com.g42cloud.dis.iface.data.request.PutRecordsRequestEntry;
+
+/**
+ * 生产者的分区选择策略，通过{@link com.g42cloud.dis.DISConfig#PROPERTY_PARTITIONER_CLASS}或DISProducer构造函数指定，
+ * 默认为{@link DefaultPartitioner}
+ * <p>
+ * 指定了partitionId的记录直接发往该分区，不经过分区选择
+ */
+public interface Partitioner
+{
+    /**
+     * 计算记录所属的分区
+     *
+     * @param streamName 流名称
+     * @param record 未指定partitionId的记录
+     * @param routingTable 流的可写分区及其哈希范围
+     * @return 分区编号，如shardId-0000000003对应3
+     */
+    int partition(String streamName, PutRecordsRequestEntry record, PartitionRoutingTable routingTable);
+
+    /**
+     * 未指定分区键的记录所在分区需要新建批次时回调(上一个批次已满或已发送)，可借此切换到其他分区
+     *
+     * @param streamName 流名称
+     * @param routingTable 流的可写分区及其哈希范围
+     * @param prevPartition 需要新建批次的分区编号
+     */
+    default void onNewBatch(String streamName, PartitionRoutingTable routingTable, int prevPartition)
+    {
+    }
+}
@@ -0,0 +1,263 @@
+/*
+ * Copyright 2002-2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.g42cloud.dis.producer.internals;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The effective linger time and batch size of the producer.
+ * <p>
+ * When adaptive batching is disabled the configured linger.ms/batch.size/batch.count are used as they are. Otherwise
+ * the target batch size follows AIMD on the send results: it grows by a fixed step on every response with a normal
+ * round-trip time, and is halved (at most once per round-trip) on a traffic control rejection or when the round-trip
+ * time is inflated. The effective linger is the time needed to fill a target batch at the measured arrival rate, capped
+ * by linger.ms; when the traffic is too low to fill a batch within linger.ms, batches are not worth waiting for longer
+ * than about one round-trip.
+ */
+public final class AdaptiveBatchSizer
+{
+    private static final Logger log = LoggerFactory.getLogger(AdaptiveBatchSizer.class);
+
+    // 目标批次大小的下限
+    static final long MIN_BATCH_SIZE = 16 * 1024L;
+
+    // 到达速率的统计周期
+    static final long RATE_WINDOW_MS = 1000L;
+
+    // 往返时间超过最小往返时间的倍数时认为发生拥塞
+    private static final double RTT_CONGESTION_FACTOR = 2.0;
+
+    // 避免最小往返时间很小时的抖动被误判为拥塞
+    private static final long RTT_CONGESTION_FLOOR_MS = 20L;
+
+    private static final double EWMA_ALPHA = 0.3;
+
+    private final boolean enabled;
+
+    private final long maxLingerMs;
+
+    private final long maxBatchSize;
+
+    private final int maxBatchCount;
+
+    private final long minBatchSize;
+
+    private final long batchSizeStep;
+
+    private final LongAdder arrivedBytes = new LongAdder();
+
+    private volatile long rateWindowStartMs;
+
+    private volatile long lingerMs;
+
+    private volatile long batchSize;
+
+    private volatile int batchCount;
+
+    /* guarded by this */
+    private double arrivalBytesPerMs = -1;
+
+    private double smoothedRttMs = -1;
+
+    private long minRttMs = Long.MAX_VALUE;
+
+    private long lastDecreaseMs;
+
+    private final AtomicLong batchSizeIncreases = new AtomicLong();
+
+    private final AtomicLong batchSizeDecreases = new AtomicLong();
+
+    /**
+     * @param enabled 是否根据发送情况自适应调整
+     * @param maxLingerMs 配置的linger.ms，自适应时为上限
+     * @param maxBatchSize 配置的batch.size，自适应时为上限
+     * @param maxBatchCount 配置的batch.count，自适应时按批次大小等比例调整
+     */
+    public AdaptiveBatchSizer(boolean enabled, long maxLingerMs, long maxBatchSize, int maxBatchCount)
+    {
+        this.enabled = enabled;
+        this.maxLingerMs = maxLingerMs;
+        this.maxBatchSize = maxBatchSize;
+        this.maxBatchCount = maxBatchCount;
+        this.minBatchSize = Math.min(MIN_BATCH_SIZE, maxBatchSize);
+        this.batchSizeStep = Math.max(1, maxBatchSize / 16);
+        this.lingerMs = maxLingerMs;
+        this.batchSize = maxBatchSize;
+        this.batchCount = maxBatchCount;
+        this.rateWindowStartMs = System.currentTimeMillis();
+    }
+
+    /**
+     * Record the records appended to the accumulator.
+     *
+     * @param bytes the size of the records
+     * @param nowMs the current time
+     */
+    public void recordAppend(long bytes, long nowMs)
+    {
+        if (!enabled)
+        {
+            return;
+        }
+        arrivedBytes.add(bytes);
+        if (nowMs - rateWindowStartMs >= RATE_WINDOW_MS)
+        {
+            updateArrivalRate(nowMs);
+        }
+    }
+
+    /**
+     * Record the response of a put records request.
+     *
+     * @param rttMs the round-trip time of the request
+     * @param throttled whether the request or some of its records were rejected by traffic control
+     * @param nowMs the current time
+     */
+    public synchronized void recordResponse(long rttMs, boolean throttled, long nowMs)
+    {
+        if (!enabled)
+        {
+            return;
+        }
+        minRttMs = Math.min(minRttMs, Math.max(0, rttMs));
+        smoothedRttMs = smoothedRttMs < 0 ? rttMs : EWMA_ALPHA * rttMs + (1 - EWMA_ALPHA) * smoothedRttMs;
+
+        boolean congested = throttled
+            || rttMs > RTT_CONGESTION_FACTOR * Math.max(minRttMs, RTT_CONGESTION_FLOOR_MS);
+        if (congested)
+        {
+            // 同一次拥塞可能有多个请求返回，一个往返时间内只减半一次
+            if (nowMs - lastDecreaseMs >= smoothedRttMs && batchSize > minBatchSize)
+            {
+                lastDecreaseMs = nowMs;
+                setBatchSize(Math.max(minBatchSize, batchSize / 2));
+                batchSizeDecreases.incrementAndGet();
+            }
+        }
+        else if (batchSize < maxBatchSize)
+        {
+            setBatchSize(Math.min(maxBatchSize, batchSize + batchSizeStep));
+            batchSizeIncreases.incrementAndGet();
+        }
+        updateLinger();
+    }
+
+    private synchronized void updateArrivalRate(long nowMs)
+    {
+        long elapsed = nowMs - rateWindowStartMs;
+        if (elapsed < RATE_WINDOW_MS)
+        {
+            return;
+        }
+        double rate = (double) arrivedBytes.sumThenReset() / elapsed;
+        arrivalBytesPerMs = arrivalBytesPerMs < 0 ? rate : EWMA_ALPHA * rate + (1 - EWMA_ALPHA) * arrivalBytesPerMs;
+        rateWindowStartMs = nowMs;
+        updateLinger();
+    }
+
+    private void updateLinger()
+    {
+        if (arrivalBytesPerMs < 0)
+        {
+            return;
+        }
+        long fillTimeMs = arrivalBytesPerMs == 0 ? Long.MAX_VALUE : (long) (batchSize / arrivalBytesPerMs);
+        long newLingerMs;
+        if (fillTimeMs <= maxLingerMs)
+        {
+            newLingerMs = fillTimeMs;
+        }
+        else
+        {
+            // 流量太小，linger.ms内攒不满一个批次，最多等待一个往返时间
+            newLingerMs = smoothedRttMs < 0 ? maxLingerMs : Math.min(maxLingerMs, (long) smoothedRttMs);
+        }
+        // 至少1ms，避免发送线程空转
+        newLingerMs = Math.min(maxLingerMs, Math.max(1, newLingerMs));
+        if (newLingerMs != lingerMs)
+        {
+            log.debug("Effective linger changes from {}ms to {}ms, batch size {}B, arrival rate {}B/ms",
+                lingerMs, newLingerMs, batchSize, (long) arrivalBytesPerMs);
+            lingerMs = newLingerMs;
+        }
+    }
+
+    private void setBatchSize(long newBatchSize)
+    {
+        batchSize = newBatchSize;
+        batchCount = (int) Math.max(1, (long) maxBatchCount * newBatchSize / maxBatchSize);
+    }
+
+    public boolean isEnabled()
+    {
+        return enabled;
+    }
+
+    /**
+     * @return 当前生效的批量发送延迟时间(ms)
+     */
+    public long getLingerMs()
+    {
+        return lingerMs;
+    }
+
+    /**
+     * @return 当前生效的批次大小(B)
+     */
+    public long getBatchSize()
+    {
+        return batchSize;
+    }
+
+    /**
+     * @return 当前生效的批次条数
+     */
+    public int getBatchCount()
+    {
+        return batchCount;
+    }
+
+    /**
+     * @return 最近统计的数据到达速率(B/s)，尚未统计时为-1
+     */
+    public synchronized long getArrivalBytesPerSecond()
+    {
+        return arrivalBytesPerMs < 0 ? -1 : (long) (arrivalBytesPerMs * 1000);
+    }
+
+    /**
+     * @return 平滑后的请求往返时间(ms)，尚未统计时为-1
+     */
+    public synchronized long getSmoothedRttMs()
+    {
+        return (long) smoothedRttMs;
+    }
+
+    public long getBatchSizeIncreases()
+    {
+        return batchSizeIncreases.get();
+    }
+
+    public long getBatchSizeDecreases()
+    {
+        return batchSizeDecreases.get();
+    }
+}
@@ -0,0 +1,290 @@
+/*
+ * Copyright 2002-2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.g42cloud.dis.producer.internals;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.g42cloud.dis.exception.DISBufferExhaustedException;
+
+/**
+ * The producer wide budget of buffered bytes ({@code buffer.memory}) and batches ({@code buffer.count}).
+ * <p>
+ * Reservations are taken with CAS while nobody is waiting. Once the pool is exhausted the appending threads queue up in
+ * FIFO order and the head of the queue is woken up whenever any batch of any stream releases its reservation.
+ */
+public final class BufferPool
+{
+    private static final Logger log = LoggerFactory.getLogger(BufferPool.class);
+
+    private final long totalMemory;
+
+    private final int totalBatches;
+
+    private final AtomicLong availableMemory;
+
+    private final AtomicInteger availableBatches;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Deque<Condition> waiters = new ArrayDeque<>();
+
+    private final AtomicInteger waiterCount = new AtomicInteger();
+
+    private final AtomicLong waitTimeNs = new AtomicLong();
+
+    private final AtomicLong blockedAllocations = new AtomicLong();
+
+    private final AtomicLong exhaustedAllocations = new AtomicLong();
+
+    /**
+     * @param totalMemory 缓冲的最大字节数
+     * @param totalBatches 缓冲的最大批次数
+     */
+    public BufferPool(long totalMemory, int totalBatches)
+    {
+        this.totalMemory = totalMemory;
+        this.totalBatches = totalBatches;
+        this.availableMemory = new AtomicLong(totalMemory);
+        this.availableBatches = new AtomicInteger(totalBatches);
+    }
+
+    /**
+     * Reserve the given bytes and batches, blocking in FIFO order while the pool is exhausted.
+     * <p>
+     * A single reservation larger than the whole pool is granted once the pool is completely free.
+     *
+     * @param size bytes to reserve
+     * @param batches batches to reserve
+     * @param maxTimeToBlockMs the maximum time in milliseconds to block
+     * @throws InterruptedException the current thread was interrupted while blocking
+     * @throws DISBufferExhaustedException nothing was released within {@code maxTimeToBlockMs}
+     */
+    public void allocate(long size, int batches, long maxTimeToBlockMs)
+        throws InterruptedException
+    {
+        long needMemory = Math.min(size, totalMemory);
+        int needBatches = Math.min(batches, totalBatches);
+
+        if (waiterCount.get() == 0 && tryReserve(needMemory, needBatches))
+        {
+            return;
+        }
+
+        long start = System.nanoTime();
+        long maxTimeToBlockNs = TimeUnit.MILLISECONDS.toNanos(maxTimeToBlockMs);
+        blockedAllocations.incrementAndGet();
+        log.warn("Send blocked because BufferSize(total:{}, available:{}, request:{}) or BufferCount(total:{}, available:{}, request:{}) is full.",
+            totalMemory,
+            availableMemory.get(),
+            size,
+            totalBatches,
+            availableBatches.get(),
+            batches);
+
+        Condition moreAvailable = lock.newCondition();
+        lock.lock();
+        try
+        {
+            waiters.addLast(moreAvailable);
+            waiterCount.incrementAndGet();
+            boolean reserved = false;
+            try
+            {
+                while (true)
+                {
+                    if (waiters.peekFirst() == moreAvailable && tryReserve(needMemory, needBatches))
+                    {
+                        reserved = true;
+                        return;
+                    }
+                    long remainingNs = maxTimeToBlockNs - (System.nanoTime() - start);
+                    if (remainingNs <= 0)
+                    {
+                        exhaustedAllocations.incrementAndGet();
+                        throw new DISBufferExhaustedException("Failed to allocate " + size + " bytes and " + batches
+                            + " batches within the configured max blocking time " + maxTimeToBlockMs + " ms.");
+                    }
+                    moreAvailable.awaitNanos(remainingNs);
+                }
+            }
+            finally
+            {
+                waiters.remove(moreAvailable);
+                waiterCount.decrementAndGet();
+                long waited = System.nanoTime() - start;
+                waitTimeNs.addAndGet(waited);
+                // 如果仍有剩余空间，则继续唤醒下一个等待者
+                if (!waiters.isEmpty() && (availableMemory.get() > 0 || availableBatches.get() > 0))
+                {
+                    waiters.peekFirst().signal();
+                }
+                if (reserved)
+                {
+                    log.warn("Send unblocked after blocking {}ms", TimeUnit.NANOSECONDS.toMillis(waited));
+                }
+            }
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Reserve the given bytes and batches without blocking, only when they are available now and no thread is waiting.
+     *
+     * @param size bytes to reserve
+     * @param batches batches to reserve
+     * @return {@code true} reserved, {@code false} the pool is exhausted
+     */
+    public boolean tryAllocate(long size, int batches)
+    {
+        return waiterCount.get() == 0 && tryReserve(Math.min(size, totalMemory), Math.min(batches, totalBatches));
+    }
+
+    /**
+     * Release bytes and batches back to the pool and wake up the first waiter.
+     *
+     * @param size bytes to release
+     * @param batches batches to release
+     */
+    public void deallocate(long size, int batches)
+    {
+        long releaseMemory = Math.min(size, totalMemory);
+        int releaseBatches = Math.min(batches, totalBatches);
+        if (releaseMemory > 0)
+        {
+            availableMemory.addAndGet(releaseMemory);
+        }
+        if (releaseBatches > 0)
+        {
+            availableBatches.addAndGet(releaseBatches);
+        }
+
+        if (waiterCount.get() > 0)
+        {
+            lock.lock();
+            try
+            {
+                Condition first = waiters.peekFirst();
+                if (first != null)
+                {
+                    first.signal();
+                }
+            }
+            finally
+            {
+                lock.unlock();
+            }
+        }
+    }
+
+    private boolean tryReserve(long size, int batches)
+    {
+        while (true)
+        {
+            long currentMemory = availableMemory.get();
+            if (currentMemory < size)
+            {
+                return false;
+            }
+            if (availableMemory.compareAndSet(currentMemory, currentMemory - size))
+            {
+                break;
+            }
+        }
+
+        while (true)
+        {
+            int currentBatches = availableBatches.get();
+            if (currentBatches < batches)
+            {
+                availableMemory.addAndGet(size);
+                return false;
+            }
+            if (availableBatches.compareAndSet(currentBatches, currentBatches - batches))
+            {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * @return 缓冲总字节数
+     */
+    public long getTotalMemory()
+    {
+        return totalMemory;
+    }
+
+    /**
+     * @return 当前已预留的字节数
+     */
+    public long getReservedBytes()
+    {
+        return totalMemory - availableMemory.get();
+    }
+
+    /**
+     * @return 当前已预留的批次数
+     */
+    public int getReservedBatches()
+    {
+        return totalBatches - availableBatches.get();
+    }
+
+    /**
+     * @return 当前阻塞等待的线程数
+     */
+    public int getQueuedThreads()
+    {
+        return waiterCount.get();
+    }
+
+    /**
+     * @return 累计阻塞等待的时间(ns)
+     */
+    public long getWaitTimeNs()
+    {
+        return waitTimeNs.get();
+    }
+
+    /**
+     * @return 累计发生阻塞的分配次数
+     */
+    public long getBlockedAllocations()
+    {
+        return blockedAllocations.get();
+    }
+
+    /**
+     * @return 累计因超过max.block.ms而失败的分配次数
+     */
+    public long getExhaustedAllocations()
+    {
+        return exhaustedAllocations.get();
+    }
+}
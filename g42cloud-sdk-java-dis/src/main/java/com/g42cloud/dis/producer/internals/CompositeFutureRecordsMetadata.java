@@ -0,0 +1,229 @@
+/*
+ * Copyright 2002-2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.g42cloud.dis.producer.internals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.g42cloud.dis.Constants;
+import com.g42cloud.dis.core.handler.AsyncHandler;
+import com.g42cloud.dis.core.util.StringUtils;
+import com.g42cloud.dis.exception.DISClientException;
+import com.g42cloud.dis.iface.data.response.PutRecordsResult;
+import com.g42cloud.dis.iface.data.response.PutRecordsResultEntry;
+
+/**
+ * The future result of one original batch records which was split into several partition local batches.
+ * <p>
+ * Each slice is appended to the batch of its own partition. When every slice is complete the results are merged back
+ * in the original order of the records and the user callback is invoked once. The records of a failed slice are
+ * reported as failed records; only when every slice failed is the whole request reported as an error.
+ */
+public final class CompositeFutureRecordsMetadata implements Future<PutRecordsResult>
+{
+    private static final Logger log = LoggerFactory.getLogger(CompositeFutureRecordsMetadata.class);
+
+    /**
+     * 分片批次发送失败时，对应记录的错误码
+     */
+    public static final String SLICE_FAILED_ERROR_CODE = Constants.ERROR_CODE_SDK_SEND_FAILED;
+
+    private final PutRecordsResultEntry[] entries;
+
+    private final AsyncHandler<PutRecordsResult> callback;
+
+    private final int sliceCount;
+
+    private final AtomicInteger pendingSlices;
+
+    private final AtomicInteger failedSlices = new AtomicInteger();
+
+    private final CountDownLatch latch = new CountDownLatch(1);
+
+    private volatile PutRecordsResult putRecordsResult;
+
+    private volatile RuntimeException error;
+
+    /**
+     * @param totalRecords 原始请求的记录数
+     * @param sliceCount 拆分后的分片批次数
+     * @param callback 用户回调，可为空
+     */
+    public CompositeFutureRecordsMetadata(int totalRecords, int sliceCount, AsyncHandler<PutRecordsResult> callback)
+    {
+        this.entries = new PutRecordsResultEntry[totalRecords];
+        this.sliceCount = sliceCount;
+        this.pendingSlices = new AtomicInteger(sliceCount);
+        this.callback = callback;
+    }
+
+    /**
+     * Create the handler to be notified when the given slice is complete.
+     *
+     * @param originalIndexes the indexes in the original request of the records of the slice
+     * @return the slice handler
+     */
+    public AsyncHandler<PutRecordsResult> newSliceHandler(final int[] originalIndexes)
+    {
+        return new AsyncHandler<PutRecordsResult>()
+        {
+            @Override
+            public void onSuccess(PutRecordsResult result)
+            {
+                List<PutRecordsResultEntry> records = result.getRecords();
+                for (int i = 0; i < originalIndexes.length; i++)
+                {
+                    entries[originalIndexes[i]] = records.get(i);
+                }
+                sliceDone(null);
+            }
+
+            @Override
+            public void onError(Exception exception)
+            {
+                failSlice(originalIndexes, exception);
+            }
+        };
+    }
+
+    /**
+     * Mark the given slice as failed without sending it, e.g. it could not be appended.
+     *
+     * @param originalIndexes the indexes in the original request of the records of the slice
+     * @param exception the failure
+     */
+    public void failSlice(int[] originalIndexes, Exception exception)
+    {
+        for (int index : originalIndexes)
+        {
+            PutRecordsResultEntry entry = new PutRecordsResultEntry();
+            entry.setErrorCode(SLICE_FAILED_ERROR_CODE);
+            entry.setErrorMessage(exception.getMessage());
+            entries[index] = entry;
+        }
+        failedSlices.incrementAndGet();
+        sliceDone(exception);
+    }
+
+    private void sliceDone(Exception exception)
+    {
+        if (exception != null && error == null)
+        {
+            error = exception instanceof RuntimeException ? (RuntimeException) exception
+                : new DISClientException(exception);
+        }
+        if (pendingSlices.decrementAndGet() != 0)
+        {
+            return;
+        }
+
+        boolean allFailed = failedSlices.get() == sliceCount;
+        if (!allFailed)
+        {
+            error = null;
+            int failedRecordCount = 0;
+            for (PutRecordsResultEntry entry : entries)
+            {
+                if (!StringUtils.isNullOrEmpty(entry.getErrorCode()))
+                {
+                    failedRecordCount++;
+                }
+            }
+            PutRecordsResult result = new PutRecordsResult();
+            result.setFailedRecordCount(new AtomicInteger(failedRecordCount));
+            result.setRecords(new ArrayList<>(Arrays.asList(entries)));
+            putRecordsResult = result;
+        }
+
+        if (callback != null)
+        {
+            try
+            {
+                if (allFailed)
+                {
+                    callback.onError(error);
+                }
+                else
+                {
+                    callback.onSuccess(putRecordsResult);
+                }
+            }
+            catch (Exception e)
+            {
+                log.error("Error executing user-provided callback: {}", e.getMessage(), e);
+            }
+        }
+        latch.countDown();
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning)
+    {
+        return false;
+    }
+
+    @Override
+    public boolean isCancelled()
+    {
+        return false;
+    }
+
+    @Override
+    public boolean isDone()
+    {
+        return latch.getCount() == 0L;
+    }
+
+    @Override
+    public PutRecordsResult get()
+        throws InterruptedException, ExecutionException
+    {
+        latch.await();
+        return valueOrError();
+    }
+
+    @Override
+    public PutRecordsResult get(long timeout, TimeUnit unit)
+        throws InterruptedException, ExecutionException, TimeoutException
+    {
+        if (!latch.await(timeout, unit))
+        {
+            throw new TimeoutException("Timeout after waiting for " + TimeUnit.MILLISECONDS.convert(timeout, unit) + " ms.");
+        }
+        return valueOrError();
+    }
+
+    private PutRecordsResult valueOrError()
+        throws ExecutionException
+    {
+        if (error != null)
+        {
+            throw new ExecutionException(error);
+        }
+        return putRecordsResult;
+    }
+}
@@ -0,0 +1,231 @@
+/*
+ * Copyright 2002-2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.g42cloud.dis.producer.internals;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import com.g42cloud.dis.exception.DISClientException;
+import com.g42cloud.dis.iface.api.protobuf.Message;
+import com.g42cloud.dis.iface.data.request.PutRecordsRequestEntry;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.WireFormat;
+
+/**
+ * The records of a batch encoded in the protobuf wire format of {@link Message.PutRecordsRequest} as they are appended.
+ * <p>
+ * Each record is kept as its {@code records} field, so the body of a request is the stream fields followed by the
+ * encoded records of its batches copied once into one array; the records of a retry are copied by their offsets.
+ */
+final class EncodedRecords
+{
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private byte[] buffer = new byte[INITIAL_CAPACITY];
+
+    // 第i条记录的起始位置为offsets[i]，结束位置为offsets[i + 1]
+    private int[] offsets = new int[16];
+
+    private int count;
+
+    /**
+     * Encode a record after the records already appended.
+     *
+     * @param entry the record
+     */
+    void append(PutRecordsRequestEntry entry)
+    {
+        ByteBuffer data = entry.getData();
+        int entrySize = entrySize(entry, data);
+        int start = offsets[count];
+        int end = start + CodedOutputStream.computeTagSize(Message.PutRecordsRequest.RECORDS_FIELD_NUMBER)
+            + CodedOutputStream.computeUInt32SizeNoTag(entrySize) + entrySize;
+        ensureCapacity(end);
+
+        CodedOutputStream out = CodedOutputStream.newInstance(buffer, start, end - start);
+        try
+        {
+            out.writeTag(Message.PutRecordsRequest.RECORDS_FIELD_NUMBER, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+            out.writeUInt32NoTag(entrySize);
+            if (data != null)
+            {
+                out.writeTag(Message.PutRecordsRequestEntry.DATA_FIELD_NUMBER, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+                out.writeUInt32NoTag(data.remaining());
+                // 堆外内存中的数据同样直接写入
+                out.write(data.duplicate());
+            }
+            if (entry.getExplicitHashKey() != null)
+            {
+                out.writeString(Message.PutRecordsRequestEntry.EXPLICITHASHKEY_FIELD_NUMBER, entry.getExplicitHashKey());
+            }
+            if (entry.getPartitionKey() != null)
+            {
+                out.writeString(Message.PutRecordsRequestEntry.PARTITIONKEY_FIELD_NUMBER, entry.getPartitionKey());
+            }
+            if (entry.getPartitionId() != null)
+            {
+                out.writeString(Message.PutRecordsRequestEntry.PARTITIONID_FIELD_NUMBER, entry.getPartitionId());
+            }
+            if (entry.getTimestamp() != null)
+            {
+                out.writeInt64(Message.PutRecordsRequestEntry.TIMESTAMP_FIELD_NUMBER, entry.getTimestamp());
+            }
+            out.checkNoSpaceLeft();
+        }
+        catch (IOException | IllegalStateException e)
+        {
+            throw new DISClientException("Failed to encode record: " + e.getMessage(), e);
+        }
+
+        if (count + 1 == offsets.length)
+        {
+            offsets = Arrays.copyOf(offsets, offsets.length * 2);
+        }
+        offsets[++count] = end;
+    }
+
+    /**
+     * @param indexes the indexes of the records, {@code null} for all the records
+     * @return the encoded size of the records
+     */
+    int size(int[] indexes)
+    {
+        if (indexes == null)
+        {
+            return offsets[count];
+        }
+        int size = 0;
+        for (int index : indexes)
+        {
+            size += offsets[index + 1] - offsets[index];
+        }
+        return size;
+    }
+
+    /**
+     * Copy the encoded records into the body of a request.
+     *
+     * @param indexes the indexes of the records, {@code null} for all the records
+     * @param dest the body of the request
+     * @param position where to copy the records
+     * @return the position after the records
+     */
+    int writeTo(int[] indexes, byte[] dest, int position)
+    {
+        if (indexes == null)
+        {
+            System.arraycopy(buffer, 0, dest, position, offsets[count]);
+            return position + offsets[count];
+        }
+        for (int index : indexes)
+        {
+            int length = offsets[index + 1] - offsets[index];
+            System.arraycopy(buffer, offsets[index], dest, position, length);
+            position += length;
+        }
+        return position;
+    }
+
+    /**
+     * @param streamName the stream name
+     * @param streamId the stream id
+     * @return the encoded size of the stream fields of a request
+     */
+    static int headerSize(String streamName, String streamId)
+    {
+        int size = 0;
+        if (streamName != null)
+        {
+            size += CodedOutputStream.computeStringSize(Message.PutRecordsRequest.STREAMNAME_FIELD_NUMBER, streamName);
+        }
+        if (streamId != null)
+        {
+            size += CodedOutputStream.computeStringSize(Message.PutRecordsRequest.STREAMID_FIELD_NUMBER, streamId);
+        }
+        return size;
+    }
+
+    /**
+     * Write the stream fields at the start of the body of a request.
+     *
+     * @param streamName the stream name
+     * @param streamId the stream id
+     * @param dest the body of the request
+     * @return the position after the stream fields
+     */
+    static int writeHeader(String streamName, String streamId, byte[] dest)
+    {
+        int size = headerSize(streamName, streamId);
+        CodedOutputStream out = CodedOutputStream.newInstance(dest, 0, size);
+        try
+        {
+            if (streamName != null)
+            {
+                out.writeString(Message.PutRecordsRequest.STREAMNAME_FIELD_NUMBER, streamName);
+            }
+            if (streamId != null)
+            {
+                out.writeString(Message.PutRecordsRequest.STREAMID_FIELD_NUMBER, streamId);
+            }
+        }
+        catch (IOException e)
+        {
+            throw new DISClientException("Failed to encode request: " + e.getMessage(), e);
+        }
+        return size;
+    }
+
+    private static int entrySize(PutRecordsRequestEntry entry, ByteBuffer data)
+    {
+        int size = 0;
+        if (data != null)
+        {
+            size += CodedOutputStream.computeTagSize(Message.PutRecordsRequestEntry.DATA_FIELD_NUMBER)
+                + CodedOutputStream.computeUInt32SizeNoTag(data.remaining()) + data.remaining();
+        }
+        if (entry.getExplicitHashKey() != null)
+        {
+            size += CodedOutputStream.computeStringSize(Message.PutRecordsRequestEntry.EXPLICITHASHKEY_FIELD_NUMBER,
+                entry.getExplicitHashKey());
+        }
+        if (entry.getPartitionKey() != null)
+        {
+            size += CodedOutputStream.computeStringSize(Message.PutRecordsRequestEntry.PARTITIONKEY_FIELD_NUMBER,
+                entry.getPartitionKey());
+        }
+        if (entry.getPartitionId() != null)
+        {
+            size += CodedOutputStream.computeStringSize(Message.PutRecordsRequestEntry.PARTITIONID_FIELD_NUMBER,
+                entry.getPartitionId());
+        }
+        if (entry.getTimestamp() != null)
+        {
+            size += CodedOutputStream.computeInt64Size(Message.PutRecordsRequestEntry.TIMESTAMP_FIELD_NUMBER,
+                entry.getTimestamp());
+        }
+        return size;
+    }
+
+    private void ensureCapacity(int capacity)
+    {
+        if (capacity > buffer.length)
+        {
+            buffer = Arrays.copyOf(buffer, Math.max(capacity, buffer.length * 2));
+        }
+    }
+}
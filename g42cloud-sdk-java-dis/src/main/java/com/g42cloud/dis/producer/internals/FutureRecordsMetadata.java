@@ -35,9 +35,7 @@ public final class FutureRecordsMetadata implements Future<PutRecordsResult> {
     private final ProduceRequestResult result;
     
     /*
-     * TODO 当前对用户发送数据，只是简单的合并为一个大的批量请求。
-     * 后续进一步优化，可按partition进行分组，然后每个partition发批量http请求，那么这里就会对应多个ProduceRequestResult
-     * private final List<ProduceRequestResult> result;
+     * 对应一个分区批次中的一段记录；用户的一次请求跨多个分区时，由CompositeFutureRecordsMetadata合并多个分区的结果
      * */ 
     
     private final int relativeOffset;
@@ -0,0 +1,69 @@
+/*
+ * Copyright 2002-2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.g42cloud.dis.producer.internals;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+/*
+ * A thread-safe helper class to hold batches that haven't been acknowledged yet (including those
+ * which have been sent but not yet done).
+ */
+final class IncompleteBatches
+{
+    private final Set<ProducerBatch> incomplete;
+
+    IncompleteBatches()
+    {
+        this.incomplete = Collections.newSetFromMap(new IdentityHashMap<ProducerBatch, Boolean>());
+    }
+
+    void add(ProducerBatch batch)
+    {
+        synchronized (incomplete)
+        {
+            this.incomplete.add(batch);
+        }
+    }
+
+    void remove(ProducerBatch batch)
+    {
+        synchronized (incomplete)
+        {
+            this.incomplete.remove(batch);
+        }
+    }
+
+    List<ProducerBatch> copyAll()
+    {
+        synchronized (incomplete)
+        {
+            return new ArrayList<>(this.incomplete);
+        }
+    }
+
+    boolean isEmpty()
+    {
+        synchronized (incomplete)
+        {
+            return incomplete.isEmpty();
+        }
+    }
+}
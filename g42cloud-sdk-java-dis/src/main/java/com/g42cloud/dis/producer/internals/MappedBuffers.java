@@ -0,0 +1,108 @@
+/*
+ * Copyright 2002-2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.g42cloud.dis.producer.internals;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Unmap a {@link MappedByteBuffer} at once instead of when it is garbage collected, so that the file of a deleted
+ * segment gives back its disk blocks and address space right away, and can be deleted at all on Windows.
+ * <p>
+ * Uses {@code Unsafe.invokeCleaner} on Java 9 and later, the cleaner of the buffer on Java 8. If neither is available
+ * the mapping is left to the garbage collector. The buffer must not be used by any thread once unmapped.
+ */
+final class MappedBuffers
+{
+    private static final Logger log = LoggerFactory.getLogger(MappedBuffers.class);
+
+    private static final Unmapper UNMAPPER = newUnmapper();
+
+    private MappedBuffers()
+    {
+    }
+
+    /**
+     * @param buffer the mapping to release, not used any more
+     * @return whether the mapping is released now, otherwise it is released when garbage collected
+     */
+    static boolean unmap(MappedByteBuffer buffer)
+    {
+        if (UNMAPPER == null)
+        {
+            return false;
+        }
+        try
+        {
+            UNMAPPER.unmap(buffer);
+            return true;
+        }
+        catch (Exception e)
+        {
+            log.debug("Failed to unmap buffer: {}", e.getMessage());
+            return false;
+        }
+    }
+
+    private static Unmapper newUnmapper()
+    {
+        try
+        {
+            // Java 9+
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            Object unsafe = theUnsafe.get(null);
+            return buffer -> invokeCleaner.invoke(unsafe, buffer);
+        }
+        catch (Exception e)
+        {
+            // Java 8，继续尝试缓冲区自带的cleaner
+        }
+        try
+        {
+            Method cleaner = Class.forName("sun.nio.ch.DirectBuffer").getMethod("cleaner");
+            Method clean = Class.forName("sun.misc.Cleaner").getMethod("clean");
+            return buffer -> {
+                Object bufferCleaner = cleaner.invoke(buffer);
+                if (bufferCleaner != null)
+                {
+                    clean.invoke(bufferCleaner);
+                }
+            };
+        }
+        catch (Exception e)
+        {
+            log.warn("Cannot unmap mapped buffers on this JVM, they are released when garbage collected: {}",
+                e.getMessage());
+            return null;
+        }
+    }
+
+    private interface Unmapper
+    {
+        void unmap(ByteBuffer buffer)
+            throws Exception;
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2002-2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.g42cloud.dis.producer.internals;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The batches of one stream/partition.
+ * <p>
+ * The queue is split into several stripes, each one guarded by its own lock, so that threads appending to the same
+ * partition do not all contend on a single monitor. An appending thread always uses the same stripe, which keeps the
+ * records of one thread in order. When records must be ordered by partition there is exactly one stripe.
+ * <p>
+ * The queue also counts the batches of the partition which are drained but not yet done, to bound the in-flight
+ * requests of each partition without scanning the in-flight list.
+ */
+final class PartitionQueue
+{
+    private final StreamPartition tp;
+
+    private final Stripe[] stripes;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    PartitionQueue(StreamPartition tp, int stripeCount)
+    {
+        this.tp = tp;
+        this.stripes = new Stripe[Math.max(1, stripeCount)];
+        for (int i = 0; i < stripes.length; i++)
+        {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    StreamPartition getTp()
+    {
+        return tp;
+    }
+
+    int stripeCount()
+    {
+        return stripes.length;
+    }
+
+    Stripe stripe(int index)
+    {
+        return stripes[index];
+    }
+
+    int inFlight()
+    {
+        return inFlight.get();
+    }
+
+    void incrementInFlight()
+    {
+        inFlight.incrementAndGet();
+    }
+
+    void decrementInFlight()
+    {
+        inFlight.decrementAndGet();
+    }
+
+    /**
+     * @return the stripe used by the calling thread
+     */
+    Stripe currentStripe()
+    {
+        if (stripes.length == 1)
+        {
+            return stripes[0];
+        }
+        long id = Thread.currentThread().getId();
+        int h = (int) (id ^ (id >>> 32));
+        h ^= (h >>> 16);
+        return stripes[(h & 0x7fffffff) % stripes.length];
+    }
+
+    /**
+     * One lock-guarded deque of batches
+     */
+    static final class Stripe
+    {
+        final ReentrantLock lock = new ReentrantLock();
+
+        final Deque<ProducerBatch> deque = new ArrayDeque<>();
+    }
+}
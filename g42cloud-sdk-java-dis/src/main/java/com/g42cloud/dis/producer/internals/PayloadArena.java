@@ -0,0 +1,132 @@
+/*
+ * Copyright 2002-2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.g42cloud.dis.producer.internals;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pooled off-heap slabs holding the payloads of the buffered records ({@code producer.buffer.offheap.enabled}).
+ * <p>
+ * A batch copies the payload of each record it accepts into its current slab and keeps only a view of it, so the
+ * buffered bytes do not live on the heap; the slabs go back to the pool once the batch is completed and no request
+ * reads them any more. The memory in use is bounded by {@code buffer.memory} through the {@link BufferPool}, the arena
+ * only keeps up to that much of free slabs for reuse.
+ */
+public final class PayloadArena
+{
+    private final int slabSize;
+
+    private final int maxPooledSlabs;
+
+    private final Queue<ByteBuffer> freeSlabs = new ConcurrentLinkedQueue<>();
+
+    private final AtomicInteger pooledSlabs = new AtomicInteger();
+
+    private final AtomicInteger slabsInUse = new AtomicInteger();
+
+    private final AtomicLong allocatedSlabs = new AtomicLong();
+
+    /**
+     * @param slabSize 单个堆外内存块的字节数
+     * @param maxPooledBytes 空闲时保留复用的最大字节数
+     */
+    public PayloadArena(int slabSize, long maxPooledBytes)
+    {
+        this.slabSize = slabSize;
+        this.maxPooledSlabs = (int) Math.min(Integer.MAX_VALUE, Math.max(1, maxPooledBytes / slabSize));
+    }
+
+    /**
+     * @param size the size of a payload
+     * @return whether the payload fits in a slab, a larger one stays on the heap
+     */
+    boolean fits(int size)
+    {
+        return size <= slabSize;
+    }
+
+    /**
+     * @return an empty slab, from the pool if there is one
+     */
+    ByteBuffer allocate()
+    {
+        slabsInUse.incrementAndGet();
+        ByteBuffer slab = freeSlabs.poll();
+        if (slab != null)
+        {
+            pooledSlabs.decrementAndGet();
+            return slab;
+        }
+        allocatedSlabs.incrementAndGet();
+        return ByteBuffer.allocateDirect(slabSize);
+    }
+
+    /**
+     * Give a slab back, it is kept for reuse unless the pool is full.
+     *
+     * @param slab the slab, which must not be read any more
+     */
+    void free(ByteBuffer slab)
+    {
+        slabsInUse.decrementAndGet();
+        if (pooledSlabs.incrementAndGet() <= maxPooledSlabs)
+        {
+            slab.clear();
+            freeSlabs.offer(slab);
+        }
+        else
+        {
+            pooledSlabs.decrementAndGet();
+        }
+    }
+
+    /**
+     * @return 单个堆外内存块的字节数
+     */
+    public int getSlabSize()
+    {
+        return slabSize;
+    }
+
+    /**
+     * @return 正被批次使用的内存块数
+     */
+    public int getSlabsInUse()
+    {
+        return slabsInUse.get();
+    }
+
+    /**
+     * @return 空闲待复用的内存块数
+     */
+    public int getPooledSlabs()
+    {
+        return pooledSlabs.get();
+    }
+
+    /**
+     * @return 累计新分配的内存块数
+     */
+    public long getAllocatedSlabs()
+    {
+        return allocatedSlabs.get();
+    }
+}
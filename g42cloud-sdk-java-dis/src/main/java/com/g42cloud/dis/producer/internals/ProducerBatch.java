@@ -16,16 +16,23 @@
 
 package com.g42cloud.dis.producer.internals;
 
+import com.g42cloud.dis.Constants;
 import com.g42cloud.dis.core.handler.AsyncHandler;
+import com.g42cloud.dis.core.util.StringUtils;
 import com.g42cloud.dis.iface.data.request.PutRecordsRequest;
 import com.g42cloud.dis.iface.data.request.PutRecordsRequestEntry;
 import com.g42cloud.dis.iface.data.response.PutRecordsResult;
+import com.g42cloud.dis.iface.data.response.PutRecordsResultEntry;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
 
 
 
@@ -44,21 +51,71 @@ public final class ProducerBatch {
     
     private StreamPartition tp;
     
+    private final long createdMs;
     private long lastAttemptMs;
     private long drainedMs;
+
+    // 已被取出发送且尚未返回或放回队列
+    private volatile boolean inFlight;
+
+    // 批次只能完成一次，发送超时的批次可能在请求返回前就被完成
+    private final AtomicBoolean completed = new AtomicBoolean(false);
     
     private long maxBatchSize;
 
     private int maxBatchCount;
     
-    private List<Thunk> asyncHandlers = new CopyOnWriteArrayList<>();
+    // 追加时调用者已加锁，完成回调时批次已不再追加，无需写时复制
+    private List<Thunk> asyncHandlers = new ArrayList<>();
+
+    // 已发送的次数
+    private int attempts;
+
+    // 下一次发送的记录在批次中的下标，为null表示发送全部记录
+    private int[] pendingIndexes;
+
+    // 多次发送合并后的结果，与批次中的记录一一对应
+    private PutRecordsResultEntry[] mergedResults;
+
+    // 重试退避结束的时间
+    private long retryBackoffUntilMs;
+
+    // 追加时即编码为protobuf的记录，为空表示发送时再编码
+    private final EncodedRecords encodedRecords;
+
+    // 存放记录数据的堆外内存，为空表示数据保留在堆内
+    private final PayloadArena arena;
+
+    // 批次已使用的堆外内存块，最后一块为当前追加的内存块
+    private final List<ByteBuffer> slabs = new ArrayList<>();
+
+    // 批次本身与发送中的请求对堆外内存块的引用数，归零后内存块才能复用
+    private final AtomicInteger payloadRefs = new AtomicInteger(1);
     
     public ProducerBatch(StreamPartition tp, long maxBatchSize, int maxBatchCount) {
+        this(tp, maxBatchSize, maxBatchCount, false);
+    }
+
+    public ProducerBatch(StreamPartition tp, long maxBatchSize, int maxBatchCount, boolean encodeProtobuf) {
+        this(tp, maxBatchSize, maxBatchCount, encodeProtobuf, null);
+    }
+
+    /**
+     * @param tp 批次所属的流/分区
+     * @param maxBatchSize 批次的最大字节数
+     * @param maxBatchCount 批次的最大记录数
+     * @param encodeProtobuf 是否在追加时将记录编码为protobuf请求体
+     * @param arena 存放记录数据的堆外内存，为空表示数据保留在堆内
+     */
+    public ProducerBatch(StreamPartition tp, long maxBatchSize, int maxBatchCount, boolean encodeProtobuf, PayloadArena arena) {
+        this.encodedRecords = encodeProtobuf ? new EncodedRecords() : null;
+        this.arena = arena;
         this.tp = tp;
         this.maxBatchSize = maxBatchSize;
         this.maxBatchCount = maxBatchCount;
         this.produceFuture = new ProduceRequestResult(tp);
-        this.lastAttemptMs = System.currentTimeMillis();
+        this.createdMs = System.currentTimeMillis();
+        this.lastAttemptMs = createdMs;
     }
     
     //调用者那里加了锁，这里不用考虑并发问题
@@ -71,8 +128,14 @@ public final class ProducerBatch {
         FutureRecordsMetadata futureRecordsMetadata = new FutureRecordsMetadata(produceFuture, relativeOffset, putRecordsRequest.getRecords().size());
         
         for(PutRecordsRequestEntry entry : putRecordsRequest.getRecords()){
-            batchPutRecordsRequestEntrys.add(entry);
             totolByteSize+=entry.getData().array().length;
+            if (arena != null) {
+                entry = copyToArena(entry);
+            }
+            batchPutRecordsRequestEntrys.add(entry);
+            if (encodedRecords != null) {
+                encodedRecords.append(entry);
+            }
         }
         relativeOffset+=putRecordsRequest.getRecords().size();
         
@@ -83,8 +146,20 @@ public final class ProducerBatch {
         return futureRecordsMetadata;
     }
     
-    public void done(PutRecordsResult putRecordsResult, RuntimeException exception)
+    /**
+     * Complete the batch and invoke the callbacks, only the first call takes effect.
+     *
+     * @param putRecordsResult the result of all the records of the batch
+     * @param exception the failure of the batch, or null
+     * @return {@code true} the batch is completed by this call
+     */
+    public boolean done(PutRecordsResult putRecordsResult, RuntimeException exception)
     {
+        if (!completed.compareAndSet(false, true))
+        {
+            log.debug("Batch {} is already done, ignore the result.", tp);
+            return false;
+        }
         produceFuture.set(putRecordsResult, exception);
 
         for (Thunk thunk : asyncHandlers)
@@ -107,6 +182,86 @@ public final class ProducerBatch {
         }
 
         produceFuture.done();
+        releasePayloads();
+        return true;
+    }
+
+    /*
+     * Copy the payload into the current slab, the record keeps a view of it instead of the heap buffer
+     */
+    private PutRecordsRequestEntry copyToArena(PutRecordsRequestEntry entry)
+    {
+        ByteBuffer data = entry.getData();
+        if (data == null || !arena.fits(data.remaining()))
+        {
+            return entry;
+        }
+        ByteBuffer slab = slabs.isEmpty() ? null : slabs.get(slabs.size() - 1);
+        if (slab == null || slab.remaining() < data.remaining())
+        {
+            slab = arena.allocate();
+            slabs.add(slab);
+        }
+        ByteBuffer view = slab.duplicate();
+        view.limit(view.position() + data.remaining());
+        slab.put(data.duplicate());
+
+        PutRecordsRequestEntry copy = new PutRecordsRequestEntry();
+        copy.setData(view.slice());
+        copy.setPartitionId(entry.getPartitionId());
+        copy.setPartitionKey(entry.getPartitionKey());
+        copy.setExplicitHashKey(entry.getExplicitHashKey());
+        copy.setTimestamp(entry.getTimestamp());
+        return copy;
+    }
+
+    /**
+     * Keep the payloads of the batch while a request reads them, even if the batch is completed meanwhile.
+     */
+    void retainPayloads()
+    {
+        payloadRefs.incrementAndGet();
+    }
+
+    /**
+     * Release a reference to the payloads, the slabs go back to the arena once the batch is completed and no request
+     * reads them.
+     */
+    void releasePayloads()
+    {
+        if (payloadRefs.decrementAndGet() == 0 && arena != null)
+        {
+            for (ByteBuffer slab : slabs)
+            {
+                arena.free(slab);
+            }
+            slabs.clear();
+        }
+    }
+
+    public boolean isDone()
+    {
+        return completed.get();
+    }
+
+    /**
+     * @param deliveryTimeoutMs the maximum time from the creation of the batch to its completion
+     * @param nowMs the current time
+     * @return whether the batch has been waiting too long to be delivered
+     */
+    public boolean hasReachedDeliveryTimeout(long deliveryTimeoutMs, long nowMs)
+    {
+        return nowMs - createdMs >= deliveryTimeoutMs;
+    }
+
+    public long getCreatedMs()
+    {
+        return createdMs;
+    }
+
+    boolean isInFlight()
+    {
+        return inFlight;
     }
     
     public boolean isEmpty(){
@@ -119,10 +274,165 @@ public final class ProducerBatch {
 //        lastAppendTime = Math.max(lastAppendTime, now);
 //        retry = true;
         lastAttemptMs = now;
+        inFlight = false;
     }
     
     void drained(long nowMs) {
         this.drainedMs = Math.max(drainedMs, nowMs);
+        this.inFlight = true;
+        // 已取出发送的批次不能再追加数据，重试时放回队首也一样
+        this.appendClosed = true;
+    }
+
+    /**
+     * @return 本次需要发送的记录，首次发送为全部记录，重试时只包含需要重试的记录
+     */
+    public List<PutRecordsRequestEntry> recordsToSend()
+    {
+        if (pendingIndexes == null)
+        {
+            return batchPutRecordsRequestEntrys;
+        }
+        List<PutRecordsRequestEntry> records = new ArrayList<>(pendingIndexes.length);
+        for (int index : pendingIndexes)
+        {
+            records.add(batchPutRecordsRequestEntrys.get(index));
+        }
+        return records;
+    }
+
+    /**
+     * @return whether the records are encoded into protobuf as they are appended
+     */
+    public boolean isEncoded()
+    {
+        return encodedRecords != null;
+    }
+
+    /**
+     * @return the protobuf encoded size of {@link #recordsToSend()}
+     */
+    int encodedSizeToSend()
+    {
+        return encodedRecords.size(pendingIndexes);
+    }
+
+    /**
+     * Copy the protobuf encoded {@link #recordsToSend()} into the body of a request.
+     *
+     * @param dest the body of the request
+     * @param position where to copy the records
+     * @return the position after the records
+     */
+    int writeEncodedRecordsTo(byte[] dest, int position)
+    {
+        return encodedRecords.writeTo(pendingIndexes, dest, position);
+    }
+
+    /**
+     * Merge the result of the last attempt into the result of the batch.
+     *
+     * @param result the result of sending {@link #recordsToSend()}
+     * @param retriable whether the error code of a failed record is retriable
+     * @param maxRetries the maximum number of retries of a batch
+     * @return {@code true} some records failed with a retriable error and should be sent again
+     */
+    public boolean completeAttempt(PutRecordsResult result, Predicate<String> retriable, int maxRetries)
+    {
+        attempts++;
+        if (mergedResults == null)
+        {
+            mergedResults = new PutRecordsResultEntry[relativeOffset];
+        }
+
+        List<PutRecordsResultEntry> entries = result.getRecords();
+        List<Integer> retryIndexes = new ArrayList<>();
+        for (int i = 0; i < entries.size(); i++)
+        {
+            int index = pendingIndexes == null ? i : pendingIndexes[i];
+            PutRecordsResultEntry entry = entries.get(i);
+            mergedResults[index] = entry;
+            if (!StringUtils.isNullOrEmpty(entry.getErrorCode()) && retriable.test(entry.getErrorCode()))
+            {
+                retryIndexes.add(index);
+            }
+        }
+
+        if (retryIndexes.isEmpty() || attempts > maxRetries)
+        {
+            return false;
+        }
+        pendingIndexes = new int[retryIndexes.size()];
+        for (int i = 0; i < pendingIndexes.length; i++)
+        {
+            pendingIndexes[i] = retryIndexes.get(i);
+        }
+        return true;
+    }
+
+    /**
+     * Mark the records of the last attempt as failed, used when a retry failed as a whole after some records have been
+     * sent successfully.
+     *
+     * @param exception the failure of the last attempt
+     */
+    public void failAttempt(Exception exception)
+    {
+        attempts++;
+        for (int index : pendingIndexes)
+        {
+            PutRecordsResultEntry entry = new PutRecordsResultEntry();
+            // 本地发送失败的记录使用SDK的错误码，异常信息放在错误描述中
+            entry.setErrorCode(Constants.ERROR_CODE_SDK_SEND_FAILED);
+            entry.setErrorMessage(exception.toString());
+            mergedResults[index] = entry;
+        }
+    }
+
+    /**
+     * @return the result of all the records of the batch merged from every attempt
+     */
+    public PutRecordsResult mergedResult()
+    {
+        int failedRecordCount = 0;
+        for (PutRecordsResultEntry entry : mergedResults)
+        {
+            if (!StringUtils.isNullOrEmpty(entry.getErrorCode()))
+            {
+                failedRecordCount++;
+            }
+        }
+        PutRecordsResult result = new PutRecordsResult();
+        result.setFailedRecordCount(new AtomicInteger(failedRecordCount));
+        result.setRecords(Arrays.asList(mergedResults));
+        return result;
+    }
+
+    /**
+     * @return whether this batch has been sent before
+     */
+    public boolean isRetry()
+    {
+        return attempts > 0;
+    }
+
+    public int getAttempts()
+    {
+        return attempts;
+    }
+
+    /**
+     * @param retryBackoffMs the time to wait before the next attempt
+     * @param nowMs the current time
+     */
+    void retryBackoff(long retryBackoffMs, long nowMs)
+    {
+        this.retryBackoffUntilMs = nowMs + retryBackoffMs;
+    }
+
+    long retryBackoffRemainingMs(long nowMs)
+    {
+        return Math.max(0, retryBackoffUntilMs - nowMs);
     }
     
     public int getRelativeOffset()
@@ -150,6 +460,22 @@ public final class ProducerBatch {
         return Math.max(0, nowMs - lastAttemptMs);
     }
 
+    /**
+     * @param lingerMs the time a batch waits for more records
+     * @param deliveryTimeoutMs the maximum time from the creation of the batch to its completion
+     * @return the earlier of the time the batch should be sent (end of linger, or of the retry backoff) and its delivery
+     *         deadline
+     */
+    long deadlineMs(long lingerMs, long deliveryTimeoutMs)
+    {
+        long sendDeadline = isRetry() ? retryBackoffUntilMs : lastAttemptMs + lingerMs;
+        if (deliveryTimeoutMs == Long.MAX_VALUE)
+        {
+            return sendDeadline;
+        }
+        return Math.min(sendDeadline, createdMs + deliveryTimeoutMs);
+    }
+
     public List<PutRecordsRequestEntry> getBatchPutRecordsRequestEntrys()
     {
         return batchPutRecordsRequestEntrys;
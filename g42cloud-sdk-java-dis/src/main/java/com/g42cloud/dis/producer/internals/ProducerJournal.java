@@ -0,0 +1,579 @@
+/*
+ * Copyright 2002-2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.g42cloud.dis.producer.internals;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.g42cloud.dis.core.handler.AsyncHandler;
+import com.g42cloud.dis.exception.DISClientException;
+import com.g42cloud.dis.iface.data.request.PutRecordsRequest;
+import com.g42cloud.dis.iface.data.response.PutRecordsResult;
+
+/**
+ * The write-ahead journal of the producer ({@code producer.journal.enabled}).
+ * <p>
+ * Every request accepted by the producer is appended to a memory mapped segment before it enters the buffer, as
+ * {@code [length][crc32][records]}. Once written to the mapping it survives a crash of the JVM; it is forced to disk by
+ * a background flusher every {@code producer.journal.fsync.interval.ms}, or before the append returns when the interval
+ * is 0 (the appends waiting at the same time share one fsync). An entry is released when its request is complete, a
+ * segment is unmapped and deleted once all of its entries are released.
+ * <p>
+ * The segments left by the previous run are recovered when the journal is opened, they are to be sent again and then
+ * deleted, so the records are delivered at least once: a record completed just before the crash may be sent twice.
+ */
+public final class ProducerJournal
+{
+    private static final Logger log = LoggerFactory.getLogger(ProducerJournal.class);
+
+    private static final String SEGMENT_PREFIX = "journal-";
+
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    private static final String LOCK_FILE = "journal.lock";
+
+    // length + crc32
+    private static final int HEADER_SIZE = 8;
+
+    private final File dir;
+
+    private final long segmentBytes;
+
+    private final long fsyncIntervalMs;
+
+    private final RandomAccessFile lockFile;
+
+    private final FileLock lock;
+
+    // 上次运行遗留、尚未重新发送的分段
+    private final List<File> recoveredSegments;
+
+    private Segment active;
+
+    private long nextSegmentId;
+
+    // 已写入映射但尚未刷盘的分段
+    private final List<Segment> unsynced = new ArrayList<>();
+
+    // 已全部完成、待解除映射并删除的分段；解除映射时不能有刷盘在使用该映射，故在syncLock下进行
+    private final List<Segment> retired = new ArrayList<>();
+
+    // 写入的总字节数，与已刷盘的字节数比较判断是否需要刷盘
+    private long writtenBytes;
+
+    private final Object syncLock = new Object();
+
+    private volatile long syncedBytes;
+
+    private int pendingEntries;
+
+    private int segmentCount;
+
+    private boolean closed;
+
+    private final ScheduledExecutorService flusher;
+
+    private final AtomicLong syncCount = new AtomicLong();
+
+    /**
+     * @param dir 日志目录，同一时刻只能被一个生产者使用
+     * @param segmentBytes 单个分段的大小
+     * @param fsyncIntervalMs 刷盘间隔，0表示每次写入返回前刷盘，小于0表示只由操作系统刷盘
+     */
+    public ProducerJournal(File dir, long segmentBytes, long fsyncIntervalMs)
+    {
+        if (!dir.exists() && !dir.mkdirs())
+        {
+            throw new DISClientException("Failed to create journal dir " + dir.getAbsolutePath());
+        }
+        this.dir = dir;
+        this.segmentBytes = Math.max(HEADER_SIZE, segmentBytes);
+        this.fsyncIntervalMs = fsyncIntervalMs;
+
+        FileLock fileLock = null;
+        try
+        {
+            this.lockFile = new RandomAccessFile(new File(dir, LOCK_FILE), "rw");
+            try
+            {
+                fileLock = lockFile.getChannel().tryLock();
+            }
+            catch (OverlappingFileLockException e)
+            {
+                fileLock = null;
+            }
+            if (fileLock == null)
+            {
+                lockFile.close();
+                throw new DISClientException("The journal dir " + dir.getAbsolutePath() + " is used by another producer.");
+            }
+        }
+        catch (IOException e)
+        {
+            throw new DISClientException("Failed to lock journal dir " + dir.getAbsolutePath(), e);
+        }
+        this.lock = fileLock;
+
+        File[] files = dir.listFiles((d, name) -> name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX));
+        List<File> segments = files == null ? new ArrayList<>() : new ArrayList<>(Arrays.asList(files));
+        // 分段编号定长，按文件名即按写入顺序
+        Collections.sort(segments);
+        for (File segment : segments)
+        {
+            nextSegmentId = Math.max(nextSegmentId, segmentId(segment) + 1);
+        }
+        this.recoveredSegments = segments;
+        if (!segments.isEmpty())
+        {
+            log.warn("Found {} journal segment(s) left in {}, the records not acknowledged will be sent again.",
+                segments.size(), dir.getAbsolutePath());
+        }
+
+        if (fsyncIntervalMs > 0)
+        {
+            this.flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = Executors.defaultThreadFactory().newThread(r);
+                thread.setName("dis-producer-journal-flusher");
+                thread.setDaemon(true);
+                return thread;
+            });
+            this.flusher.scheduleWithFixedDelay(this::sync, fsyncIntervalMs, fsyncIntervalMs, TimeUnit.MILLISECONDS);
+        }
+        else
+        {
+            this.flusher = null;
+        }
+    }
+
+    /**
+     * Append the records to the journal, return once they are written to the mapping, or once they are on disk when
+     * the fsync interval is 0.
+     *
+     * @param putRecordsRequest the records accepted by the producer
+     * @return the entry to release when the records are complete
+     */
+    public Entry append(PutRecordsRequest putRecordsRequest)
+    {
+        int length = RecordsCodec.encodedSize(putRecordsRequest);
+        int entrySize = HEADER_SIZE + length;
+
+        Entry entry;
+        long writtenUpTo;
+        synchronized (this)
+        {
+            if (closed)
+            {
+                throw new IllegalStateException("Cannot append to the journal after the producer is closed.");
+            }
+            if (active == null || active.buffer.remaining() < entrySize)
+            {
+                roll(entrySize);
+            }
+            // 直接编码到映射中；先写数据再写长度，写到一半时崩溃的记录长度为0或校验失败，恢复时被丢弃
+            int position = active.buffer.position();
+            active.buffer.position(position + HEADER_SIZE);
+            RecordsCodec.encode(putRecordsRequest, active.buffer);
+            ByteBuffer written = active.buffer.duplicate();
+            written.limit(written.position());
+            written.position(position + HEADER_SIZE);
+            CRC32 crc = new CRC32();
+            crc.update(written);
+            active.buffer.putInt(position + 4, (int) crc.getValue());
+            active.buffer.putInt(position, length);
+            active.pendingEntries++;
+            pendingEntries++;
+            writtenBytes += entrySize;
+            writtenUpTo = writtenBytes;
+            entry = new Entry(active);
+        }
+
+        purgeRetired();
+        if (fsyncIntervalMs == 0)
+        {
+            sync(writtenUpTo);
+        }
+        return entry;
+    }
+
+    /**
+     * Wrap the callback of the journaled records to release their entry when they are complete.
+     *
+     * @param entry the entry of the records
+     * @param callback the user-supplied callback, may be null
+     * @return the callback to append the records with
+     */
+    public AsyncHandler<PutRecordsResult> releaseOnCompletion(final Entry entry,
+        final AsyncHandler<PutRecordsResult> callback)
+    {
+        return new AsyncHandler<PutRecordsResult>()
+        {
+            @Override
+            public void onSuccess(PutRecordsResult result)
+                throws Exception
+            {
+                release(entry);
+                if (callback != null)
+                {
+                    callback.onSuccess(result);
+                }
+            }
+
+            @Override
+            public void onError(Exception exception)
+                throws Exception
+            {
+                release(entry);
+                if (callback != null)
+                {
+                    callback.onError(exception);
+                }
+            }
+        };
+    }
+
+    /**
+     * Release the entry of the complete records, the segment is unmapped and deleted once all of its entries are
+     * released.
+     *
+     * @param entry the entry returned by {@link #append(PutRecordsRequest)}
+     */
+    public void release(Entry entry)
+    {
+        if (!entry.released.compareAndSet(false, true))
+        {
+            return;
+        }
+        synchronized (this)
+        {
+            if (closed)
+            {
+                // 关闭后才完成的请求(如关闭时失败的溢写数据)保留在日志中，下次启动时重新发送
+                return;
+            }
+            pendingEntries--;
+            Segment segment = entry.segment;
+            if (--segment.pendingEntries == 0 && segment != active)
+            {
+                delete(segment);
+            }
+        }
+        purgeRetired();
+    }
+
+    /**
+     * @return the segments left by the previous run and not yet sent again, in the order they were written
+     */
+    public synchronized List<File> getRecoveredSegments()
+    {
+        return new ArrayList<>(recoveredSegments);
+    }
+
+    /**
+     * Read the records of a segment left by the previous run, up to the first torn or corrupted entry.
+     *
+     * @param segment one of {@link #getRecoveredSegments()}
+     * @return the records in the order they were appended
+     */
+    public List<PutRecordsRequest> readRecovered(File segment)
+    {
+        List<PutRecordsRequest> requests = new ArrayList<>();
+        MappedByteBuffer buffer = null;
+        try (RandomAccessFile file = new RandomAccessFile(segment, "r"))
+        {
+            buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+            while (buffer.remaining() >= HEADER_SIZE)
+            {
+                int position = buffer.position();
+                int length = buffer.getInt();
+                int checksum = buffer.getInt();
+                if (length <= 0 || length > buffer.remaining())
+                {
+                    break;
+                }
+                ByteBuffer data = buffer.slice();
+                data.limit(length);
+                buffer.position(buffer.position() + length);
+                CRC32 crc = new CRC32();
+                crc.update(data.duplicate());
+                if ((int) crc.getValue() != checksum)
+                {
+                    log.warn("Journal segment {} is corrupted at position {}, the rest of it is skipped.",
+                        segment.getName(), position);
+                    break;
+                }
+                requests.add(RecordsCodec.decode(data));
+            }
+        }
+        catch (IOException e)
+        {
+            throw new DISClientException("Failed to read journal segment " + segment.getAbsolutePath(), e);
+        }
+        finally
+        {
+            // 解码时已复制数据，映射不再使用
+            if (buffer != null)
+            {
+                MappedBuffers.unmap(buffer);
+            }
+        }
+        return requests;
+    }
+
+    /**
+     * Delete a segment left by the previous run once its records have been appended again.
+     *
+     * @param segment one of {@link #getRecoveredSegments()}
+     */
+    public synchronized void deleteRecovered(File segment)
+    {
+        recoveredSegments.remove(segment);
+        if (!segment.delete())
+        {
+            log.warn("Failed to delete journal segment {}.", segment.getAbsolutePath());
+        }
+    }
+
+    /**
+     * Force the written entries to disk, the callers waiting at the same time share one fsync.
+     */
+    public void sync()
+    {
+        long written;
+        synchronized (this)
+        {
+            written = writtenBytes;
+        }
+        sync(written);
+    }
+
+    private void sync(long written)
+    {
+        synchronized (syncLock)
+        {
+            // 等待期间其他线程的刷盘可能已经包含了这次写入
+            if (syncedBytes >= written)
+            {
+                return;
+            }
+            List<Segment> segments;
+            long upTo;
+            synchronized (this)
+            {
+                segments = new ArrayList<>(unsynced);
+                unsynced.clear();
+                if (active != null)
+                {
+                    unsynced.add(active);
+                }
+                upTo = writtenBytes;
+            }
+            for (Segment segment : segments)
+            {
+                segment.buffer.force();
+            }
+            syncedBytes = upTo;
+            syncCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * Force the journal to disk and close it, the entries not released are recovered on the next start.
+     */
+    public void close()
+    {
+        synchronized (this)
+        {
+            if (closed)
+            {
+                return;
+            }
+            closed = true;
+        }
+        if (flusher != null)
+        {
+            flusher.shutdownNow();
+        }
+        sync();
+        synchronized (this)
+        {
+            if (active != null && active.pendingEntries == 0)
+            {
+                delete(active);
+            }
+            active = null;
+        }
+        purgeRetired();
+        try
+        {
+            lock.release();
+            lockFile.close();
+        }
+        catch (IOException e)
+        {
+            log.warn("Failed to release journal lock: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * @return 尚未完成的请求数
+     */
+    public synchronized int getPendingEntries()
+    {
+        return pendingEntries;
+    }
+
+    /**
+     * @return 当前的分段数，不包括上次运行遗留的分段
+     */
+    public synchronized int getSegmentCount()
+    {
+        return segmentCount;
+    }
+
+    /**
+     * @return 累计刷盘次数
+     */
+    public long getSyncCount()
+    {
+        return syncCount.get();
+    }
+
+    private void roll(int entrySize)
+    {
+        Segment previous = active;
+        long size = Math.max(segmentBytes, entrySize);
+        File file = new File(dir, SEGMENT_PREFIX + String.format("%020d", nextSegmentId++) + SEGMENT_SUFFIX);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw"))
+        {
+            // 映射建立后关闭文件不影响映射
+            active = new Segment(file, raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size));
+        }
+        catch (IOException e)
+        {
+            throw new DISClientException("Failed to create journal segment " + file.getAbsolutePath(), e);
+        }
+        segmentCount++;
+        unsynced.add(active);
+        if (previous != null && previous.pendingEntries == 0)
+        {
+            delete(previous);
+        }
+        log.debug("Rolled new journal segment {}.", file.getName());
+    }
+
+    private void delete(Segment segment)
+    {
+        unsynced.remove(segment);
+        segmentCount--;
+        retired.add(segment);
+    }
+
+    /*
+     * Unmap and delete the retired segments, must not be called holding the lock of the journal
+     */
+    private void purgeRetired()
+    {
+        synchronized (this)
+        {
+            if (retired.isEmpty())
+            {
+                return;
+            }
+        }
+        synchronized (syncLock)
+        {
+            List<Segment> segments;
+            synchronized (this)
+            {
+                segments = new ArrayList<>(retired);
+                retired.clear();
+            }
+            for (Segment segment : segments)
+            {
+                // 先解除映射再删除，否则文件的磁盘空间要等映射被回收后才释放，Windows上则无法删除
+                MappedBuffers.unmap(segment.buffer);
+                if (!segment.file.delete())
+                {
+                    log.warn("Failed to delete journal segment {}.", segment.file.getAbsolutePath());
+                }
+            }
+        }
+    }
+
+    private static long segmentId(File segment)
+    {
+        String name = segment.getName();
+        try
+        {
+            return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+        }
+        catch (NumberFormatException e)
+        {
+            return -1;
+        }
+    }
+
+    private static final class Segment
+    {
+        final File file;
+
+        final MappedByteBuffer buffer;
+
+        // 尚未完成的请求数
+        int pendingEntries;
+
+        Segment(File file, MappedByteBuffer buffer)
+        {
+            this.file = file;
+            this.buffer = buffer;
+        }
+    }
+
+    /**
+     * The journaled records of one request.
+     */
+    public static final class Entry
+    {
+        private final Segment segment;
+
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        Entry(Segment segment)
+        {
+            this.segment = segment;
+        }
+    }
+}
@@ -0,0 +1,260 @@
+/*
+ * Copyright 2002-2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.g42cloud.dis.producer.internals;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.g42cloud.dis.iface.data.request.StreamType;
+
+/**
+ * The client side write quota of each partition ({@code producer.rate.limit.enabled}).
+ * <p>
+ * Each partition has a {@link TokenBucket} for its records and one for its bytes. The quota is configured or derived
+ * from the stream type (a COMMON partition accepts 1000 records and 1MB per second, an ADVANCED one 2000 records and
+ * 5MB per second), so the batches beyond the quota wait in the accumulator instead of being rejected by the traffic
+ * control of the server and retried. The batches of a stream which is not routed by partition share the quota of all
+ * its writable partitions. A stream whose quota is not known yet is not limited.
+ */
+public final class ProducerRateLimiter
+{
+    private static final Logger log = LoggerFactory.getLogger(ProducerRateLimiter.class);
+
+    private static final long COMMON_RECORDS_PER_SECOND = 1000L;
+
+    private static final long ADVANCED_RECORDS_PER_SECOND = 2000L;
+
+    private static final long BYTES_PER_BANDWIDTH_UNIT = 1024 * 1024L;
+
+    private static final long NOT_THROTTLED = Long.MIN_VALUE;
+
+    private final long recordsPerSecond;
+
+    private final long bytesPerSecond;
+
+    // 不按分区路由时批次使用的分区ID，对应整个流的配额
+    private final String streamPartitionId;
+
+    // 单条聚合记录的最大字节数，0表示不聚合
+    private final long aggregationMaxBytes;
+
+    private final ConcurrentMap<String, Quota> quotas = new ConcurrentHashMap<>();
+
+    private final ConcurrentMap<StreamPartition, Buckets> buckets = new ConcurrentHashMap<>();
+
+    private final AtomicLong throttledCount = new AtomicLong();
+
+    private final AtomicLong throttledNanos = new AtomicLong();
+
+    /**
+     * @param recordsPerSecond 每个分区每秒的记录数上限，0表示按通道类型取值
+     * @param bytesPerSecond 每个分区每秒的字节数上限，0表示按通道类型取值
+     * @param streamPartitionId 不按分区路由时批次使用的分区ID
+     */
+    public ProducerRateLimiter(long recordsPerSecond, long bytesPerSecond, String streamPartitionId)
+    {
+        this(recordsPerSecond, bytesPerSecond, streamPartitionId, 0);
+    }
+
+    /**
+     * @param recordsPerSecond 每个分区每秒的记录数上限，0表示按通道类型取值
+     * @param bytesPerSecond 每个分区每秒的字节数上限，0表示按通道类型取值
+     * @param streamPartitionId 不按分区路由时批次使用的分区ID
+     * @param aggregationMaxBytes 单条聚合记录的最大字节数，0表示不聚合
+     */
+    public ProducerRateLimiter(long recordsPerSecond, long bytesPerSecond, String streamPartitionId,
+        long aggregationMaxBytes)
+    {
+        this.aggregationMaxBytes = aggregationMaxBytes;
+        this.recordsPerSecond = recordsPerSecond;
+        this.bytesPerSecond = bytesPerSecond;
+        this.streamPartitionId = streamPartitionId;
+    }
+
+    /**
+     * Set the quota of the stream from its description, the buckets are rebuilt if it changed.
+     *
+     * @param streamName the stream name, or the stream id if the name is not set
+     * @param streamType the stream type, COMMON or ADVANCED
+     * @param writablePartitionCount the number of writable partitions
+     */
+    public void setStreamQuota(String streamName, String streamType, int writablePartitionCount)
+    {
+        StreamType type;
+        try
+        {
+            type = StreamType.getEnumByType(streamType);
+        }
+        catch (IllegalArgumentException e)
+        {
+            log.warn("Unknown type {} of stream {}, use the quota of {}.", streamType, streamName, StreamType.COMMON);
+            type = StreamType.COMMON;
+        }
+        long records = recordsPerSecond > 0 ? recordsPerSecond
+            : type == StreamType.ADVANCED ? ADVANCED_RECORDS_PER_SECOND : COMMON_RECORDS_PER_SECOND;
+        long bytes = bytesPerSecond > 0 ? bytesPerSecond : type.getValue() * BYTES_PER_BANDWIDTH_UNIT;
+        Quota quota = new Quota(records, bytes, Math.max(1, writablePartitionCount));
+        if (!quota.equals(quotas.get(streamName)))
+        {
+            quotas.put(streamName, quota);
+            log.info("Limit each partition of stream {} to {} records/s and {} bytes/s.", streamName, records, bytes);
+        }
+    }
+
+    /**
+     * Take the quota of the records if the partition is not over its quota.
+     *
+     * @param tp the stream/partition
+     * @param records the number of user records to send, counted as the records they are aggregated into if the
+     *            producer aggregates them
+     * @param bytes the bytes to send
+     * @param now the current time in milliseconds
+     * @return whether the records may be sent now
+     */
+    public boolean tryAcquire(StreamPartition tp, int records, long bytes, long now)
+    {
+        // 请求只设置了流ID时按流ID查找配额
+        Quota quota = quotas.get(tp.topic() != null ? tp.topic() : String.valueOf(tp.streamId()));
+        if (quota == null)
+        {
+            return true;
+        }
+        if (aggregationMaxBytes > 0)
+        {
+            // 聚合后服务端按聚合记录计数，估算为按最大字节数装满的记录数
+            records = (int) Math.min(records, Math.max(1, (bytes + aggregationMaxBytes - 1) / aggregationMaxBytes));
+        }
+        long nowNanos = TimeUnit.MILLISECONDS.toNanos(now);
+        Buckets partitionBuckets = buckets.get(tp);
+        if (partitionBuckets == null || partitionBuckets.quota != quota)
+        {
+            Buckets created = newBuckets(tp, quota, nowNanos);
+            if (partitionBuckets == null ? buckets.putIfAbsent(tp, created) == null
+                : buckets.replace(tp, partitionBuckets, created))
+            {
+                partitionBuckets = created;
+            }
+            else
+            {
+                partitionBuckets = buckets.get(tp);
+            }
+        }
+        return partitionBuckets.tryAcquire(records, bytes, nowNanos);
+    }
+
+    /**
+     * @return 因超出配额而延迟发送的次数
+     */
+    public long getThrottledCount()
+    {
+        return throttledCount.get();
+    }
+
+    /**
+     * @return 各分区因超出配额而等待的累计时间(ms)
+     */
+    public long getThrottledTimeMs()
+    {
+        return TimeUnit.NANOSECONDS.toMillis(throttledNanos.get());
+    }
+
+    private Buckets newBuckets(StreamPartition tp, Quota quota, long nowNanos)
+    {
+        // 不按分区路由时整个流共用所有分区的配额
+        int partitions = streamPartitionId.equals(tp.partition()) ? quota.partitions : 1;
+        return new Buckets(quota, new TokenBucket(quota.recordsPerSecond * partitions, nowNanos),
+            new TokenBucket(quota.bytesPerSecond * partitions, nowNanos));
+    }
+
+    private final class Buckets
+    {
+        final Quota quota;
+
+        final TokenBucket records;
+
+        final TokenBucket bytes;
+
+        // 开始等待配额的时间，NOT_THROTTLED表示未在等待
+        final AtomicLong throttledSinceNanos = new AtomicLong(NOT_THROTTLED);
+
+        Buckets(Quota quota, TokenBucket records, TokenBucket bytes)
+        {
+            this.quota = quota;
+            this.records = records;
+            this.bytes = bytes;
+        }
+
+        boolean tryAcquire(int recordCount, long byteCount, long nowNanos)
+        {
+            if (!records.isAvailable(nowNanos) || !bytes.isAvailable(nowNanos))
+            {
+                if (throttledSinceNanos.compareAndSet(NOT_THROTTLED, nowNanos))
+                {
+                    throttledCount.incrementAndGet();
+                }
+                return false;
+            }
+            records.acquire(recordCount, nowNanos);
+            bytes.acquire(byteCount, nowNanos);
+            long throttledSince = throttledSinceNanos.getAndSet(NOT_THROTTLED);
+            if (throttledSince != NOT_THROTTLED)
+            {
+                throttledNanos.addAndGet(nowNanos - throttledSince);
+            }
+            return true;
+        }
+    }
+
+    private static final class Quota
+    {
+        final long recordsPerSecond;
+
+        final long bytesPerSecond;
+
+        final int partitions;
+
+        Quota(long recordsPerSecond, long bytesPerSecond, int partitions)
+        {
+            this.recordsPerSecond = recordsPerSecond;
+            this.bytesPerSecond = bytesPerSecond;
+            this.partitions = partitions;
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (!(o instanceof Quota))
+            {
+                return false;
+            }
+            Quota other = (Quota) o;
+            return recordsPerSecond == other.recordsPerSecond && bytesPerSecond == other.bytesPerSecond
+                && partitions == other.partitions;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return (int) (31 * (31 * recordsPerSecond + bytesPerSecond) + partitions);
+        }
+    }
+}
@@ -16,31 +16,37 @@
 
 package com.g42cloud.dis.producer.internals;
 
-import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.Deque;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
+import com.g42cloud.dis.DISConfig;
 import com.g42cloud.dis.core.handler.AsyncHandler;
+import com.g42cloud.dis.exception.DISDeliveryTimeoutException;
 import com.g42cloud.dis.iface.data.request.PutRecordsRequest;
 import com.g42cloud.dis.iface.data.request.PutRecordsRequestEntry;
 import com.g42cloud.dis.iface.data.response.PutRecordsResult;
-import com.g42cloud.dis.util.CopyOnWriteMap;
+import com.g42cloud.dis.util.RequestSizeCeiling;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 
 /**
  * 用来进行Record的缓冲
- * 
+ * <p>
+ * Batches are kept in a {@link ConcurrentHashMap} of {@link PartitionQueue}, each partition queue is split into lock
+ * striped deques, and the buffer size/count is reserved from a producer wide {@link BufferPool} so that the appending
+ * threads only contend when they really write to the same stripe.
  */
 public final class RecordAccumulator {
 
@@ -54,16 +60,42 @@ public final class RecordAccumulator {
     private final long maxBufferSize;
     private final int maxBufferCount;
     private final long retryBackoffMs;
+    private final int stripes;
+    private final int maxInFlightPerPartition;
+    private final long deliveryTimeoutMs;
     
-    //TODO 这个批的分类，按照partition是最好的。但是当前客户端传partitionKey，可能没法确定数据在哪个分区。除非维护上传流的metadata
-    private final ConcurrentMap<StreamPartition, Deque<ProducerBatch>> batches;
+    // 批次按分区分类，DISProducer根据流的分区哈希范围在客户端完成路由；拿不到路由信息时按流分类
+    private final ConcurrentMap<StreamPartition, PartitionQueue> batches;
     
-    private AtomicInteger bufferCount = new AtomicInteger(0);
-    private AtomicLong bufferSize = new AtomicLong(0);
+    private final BufferPool bufferPool;
+    private final AdaptiveBatchSizer batchSizer;
+    private final IncompleteBatches incomplete = new IncompleteBatches();
+
+    // 缓冲已满时的溢写日志，为空表示缓冲已满时阻塞
+    private volatile SpillLog spillLog;
+
+    // 溢写数据同一时刻只由一个发送线程按顺序读回
+    private final ReentrantLock replayLock = new ReentrantLock();
+
+    // 每次drain的起始分片轮转，避免先遍历到的流总是先发送
+    private final AtomicInteger drainIndex = new AtomicInteger(0);
+
+    // 各流可接受的请求大小，合并批次时不超过
+    private volatile RequestSizeCeiling requestSizeCeiling = new RequestSizeCeiling();
+
+    // 分区写入配额，为空表示不限流
+    private volatile ProducerRateLimiter rateLimiter;
+
+    // 追加时即将记录编码为protobuf请求体
+    private volatile boolean encodeProtobuf;
+
+    // 存放记录数据的堆外内存，为空表示数据保留在堆内
+    private volatile PayloadArena payloadArena;
     
     private Map<StreamPartition, Future<PutRecordsResult>> onSendingPartitions = Collections.synchronizedMap(new HashMap<>());
     
     private boolean orderByPartition;//分片串行发送，使数据按分片保序
+
     /**
      * 
      * @param maxBatchSize 最大批量大小
@@ -71,8 +103,30 @@ public final class RecordAccumulator {
      * @param maxBufferSize 最大缓冲大小
      * @param maxBufferCount 最大缓冲计数
      * @param retryBackoffMs 一个上传单元，缓冲的最长时间，到时间后，即使大小很小，也要上传远端
+     * @param orderByPartition 是否按分片保序
      */
     public RecordAccumulator(long maxBatchSize, int maxBatchCount, long maxBufferSize, int maxBufferCount, long retryBackoffMs, boolean orderByPartition)
+    {
+        this(maxBatchSize, maxBatchCount, maxBufferSize, maxBufferCount, retryBackoffMs, orderByPartition,
+            Runtime.getRuntime().availableProcessors(), orderByPartition ? 1 : Integer.MAX_VALUE, Long.MAX_VALUE, false);
+    }
+
+    /**
+     * 按生产者的批次与缓冲配置创建，溢写日志、分区写入配额等可选组件通过对应的setter设置
+     *
+     * @param config 生产者配置
+     */
+    public RecordAccumulator(DISConfig config)
+    {
+        this(config.getBatchSize(), config.getBatchCount(), config.getBufferMemory(), config.getBufferCount(),
+            config.getLingerMs(), config.isOrderByPartition(), config.getAccumulatorStripes(),
+            config.getMaxInFlightRequestsPerPartition(), config.getDeliveryTimeoutMs(),
+            config.isAdaptiveBatchingEnabled());
+    }
+
+    private RecordAccumulator(long maxBatchSize, int maxBatchCount, long maxBufferSize, int maxBufferCount,
+        long retryBackoffMs, boolean orderByPartition, int stripes, int maxInFlightPerPartition, long deliveryTimeoutMs,
+        boolean adaptiveBatching)
     {
         this.closed = false;
         this.flushesInProgress = new AtomicInteger(0);
@@ -83,7 +137,12 @@ public final class RecordAccumulator {
         this.maxBufferCount = maxBufferCount;
         this.retryBackoffMs = retryBackoffMs;
         this.orderByPartition = orderByPartition;
-        this.batches = new CopyOnWriteMap<>();
+        this.stripes = orderByPartition ? 1 : Math.max(1, stripes);
+        this.maxInFlightPerPartition = Math.max(1, maxInFlightPerPartition);
+        this.deliveryTimeoutMs = deliveryTimeoutMs;
+        this.batches = new ConcurrentHashMap<>();
+        this.bufferPool = new BufferPool(maxBufferSize, maxBufferCount);
+        this.batchSizer = new AdaptiveBatchSizer(adaptiveBatching, retryBackoffMs, maxBatchSize, maxBatchCount);
     }
 
     /**
@@ -105,115 +164,295 @@ public final class RecordAccumulator {
                                      PutRecordsRequest putRecordsRequest,
                                      AsyncHandler<PutRecordsResult> callback,
                                      long maxTimeToBlock) throws InterruptedException {
+        return append(tp, timestamp, putRecordsRequest, callback, maxTimeToBlock, false);
+    }
+
+    /**
+     * Add a record to the accumulator, return the append result
+     * <p>
+     * The append result will contain the future metadata, and flag for whether the appended batch is full or a new batch is created
+     * <p>
+     *
+     * @param tp The stream/partition to which this record is being sent
+     * @param timestamp The timestamp of the records
+     * @param putRecordsRequest the records to add
+     * @param callback The user-supplied callback to execute when the request is complete
+     * @param maxTimeToBlock The maximum time in milliseconds to block for adding, not used when the spill log is enabled
+     * @param abortOnNewBatch Return without appending if a new batch is needed, so that the caller may choose another
+     *        partition for the records, see {@link RecordAppendResult#abortForNewBatch}
+     * @return The append result
+     * @throws InterruptedException The current thread was interrupted
+     */
+    public RecordAppendResult append(StreamPartition tp,
+                                     long timestamp,
+                                     PutRecordsRequest putRecordsRequest,
+                                     AsyncHandler<PutRecordsResult> callback,
+                                     long maxTimeToBlock,
+                                     boolean abortOnNewBatch) throws InterruptedException {
         // We keep track of the number of appending thread to make sure we do not miss batches in
         // abortIncompleteBatches().
         appendsInProgress.incrementAndGet();
         try {
             // check if we have an in-progress batch
-            Deque<ProducerBatch> dq = getOrCreateDeque(tp);
-            synchronized (dq) {
-                if (closed)
+            PartitionQueue pq = getOrCreateQueue(tp);
+            if (closed)
+            {
+                throw new IllegalStateException("Cannot send after the producer is closed.");
+            }
+
+            long newRequestSize = 0;
+            for (PutRecordsRequestEntry entry : putRecordsRequest.getRecords())
+            {
+                newRequestSize += entry.getData().array().length;
+            }
+
+            if (spillLog != null)
+            {
+                return appendOrSpill(pq, tp, timestamp, putRecordsRequest, callback, newRequestSize, abortOnNewBatch);
+            }
+
+            // 当总缓存大小超过阈值，则按FIFO顺序等待
+            long blockStartNs = System.nanoTime();
+            bufferPool.allocate(newRequestSize, 0, maxTimeToBlock);
+            batchSizer.recordAppend(newRequestSize, System.currentTimeMillis());
+
+            boolean appended = false;
+            try
+            {
+                PartitionQueue.Stripe stripe = pq.currentStripe();
+                stripe.lock.lock();
+                try
                 {
-                    throw new IllegalStateException("Cannot send after the producer is closed.");
+                    if (closed)
+                    {
+                        throw new IllegalStateException("Cannot send after the producer is closed.");
+                    }
+                    RecordAppendResult appendResult = tryAppend(timestamp, putRecordsRequest, callback, stripe);
+                    if (appendResult != null)
+                    {
+                        appended = true;
+                        return appendResult;
+                    }
+                    if (abortOnNewBatch)
+                    {
+                        // 不追加，由调用者决定是否换一个分区
+                        return new RecordAppendResult(null, false, false, true);
+                    }
                 }
-                
-                long newRequestSize = 0;
-                for (PutRecordsRequestEntry entry : putRecordsRequest.getRecords())
+                finally
                 {
-                    newRequestSize += entry.getData().array().length;
+                    stripe.lock.unlock();
                 }
-                
-                // 当总缓存大小超过阈值，则等待
-                long currentBufferSize;
-                while ((newRequestSize + (currentBufferSize = bufferSize.get())) > maxBufferSize)
+
+                // 当总批次超过阈值，则按FIFO顺序等待，与缓存大小的等待共用maxTimeToBlock
+                bufferPool.allocate(0, 1, remainingTimeToBlock(blockStartNs, maxTimeToBlock));
+
+                stripe.lock.lock();
+                try
                 {
-                    log.warn("Send blocked because BufferSize(total:{}, current:{}+{}) is full.",
-                        maxBufferSize,
-                        currentBufferSize,
-                        newRequestSize);
-                    long start = System.currentTimeMillis();
-                    dq.wait(maxTimeToBlock);
-                    long elapsed = System.currentTimeMillis() - start;
-                    if (elapsed >= maxTimeToBlock)
+                    if (closed)
+                    {
+                        bufferPool.deallocate(0, 1);
+                        throw new IllegalStateException("Cannot send after the producer is closed.");
+                    }
+
+                    // 等待期间可能已经有其他线程创建了新的批次
+                    RecordAppendResult appendResult = tryAppend(timestamp, putRecordsRequest, callback, stripe);
+                    if (appendResult != null)
                     {
-                        log.warn(
-                            "The BufferSize(total:" + maxBufferSize + ", current:" + currentBufferSize + "+"
-                                + newRequestSize + ") is still full after blocking " + maxTimeToBlock + " ms.");
+                        bufferPool.deallocate(0, 1);
+                        appended = true;
+                        return appendResult;
                     }
-                    log.warn("Send unblocked after blocking {}ms", (System.currentTimeMillis() - start));
+
+                    ProducerBatch batch = new ProducerBatch(tp, batchSizer.getBatchSize(), batchSizer.getBatchCount(), encodeProtobuf, payloadArena);
+                    FutureRecordsMetadata future = batch.tryAppend(timestamp, putRecordsRequest, callback);
+
+                    stripe.deque.addLast(batch);
+                    incomplete.add(batch);
+                    appended = true;
+                    return new RecordAppendResult(future, stripe.deque.size() > 1 || batch.isFull(), true);
                 }
-                
-                RecordAppendResult appendResult = tryAppend(timestamp, putRecordsRequest, callback, dq);
-                if (appendResult != null)
+                finally
                 {
-                    bufferSize.addAndGet(newRequestSize);
-                    return appendResult;
+                    stripe.lock.unlock();
                 }
-
-                // 当总批次或者总缓存大小超过阈值，则等待
-                long currentBufferCount = bufferCount.get();
-                while ((newRequestSize + (currentBufferSize = bufferSize.get())) >= maxBufferSize
-                    || (currentBufferCount = bufferCount.get()) >= maxBufferCount)
+            }
+            finally
+            {
+                if (!appended)
                 {
-                    log.warn(
-                        "Send blocked because BufferSize(total:{}, current:{}+{}) or BufferCount(total:{}, current:{}) is full.",
-                        maxBufferSize,
-                        currentBufferSize,
-                        newRequestSize,
-                        maxBufferCount,
-                        currentBufferCount);
-                    long start = System.currentTimeMillis();
-                    dq.wait(maxTimeToBlock);
-                    long elapsed = System.currentTimeMillis() - start;
-                    if (elapsed >= maxTimeToBlock)
-                    {
-                        log.warn(
-                            "The BufferSize(total:" + maxBufferSize + ", current:" + currentBufferSize + "+"
-                                + newRequestSize + ") or BufferCount(total:" + maxBufferCount + ", current:"
-                                + currentBufferCount + ") is still full after blocking " + maxTimeToBlock + " ms.");
-                    }
-                    log.warn("Send unblocked after blocking {}ms", (System.currentTimeMillis() - start));
+                    bufferPool.deallocate(newRequestSize, 0);
                 }
-                
-                ProducerBatch batch = new ProducerBatch(tp, maxBatchSize, maxBatchCount);
-                FutureRecordsMetadata future = batch.tryAppend(timestamp, putRecordsRequest, callback);
-
-                bufferCount.incrementAndGet();
-                bufferSize.addAndGet(newRequestSize);
-                dq.addLast(batch);
-                return new RecordAppendResult(future, dq.size() > 1 || batch.isFull(), true);
             }
         } finally {
             appendsInProgress.decrementAndGet();
         }
     }
 
+    /**
+     * 从开始等待起剩余的阻塞时间，已超时则为0
+     */
+    private static long remainingTimeToBlock(long startNs, long maxTimeToBlock)
+    {
+        long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNs);
+        return Math.max(0, maxTimeToBlock - elapsedMs);
+    }
+
+    /*
+     * Append without blocking: once any records are spilled, the later ones are spilled too until the spilled ones are
+     * read back, so that the records are still sent in the order they are appended
+     */
+    private RecordAppendResult appendOrSpill(PartitionQueue pq, StreamPartition tp, long timestamp,
+        PutRecordsRequest putRecordsRequest, AsyncHandler<PutRecordsResult> callback, long size, boolean abortOnNewBatch) {
+        if (spillLog.isEmpty() && bufferPool.tryAllocate(size, 0)) {
+            RecordAppendResult appendResult;
+            try {
+                appendResult = appendReserved(pq, tp, timestamp, putRecordsRequest, callback, abortOnNewBatch);
+            } catch (RuntimeException e) {
+                bufferPool.deallocate(size, 0);
+                throw e;
+            }
+            if (appendResult != null && appendResult.future != null) {
+                batchSizer.recordAppend(size, System.currentTimeMillis());
+                return appendResult;
+            }
+            bufferPool.deallocate(size, 0);
+            if (appendResult != null) {
+                return appendResult;
+            }
+        }
+        // 溢写的数据留在调用者选择的分区
+        return new RecordAppendResult(spillLog.append(tp, timestamp, putRecordsRequest, callback), false, false);
+    }
+
+    /*
+     * Append the records whose bytes are reserved already, a new batch is created only if it can be reserved without
+     * blocking, otherwise return null
+     */
+    private RecordAppendResult appendReserved(PartitionQueue pq, StreamPartition tp, long timestamp,
+        PutRecordsRequest putRecordsRequest, AsyncHandler<PutRecordsResult> callback, boolean abortOnNewBatch) {
+        PartitionQueue.Stripe stripe = pq.currentStripe();
+        stripe.lock.lock();
+        try {
+            RecordAppendResult appendResult = tryAppend(timestamp, putRecordsRequest, callback, stripe);
+            if (appendResult != null) {
+                return appendResult;
+            }
+            if (abortOnNewBatch) {
+                return new RecordAppendResult(null, false, false, true);
+            }
+            if (!bufferPool.tryAllocate(0, 1)) {
+                return null;
+            }
+            ProducerBatch batch = new ProducerBatch(tp, batchSizer.getBatchSize(), batchSizer.getBatchCount(), encodeProtobuf, payloadArena);
+            FutureRecordsMetadata future = batch.tryAppend(timestamp, putRecordsRequest, callback);
+            stripe.deque.addLast(batch);
+            incomplete.add(batch);
+            return new RecordAppendResult(future, stripe.deque.size() > 1 || batch.isFull(), true);
+        } finally {
+            stripe.lock.unlock();
+        }
+    }
+
+    /**
+     * Read the spilled records back into batches in the order they were spilled, as long as the buffer allows. Only
+     * one sender reads back at a time, the others return at once.
+     *
+     * @param now The current POSIX time in milliseconds
+     * @return whether any records were read back
+     */
+    public boolean replaySpilled(long now) {
+        if (spillLog == null || spillLog.isEmpty() || !replayLock.tryLock()) {
+            return false;
+        }
+        boolean replayed = false;
+        try {
+            SpillLog.SpilledRecords records;
+            while ((records = spillLog.peek()) != null) {
+                if (deliveryTimeoutMs != Long.MAX_VALUE && now - records.timestamp >= deliveryTimeoutMs) {
+                    spillLog.remove(records);
+                    records.fail(new DISDeliveryTimeoutException("Expiring spilled records for " + records.tp + ": "
+                        + (now - records.timestamp) + " ms has passed since append, delivery timeout is "
+                        + deliveryTimeoutMs + " ms"));
+                    continue;
+                }
+                if (!bufferPool.tryAllocate(records.size, 0)) {
+                    break;
+                }
+                RecordAppendResult appendResult;
+                try {
+                    PutRecordsRequest putRecordsRequest = spillLog.read(records);
+                    appendResult = appendReserved(getOrCreateQueue(records.tp), records.tp, records.timestamp,
+                        putRecordsRequest, records.handler(), false);
+                } catch (RuntimeException e) {
+                    log.error("Failed to read back spilled records for {}: {}", records.tp, e.getMessage());
+                    bufferPool.deallocate(records.size, 0);
+                    spillLog.remove(records);
+                    records.fail(e);
+                    continue;
+                }
+                if (appendResult == null) {
+                    bufferPool.deallocate(records.size, 0);
+                    break;
+                }
+                spillLog.remove(records);
+                replayed = true;
+            }
+        } finally {
+            replayLock.unlock();
+        }
+        return replayed;
+    }
+
+    /**
+     * @return the local spill log, {@code null} if not enabled
+     */
+    public SpillLog spillLog() {
+        return spillLog;
+    }
+
+    /**
+     * Spill the records to the local log instead of blocking when the buffer is full, must be set before any record is
+     * appended.
+     *
+     * @param spillLog the local spill log, {@code null} to block until the buffer is released
+     */
+    public void setSpillLog(SpillLog spillLog) {
+        this.spillLog = spillLog;
+    }
 
     /*
      *  Try to append to a ProducerBatch.
      *  If it is full, we return null and a new batch is created. We also close the batch for record appends
      */
-    private RecordAppendResult tryAppend(long timestamp, PutRecordsRequest putRecordsRequest, AsyncHandler<PutRecordsResult> callback, Deque<ProducerBatch> deque) {
-        ProducerBatch last = deque.peekLast();
+    private RecordAppendResult tryAppend(long timestamp, PutRecordsRequest putRecordsRequest, AsyncHandler<PutRecordsResult> callback, PartitionQueue.Stripe stripe) {
+        ProducerBatch last = stripe.deque.peekLast();
         if (last != null) {
             FutureRecordsMetadata future = last.tryAppend(timestamp, putRecordsRequest, callback);
             if (future == null)
                 last.closeForRecordAppends();
             else
-                return new RecordAppendResult(future, deque.size() > 1 || last.isFull(), false);
+                return new RecordAppendResult(future, stripe.deque.size() > 1 || last.isFull(), false);
 
         }
         return null;
     }
 
     /*
-     * Re-enqueue the given record batch in the accumulator to retry
+     * Re-enqueue the given record batch at the head of its partition to retry, the batch keeps its buffer reservation
+     * and stays incomplete until it is done
      */
     public void reenqueue(ProducerBatch batch, long now) {
         batch.reenqueued(now);
-        Deque<ProducerBatch> deque = getOrCreateDeque(batch.getTp());
-        synchronized (deque) {
-            deque.addFirst(batch);
+        PartitionQueue pq = getOrCreateQueue(batch.getTp());
+        pq.decrementInFlight();
+        PartitionQueue.Stripe stripe = pq.stripe(0);
+        stripe.lock.lock();
+        try {
+            stripe.deque.addFirst(batch);
+        } finally {
+            stripe.lock.unlock();
         }
     }
 
@@ -221,11 +460,28 @@ public final class RecordAccumulator {
      * Check whether there are any batches which haven't been drained
      */
     public boolean hasUndrained() {
-        for (Map.Entry<StreamPartition, Deque<ProducerBatch>> entry : this.batches.entrySet()) {
-            Deque<ProducerBatch> deque = entry.getValue();
-            synchronized (deque) {
-                if (!deque.isEmpty())
-                    return true;
+        return hasUndrained(0, 1);
+    }
+
+    /*
+     * Check whether there are any batches of the given sender shard which haven't been drained
+     */
+    public boolean hasUndrained(int shard, int shardCount) {
+        // 溢写的数据可由任一发送线程读回
+        if (spillLog != null && !spillLog.isEmpty())
+            return true;
+        for (PartitionQueue pq : this.batches.values()) {
+            if (shardOf(pq.getTp(), shardCount) != shard)
+                continue;
+            for (int i = 0; i < pq.stripeCount(); i++) {
+                PartitionQueue.Stripe stripe = pq.stripe(i);
+                stripe.lock.lock();
+                try {
+                    if (!stripe.deque.isEmpty())
+                        return true;
+                } finally {
+                    stripe.lock.unlock();
+                }
             }
         }
         return false;
@@ -235,83 +491,191 @@ public final class RecordAccumulator {
         this.onSendingPartitions.put(sp, future);
     }
     
-    public List<ProducerBatch> drain(long now, CopyOnWriteArrayList<StreamPartition> onSendingStreamPartitions) {
-
+    /**
+     * Drain the ready batches of the partitions owned by the given sender shard.
+     * <p>
+     * At most {@code maxInFlightPerPartition} batches of a partition are drained but not yet done at any time; in order
+     * by partition mode it is 1 by default so that one partition is sent serially.
+     *
+     * @param now The current POSIX time in milliseconds
+     * @param shard The shard of the calling sender
+     * @param shardCount The number of senders
+     * @return the drained batches
+     * @see #drainRequests(long, int, int)
+     */
+    public List<ProducerBatch> drain(long now, int shard, int shardCount) {
         List<ProducerBatch> drainBatches = new ArrayList<>();
-        
-//        Iterator<Map.Entry<StreamPartition, Future<PutRecordsResult>>> itor = onSendingPartitions.entrySet().iterator();
-//        while(itor.hasNext()){
-//            Map.Entry<StreamPartition, Future<PutRecordsResult>> entry = itor.next();
-//            if(entry.getValue() != null && entry.getValue().isDone()){
-//                itor.remove();
-//            }
-//        }
-        
-        for(Map.Entry<StreamPartition, Deque<ProducerBatch>> entry : batches.entrySet()){
-            StreamPartition sp = entry.getKey();
-            Deque<ProducerBatch> deque = entry.getValue();
-            
-            if(orderByPartition){//如果需要分片保序，且分片正在发送中，待发送完完成后再取
-                if(onSendingStreamPartitions.contains(sp)){
-                    continue;
-                }
+        for (List<ProducerBatch> request : drainRequests(now, shard, shardCount)) {
+            drainBatches.addAll(request);
+        }
+        return drainBatches;
+    }
+
+    /**
+     * Drain the ready batches of the partitions owned by the given sender shard, grouped into requests.
+     * <p>
+     * The ready batches of one partition are put into the same request as long as they fit in one request
+     * (batch.size/batch.count). The partition to start with rotates between passes, and the requests are ordered by
+     * the earliest deadline (end of linger, retry backoff or delivery timeout) of their batches, so that no stream is
+     * always served first.
+     *
+     * @param now The current POSIX time in milliseconds
+     * @param shard The shard of the calling sender
+     * @param shardCount The number of senders
+     * @return the drained batches, each list is the batches of one partition to be sent in one request
+     */
+    public List<List<ProducerBatch>> drainRequests(long now, int shard, int shardCount) {
+        List<PartitionQueue> owned = new ArrayList<>();
+        for (PartitionQueue pq : batches.values()) {
+            if (shardOf(pq.getTp(), shardCount) == shard) {
+                owned.add(pq);
             }
-            //如果当前分片还有没发送完成的，待发送完成后再取
-//            if(onSendingPartitions.containsKey(sp)){
-//                continue;
-//            }
-//            
-            synchronized (deque)
-            {
-                ProducerBatch first = deque.peekFirst();
+        }
 
-                if (first == null)
-                {
-                    continue;
-                }
+        List<DrainedRequest> requests = new ArrayList<>();
+        if (!owned.isEmpty()) {
+            int rotation = drainIndex.getAndIncrement() & 0x7fffffff;
+            for (int n = 0; n < owned.size(); n++) {
+                drain(owned.get((rotation + n) % owned.size()), now, rotation, requests);
+            }
+        }
 
-                if (first.waitedTimeMs(now) < retryBackoffMs && !first.isFull())
-                {
-                    continue;
-                }
+        // 最接近截止时间的请求先发送；截止时间相同时保持轮转后的顺序
+        requests.sort((a, b) -> Long.compare(a.deadlineMs, b.deadlineMs));
+        List<List<ProducerBatch>> drainRequests = new ArrayList<>(requests.size());
+        for (DrainedRequest request : requests) {
+            drainRequests.add(request.batches);
+        }
+        return drainRequests;
+    }
+
+    /*
+     * Drain the ready batches of one partition, the batches are packed into requests no larger than one batch
+     */
+    private void drain(PartitionQueue pq, long now, int rotation, List<DrainedRequest> requests) {
+        DrainedRequest request = null;
+        long lingerMs = batchSizer.getLingerMs();
+        long requestMaxBytes = Math.min(batchSizer.getBatchSize(),
+            requestSizeCeiling.getCeiling(pq.getTp().topic(), pq.getTp().streamId()));
+        int requestMaxRecords = batchSizer.getBatchCount();
 
-                if (first.isEmpty())
+        for (int n = 0; n < pq.stripeCount() && pq.inFlight() < maxInFlightPerPartition; n++)
+        {
+            PartitionQueue.Stripe stripe = pq.stripe((rotation + n) % pq.stripeCount());
+            stripe.lock.lock();
+            try
+            {
+                // 在途窗口未满时，可连续取出同一队列中已就绪的批次
+                while (pq.inFlight() < maxInFlightPerPartition)
                 {
-                    first.reenqueued(now);
-                    continue;
-                }
+                    ProducerBatch first = stripe.deque.peekFirst();
 
-                ProducerBatch batch = deque.pollFirst();
-                drainBatches.add(batch);
-                batch.drained(now);
+                    if (first == null)
+                    {
+                        break;
+                    }
+
+                    if (first.isDone())
+                    {
+                        // 已因发送超时而完成的批次，直接丢弃
+                        stripe.deque.pollFirst();
+                        continue;
+                    }
 
-                log.debug(
-                    "Drain batch({} records) success, currentBufferCount is {}, currentBufferSize is {}, queueSize {}.",
-                    batch.getRelativeOffset(),
-                    bufferCount.get(),
-                    bufferSize.get(),
-                    deque.size());
+                    if (first.isRetry())
+                    {
+                        // 重试的批次在退避结束前不发送，同一分片后续的批次也一起等待
+                        if (first.retryBackoffRemainingMs(now) > 0)
+                        {
+                            break;
+                        }
+                    }
+                    // flush时不再等待linger.ms
+                    else if (first.waitedTimeMs(now) < lingerMs && !first.isFull() && !flushInProgress())
+                    {
+                        break;
+                    }
+
+                    if (first.isEmpty())
+                    {
+                        first.reenqueued(now);
+                        break;
+                    }
+
+                    // 超出分区配额的批次留在队列中，配额恢复后再发送
+                    if (rateLimiter != null && !rateLimiter.tryAcquire(pq.getTp(), first.recordsToSend().size(),
+                        first.isRetry() ? RequestSizeCeiling.sizeOf(first.recordsToSend()) : first.getTotolByteSize(),
+                        now))
+                    {
+                        break;
+                    }
+
+                    ProducerBatch batch = stripe.deque.pollFirst();
+                    pq.incrementInFlight();
+                    batch.drained(now);
+
+                    // 同一分片的多个批次合并为一个请求发送，不超过一个批次的大小
+                    int records = batch.recordsToSend().size();
+                    if (request == null || request.bytes + batch.getTotolByteSize() > requestMaxBytes
+                        || request.records + records > requestMaxRecords)
+                    {
+                        request = new DrainedRequest();
+                        requests.add(request);
+                    }
+                    request.add(batch, records, batch.deadlineMs(lingerMs, deliveryTimeoutMs));
+
+                    log.debug(
+                        "Drain batch({} records) success, currentBufferCount is {}, currentBufferSize is {}, queueSize {}.",
+                        batch.getRelativeOffset(),
+                        bufferPool.getReservedBatches(),
+                        bufferPool.getReservedBytes(),
+                        stripe.deque.size());
+                }
+            }
+            finally
+            {
+                stripe.lock.unlock();
             }
         }
-        
-        return drainBatches;        
     }
 
-    private Deque<ProducerBatch> getDeque(StreamPartition tp) {
-        return batches.get(tp);
+    /*
+     * The batches of one partition to be sent in one request
+     */
+    private static final class DrainedRequest {
+        final List<ProducerBatch> batches = new ArrayList<>(2);
+        long bytes;
+        int records;
+        long deadlineMs = Long.MAX_VALUE;
+
+        void add(ProducerBatch batch, int batchRecords, long batchDeadlineMs) {
+            batches.add(batch);
+            bytes += batch.getTotolByteSize();
+            records += batchRecords;
+            deadlineMs = Math.min(deadlineMs, batchDeadlineMs);
+        }
+    }
+
+    /**
+     * @param tp The stream/partition
+     * @param shardCount The number of senders
+     * @return the sender shard which owns the stream/partition
+     */
+    public static int shardOf(StreamPartition tp, int shardCount) {
+        return shardCount <= 1 ? 0 : (tp.hashCode() & 0x7fffffff) % shardCount;
     }
 
     /*
-     * Get the deque for the given topic-partition, creating it if necessary.
-     */
-    private Deque<ProducerBatch> getOrCreateDeque(StreamPartition tp) {
-        Deque<ProducerBatch> d = this.batches.get(tp);
-        if (d != null)
-            return d;
-        d = new ArrayDeque<>();
-        Deque<ProducerBatch> previous = this.batches.putIfAbsent(tp, d);
+     * Get the queue for the given stream-partition, creating it if necessary.
+     */
+    private PartitionQueue getOrCreateQueue(StreamPartition tp) {
+        PartitionQueue pq = this.batches.get(tp);
+        if (pq != null)
+            return pq;
+        pq = new PartitionQueue(tp, stripes);
+        PartitionQueue previous = this.batches.putIfAbsent(tp, pq);
         if (previous == null)
-            return d;
+            return pq;
         else
             return previous;
     }
@@ -326,10 +690,93 @@ public final class RecordAccumulator {
     }
 
     /* Visible for testing */
-    public Map<StreamPartition, Deque<ProducerBatch>> batches() {
+    Map<StreamPartition, PartitionQueue> batches() {
         return Collections.unmodifiableMap(batches);
     }
 
+    /* Visible for testing */
+    long bufferSize() {
+        return bufferPool.getReservedBytes();
+    }
+
+    /* Visible for testing */
+    int bufferCount() {
+        return bufferPool.getReservedBatches();
+    }
+
+    /**
+     * @return the effective linger time and batch size
+     */
+    public AdaptiveBatchSizer batchSizer() {
+        return batchSizer;
+    }
+
+    /**
+     * @return the request size each stream has been learned to accept
+     */
+    public RequestSizeCeiling requestSizeCeiling() {
+        return requestSizeCeiling;
+    }
+
+    /**
+     * Share the request size ceiling with the client, so that the batches are not merged into a request the client
+     * has learned to be too large.
+     *
+     * @param requestSizeCeiling the request size ceiling
+     */
+    public void setRequestSizeCeiling(RequestSizeCeiling requestSizeCeiling) {
+        this.requestSizeCeiling = requestSizeCeiling;
+    }
+
+    /**
+     * @return the write quota of the partitions, {@code null} if not limited
+     */
+    public ProducerRateLimiter rateLimiter() {
+        return rateLimiter;
+    }
+
+    /**
+     * Pace the draining of the batches by the write quota of their partitions.
+     *
+     * @param rateLimiter the write quota of the partitions, {@code null} not to limit
+     */
+    public void setRateLimiter(ProducerRateLimiter rateLimiter) {
+        this.rateLimiter = rateLimiter;
+    }
+
+    /**
+     * Encode the records of the new batches into the protobuf body of a request as they are appended, so that the
+     * sender does not encode them again.
+     *
+     * @param encodeProtobuf whether to encode the records as they are appended
+     */
+    public void setEncodeProtobuf(boolean encodeProtobuf) {
+        this.encodeProtobuf = encodeProtobuf;
+    }
+
+    /**
+     * @return the off-heap slabs holding the payloads of the buffered records, {@code null} if they stay on the heap
+     */
+    public PayloadArena payloadArena() {
+        return payloadArena;
+    }
+
+    /**
+     * Copy the payloads of the records appended to new batches into off-heap slabs.
+     *
+     * @param payloadArena the off-heap slabs, {@code null} to keep the payloads on the heap
+     */
+    public void setPayloadArena(PayloadArena payloadArena) {
+        this.payloadArena = payloadArena;
+    }
+
+    /**
+     * @return the buffer budget shared by all the streams of this producer
+     */
+    public BufferPool bufferPool() {
+        return bufferPool;
+    }
+
     /*
      * Initiate the flushing of data from the accumulator...this makes all requests immediately ready
      */
@@ -337,6 +784,58 @@ public final class RecordAccumulator {
         this.flushesInProgress.getAndIncrement();
     }
 
+    /**
+     * Block until all the batches incomplete when the flush began are done, must be called after {@link #beginFlush()}.
+     *
+     * @param timeoutMs the maximum time in milliseconds to wait, {@link Long#MAX_VALUE} to wait forever
+     * @return {@code true} all the batches are done, {@code false} the timeout elapsed first
+     * @throws InterruptedException the current thread was interrupted while waiting
+     */
+    public boolean awaitFlushCompletion(long timeoutMs) throws InterruptedException {
+        try {
+            long start = System.currentTimeMillis();
+            List<Future<PutRecordsResult>> spilled =
+                spillLog == null ? Collections.<Future<PutRecordsResult>>emptyList() : spillLog.pendingFutures();
+            for (ProducerBatch batch : this.incomplete.copyAll()) {
+                if (timeoutMs == Long.MAX_VALUE) {
+                    batch.produceFuture.await();
+                } else {
+                    long remaining = timeoutMs - (System.currentTimeMillis() - start);
+                    if (remaining <= 0 || !batch.produceFuture.await(remaining, TimeUnit.MILLISECONDS))
+                        return false;
+                }
+            }
+            // 溢写的数据读回后进入新的批次，等待其结果
+            for (Future<PutRecordsResult> future : spilled) {
+                try {
+                    if (timeoutMs == Long.MAX_VALUE) {
+                        future.get();
+                    } else {
+                        long remaining = timeoutMs - (System.currentTimeMillis() - start);
+                        if (remaining <= 0) {
+                            return false;
+                        }
+                        future.get(remaining, TimeUnit.MILLISECONDS);
+                    }
+                } catch (ExecutionException e) {
+                    // 发送失败也视为已完成
+                } catch (TimeoutException e) {
+                    return false;
+                }
+            }
+            return true;
+        } finally {
+            this.flushesInProgress.decrementAndGet();
+        }
+    }
+
+    /*
+     * Check whether there are any batches which are appended but not yet done
+     */
+    public boolean hasIncomplete() {
+        return !this.incomplete.isEmpty();
+    }
+
     /*
      * Are there any threads currently appending messages?
      */
@@ -351,31 +850,104 @@ public final class RecordAccumulator {
         this.closed = true;
     }
 
+    /*
+     * The response of a drained batch is back: release its in-flight slot and its buffer
+     */
     public void batchIsDone(ProducerBatch batch)
     {
-        Deque<ProducerBatch> dq = getDeque(batch.getTp());
-        if (dq != null)
+        completeInFlight(batch);
+        deallocate(batch);
+    }
+
+    /*
+     * Release the in-flight slot of the partition of a drained batch
+     */
+    public void completeInFlight(ProducerBatch batch)
+    {
+        PartitionQueue pq = batches.get(batch.getTp());
+        if (pq != null)
         {
-            synchronized (dq)
-            {
-                bufferCount.decrementAndGet();
-                bufferSize.addAndGet(-batch.getTotolByteSize());
-                dq.notify();
+            pq.decrementInFlight();
+        }
+    }
+
+    /*
+     * Release the buffer reserved by the completed batch, any waiting append of any stream may go on
+     */
+    public void deallocate(ProducerBatch batch)
+    {
+        incomplete.remove(batch);
+        bufferPool.deallocate(batch.getTotolByteSize(), 1);
+    }
+
+    /**
+     * Collect the batches of the given sender shard which have reached the delivery timeout. The queued ones are
+     * removed from their queue; the in-flight ones keep their in-flight slot until their response is back.
+     *
+     * @param now The current POSIX time in milliseconds
+     * @param shard The shard of the calling sender
+     * @param shardCount The number of senders
+     * @return the expired batches, not completed yet
+     */
+    public List<ProducerBatch> expiredBatches(long now, int shard, int shardCount) {
+        List<ProducerBatch> expiredBatches = new ArrayList<>();
+        if (deliveryTimeoutMs == Long.MAX_VALUE) {
+            return expiredBatches;
+        }
+
+        for (PartitionQueue pq : batches.values()) {
+            if (shardOf(pq.getTp(), shardCount) != shard)
+                continue;
+            for (int i = 0; i < pq.stripeCount(); i++) {
+                PartitionQueue.Stripe stripe = pq.stripe(i);
+                stripe.lock.lock();
+                try {
+                    // 队列中的批次按创建时间排序(重试的批次放在队首)，遇到未超时的批次即可停止
+                    ProducerBatch first;
+                    while ((first = stripe.deque.peekFirst()) != null
+                        && first.hasReachedDeliveryTimeout(deliveryTimeoutMs, now)) {
+                        stripe.deque.pollFirst();
+                        first.closeForRecordAppends();
+                        expiredBatches.add(first);
+                    }
+                } finally {
+                    stripe.lock.unlock();
+                }
+            }
+        }
+
+        for (ProducerBatch batch : incomplete.copyAll()) {
+            if (batch.isInFlight() && shardOf(batch.getTp(), shardCount) == shard
+                && batch.hasReachedDeliveryTimeout(deliveryTimeoutMs, now)) {
+                expiredBatches.add(batch);
             }
         }
+        return expiredBatches;
+    }
+
+    public long deliveryTimeoutMs() {
+        return deliveryTimeoutMs;
     }
     /*
      * Metadata about a record just appended to the record accumulator
      */
     public final static class RecordAppendResult {
-        public final FutureRecordsMetadata future;
+        // 溢写到本地磁盘时为读回发送后才完成的future
+        public final Future<PutRecordsResult> future;
         public final boolean batchIsFull;
         public final boolean newBatchCreated;
+        // 需要新建批次而未追加，future为空
+        public final boolean abortForNewBatch;
+
+        public RecordAppendResult(Future<PutRecordsResult> future, boolean batchIsFull, boolean newBatchCreated) {
+            this(future, batchIsFull, newBatchCreated, false);
+        }
 
-        public RecordAppendResult(FutureRecordsMetadata future, boolean batchIsFull, boolean newBatchCreated) {
+        public RecordAppendResult(Future<PutRecordsResult> future, boolean batchIsFull, boolean newBatchCreated, boolean abortForNewBatch) {
             this.future = future;
             this.batchIsFull = batchIsFull;
             this.newBatchCreated = newBatchCreated;
+            this.abortForNewBatch = abortForNewBatch;
         }
     }
 
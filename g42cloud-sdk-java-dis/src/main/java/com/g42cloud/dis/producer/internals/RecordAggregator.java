@@ -0,0 +1,203 @@
+/*
+ * Copyright 2002-2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.g42cloud.dis.producer.internals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.g42cloud.dis.core.util.StringUtils;
+import com.g42cloud.dis.exception.DISClientException;
+import com.g42cloud.dis.iface.data.request.PutRecordsRequestEntry;
+import com.g42cloud.dis.iface.data.response.PutRecordsResult;
+import com.g42cloud.dis.iface.data.response.PutRecordsResultEntry;
+import com.g42cloud.dis.util.RecordAggregation;
+
+/**
+ * Packs the user records of a request into aggregated records before they are sent ({@code producer.aggregation.enabled}),
+ * see {@link RecordAggregation} for the format.
+ * <p>
+ * Only consecutive records which go to the same partition are packed together: the same partition id, or the same
+ * partition key and explicit hash key when the partition id is not set, so the order of the records of a partition is
+ * kept. The result of an aggregated record is expanded back to each of its user records, so that the batches complete
+ * and retry their user records as usual.
+ */
+public final class RecordAggregator
+{
+    private final long maxBytes;
+
+    private final boolean compress;
+
+    private final AtomicLong userRecords = new AtomicLong();
+
+    private final AtomicLong aggregatedRecords = new AtomicLong();
+
+    /**
+     * @param maxBytes 单条聚合记录的最大字节数
+     * @param compress 是否压缩聚合记录
+     */
+    public RecordAggregator(long maxBytes, boolean compress)
+    {
+        this.maxBytes = maxBytes;
+        this.compress = compress;
+    }
+
+    /**
+     * @param records the user records to send
+     * @return the records to send instead, with the number of user records in each of them
+     */
+    public Aggregated aggregate(List<PutRecordsRequestEntry> records)
+    {
+        List<PutRecordsRequestEntry> aggregated = new ArrayList<>();
+        int[] counts = new int[records.size()];
+        int start = 0;
+        long size = 0;
+        for (int i = 0; i < records.size(); i++)
+        {
+            int recordSize = RecordAggregation.encodedSize(records.get(i));
+            // 分区不同或超过单条聚合记录的大小时，结束当前的聚合记录
+            if (i > start && (!sameTarget(records.get(start), records.get(i))
+                || RecordAggregation.OVERHEAD + RecordAggregation.countSize(i - start + 1) + size + recordSize > maxBytes))
+            {
+                counts[aggregated.size()] = i - start;
+                aggregated.add(pack(records.subList(start, i)));
+                start = i;
+                size = 0;
+            }
+            size += recordSize;
+        }
+        if (start < records.size())
+        {
+            counts[aggregated.size()] = records.size() - start;
+            aggregated.add(pack(records.subList(start, records.size())));
+        }
+        userRecords.addAndGet(records.size());
+        aggregatedRecords.addAndGet(aggregated.size());
+
+        int[] recordCounts = new int[aggregated.size()];
+        System.arraycopy(counts, 0, recordCounts, 0, recordCounts.length);
+        return new Aggregated(aggregated, recordCounts);
+    }
+
+    /**
+     * @return 聚合前的用户记录数
+     */
+    public long getUserRecords()
+    {
+        return userRecords.get();
+    }
+
+    /**
+     * @return 实际发送的记录数
+     */
+    public long getAggregatedRecords()
+    {
+        return aggregatedRecords.get();
+    }
+
+    private PutRecordsRequestEntry pack(List<PutRecordsRequestEntry> records)
+    {
+        PutRecordsRequestEntry first = records.get(0);
+        if (records.size() == 1)
+        {
+            return first;
+        }
+        PutRecordsRequestEntry entry = new PutRecordsRequestEntry();
+        entry.setPartitionId(first.getPartitionId());
+        entry.setPartitionKey(first.getPartitionKey());
+        entry.setExplicitHashKey(first.getExplicitHashKey());
+        entry.setTimestamp(first.getTimestamp());
+        entry.setData(RecordAggregation.aggregate(records, compress));
+        return entry;
+    }
+
+    private static boolean sameTarget(PutRecordsRequestEntry a, PutRecordsRequestEntry b)
+    {
+        if (a.getPartitionId() != null || b.getPartitionId() != null)
+        {
+            return Objects.equals(a.getPartitionId(), b.getPartitionId());
+        }
+        return Objects.equals(a.getPartitionKey(), b.getPartitionKey())
+            && Objects.equals(a.getExplicitHashKey(), b.getExplicitHashKey());
+    }
+
+    /**
+     * The aggregated records of one request.
+     */
+    public static final class Aggregated
+    {
+        private final List<PutRecordsRequestEntry> records;
+
+        private final int[] counts;
+
+        Aggregated(List<PutRecordsRequestEntry> records, int[] counts)
+        {
+            this.records = records;
+            this.counts = counts;
+        }
+
+        /**
+         * @return 实际发送的记录
+         */
+        public List<PutRecordsRequestEntry> getRecords()
+        {
+            return records;
+        }
+
+        /**
+         * Expand the result of the aggregated records to the user records, each user record gets the result of the
+         * record it was packed into.
+         *
+         * @param result the result of the aggregated records
+         * @return the result of the user records
+         */
+        public PutRecordsResult expand(PutRecordsResult result)
+        {
+            if (result.getRecords() == null || result.getRecords().size() != counts.length)
+            {
+                throw new DISClientException("Unexpected result count "
+                    + (result.getRecords() == null ? 0 : result.getRecords().size()) + ", expected " + counts.length);
+            }
+            List<PutRecordsResultEntry> entries = new ArrayList<>();
+            int failedCount = 0;
+            for (int i = 0; i < counts.length; i++)
+            {
+                PutRecordsResultEntry entry = result.getRecords().get(i);
+                boolean failed = !StringUtils.isNullOrEmpty(entry.getErrorCode());
+                for (int n = 0; n < counts[i]; n++)
+                {
+                    PutRecordsResultEntry userEntry = new PutRecordsResultEntry();
+                    userEntry.setPartitionId(entry.getPartitionId());
+                    userEntry.setSequenceNumber(entry.getSequenceNumber());
+                    userEntry.setErrorCode(entry.getErrorCode());
+                    userEntry.setErrorMessage(entry.getErrorMessage());
+                    entries.add(userEntry);
+                    if (failed)
+                    {
+                        failedCount++;
+                    }
+                }
+            }
+            PutRecordsResult expanded = new PutRecordsResult();
+            expanded.setFailedRecordCount(new AtomicInteger(failedCount));
+            expanded.setRecords(entries);
+            return expanded;
+        }
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright 2002-2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.g42cloud.dis.producer.internals;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.g42cloud.dis.iface.data.request.PutRecordsRequest;
+import com.g42cloud.dis.iface.data.request.PutRecordsRequestEntry;
+
+/**
+ * The binary form of the records written to the local spill log and journal of the producer: stream name, stream id,
+ * record count, then for each record its data, its optional keys and timestamp.
+ */
+final class RecordsCodec
+{
+    private RecordsCodec()
+    {
+    }
+
+    /**
+     * @return the number of bytes {@link #encode(PutRecordsRequest, ByteBuffer)} writes
+     */
+    static int encodedSize(PutRecordsRequest putRecordsRequest)
+    {
+        int size = stringSize(putRecordsRequest.getStreamName()) + stringSize(putRecordsRequest.getStreamId()) + 4;
+        for (PutRecordsRequestEntry entry : putRecordsRequest.getRecords())
+        {
+            size += 4 + entry.getData().remaining();
+            size += stringSize(entry.getExplicitHashKey()) + stringSize(entry.getPartitionId())
+                + stringSize(entry.getPartitionKey());
+            size += entry.getTimestamp() == null ? 1 : 9;
+        }
+        return size;
+    }
+
+    /**
+     * @return the bytes of the data of the records once decoded, each record is decoded into an exact-length buffer
+     */
+    static long payloadSize(PutRecordsRequest putRecordsRequest)
+    {
+        long size = 0;
+        for (PutRecordsRequestEntry entry : putRecordsRequest.getRecords())
+        {
+            size += entry.getData().remaining();
+        }
+        return size;
+    }
+
+    /*
+     * Write the records directly into the given buffer, e.g. a mapped segment, without an intermediate copy
+     */
+    static void encode(PutRecordsRequest putRecordsRequest, ByteBuffer out)
+    {
+        writeString(out, putRecordsRequest.getStreamName());
+        writeString(out, putRecordsRequest.getStreamId());
+        out.putInt(putRecordsRequest.getRecords().size());
+        for (PutRecordsRequestEntry entry : putRecordsRequest.getRecords())
+        {
+            ByteBuffer data = entry.getData().duplicate();
+            out.putInt(data.remaining());
+            out.put(data);
+            writeString(out, entry.getExplicitHashKey());
+            writeString(out, entry.getPartitionId());
+            writeString(out, entry.getPartitionKey());
+            if (entry.getTimestamp() == null)
+            {
+                out.put((byte) 0);
+            }
+            else
+            {
+                out.put((byte) 1);
+                out.putLong(entry.getTimestamp());
+            }
+        }
+    }
+
+    static byte[] encode(PutRecordsRequest putRecordsRequest)
+    {
+        ByteBuffer out = ByteBuffer.allocate(encodedSize(putRecordsRequest));
+        encode(putRecordsRequest, out);
+        return out.array();
+    }
+
+    static PutRecordsRequest decode(byte[] bytes)
+        throws IOException
+    {
+        return decode(ByteBuffer.wrap(bytes));
+    }
+
+    static PutRecordsRequest decode(ByteBuffer in)
+        throws IOException
+    {
+        try
+        {
+            PutRecordsRequest putRecordsRequest = new PutRecordsRequest();
+            putRecordsRequest.setStreamName(readString(in));
+            putRecordsRequest.setStreamId(readString(in));
+            int recordCount = in.getInt();
+            List<PutRecordsRequestEntry> records = new ArrayList<>(Math.min(recordCount, in.remaining()));
+            for (int i = 0; i < recordCount; i++)
+            {
+                PutRecordsRequestEntry entry = new PutRecordsRequestEntry();
+                byte[] data = new byte[in.getInt()];
+                in.get(data);
+                entry.setData(ByteBuffer.wrap(data));
+                entry.setExplicitHashKey(readString(in));
+                entry.setPartitionId(readString(in));
+                entry.setPartitionKey(readString(in));
+                if (in.get() != 0)
+                {
+                    entry.setTimestamp(in.getLong());
+                }
+                records.add(entry);
+            }
+            putRecordsRequest.setRecords(records);
+            return putRecordsRequest;
+        }
+        catch (BufferUnderflowException | NegativeArraySizeException | IllegalArgumentException e)
+        {
+            throw new IOException("Malformed records", e);
+        }
+    }
+
+    private static int stringSize(String value)
+    {
+        return value == null ? 1 : 5 + value.getBytes(StandardCharsets.UTF_8).length;
+    }
+
+    private static void writeString(ByteBuffer out, String value)
+    {
+        if (value == null)
+        {
+            out.put((byte) 0);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.put((byte) 1);
+        out.putInt(bytes.length);
+        out.put(bytes);
+    }
+
+    private static String readString(ByteBuffer in)
+    {
+        if (in.get() == 0)
+        {
+            return null;
+        }
+        byte[] bytes = new byte[in.getInt()];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
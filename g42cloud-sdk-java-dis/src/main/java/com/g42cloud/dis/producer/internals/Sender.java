@@ -16,21 +16,30 @@
 
 package com.g42cloud.dis.producer.internals;
 
+import com.g42cloud.dis.Constants;
 import com.g42cloud.dis.DISAsync;
+import com.g42cloud.dis.DISClient;
 import com.g42cloud.dis.core.handler.AsyncHandler;
 import com.g42cloud.dis.core.util.StringUtils;
 import com.g42cloud.dis.exception.DISClientException;
+import com.g42cloud.dis.exception.DISDeliveryTimeoutException;
+import com.g42cloud.dis.exception.DISRequestEntityTooLargeException;
+import com.g42cloud.dis.exception.DISTrafficControlException;
+import com.g42cloud.dis.iface.data.request.EncodedPutRecordsRequest;
 import com.g42cloud.dis.iface.data.request.PutRecordsRequest;
+import com.g42cloud.dis.iface.data.request.PutRecordsRequestEntry;
 import com.g42cloud.dis.iface.data.response.PutRecordsResult;
 import com.g42cloud.dis.iface.data.response.PutRecordsResultEntry;
+import com.g42cloud.dis.util.ExponentialBackOff;
+import com.g42cloud.dis.util.RequestSizeCeiling;
 import com.g42cloud.dis.util.Utils;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.concurrent.CopyOnWriteArrayList;
-import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.LockSupport;
@@ -41,7 +50,8 @@ import java.util.concurrent.locks.LockSupport;
  * TODO makes metadata requests to renew its view of the cluster
  * sends produce requests to the dis server.
  *
- * TODO 增加配置，为了保序，使同一streamPartition的数据，同步发送
+ * 多个发送线程按分片分工，每个分片固定由一个线程发送，同一分片在途的请求数受max.in.flight.requests.per.partition限制，
+ * 按分片保序时默认为1，即同一streamPartition的数据串行发送
  */
 public class Sender extends Thread
 {
@@ -63,7 +73,25 @@ public class Sender extends Thread
     
     private long retryBackoffMs;
 
+    private final int shard;
+
+    private final int shardCount;
+
+    private final int recordsRetries;
+
+    private final String[] recordsRetriableErrorCodes;
+
+    private final long backOffMaxIntervalMs;
+
+    // 发送前聚合用户记录，为空表示不聚合
+    private final RecordAggregator aggregator;
+
     private static final int DEFAULT_SENDER_POLLING_MS = 50;
+
+    // 检查发送超时批次的最小间隔
+    private static final long EXPIRY_CHECK_INTERVAL_MS = 100;
+
+    private long lastExpiryCheckMs = 0;
     
     private AtomicInteger flushId = new AtomicInteger();
 
@@ -80,13 +108,55 @@ public class Sender extends Thread
     public static AtomicLong totalSendFailedTimes = new AtomicLong();
 
     public static AtomicLong totalQueryTimes = new AtomicLong();
+
+    public static AtomicLong totalExpiredBatches = new AtomicLong();
     
     public Sender(DISAsync client, RecordAccumulator accumulator, long retryBackoffMs)
     {
-        this.setName("Sender Thread");
+        this(client, accumulator, retryBackoffMs, 0, 1, 0, new String[0], ExponentialBackOff.DEFAULT_MAX_INTERVAL);
+    }
+
+    /**
+     * @param client DIS客户端
+     * @param accumulator 数据缓冲
+     * @param retryBackoffMs 批量发送延迟时间
+     * @param shard 当前发送线程的编号
+     * @param shardCount 发送线程数，每个分片固定由编号为{@link RecordAccumulator#shardOf}的线程发送
+     * @param recordsRetries 部分记录发送失败时，批次的最大重试次数
+     * @param recordsRetriableErrorCodes 可重试的记录错误码
+     * @param backOffMaxIntervalMs 单次重试退避的最长时间
+     */
+    public Sender(DISAsync client, RecordAccumulator accumulator, long retryBackoffMs, int shard, int shardCount,
+        int recordsRetries, String[] recordsRetriableErrorCodes, long backOffMaxIntervalMs)
+    {
+        this(client, accumulator, retryBackoffMs, shard, shardCount, recordsRetries, recordsRetriableErrorCodes,
+            backOffMaxIntervalMs, null);
+    }
+
+    /**
+     * @param client DIS客户端
+     * @param accumulator 数据缓冲
+     * @param retryBackoffMs 批量发送延迟时间
+     * @param shard 当前发送线程的编号
+     * @param shardCount 发送线程数，每个分片固定由编号为{@link RecordAccumulator#shardOf}的线程发送
+     * @param recordsRetries 部分记录发送失败时，批次的最大重试次数
+     * @param recordsRetriableErrorCodes 可重试的记录错误码
+     * @param backOffMaxIntervalMs 单次重试退避的最长时间
+     * @param aggregator 发送前聚合用户记录，为空表示不聚合
+     */
+    public Sender(DISAsync client, RecordAccumulator accumulator, long retryBackoffMs, int shard, int shardCount,
+        int recordsRetries, String[] recordsRetriableErrorCodes, long backOffMaxIntervalMs, RecordAggregator aggregator)
+    {
+        this.setName(shardCount > 1 ? "Sender Thread-" + shard : "Sender Thread");
         this.client = client;
         this.accumulator = accumulator;
         this.retryBackoffMs = retryBackoffMs;
+        this.shard = shard;
+        this.shardCount = shardCount;
+        this.recordsRetries = recordsRetries;
+        this.recordsRetriableErrorCodes = recordsRetriableErrorCodes;
+        this.backOffMaxIntervalMs = backOffMaxIntervalMs;
+        this.aggregator = aggregator;
         this.running = true;
     }
     
@@ -149,9 +219,11 @@ public class Sender extends Thread
         
         if (!hasData)
         {
-            if (retryBackoffMs > 0)
+            // 自适应模式下按当前生效的linger轮询
+            long pollMs = accumulator.batchSizer().isEnabled() ? accumulator.batchSizer().getLingerMs() : retryBackoffMs;
+            if (pollMs > 0)
             {
-                long remainWait = retryBackoffMs - (System.currentTimeMillis() - now);
+                long remainWait = pollMs - (System.currentTimeMillis() - now);
                 if (remainWait > 0)
                 {
                     LockSupport.parkNanos(remainWait * 1000000L);
@@ -164,108 +236,455 @@ public class Sender extends Thread
         }
     }
     
-    private CopyOnWriteArrayList<StreamPartition> onSendingStreamPartitions = new CopyOnWriteArrayList<StreamPartition>();
-    
     private boolean sendProducerData(long now)
     {
+        failExpiredBatches(now);
+
+        // 缓冲有空闲时先按顺序读回溢写的数据
+        this.accumulator.replaySpilled(now);
+
         // create produce requests
-        List<ProducerBatch> batches = this.accumulator.drain(now, onSendingStreamPartitions);
+        List<List<ProducerBatch>> requests = this.accumulator.drainRequests(now, shard, shardCount);
 
-        if (batches.isEmpty())
+        if (requests.isEmpty())
         {
             log.trace("no data to send.");
             return false;
         }
+        for (List<ProducerBatch> batches : requests)
+        {
+            sendBatches(batches);
+        }
+
+        return true;
+    }
+
+    /*
+     * Send the batches of one partition in one request, the result is split back to each batch by its records
+     */
+    private void sendBatches(List<ProducerBatch> batches)
+    {
+        StreamPartition tp = batches.get(0).getTp();
+        List<PutRecordsRequestEntry> records = new ArrayList<>();
+        int[] recordCounts = new int[batches.size()];
+        for (int i = 0; i < batches.size(); i++)
+        {
+            ProducerBatch batch = batches.get(i);
+            log.trace("begin to process batch {}, count {}, size {}B", tp, batch.getRelativeOffset(), batch.getTotolByteSize());
+            List<PutRecordsRequestEntry> batchRecords = batch.recordsToSend();
+            recordCounts[i] = batchRecords.size();
+            records.addAll(batchRecords);
+        }
+
+        // 聚合后发送，结果再展开到每条用户记录
+        RecordAggregator.Aggregated aggregated = aggregator == null ? null : aggregator.aggregate(records);
+        PutRecordsRequest putRecordsParam = aggregated == null ? encode(tp, batches) : new PutRecordsRequest();
+        putRecordsParam.setStreamName(tp.topic());
+        putRecordsParam.setStreamId(tp.streamId());
+        putRecordsParam.setRecords(aggregated == null ? records : aggregated.getRecords());
+
+        totalSendTimes.incrementAndGet();
+        totalSendCount.addAndGet(records.size());
+        inFlightRequestCount.addAndGet(batches.size());
         for (ProducerBatch batch : batches)
         {
-            log.trace("begin to process batch {}, count {}, size {}B", batch.getTp(), batch.getRelativeOffset(), batch.getTotolByteSize());
+            batch.retainPayloads();
+        }
 
-            StreamPartition tp = batch.getTp();
+        putRecords(putRecordsParam, new AsyncHandler<PutRecordsResult>()
+        {
+            long start = System.currentTimeMillis();
 
-            PutRecordsRequest putRecordsParam = new PutRecordsRequest();
-            putRecordsParam.setStreamName(tp.topic());
-            putRecordsParam.setStreamId(tp.streamId());
-            putRecordsParam.setRecords(batch.getBatchPutRecordsRequestEntrys());
+            @Override
+            public void onSuccess(PutRecordsResult result)
+            {
+                releasePayloads(batches);
+                onResult(result);
+            }
 
-            totalSendTimes.incrementAndGet();
-            totalSendCount.addAndGet(batch.getRelativeOffset());
-            inFlightRequestCount.incrementAndGet();
-            
-            onSendingStreamPartitions.add(tp);
-            Future<PutRecordsResult> resultFuture = client.putRecordsAsync(putRecordsParam, new AsyncHandler<PutRecordsResult>()
+            private void onResult(PutRecordsResult result)
             {
-                long start = System.currentTimeMillis();
+                if (aggregated != null)
+                {
+                    try
+                    {
+                        result = aggregated.expand(result);
+                    }
+                    catch (DISClientException e)
+                    {
+                        onFailure(e);
+                        return;
+                    }
+                }
+                // 结果数与发送的记录数不一致时无法对应到每条记录，整个请求按失败处理
+                int resultCount = result.getRecords() == null ? 0 : result.getRecords().size();
+                if (resultCount != records.size())
+                {
+                    onFailure(new DISClientException("Unexpected result count " + resultCount + ", expected "
+                        + records.size()));
+                    return;
+                }
+                totalSendSuccessTimes.incrementAndGet();
+                totalSendSuccessCount.addAndGet(result.getRecords().size() - result.getFailedRecordCount().get());
+                totalSendFailedCount.addAndGet(result.getFailedRecordCount().get());
+                long end = System.currentTimeMillis();
+                accumulator.batchSizer().recordResponse(end - start, isTrafficControlled(result), end);
 
-                @Override
-                public void onSuccess(PutRecordsResult result)
+                if (batches.size() == 1)
                 {
-                    totalSendSuccessTimes.incrementAndGet();
-                    totalSendSuccessCount.addAndGet(result.getRecords().size() - result.getFailedRecordCount().get());
-                    totalSendFailedCount.addAndGet(result.getFailedRecordCount().get());
-                    if (result.getFailedRecordCount().get() > 0)
+                    handleSuccess(batches.get(0), result, start);
+                    return;
+                }
+
+                int offset = 0;
+                for (int i = 0; i < batches.size(); i++)
+                {
+                    List<PutRecordsResultEntry> entries = result.getRecords().subList(offset, offset + recordCounts[i]);
+                    offset += recordCounts[i];
+                    int failedCount = 0;
+                    for (PutRecordsResultEntry entry : entries)
                     {
-                        String errorMsg = null;
-                        for (int i = 0; i < result.getRecords().size(); i++)
+                        if (!StringUtils.isNullOrEmpty(entry.getErrorCode()))
                         {
-                            PutRecordsResultEntry putRecordsRequestEntry = result.getRecords().get(i);
-                            if (!StringUtils.isNullOrEmpty(putRecordsRequestEntry.getErrorCode()))
-                            {
-                                errorMsg = putRecordsRequestEntry.getErrorCode() + " : " + putRecordsRequestEntry.getErrorMessage();
-                                break;
-                            }
+                            failedCount++;
                         }
-                        log.error("Batch {} send partial successfully, cost {}ms, count {}, size {}B, failed count {}, failed info {}",
-                                tp.toString(),
-                                (System.currentTimeMillis() - start),
-                                batch.getRelativeOffset(),
-                                batch.getTotolByteSize(),
-                                result.getFailedRecordCount().get(),
-                                errorMsg);
-                    }
-                    else
-                    {
-                        log.debug("Batch {} send successfully, cost {}ms, count {}, size {}B",
-                                tp.toString(),
-                                (System.currentTimeMillis() - start),
-                                batch.getRelativeOffset(),
-                                batch.getTotolByteSize());
                     }
-                    batch.done(result, null);
-                    batchIsDone(batch);
-                    inFlightRequestCount.decrementAndGet();
-                    onSendingStreamPartitions.remove(tp);
+                    PutRecordsResult batchResult = new PutRecordsResult();
+                    batchResult.setFailedRecordCount(new AtomicInteger(failedCount));
+                    batchResult.setRecords(new ArrayList<>(entries));
+                    handleSuccess(batches.get(i), batchResult, start);
+                }
+            }
+
+            @Override
+            public void onError(Exception exception)
+            {
+                releasePayloads(batches);
+                onFailure(exception);
+            }
+
+            private void onFailure(Exception exception)
+            {
+                totalSendFailedTimes.incrementAndGet();
+                totalSendFailedCount.addAndGet(records.size());
+                if (exception instanceof DISTrafficControlException)
+                {
+                    long end = System.currentTimeMillis();
+                    accumulator.batchSizer().recordResponse(end - start, true, end);
+                }
+                log.error("Batch {} send failed, cost {}ms, count {}, size {}B, error info {}",
+                        tp.toString(),
+                        (System.currentTimeMillis() - start),
+                        records.size(),
+                        totalByteSize(batches),
+                        exception.getMessage(), exception);
+                for (ProducerBatch batch : batches)
+                {
+                    handleError(batch, exception);
+                }
+            }
+        });
+    }
+
+    /*
+     * The request does not read the payloads of its batches any more
+     */
+    private static void releasePayloads(List<ProducerBatch> batches)
+    {
+        for (ProducerBatch batch : batches)
+        {
+            batch.releasePayloads();
+        }
+    }
+
+    /*
+     * Send the request. A request rejected as too large is split in half recursively and the results of the halves are
+     * merged back, unless the client is a DISClient which splits it by itself and only fails a single record with 413.
+     */
+    private void putRecords(PutRecordsRequest putRecordsParam, AsyncHandler<PutRecordsResult> handler)
+    {
+        RequestSizeCeiling requestSizeCeiling = accumulator.requestSizeCeiling();
+        if (!(client instanceof DISClient) && requestSizeCeiling.exceeds(putRecordsParam))
+        {
+            putSplitRecords(putRecordsParam, handler);
+            return;
+        }
+        client.putRecordsAsync(putRecordsParam, new AsyncHandler<PutRecordsResult>()
+        {
+            @Override
+            public void onSuccess(PutRecordsResult result)
+                throws Exception
+            {
+                handler.onSuccess(result);
+            }
+
+            @Override
+            public void onError(Exception exception)
+                throws Exception
+            {
+                if (exception instanceof DISRequestEntityTooLargeException && !(client instanceof DISClient)
+                    && putRecordsParam.getRecords().size() > 1)
+                {
+                    requestSizeCeiling.onRejected(putRecordsParam);
+                    log.warn("Put {} records to stream {} is too large, split and resend.",
+                        putRecordsParam.getRecords().size(), putRecordsParam.getStreamName());
+                    putSplitRecords(putRecordsParam, handler);
+                    return;
+                }
+                handler.onError(exception);
+            }
+        });
+    }
+
+    private void putSplitRecords(PutRecordsRequest putRecordsParam, AsyncHandler<PutRecordsResult> handler)
+    {
+        List<PutRecordsRequest> halves = RequestSizeCeiling.split(putRecordsParam);
+        PutRecordsResult[] results = new PutRecordsResult[halves.size()];
+        Exception[] exceptions = new Exception[halves.size()];
+        AtomicInteger remaining = new AtomicInteger(halves.size());
+        for (int i = 0; i < halves.size(); i++)
+        {
+            int index = i;
+            putRecords(halves.get(i), new AsyncHandler<PutRecordsResult>()
+            {
+                @Override
+                public void onSuccess(PutRecordsResult result)
+                    throws Exception
+                {
+                    results[index] = result;
+                    halfDone();
                 }
 
                 @Override
                 public void onError(Exception exception)
+                    throws Exception
                 {
-                    totalSendFailedTimes.incrementAndGet();
-                    totalSendFailedCount.addAndGet(putRecordsParam.getRecords().size());
-                    log.error("Batch {} send failed, cost {}ms, count {}, size {}B, error info {}",
-                            tp.toString(),
-                            (System.currentTimeMillis() - start),
-                            batch.getRelativeOffset(),
-                            batch.getTotolByteSize(),
-                            exception.getMessage(), exception);
-                    if (exception instanceof DISClientException)
+                    exceptions[index] = exception;
+                    halfDone();
+                }
+
+                private void halfDone()
+                    throws Exception
+                {
+                    // 拆分的各部分都返回后合并结果，全部失败时按第一个异常处理
+                    if (remaining.decrementAndGet() > 0)
                     {
-                        batch.done(null, (DISClientException) exception);
+                        return;
+                    }
+                    if (allFailed(exceptions))
+                    {
+                        handler.onError(exceptions[0]);
                     }
                     else
                     {
-                        batch.done(null, new DISClientException(exception));
+                        handler.onSuccess(RequestSizeCeiling.merge(halves, Arrays.asList(results),
+                            Arrays.asList(exceptions)));
                     }
-                    batchIsDone(batch);
-                    inFlightRequestCount.decrementAndGet();
-                    onSendingStreamPartitions.remove(tp);
                 }
             });
-
-            //accumulator.setOnSendingPartitionFuture(tp, resultFuture);
         }
+    }
 
+    private static boolean allFailed(Exception[] exceptions)
+    {
+        for (Exception exception : exceptions)
+        {
+            if (exception == null)
+            {
+                return false;
+            }
+        }
         return true;
     }
+
+    private void handleSuccess(ProducerBatch batch, PutRecordsResult result, long start)
+    {
+        StreamPartition tp = batch.getTp();
+        boolean retry = batch.completeAttempt(result, Sender.this::isRecordsRetriableErrorCode, recordsRetries);
+        if (retry && !batch.isDone()
+            && !batch.hasReachedDeliveryTimeout(accumulator.deliveryTimeoutMs(), System.currentTimeMillis()))
+        {
+            // 只把可重试的失败记录放回分片队首，退避期间不阻塞发送线程与其他分片
+            long backOffMs = retryBackOffMs(batch.getAttempts());
+            log.warn("Batch {} send partial successfully, cost {}ms, {} of {} records will be retried after backoff {}ms, current retry count is {}.",
+                    tp.toString(),
+                    (System.currentTimeMillis() - start),
+                    result.getFailedRecordCount().get(),
+                    result.getRecords().size(),
+                    backOffMs,
+                    batch.getAttempts());
+            long now = System.currentTimeMillis();
+            batch.retryBackoff(backOffMs, now);
+            accumulator.reenqueue(batch, now);
+            inFlightRequestCount.decrementAndGet();
+            wakeup();
+            return;
+        }
+
+        PutRecordsResult batchResult = batch.mergedResult();
+        if (batchResult.getFailedRecordCount().get() > 0)
+        {
+            String errorMsg = null;
+            for (int i = 0; i < batchResult.getRecords().size(); i++)
+            {
+                PutRecordsResultEntry putRecordsRequestEntry = batchResult.getRecords().get(i);
+                if (!StringUtils.isNullOrEmpty(putRecordsRequestEntry.getErrorCode()))
+                {
+                    errorMsg = putRecordsRequestEntry.getErrorCode() + " : " + putRecordsRequestEntry.getErrorMessage();
+                    break;
+                }
+            }
+            log.error("Batch {} send partial successfully, cost {}ms, count {}, size {}B, failed count {}, failed info {}",
+                    tp.toString(),
+                    (System.currentTimeMillis() - start),
+                    batch.getRelativeOffset(),
+                    batch.getTotolByteSize(),
+                    batchResult.getFailedRecordCount().get(),
+                    errorMsg);
+        }
+        else
+        {
+            log.debug("Batch {} send successfully, cost {}ms, count {}, size {}B",
+                    tp.toString(),
+                    (System.currentTimeMillis() - start),
+                    batch.getRelativeOffset(),
+                    batch.getTotolByteSize());
+        }
+        completeBatch(batch, batchResult, null);
+    }
+
+    private void handleError(ProducerBatch batch, Exception exception)
+    {
+        if (batch.isRetry())
+        {
+            // 之前已有记录发送成功，只把本次重试的记录标记为失败
+            batch.failAttempt(exception);
+            completeBatch(batch, batch.mergedResult(), null);
+        }
+        else if (exception instanceof DISClientException)
+        {
+            completeBatch(batch, null, (DISClientException) exception);
+        }
+        else
+        {
+            completeBatch(batch, null, new DISClientException(exception));
+        }
+    }
+
+    private static boolean isTrafficControlled(PutRecordsResult result)
+    {
+        if (result.getFailedRecordCount().get() == 0)
+        {
+            return false;
+        }
+        for (PutRecordsResultEntry entry : result.getRecords())
+        {
+            if (entry.getErrorCode() != null && entry.getErrorCode().contains(Constants.ERROR_CODE_TRAFFIC_CONTROL_LIMIT))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static long totalByteSize(List<ProducerBatch> batches)
+    {
+        long size = 0;
+        for (ProducerBatch batch : batches)
+        {
+            size += batch.getTotolByteSize();
+        }
+        return size;
+    }
+
+    /*
+     * Complete the batch whose response is back. The batch may have been failed for the delivery timeout already,
+     * then its buffer was released at that time and only the in-flight slot is released here.
+     */
+    private void completeBatch(ProducerBatch batch, PutRecordsResult result, RuntimeException exception)
+    {
+        if (batch.done(result, exception))
+        {
+            accumulator.deallocate(batch);
+        }
+        accumulator.completeInFlight(batch);
+        inFlightRequestCount.decrementAndGet();
+        // 分片的在途窗口已释放，唤醒发送线程
+        wakeup();
+    }
+
+    /*
+     * Fail the batches which have not been delivered within delivery.timeout.ms and release their buffer at once,
+     * the in-flight ones keep their in-flight slot until the response is back.
+     */
+    private void failExpiredBatches(long now)
+    {
+        if (now - lastExpiryCheckMs < EXPIRY_CHECK_INTERVAL_MS)
+        {
+            return;
+        }
+        lastExpiryCheckMs = now;
+
+        for (ProducerBatch batch : accumulator.expiredBatches(now, shard, shardCount))
+        {
+            String errorMsg = "Expiring " + batch.getRelativeOffset() + " record(s) for " + batch.getTp() + ": "
+                + (now - batch.getCreatedMs()) + " ms has passed since batch creation, delivery timeout is "
+                + accumulator.deliveryTimeoutMs() + " ms";
+            if (batch.done(null, new DISDeliveryTimeoutException(errorMsg)))
+            {
+                log.error(errorMsg);
+                totalExpiredBatches.incrementAndGet();
+                accumulator.deallocate(batch);
+            }
+        }
+    }
+
+    private boolean isRecordsRetriableErrorCode(String errorCode)
+    {
+        for (String item : recordsRetriableErrorCodes)
+        {
+            if (errorCode.contains(item))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /*
+     * Build the request from the records encoded as they were appended, a single copy into the body
+     */
+    private static PutRecordsRequest encode(StreamPartition tp, List<ProducerBatch> batches)
+    {
+        int size = EncodedRecords.headerSize(tp.topic(), tp.streamId());
+        for (ProducerBatch batch : batches)
+        {
+            if (!batch.isEncoded())
+            {
+                return new PutRecordsRequest();
+            }
+            size += batch.encodedSizeToSend();
+        }
+        byte[] body = new byte[size];
+        int position = EncodedRecords.writeHeader(tp.topic(), tp.streamId(), body);
+        for (ProducerBatch batch : batches)
+        {
+            position = batch.writeEncodedRecordsTo(body, position);
+        }
+        EncodedPutRecordsRequest request = new EncodedPutRecordsRequest();
+        request.setEncodedBody(body);
+        return request;
+    }
+
+    /*
+     * The same exponential backoff as DISClient uses to retry the failed records
+     */
+    private long retryBackOffMs(int attempts)
+    {
+        double backOff = ExponentialBackOff.DEFAULT_INITIAL_INTERVAL
+            * Math.pow(ExponentialBackOff.DEFAULT_MULTIPLIER, Math.max(0, attempts - 1));
+        return (long) Math.min(backOffMaxIntervalMs, backOff);
+    }
     
     /**
      * Wake up the selector associated with this send thread
@@ -291,7 +710,7 @@ public class Sender extends Thread
         int loop = 0;
         while (loop < 3 && (System.currentTimeMillis() - start) < timeout)
         {
-            if (this.accumulator.hasUndrained() || this.inFlightRequestCount.get() > 0)
+            if (this.accumulator.hasUndrained(shard, shardCount) || this.inFlightRequestCount.get() > 0)
             {
                 // there are still sending records.
                 loop = 0;
@@ -311,18 +730,19 @@ public class Sender extends Thread
             }
         }
 
-        if (this.accumulator.hasUndrained() || this.inFlightRequestCount.get() > 0)
+        if (this.accumulator.hasUndrained(shard, shardCount) || this.inFlightRequestCount.get() > 0)
         {
             log.warn("The timeout period {}ms has been reached, but there are still records that have not been processed successfully.", timeout);
         }
     }
 
-    //flush需要堵塞，把当前缓冲的数据发送到DIS服务端,多个线程分别调用flush的情况 TODO
+    /**
+     * Wake up the sender to send the buffered data at once, the caller should have called
+     * {@link RecordAccumulator#beginFlush()} so that the batches are ready without waiting for linger.ms
+     */
     public void flush()
     {
         this.wakeup();
-        // TODO Auto-generated method stub
-        
     }
     
     public void batchIsDone(ProducerBatch batch)
@@ -0,0 +1,406 @@
+/*
+ * Copyright 2002-2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.g42cloud.dis.producer.internals;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.g42cloud.dis.core.handler.AsyncHandler;
+import com.g42cloud.dis.exception.DISBufferExhaustedException;
+import com.g42cloud.dis.exception.DISClientException;
+import com.g42cloud.dis.iface.data.request.PutRecordsRequest;
+import com.g42cloud.dis.iface.data.response.PutRecordsResult;
+
+/**
+ * The local overflow log of the producer, used instead of blocking the appending thread when the {@link BufferPool} is
+ * exhausted ({@code producer.spill.enabled}).
+ * <p>
+ * The spilled records are appended to segment files on disk and only their position is kept in memory. They are read
+ * back in the order they were spilled once the buffer is released, a segment is deleted as soon as all of its records
+ * have been read back. The log only absorbs bursts: it is deleted when the producer is closed and is not recovered
+ * after a crash.
+ */
+public final class SpillLog
+{
+    private static final Logger log = LoggerFactory.getLogger(SpillLog.class);
+
+    private static final String SEGMENT_PREFIX = "spill-";
+
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    private final File dir;
+
+    private final long maxBytes;
+
+    private final long segmentBytes;
+
+    // 按溢写顺序排列的待读回记录，仅保存其在文件中的位置
+    private final Deque<SpilledRecords> pending = new ArrayDeque<>();
+
+    private Segment active;
+
+    private long nextSegmentId;
+
+    // 磁盘上所有分段的总大小
+    private long diskBytes;
+
+    private boolean closed;
+
+    private final AtomicLong spilledRequests = new AtomicLong();
+
+    private final AtomicLong spilledBytes = new AtomicLong();
+
+    /**
+     * @param dir 溢写文件目录，不存在时创建
+     * @param maxBytes 溢写文件总大小上限
+     * @param segmentBytes 单个分段的大小
+     */
+    public SpillLog(File dir, long maxBytes, long segmentBytes)
+    {
+        if (!dir.exists() && !dir.mkdirs())
+        {
+            throw new DISClientException("Failed to create spill dir " + dir.getAbsolutePath());
+        }
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+        this.segmentBytes = Math.max(1, segmentBytes);
+    }
+
+    /**
+     * Write the records to the end of the log.
+     *
+     * @param tp the stream/partition of the records
+     * @param timestamp the timestamp of the records
+     * @param putRecordsRequest the records
+     * @param callback the user-supplied callback
+     * @return the future of the records, complete once they are read back and sent
+     * @throws DISBufferExhaustedException the log has reached {@code data.cache.disk.max.size}
+     */
+    public synchronized Future<PutRecordsResult> append(StreamPartition tp, long timestamp,
+        PutRecordsRequest putRecordsRequest, AsyncHandler<PutRecordsResult> callback)
+    {
+        if (closed)
+        {
+            throw new IllegalStateException("Cannot spill after the producer is closed.");
+        }
+        byte[] data = RecordsCodec.encode(putRecordsRequest);
+        if (diskBytes + data.length > maxBytes)
+        {
+            throw new DISBufferExhaustedException("Failed to spill " + data.length + " bytes, the spill log "
+                + dir.getAbsolutePath() + " has reached its max size " + maxBytes + " bytes.");
+        }
+
+        if (active == null || (active.size > 0 && active.size + data.length > segmentBytes))
+        {
+            roll();
+        }
+        long position = active.size;
+        try
+        {
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            while (buffer.hasRemaining())
+            {
+                active.channel.write(buffer, position + buffer.position());
+            }
+        }
+        catch (IOException e)
+        {
+            throw new DISClientException("Failed to write spill segment " + active.file.getAbsolutePath(), e);
+        }
+        active.size += data.length;
+        active.pendingCount++;
+        diskBytes += data.length;
+
+        // 读回的记录数据长度恰为编码的长度，读回时按此大小占用缓冲，与批次完成时释放的大小一致
+        long size = RecordsCodec.payloadSize(putRecordsRequest);
+
+        int recordCount = putRecordsRequest.getRecords().size();
+        int[] indexes = new int[recordCount];
+        for (int i = 0; i < recordCount; i++)
+        {
+            indexes[i] = i;
+        }
+        CompositeFutureRecordsMetadata future = new CompositeFutureRecordsMetadata(recordCount, 1, callback);
+        pending.addLast(new SpilledRecords(tp, timestamp, size, active, position, data.length, future, indexes));
+        spilledRequests.incrementAndGet();
+        spilledBytes.addAndGet(size);
+        return future;
+    }
+
+    /**
+     * @return the oldest records not read back yet, {@code null} if none
+     */
+    public synchronized SpilledRecords peek()
+    {
+        return pending.peekFirst();
+    }
+
+    /**
+     * Read the records back from disk, the records stay in the log until {@link #remove(SpilledRecords)}
+     *
+     * @param records the spilled records
+     * @return the records as they were appended
+     */
+    public PutRecordsRequest read(SpilledRecords records)
+    {
+        ByteBuffer buffer = ByteBuffer.allocate(records.length);
+        try
+        {
+            while (buffer.hasRemaining())
+            {
+                if (records.segment.channel.read(buffer, records.position + buffer.position()) < 0)
+                {
+                    throw new IOException("Unexpected end of file");
+                }
+            }
+            return RecordsCodec.decode(buffer.array());
+        }
+        catch (IOException e)
+        {
+            throw new DISClientException("Failed to read spill segment " + records.segment.file.getAbsolutePath(), e);
+        }
+    }
+
+    /**
+     * Remove the oldest records, the segment is deleted once all of its records are removed.
+     *
+     * @param records the records returned by {@link #peek()}
+     */
+    public synchronized void remove(SpilledRecords records)
+    {
+        if (pending.peekFirst() != records)
+        {
+            throw new IllegalStateException("Spilled records must be removed in order.");
+        }
+        pending.pollFirst();
+        Segment segment = records.segment;
+        if (--segment.pendingCount == 0)
+        {
+            // 当前分段也已全部读回时一并删除，下次溢写重新创建
+            if (segment == active)
+            {
+                active = null;
+            }
+            delete(segment);
+        }
+    }
+
+    /**
+     * @return whether all the spilled records have been read back
+     */
+    public synchronized boolean isEmpty()
+    {
+        return pending.isEmpty();
+    }
+
+    /**
+     * @return the futures of the records not read back yet
+     */
+    public synchronized List<Future<PutRecordsResult>> pendingFutures()
+    {
+        List<Future<PutRecordsResult>> futures = new ArrayList<>(pending.size());
+        for (SpilledRecords records : pending)
+        {
+            futures.add(records.future);
+        }
+        return futures;
+    }
+
+    /**
+     * Fail the records not read back yet and delete the log.
+     *
+     * @param exception the failure reported to the records
+     */
+    public void close(Exception exception)
+    {
+        List<SpilledRecords> remaining;
+        synchronized (this)
+        {
+            if (closed)
+            {
+                return;
+            }
+            closed = true;
+            remaining = new ArrayList<>(pending);
+            pending.clear();
+            if (active != null && active.pendingCount == 0)
+            {
+                delete(active);
+            }
+            active = null;
+        }
+
+        Segment last = null;
+        for (SpilledRecords records : remaining)
+        {
+            records.fail(exception);
+            if (records.segment != last)
+            {
+                delete(records.segment);
+                last = records.segment;
+            }
+        }
+        if (!dir.delete())
+        {
+            log.warn("Failed to delete spill dir {}.", dir.getAbsolutePath());
+        }
+    }
+
+    /**
+     * @return 磁盘上溢写文件的总大小
+     */
+    public synchronized long getDiskBytes()
+    {
+        return diskBytes;
+    }
+
+    /**
+     * @return 待读回的请求数
+     */
+    public synchronized int getPendingRequests()
+    {
+        return pending.size();
+    }
+
+    /**
+     * @return 累计溢写的请求数
+     */
+    public long getSpilledRequests()
+    {
+        return spilledRequests.get();
+    }
+
+    /**
+     * @return 累计溢写的数据字节数
+     */
+    public long getSpilledBytes()
+    {
+        return spilledBytes.get();
+    }
+
+    private void roll()
+    {
+        File file = new File(dir, SEGMENT_PREFIX + String.format("%020d", nextSegmentId++) + SEGMENT_SUFFIX);
+        try
+        {
+            active = new Segment(file, new RandomAccessFile(file, "rw").getChannel());
+        }
+        catch (IOException e)
+        {
+            throw new DISClientException("Failed to create spill segment " + file.getAbsolutePath(), e);
+        }
+        log.debug("Rolled new spill segment {}.", file.getName());
+    }
+
+    private void delete(Segment segment)
+    {
+        try
+        {
+            segment.channel.close();
+        }
+        catch (IOException e)
+        {
+            log.warn("Failed to close spill segment {}: {}", segment.file.getName(), e.getMessage());
+        }
+        synchronized (this)
+        {
+            diskBytes -= segment.size;
+        }
+        if (!segment.file.delete())
+        {
+            log.warn("Failed to delete spill segment {}.", segment.file.getAbsolutePath());
+        }
+    }
+
+    private static final class Segment
+    {
+        final File file;
+
+        final FileChannel channel;
+
+        long size;
+
+        // 尚未读回的请求数
+        int pendingCount;
+
+        Segment(File file, FileChannel channel)
+        {
+            this.file = file;
+            this.channel = channel;
+        }
+    }
+
+    /**
+     * The position on disk of the records of one spilled append.
+     */
+    public static final class SpilledRecords
+    {
+        final StreamPartition tp;
+
+        final long timestamp;
+
+        final long size;
+
+        private final Segment segment;
+
+        private final long position;
+
+        private final int length;
+
+        private final CompositeFutureRecordsMetadata future;
+
+        private final int[] indexes;
+
+        SpilledRecords(StreamPartition tp, long timestamp, long size, Segment segment, long position, int length,
+            CompositeFutureRecordsMetadata future, int[] indexes)
+        {
+            this.tp = tp;
+            this.timestamp = timestamp;
+            this.size = size;
+            this.segment = segment;
+            this.position = position;
+            this.length = length;
+            this.future = future;
+            this.indexes = indexes;
+        }
+
+        /**
+         * @return the callback to append the records read back with, it completes the future returned to the user
+         */
+        AsyncHandler<PutRecordsResult> handler()
+        {
+            return future.newSliceHandler(indexes);
+        }
+
+        void fail(Exception exception)
+        {
+            future.failSlice(indexes, exception);
+        }
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright 2002-2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.g42cloud.dis.producer.internals;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A lock-free token bucket refilled at a fixed rate and holding at most one second of tokens.
+ * <p>
+ * The state is the time at which the bucket is refilled to the point of the last acquisition, so acquiring is a
+ * single CAS. The bucket may go into debt: tokens are available as long as there is no debt, and a request larger
+ * than the bucket is let through and paid back before the next one, so that a batch is never held forever.
+ */
+final class TokenBucket
+{
+    private static final long BURST_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final long ratePerSecond;
+
+    // 令牌恢复到最近一次获取之后水位的时间点
+    private final AtomicLong refilledAtNanos;
+
+    TokenBucket(long ratePerSecond, long nowNanos)
+    {
+        this.ratePerSecond = ratePerSecond;
+        this.refilledAtNanos = new AtomicLong(nowNanos - BURST_NANOS);
+    }
+
+    /**
+     * @param nowNanos the current time in nanoseconds
+     * @return whether tokens are available, i.e. the bucket is not in debt
+     */
+    boolean isAvailable(long nowNanos)
+    {
+        return refilledAtNanos.get() < nowNanos;
+    }
+
+    /**
+     * Take the tokens, going into debt if there are not enough.
+     *
+     * @param permits the number of tokens
+     * @param nowNanos the current time in nanoseconds
+     */
+    void acquire(long permits, long nowNanos)
+    {
+        long cost = (permits * BURST_NANOS + ratePerSecond - 1) / ratePerSecond;
+        while (true)
+        {
+            long refilledAt = refilledAtNanos.get();
+            // 空闲时最多积累一秒的令牌
+            long next = Math.max(refilledAt, nowNanos - BURST_NANOS) + cost;
+            if (refilledAtNanos.compareAndSet(refilledAt, next))
+            {
+                return;
+            }
+        }
+    }
+}
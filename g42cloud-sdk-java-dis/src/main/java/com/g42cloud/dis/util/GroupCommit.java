@@ -0,0 +1,275 @@
+/*
+ * Copyright 2002-2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.g42cloud.dis.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import com.g42cloud.dis.core.util.StringUtils;
+import com.g42cloud.dis.exception.DISClientException;
+import com.g42cloud.dis.iface.data.request.PutRecordsRequest;
+import com.g42cloud.dis.iface.data.request.PutRecordsRequestEntry;
+import com.g42cloud.dis.iface.data.response.PutRecordsResult;
+import com.g42cloud.dis.iface.data.response.PutRecordsResultEntry;
+
+/**
+ * Merges the concurrent synchronous put calls of a stream into one request ({@code group.commit.enabled}).
+ * <p>
+ * The first caller of a stream opens a group and leads it: it waits up to the linger time for other callers to join,
+ * or until the group reaches the record count or size limit, then sends the merged request on its own thread and hands
+ * each member its slice of the result. The other callers just wait for their slice, so there is no background thread
+ * and a caller that finds no one to merge with only pays the linger time.
+ */
+public class GroupCommit
+{
+    private final long lingerNanos;
+
+    private final int maxRecords;
+
+    private final long maxBytes;
+
+    private final Function<PutRecordsRequest, PutRecordsResult> sender;
+
+    // 通道 -> 正在接受调用加入的组
+    private final ConcurrentMap<String, Group> openGroups = new ConcurrentHashMap<>();
+
+    /**
+     * @param lingerMs 等待其他调用加入的最长时间(ms)
+     * @param maxRecords 合并请求的最大记录数
+     * @param maxBytes 合并请求的最大字节数
+     * @param sender 发送合并后的请求
+     */
+    public GroupCommit(long lingerMs, int maxRecords, long maxBytes, Function<PutRecordsRequest, PutRecordsResult> sender)
+    {
+        this.lingerNanos = TimeUnit.MILLISECONDS.toNanos(lingerMs);
+        this.maxRecords = maxRecords;
+        this.maxBytes = maxBytes;
+        this.sender = sender;
+    }
+
+    /**
+     * Send the records together with the records of the concurrent calls of the same stream.
+     *
+     * @param putRecordsParam the records
+     * @return the result of the records, in the order of the records
+     */
+    public PutRecordsResult putRecords(PutRecordsRequest putRecordsParam)
+    {
+        String stream = putRecordsParam.getStreamName() + "/" + putRecordsParam.getStreamId();
+        long size = RequestSizeCeiling.sizeOf(putRecordsParam.getRecords());
+        while (true)
+        {
+            Group group = openGroups.computeIfAbsent(stream, key -> new Group());
+            Member member = group.join(putRecordsParam, size);
+            if (member == null)
+            {
+                // 组已满或已发送，开启新的组
+                openGroups.remove(stream, group);
+                continue;
+            }
+            if (member.leader)
+            {
+                group.awaitMembers();
+                openGroups.remove(stream, group);
+                group.commit();
+            }
+            try
+            {
+                return member.result.join();
+            }
+            catch (CompletionException e)
+            {
+                if (e.getCause() instanceof RuntimeException)
+                {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw new DISClientException(e.getCause());
+            }
+        }
+    }
+
+    private final class Group
+    {
+        private final List<Member> members = new ArrayList<>();
+
+        private final long deadline = System.nanoTime() + lingerNanos;
+
+        private int records;
+
+        private long bytes;
+
+        private boolean closed;
+
+        synchronized Member join(PutRecordsRequest putRecordsParam, long size)
+        {
+            int count = putRecordsParam.getRecords().size();
+            if (closed)
+            {
+                return null;
+            }
+            if (!members.isEmpty() && (records + count > maxRecords || bytes + size > maxBytes))
+            {
+                close();
+                return null;
+            }
+            Member member = new Member(putRecordsParam, members.isEmpty());
+            members.add(member);
+            records += count;
+            bytes += size;
+            if (records >= maxRecords || bytes >= maxBytes)
+            {
+                close();
+            }
+            return member;
+        }
+
+        synchronized void awaitMembers()
+        {
+            long remaining;
+            while (!closed && (remaining = deadline - System.nanoTime()) > 0)
+            {
+                try
+                {
+                    TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            closed = true;
+        }
+
+        private void close()
+        {
+            closed = true;
+            notifyAll();
+        }
+
+        void commit()
+        {
+            // 组已关闭，成员列表不再变化
+            if (members.size() == 1)
+            {
+                Member member = members.get(0);
+                try
+                {
+                    member.result.complete(sender.apply(member.request));
+                }
+                catch (RuntimeException e)
+                {
+                    member.result.completeExceptionally(e);
+                }
+                catch (Throwable e)
+                {
+                    member.result.completeExceptionally(e);
+                    throw e;
+                }
+                return;
+            }
+
+            PutRecordsRequest first = members.get(0).request;
+            PutRecordsRequest merged = new PutRecordsRequest();
+            merged.setStreamName(first.getStreamName());
+            merged.setStreamId(first.getStreamId());
+            List<PutRecordsRequestEntry> entries = new ArrayList<>(records);
+            for (Member member : members)
+            {
+                entries.addAll(member.request.getRecords());
+            }
+            merged.setRecords(entries);
+
+            PutRecordsResult result;
+            try
+            {
+                result = sender.apply(merged);
+                if (result.getRecords() == null || result.getRecords().size() != entries.size())
+                {
+                    throw new DISClientException("Unexpected result count "
+                        + (result.getRecords() == null ? 0 : result.getRecords().size()) + ", expected "
+                        + entries.size());
+                }
+            }
+            catch (RuntimeException e)
+            {
+                failMembers(e);
+                return;
+            }
+            catch (Throwable e)
+            {
+                // 其他成员仍在等待结果，先让它们失败再抛出
+                failMembers(e);
+                throw e;
+            }
+
+            int offset = 0;
+            for (Member member : members)
+            {
+                int count = member.request.getRecords().size();
+                member.result.complete(slice(result.getRecords().subList(offset, offset + count)));
+                offset += count;
+            }
+        }
+
+        private void failMembers(Throwable e)
+        {
+            for (Member member : members)
+            {
+                member.result.completeExceptionally(e);
+            }
+        }
+    }
+
+    private static PutRecordsResult slice(List<PutRecordsResultEntry> entries)
+    {
+        int failed = 0;
+        for (PutRecordsResultEntry entry : entries)
+        {
+            if (!StringUtils.isNullOrEmpty(entry.getErrorCode()))
+            {
+                failed++;
+            }
+        }
+        PutRecordsResult result = new PutRecordsResult();
+        result.setFailedRecordCount(new AtomicInteger(failed));
+        result.setRecords(new ArrayList<>(entries));
+        return result;
+    }
+
+    private static final class Member
+    {
+        private final PutRecordsRequest request;
+
+        private final boolean leader;
+
+        private final CompletableFuture<PutRecordsResult> result = new CompletableFuture<>();
+
+        Member(PutRecordsRequest request, boolean leader)
+        {
+            this.request = request;
+            this.leader = leader;
+        }
+    }
+}
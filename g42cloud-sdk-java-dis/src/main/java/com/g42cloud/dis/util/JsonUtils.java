@@ -17,6 +17,11 @@
 package com.g42cloud.dis.util;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -105,6 +110,41 @@ public class JsonUtils
         return null;
     }
 
+    /**
+     * 从输入流中直接解析json为java对象，不生成中间字符串
+     *
+     * @param <T>
+     *            转换为的java对象
+     * @param in
+     *            json输入流
+     * @param charset
+     *            json的字符集
+     * @param valueType
+     *            Java对象类型
+     * @return 返回Java对象，json格式错误时返回null
+     * @throws IOException
+     *             读取输入流失败
+     */
+    public static <T> T readJson(InputStream in, Charset charset, Class<T> valueType) throws IOException
+    {
+        mapper.setPropertyNamingStrategy(new DefaultPropertyNameingStrategy());
+        try
+        {
+            // UTF-8由Jackson直接按字节解析，其他字符集先解码
+            if (StandardCharsets.UTF_8.equals(charset))
+            {
+                return mapper.readValue(in, valueType);
+            }
+            return mapper.readValue(new InputStreamReader(in, charset), valueType);
+        }
+        catch (JsonProcessingException e)
+        {
+            logger.error("Fail to read value of JSON. " + e);
+        }
+
+        return null;
+    }
+
     /**
      * json转换为java对象
      *
@@ -156,6 +196,22 @@ public class JsonUtils
         return null;
     }
 
+    /**
+     * java对象转换为json并写入输出流，不生成中间字符串
+     *
+     * @param object
+     *            Java对象
+     * @param out
+     *            输出流
+     * @throws IOException
+     *             写入失败
+     */
+    public static void writeJson(Object object, OutputStream out) throws IOException
+    {
+        mapper.setPropertyNamingStrategy(new DefaultPropertyNameingStrategy());
+        mapper.writeValue(out, object);
+    }
+
     /**
      * java对象转换为json字符串
      *
@@ -0,0 +1,341 @@
+/*
+ * Copyright 2002-2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.g42cloud.dis.util;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.g42cloud.dis.iface.data.request.PutRecordsRequestEntry;
+import com.g42cloud.dis.iface.data.response.GetRecordsResult;
+import com.g42cloud.dis.iface.data.response.Record;
+
+/**
+ * The framing format of an aggregated record: many user records packed into the data of one DIS record.
+ * <p>
+ * Layout: magic (4 bytes), version (1 byte), flags (1 byte), body, CRC32 of the body as stored (4 bytes). The body is
+ * the count of user records followed by each user record as partition key, optional timestamp and data, all lengths
+ * being varints; it is compressed with snappy when the flags say so. Data which does not start with the magic or does
+ * not match its checksum is not an aggregated record, so aggregated and plain records can be read from one stream.
+ */
+public final class RecordAggregation
+{
+    private static final Logger LOG = LoggerFactory.getLogger(RecordAggregation.class);
+
+    private static final byte[] MAGIC = {(byte) 0xF3, 'D', 'A', 'G'};
+
+    private static final byte VERSION = 1;
+
+    private static final byte FLAG_SNAPPY = 1;
+
+    /**
+     * 聚合记录的头部与校验和的字节数
+     */
+    public static final int OVERHEAD = MAGIC.length + 2 + 4;
+
+    private RecordAggregation()
+    {
+    }
+
+    /**
+     * @param record 用户记录
+     * @return 用户记录在聚合记录中占用的字节数(未压缩)
+     */
+    public static int encodedSize(PutRecordsRequestEntry record)
+    {
+        String key = record.getPartitionKey();
+        int keyLength = key == null ? 0 : utf8Length(key);
+        int dataLength = record.getData() == null ? 0 : record.getData().remaining();
+        // 分区键长度+1(0表示为空)、分区键、时间戳标志、时间戳、数据长度、数据
+        return varintSize(key == null ? 0 : keyLength + 1) + keyLength + 1 + (record.getTimestamp() == null ? 0 : 8)
+            + varintSize(dataLength) + dataLength;
+    }
+
+    /**
+     * @param count 用户记录数
+     * @return 聚合记录中记录数占用的字节数
+     */
+    public static int countSize(int count)
+    {
+        return varintSize(count);
+    }
+
+    /**
+     * Pack the user records into the data of one record.
+     *
+     * @param records the user records
+     * @param compress whether to compress the body with snappy, it is kept uncompressed if that is not smaller
+     * @return the data of the aggregated record
+     */
+    public static ByteBuffer aggregate(List<PutRecordsRequestEntry> records, boolean compress)
+    {
+        int bodySize = countSize(records.size());
+        for (PutRecordsRequestEntry record : records)
+        {
+            bodySize += encodedSize(record);
+        }
+        ByteBuffer body = ByteBuffer.allocate(bodySize);
+        writeVarint(body, records.size());
+        for (PutRecordsRequestEntry record : records)
+        {
+            String key = record.getPartitionKey();
+            if (key == null)
+            {
+                writeVarint(body, 0);
+            }
+            else
+            {
+                byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+                writeVarint(body, keyBytes.length + 1);
+                body.put(keyBytes);
+            }
+            if (record.getTimestamp() == null)
+            {
+                body.put((byte) 0);
+            }
+            else
+            {
+                body.put((byte) 1);
+                body.putLong(record.getTimestamp());
+            }
+            ByteBuffer data = record.getData() == null ? ByteBuffer.allocate(0) : record.getData().duplicate();
+            writeVarint(body, data.remaining());
+            body.put(data);
+        }
+
+        byte[] stored = body.array();
+        byte flags = 0;
+        if (compress)
+        {
+            try
+            {
+                byte[] compressed = SnappyUtils.compress(stored);
+                if (compressed.length < stored.length)
+                {
+                    stored = compressed;
+                    flags = FLAG_SNAPPY;
+                }
+            }
+            catch (IOException e)
+            {
+                LOG.warn("Failed to compress aggregated records, send them uncompressed: {}", e.getMessage());
+            }
+        }
+
+        ByteBuffer aggregated = ByteBuffer.allocate(OVERHEAD + stored.length);
+        aggregated.put(MAGIC).put(VERSION).put(flags).put(stored).putInt((int) crc32(stored, 0, stored.length));
+        aggregated.flip();
+        return aggregated;
+    }
+
+    /**
+     * @param data 记录的数据
+     * @return 是否为聚合记录
+     */
+    public static boolean isAggregated(ByteBuffer data)
+    {
+        if (data == null || data.remaining() < OVERHEAD)
+        {
+            return false;
+        }
+        int position = data.position();
+        for (int i = 0; i < MAGIC.length; i++)
+        {
+            if (data.get(position + i) != MAGIC[i])
+            {
+                return false;
+            }
+        }
+        return data.get(position + MAGIC.length) == VERSION;
+    }
+
+    /**
+     * Expand the records read from a stream into the user records, see {@link #deaggregate(Record)}.
+     *
+     * @param getRecordsResult the records read
+     * @return the user records, in order
+     */
+    public static List<UserRecord> deaggregate(GetRecordsResult getRecordsResult)
+    {
+        if (getRecordsResult.getRecords() == null)
+        {
+            return Collections.emptyList();
+        }
+        List<UserRecord> userRecords = new ArrayList<>(getRecordsResult.getRecords().size());
+        for (Record record : getRecordsResult.getRecords())
+        {
+            userRecords.addAll(deaggregate(record));
+        }
+        return userRecords;
+    }
+
+    /**
+     * Expand one record into its user records. The user records of an aggregated record share its sequence number and
+     * are numbered by their sub sequence number; a record which is not aggregated is returned as the only user record.
+     *
+     * @param record the record read
+     * @return the user records, in order
+     */
+    public static List<UserRecord> deaggregate(Record record)
+    {
+        ByteBuffer data = record.getData();
+        if (isAggregated(data))
+        {
+            try
+            {
+                return unpack(record, data.duplicate());
+            }
+            catch (IOException | RuntimeException e)
+            {
+                LOG.warn("Record {} looks aggregated but cannot be read, return it as it is: {}",
+                    record.getSequenceNumber(), e.getMessage());
+            }
+        }
+        return Collections.singletonList(new UserRecord(record, record.getPartitionKey(), record.getTimestamp(), data,
+            0, false));
+    }
+
+    private static List<UserRecord> unpack(Record record, ByteBuffer data)
+        throws IOException
+    {
+        int start = data.position() + MAGIC.length + 2;
+        int end = data.limit() - 4;
+        byte flags = data.get(data.position() + MAGIC.length + 1);
+        byte[] stored = new byte[end - start];
+        data.position(start);
+        data.get(stored);
+        if ((int) crc32(stored, 0, stored.length) != data.getInt(end))
+        {
+            throw new IOException("Checksum mismatch");
+        }
+
+        ByteBuffer body = ByteBuffer.wrap((flags & FLAG_SNAPPY) != 0 ? SnappyUtils.uncompress(stored) : stored);
+        try
+        {
+            int count = readVarint(body);
+            if (count > body.remaining())
+            {
+                throw new IOException("Invalid record count " + count);
+            }
+            List<UserRecord> userRecords = new ArrayList<>(count);
+            for (int i = 0; i < count; i++)
+            {
+                int keyLength = readVarint(body);
+                String key = null;
+                if (keyLength > 0)
+                {
+                    key = new String(body.array(), body.position(), keyLength - 1, StandardCharsets.UTF_8);
+                    body.position(body.position() + keyLength - 1);
+                }
+                Long timestamp = body.get() == 0 ? null : body.getLong();
+                int dataLength = readVarint(body);
+                ByteBuffer userData = ByteBuffer.wrap(body.array(), body.position(), dataLength).slice();
+                body.position(body.position() + dataLength);
+                userRecords.add(new UserRecord(record, key, timestamp, userData, i, true));
+            }
+            return userRecords;
+        }
+        catch (BufferUnderflowException | IllegalArgumentException | IndexOutOfBoundsException e)
+        {
+            throw new IOException("Truncated aggregated record", e);
+        }
+    }
+
+    private static long crc32(byte[] bytes, int offset, int length)
+    {
+        CRC32 crc = new CRC32();
+        crc.update(bytes, offset, length);
+        return crc.getValue();
+    }
+
+    private static int utf8Length(String s)
+    {
+        int length = 0;
+        for (int i = 0; i < s.length(); i++)
+        {
+            char c = s.charAt(i);
+            if (c < 0x80)
+            {
+                length++;
+            }
+            else if (c < 0x800)
+            {
+                length += 2;
+            }
+            else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1)))
+            {
+                length += 4;
+                i++;
+            }
+            else
+            {
+                // 单独的代理字符编码为'?'
+                length += Character.isSurrogate(c) ? 1 : 3;
+            }
+        }
+        return length;
+    }
+
+    private static int varintSize(int value)
+    {
+        int size = 1;
+        while ((value & ~0x7F) != 0)
+        {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    private static void writeVarint(ByteBuffer buffer, int value)
+    {
+        while ((value & ~0x7F) != 0)
+        {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    private static int readVarint(ByteBuffer buffer)
+        throws IOException
+    {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7)
+        {
+            byte b = buffer.get();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+            {
+                if (value < 0)
+                {
+                    throw new IOException("Negative length " + value);
+                }
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+}
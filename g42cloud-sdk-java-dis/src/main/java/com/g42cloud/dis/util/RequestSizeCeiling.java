@@ -0,0 +1,201 @@
+/*
+ * Copyright 2002-2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.g42cloud.dis.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.g42cloud.dis.Constants;
+import com.g42cloud.dis.iface.data.request.PutRecordsRequest;
+import com.g42cloud.dis.iface.data.request.PutRecordsRequestEntry;
+import com.g42cloud.dis.iface.data.response.PutRecordsResult;
+import com.g42cloud.dis.iface.data.response.PutRecordsResultEntry;
+
+/**
+ * The request size each stream has been learned to accept, from the requests the server rejected as too large
+ * ({@link Constants#HTTP_CODE_REQUEST_ENTITY_TOO_LARGE}).
+ * <p>
+ * Only the smallest rejected size of each stream is kept: a request at least that large is known to be rejected and
+ * is split before it is sent, a smaller one is sent as it is and lowers the ceiling again if it is rejected too.
+ */
+public class RequestSizeCeiling
+{
+    // 通道名(或通道ID) -> 被拒绝过的最小请求大小
+    private final ConcurrentMap<String, Long> rejectedSizes = new ConcurrentHashMap<>();
+
+    /**
+     * @param putRecordsParam 待发送的请求
+     * @return 请求是否不小于该通道被拒绝过的请求大小，需拆分后发送
+     */
+    public boolean exceeds(PutRecordsRequest putRecordsParam)
+    {
+        if (putRecordsParam.getRecords() == null || putRecordsParam.getRecords().size() < 2)
+        {
+            return false;
+        }
+        Long rejected = rejectedSizes.get(streamOf(putRecordsParam));
+        return rejected != null && sizeOf(putRecordsParam.getRecords()) >= rejected;
+    }
+
+    /**
+     * 记录被服务端以413拒绝的请求
+     *
+     * @param putRecordsParam 被拒绝的请求
+     */
+    public void onRejected(PutRecordsRequest putRecordsParam)
+    {
+        long size = sizeOf(putRecordsParam.getRecords());
+        String stream = streamOf(putRecordsParam);
+        Long rejected = rejectedSizes.get(stream);
+        while (rejected == null || size < rejected)
+        {
+            if (rejected == null ? rejectedSizes.putIfAbsent(stream, size) == null
+                : rejectedSizes.replace(stream, rejected, size))
+            {
+                return;
+            }
+            rejected = rejectedSizes.get(stream);
+        }
+    }
+
+    /**
+     * @param streamName 通道名称
+     * @param streamId 通道ID，通道名称为空时使用
+     * @return 可以发送的最大请求大小，未知时返回{@link Long#MAX_VALUE}
+     */
+    public long getCeiling(String streamName, String streamId)
+    {
+        Long rejected = rejectedSizes.get(streamOf(streamName, streamId));
+        return rejected == null ? Long.MAX_VALUE : rejected - 1;
+    }
+
+    /**
+     * @param records 请求中的记录
+     * @return 记录的数据与分区键的总字节数
+     */
+    public static long sizeOf(List<PutRecordsRequestEntry> records)
+    {
+        long size = 0;
+        if (records != null)
+        {
+            for (PutRecordsRequestEntry record : records)
+            {
+                size += sizeOf(record);
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Split the request into two requests of about half the size each, the order of the records is kept.
+     *
+     * @param putRecordsParam the request of at least two records
+     * @return the two halves
+     */
+    public static List<PutRecordsRequest> split(PutRecordsRequest putRecordsParam)
+    {
+        List<PutRecordsRequestEntry> records = putRecordsParam.getRecords();
+        if (records.size() < 2)
+        {
+            throw new IllegalArgumentException("Cannot split a request of " + records.size() + " record(s).");
+        }
+        long half = sizeOf(records) / 2;
+        long size = 0;
+        int index = 0;
+        while (index < records.size() - 1 && size + sizeOf(records.get(index)) <= half)
+        {
+            size += sizeOf(records.get(index++));
+        }
+        index = Math.max(index, 1);
+
+        List<PutRecordsRequest> halves = new ArrayList<>(2);
+        halves.add(newRequest(putRecordsParam, new ArrayList<>(records.subList(0, index))));
+        halves.add(newRequest(putRecordsParam, new ArrayList<>(records.subList(index, records.size()))));
+        return halves;
+    }
+
+    /**
+     * Merge the results of the split requests back into the result of the original request.
+     *
+     * @param requests the split requests, in order
+     * @param results the result of each split request, {@code null} if it failed with the matching exception
+     * @param exceptions the exception of each failed split request
+     * @return the merged result, the records of a failed request are marked with
+     *         {@link Constants#ERROR_CODE_SDK_SEND_FAILED}
+     */
+    public static PutRecordsResult merge(List<PutRecordsRequest> requests, List<PutRecordsResult> results,
+        List<? extends Throwable> exceptions)
+    {
+        List<PutRecordsResultEntry> entries = new ArrayList<>();
+        int failedCount = 0;
+        for (int i = 0; i < requests.size(); i++)
+        {
+            PutRecordsResult result = results.get(i);
+            if (result != null)
+            {
+                entries.addAll(result.getRecords());
+                failedCount += result.getFailedRecordCount().get();
+                continue;
+            }
+            for (int n = 0; n < requests.get(i).getRecords().size(); n++)
+            {
+                PutRecordsResultEntry entry = new PutRecordsResultEntry();
+                entry.setErrorCode(Constants.ERROR_CODE_SDK_SEND_FAILED);
+                entry.setErrorMessage(exceptions.get(i).getMessage());
+                entries.add(entry);
+                failedCount++;
+            }
+        }
+        PutRecordsResult merged = new PutRecordsResult();
+        merged.setFailedRecordCount(new AtomicInteger(failedCount));
+        merged.setRecords(entries);
+        return merged;
+    }
+
+    private static long sizeOf(PutRecordsRequestEntry record)
+    {
+        long size = record.getData() == null ? 0 : record.getData().remaining();
+        if (record.getPartitionKey() != null)
+        {
+            size += record.getPartitionKey().length();
+        }
+        return size;
+    }
+
+    private static String streamOf(PutRecordsRequest putRecordsParam)
+    {
+        return streamOf(putRecordsParam.getStreamName(), putRecordsParam.getStreamId());
+    }
+
+    private static String streamOf(String streamName, String streamId)
+    {
+        return streamName != null ? streamName : String.valueOf(streamId);
+    }
+
+    private static PutRecordsRequest newRequest(PutRecordsRequest putRecordsParam,
+        List<PutRecordsRequestEntry> records)
+    {
+        PutRecordsRequest request = new PutRecordsRequest();
+        request.setStreamName(putRecordsParam.getStreamName());
+        request.setStreamId(putRecordsParam.getStreamId());
+        request.setRecords(records);
+        return request;
+    }
+}
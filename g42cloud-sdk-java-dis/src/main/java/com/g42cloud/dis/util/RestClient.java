@@ -52,6 +52,7 @@ import org.slf4j.LoggerFactory;
 
 import javax.net.ssl.SSLContext;
 
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
@@ -72,7 +73,7 @@ import java.util.Map.Entry;
  *
  * @since 1.3.0
  */
-public class RestClient
+public class RestClient implements Closeable
 {
     
     private final Logger logger = LoggerFactory.getLogger(RestClient.class);
@@ -81,9 +82,10 @@ public class RestClient
     
     private ResponseErrorHandler errorHandler = new DefaultResponseErrorHandler();
     
-    private static RestClient restClient;
+    // 传输配置相同的DIS客户端共享同一个HTTP客户端及其连接池
+    private static final SharedClients<RestClient> SHARED_CLIENTS = new SharedClients<>(RestClient::newInstance);
     
-    private static CloseableHttpClient httpClient;
+    private CloseableHttpClient httpClient;
     
     private DISConfig disConfig;
     
@@ -102,17 +104,49 @@ public class RestClient
         httpClient = getHttpClient();
     }
     
-    public synchronized static RestClient getInstance(DISConfig disConfig)
+    private static RestClient newInstance(DISConfig disConfig)
     {
-        if (restClient == null)
-        {
-            restClient = new RestClient(disConfig);
-            restClient.init();
-        }
-        
+        RestClient restClient = new RestClient(disConfig);
+        restClient.init();
         return restClient;
     }
     
+    /**
+     * @param disConfig DIS客户端参数
+     * @return 与该配置的传输参数相同的共享客户端，不会被关闭
+     */
+    public static RestClient getInstance(DISConfig disConfig)
+    {
+        return SHARED_CLIENTS.get(disConfig);
+    }
+    
+    /**
+     * @param disConfig DIS客户端参数
+     * @return 与该配置的传输参数相同的共享客户端，使用完后需调用{@link #release(DISConfig, RestClient)}
+     */
+    public static RestClient acquire(DISConfig disConfig)
+    {
+        return SHARED_CLIENTS.acquire(disConfig);
+    }
+    
+    /**
+     * 释放{@link #acquire(DISConfig)}获取的客户端，最后一个引用释放时关闭连接池
+     * 
+     * @param disConfig 获取客户端时的参数
+     * @param restClient 客户端
+     */
+    public static void release(DISConfig disConfig, RestClient restClient)
+    {
+        SHARED_CLIENTS.release(disConfig, restClient);
+    }
+    
+    @Override
+    public void close()
+        throws IOException
+    {
+        httpClient.close();
+    }
+    
     /**
      * Set the message body converters to use.
      * <p>
@@ -299,6 +333,7 @@ public class RestClient
                         resultFlag);
             }
 
+            ContentDecoder.decode(response);
             handleResponse(response);
 
             if (responseExtractor != null)
@@ -387,7 +422,11 @@ public class RestClient
     {
         
         // TODO 使用 HttpMessageConverter 来实现
-        if (data instanceof byte[])
+        if (data instanceof RequestBody)
+        {
+            return ((RequestBody) data).toEntity();
+        }
+        else if (data instanceof byte[])
         {
             return new ByteArrayEntity((byte[])data);
         }
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2002-2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.g42cloud.dis.util;
+
+import java.util.function.LongSupplier;
+
+/**
+ * Cap on the retries of asynchronous requests, so that retries cannot multiply the load on the service when most
+ * requests fail.
+ * <p>
+ * The retries allowed in each second are {@code minPerSecond} plus {@code ratio} times the successful requests of the
+ * previous (or, once larger, the current) second. A retry refused by the budget fails like a retry that has run out of
+ * attempts.
+ */
+public final class RetryBudget
+{
+    private final double ratio;
+
+    private final int minPerSecond;
+
+    private final LongSupplier clock;
+
+    private long second = -1;
+
+    private long previousSuccesses;
+
+    private long successes;
+
+    private long retries;
+
+    /**
+     * @param ratio the retries per second as a fraction of the successful requests
+     * @param minPerSecond the retries per second allowed whatever the successful requests
+     */
+    public RetryBudget(double ratio, int minPerSecond)
+    {
+        this(ratio, minPerSecond, System::currentTimeMillis);
+    }
+
+    RetryBudget(double ratio, int minPerSecond, LongSupplier clock)
+    {
+        this.ratio = ratio;
+        this.minPerSecond = minPerSecond;
+        this.clock = clock;
+    }
+
+    /**
+     * Record a successful request.
+     */
+    public synchronized void onSuccess()
+    {
+        roll();
+        successes++;
+    }
+
+    /**
+     * @return whether a retry may be sent now, the retry is then counted against the budget
+     */
+    public synchronized boolean tryAcquire()
+    {
+        roll();
+        if (retries < minPerSecond + ratio * Math.max(previousSuccesses, successes))
+        {
+            retries++;
+            return true;
+        }
+        return false;
+    }
+
+    private void roll()
+    {
+        long now = clock.getAsLong() / 1000;
+        if (now != second)
+        {
+            // 只有相邻的上一秒的成功数计入预算
+            previousSuccesses = now == second + 1 ? successes : 0;
+            successes = 0;
+            retries = 0;
+            second = now;
+        }
+    }
+}
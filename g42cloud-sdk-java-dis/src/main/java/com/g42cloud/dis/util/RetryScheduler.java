@@ -0,0 +1,157 @@
+/*
+ * Copyright 2002-2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.g42cloud.dis.util;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Delays the retries of asynchronous requests with full jitter exponential backoff.
+ * <p>
+ * A retry is submitted by a single shared daemon thread once its delay has passed, so the callback thread that saw the
+ * failure is never blocked. The submission only hands the request to the asynchronous HTTP client.
+ */
+public final class RetryScheduler
+{
+    // 与同步请求的退避保持一致
+    private static final long INITIAL_INTERVAL_MS = 250L;
+
+    private static final ScheduledThreadPoolExecutor SCHEDULER = newScheduler();
+
+    private RetryScheduler()
+    {
+    }
+
+    /**
+     * @param retryIndex the index of the retry, starting from 0
+     * @param maxIntervalMs the maximum delay
+     * @return a random delay between 0 and the exponential backoff of the retry
+     */
+    public static long nextDelayMs(int retryIndex, long maxIntervalMs)
+    {
+        long interval = INITIAL_INTERVAL_MS << Math.min(Math.max(retryIndex, 0), 20);
+        long bound = Math.max(Math.min(interval, maxIntervalMs), 0);
+        return ThreadLocalRandom.current().nextLong(bound + 1);
+    }
+
+    /**
+     * Submit a retry after a delay.
+     *
+     * @param submit sends the retry and returns its future
+     * @param delayMs the delay
+     * @param <T> the type of the result
+     * @return the future of the retry, waiting for the delay and then for the future returned by {@code submit}
+     */
+    public static <T> Future<T> schedule(Callable<Future<T>> submit, long delayMs)
+    {
+        return new DelayedFuture<>(SCHEDULER.schedule(submit, delayMs, TimeUnit.MILLISECONDS));
+    }
+
+    private static ScheduledThreadPoolExecutor newScheduler()
+    {
+        ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread thread = new Thread(r, "dis-retry-scheduler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.setRemoveOnCancelPolicy(true);
+        return scheduler;
+    }
+
+    private static final class DelayedFuture<T> implements Future<T>
+    {
+        private final ScheduledFuture<Future<T>> scheduled;
+
+        DelayedFuture(ScheduledFuture<Future<T>> scheduled)
+        {
+            this.scheduled = scheduled;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning)
+        {
+            if (scheduled.cancel(false))
+            {
+                return true;
+            }
+            Future<T> submitted = submitted();
+            return submitted != null && submitted.cancel(mayInterruptIfRunning);
+        }
+
+        @Override
+        public boolean isCancelled()
+        {
+            Future<T> submitted = submitted();
+            return scheduled.isCancelled() || (submitted != null && submitted.isCancelled());
+        }
+
+        @Override
+        public boolean isDone()
+        {
+            if (!scheduled.isDone())
+            {
+                return false;
+            }
+            Future<T> submitted = submitted();
+            return submitted == null || submitted.isDone();
+        }
+
+        @Override
+        public T get()
+            throws InterruptedException, ExecutionException
+        {
+            return scheduled.get().get();
+        }
+
+        @Override
+        public T get(long timeout, TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException
+        {
+            long deadline = System.nanoTime() + unit.toNanos(timeout);
+            Future<T> submitted = scheduled.get(timeout, unit);
+            return submitted.get(Math.max(deadline - System.nanoTime(), 0), TimeUnit.NANOSECONDS);
+        }
+
+        private Future<T> submitted()
+        {
+            if (!scheduled.isDone() || scheduled.isCancelled())
+            {
+                return null;
+            }
+            try
+            {
+                return scheduled.get();
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+            catch (ExecutionException e)
+            {
+                return null;
+            }
+        }
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright 2002-2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.g42cloud.dis.util;
+
+import java.nio.ByteBuffer;
+
+import com.g42cloud.dis.iface.data.response.Record;
+
+/**
+ * A user record expanded from a record read from a stream, see {@link RecordAggregation#deaggregate(Record)}.
+ */
+public class UserRecord extends Record
+{
+    private final long subSequenceNumber;
+
+    private final boolean aggregated;
+
+    UserRecord(Record record, String partitionKey, Long timestamp, ByteBuffer data, long subSequenceNumber,
+        boolean aggregated)
+    {
+        this.partitionKey = partitionKey;
+        this.sequenceNumber = record.getSequenceNumber();
+        this.data = data;
+        this.approximateArrivalTimestamp = record.getApproximateArrivalTimestamp();
+        this.timestamp = timestamp != null ? timestamp : record.getTimestamp();
+        this.timestampType = record.getTimestampType();
+        this.subSequenceNumber = subSequenceNumber;
+        this.aggregated = aggregated;
+    }
+
+    /**
+     * @return 在所属聚合记录中的序号，与序列号一起唯一标识用户记录；未聚合的记录为0
+     */
+    public long getSubSequenceNumber()
+    {
+        return subSequenceNumber;
+    }
+
+    /**
+     * @return 是否从聚合记录中展开
+     */
+    public boolean isAggregated()
+    {
+        return aggregated;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "UserRecord [partitionKey=" + partitionKey + ", sequenceNumber=" + sequenceNumber
+            + ", subSequenceNumber=" + subSequenceNumber + ", approximateArrivalTimestamp="
+            + approximateArrivalTimestamp + "]";
+    }
+}
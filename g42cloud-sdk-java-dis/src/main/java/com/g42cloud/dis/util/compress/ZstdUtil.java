@@ -12,4 +12,14 @@ public class ZstdUtil
     {
         return Zstd.compress(srcByte);
     }
+
+    /**
+     * @param compressorByte 压缩后的数据
+     * @param srcLength      压缩前的数据长度
+     * @return 解压后的数据
+     */
+    public static byte[] decompressByte(byte[] compressorByte, int srcLength)
+    {
+        return Zstd.decompress(compressorByte, srcLength);
+    }
 }
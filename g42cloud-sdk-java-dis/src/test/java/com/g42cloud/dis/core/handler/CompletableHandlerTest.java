@@ -0,0 +1,81 @@
+/*
+ * Copyright 2002-2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.g42cloud.dis.core.handler;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class CompletableHandlerTest
+{
+    @Test
+    public void testCompletedByCallback() throws Exception
+    {
+        CompletableFuture<String> success = CompletableHandler.<String> start(handler -> {
+            try
+            {
+                handler.onSuccess("ok");
+            }
+            catch (Exception e)
+            {
+                throw new IllegalStateException(e);
+            }
+            return null;
+        }).toCompletableFuture();
+        Assert.assertEquals("ok", success.getNow(null));
+
+        IllegalArgumentException error = new IllegalArgumentException("failed");
+        CompletableFuture<String> failure = CompletableHandler.<String> start(handler -> {
+            try
+            {
+                handler.onError(error);
+            }
+            catch (Exception e)
+            {
+                throw new IllegalStateException(e);
+            }
+            return null;
+        }).toCompletableFuture();
+        assertFailedWith(error, failure);
+    }
+
+    @Test
+    public void testFailedWhenOperationThrows()
+    {
+        IllegalStateException error = new IllegalStateException("rejected");
+        CompletableFuture<String> stage = CompletableHandler.<String> start(handler -> {
+            throw error;
+        }).toCompletableFuture();
+        assertFailedWith(error, stage);
+    }
+
+    private static void assertFailedWith(Exception expected, CompletableFuture<?> future)
+    {
+        Assert.assertTrue(future.isCompletedExceptionally());
+        try
+        {
+            future.join();
+            Assert.fail();
+        }
+        catch (CompletionException e)
+        {
+            Assert.assertSame(expected, e.getCause());
+        }
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright 2002-2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.g42cloud.dis.http;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.g42cloud.dis.Constants;
+import com.g42cloud.dis.DISConfig;
+import com.g42cloud.dis.http.exception.ResourceAccessException;
+import com.g42cloud.dis.iface.data.response.GetRecordsResult;
+import com.g42cloud.dis.util.JsonUtils;
+import com.g42cloud.dis.util.RestClient;
+import com.g42cloud.dis.util.SnappyUtils;
+import com.g42cloud.dis.util.compress.Lz4Util;
+import com.g42cloud.dis.util.compress.ZstdUtil;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+public class ContentDecoderTest
+{
+    private final DISConfig disConfig = new DISConfig();
+
+    private HttpServer server;
+
+    private byte[] json;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        GetRecordsResult result = new GetRecordsResult();
+        result.setNextPartitionCursor("cursor");
+        result.setRecords(Collections.emptyList());
+        json = JsonUtils.objToJson(result).getBytes(StandardCharsets.UTF_8);
+
+        // 按路径中的算法返回压缩后的响应
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", this::respond);
+        server.start();
+    }
+
+    @After
+    public void tearDown()
+    {
+        server.stop(0);
+    }
+
+    @Test
+    public void testSyncResponseDecoded()
+    {
+        RestClient restClient = RestClient.acquire(disConfig);
+        try
+        {
+            for (String encoding : new String[] {Constants.COMPRESS_LZ4, Constants.COMPRESS_SNAPPY,
+                Constants.COMPRESS_ZSTD})
+            {
+                GetRecordsResult result = restClient.get(url(encoding), GetRecordsResult.class, headers(encoding));
+                Assert.assertEquals(encoding, "cursor", result.getNextPartitionCursor());
+            }
+        }
+        finally
+        {
+            RestClient.release(disConfig, restClient);
+        }
+    }
+
+    @Test
+    public void testAsyncResponseDecoded() throws Exception
+    {
+        RestClientAsync restClient = RestClientAsync.acquire(disConfig);
+        try
+        {
+            GetRecordsResult result = restClient.getAsync(url(Constants.COMPRESS_ZSTD), GetRecordsResult.class,
+                headers(Constants.COMPRESS_ZSTD), null).get(10, TimeUnit.SECONDS);
+            Assert.assertEquals("cursor", result.getNextPartitionCursor());
+        }
+        finally
+        {
+            RestClientAsync.release(disConfig, restClient);
+        }
+    }
+
+    @Test(expected = ResourceAccessException.class)
+    public void testMissingOriginalLength()
+    {
+        RestClient restClient = RestClient.acquire(disConfig);
+        try
+        {
+            restClient.get(url(Constants.COMPRESS_LZ4) + "?noLength", GetRecordsResult.class,
+                headers(Constants.COMPRESS_LZ4));
+        }
+        finally
+        {
+            RestClient.release(disConfig, restClient);
+        }
+    }
+
+    private void respond(HttpExchange exchange) throws IOException
+    {
+        String encoding = exchange.getRequestURI().getPath().substring(1);
+        boolean withLength = exchange.getRequestURI().getQuery() == null;
+        byte[] body;
+        if (Constants.COMPRESS_LZ4.equals(encoding))
+        {
+            body = Lz4Util.compressByte(json);
+            if (withLength)
+            {
+                exchange.getResponseHeaders().add(Constants.COMPRESS_LZ4_CONTENT_LENGTH, String.valueOf(json.length));
+            }
+        }
+        else if (Constants.COMPRESS_ZSTD.equals(encoding))
+        {
+            body = ZstdUtil.compressByte(json);
+            exchange.getResponseHeaders().add(Constants.COMPRESS_ZSTD_CONTENT_LENGTH, String.valueOf(json.length));
+        }
+        else
+        {
+            body = SnappyUtils.compress(json);
+        }
+        Assert.assertEquals(encoding, exchange.getRequestHeaders().getFirst("Accept-Encoding"));
+
+        exchange.getResponseHeaders().add("Content-Type", "application/json; charset=utf-8");
+        exchange.getResponseHeaders().add("Content-Encoding", encoding);
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream out = exchange.getResponseBody())
+        {
+            out.write(body);
+        }
+    }
+
+    private String url(String encoding)
+    {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/" + encoding;
+    }
+
+    private static Map<String, String> headers(String encoding)
+    {
+        return Collections.singletonMap("Accept-Encoding", encoding);
+    }
+}
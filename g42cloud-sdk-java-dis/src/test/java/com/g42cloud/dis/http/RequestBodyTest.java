@@ -0,0 +1,69 @@
+/*
+ * Copyright 2002-2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.g42cloud.dis.http;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Collections;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.g42cloud.dis.core.internal.HashedInputStream;
+import com.g42cloud.dis.core.util.BinaryUtils;
+import com.g42cloud.dis.iface.data.request.PutRecordsRequest;
+import com.g42cloud.dis.iface.data.request.PutRecordsRequestEntry;
+import com.g42cloud.dis.util.JsonUtils;
+
+public class RequestBodyTest
+{
+    @Test
+    public void testJsonBodyHashedWhileWritten() throws Exception
+    {
+        PutRecordsRequestEntry entry = new PutRecordsRequestEntry();
+        entry.setPartitionKey("key");
+        entry.setData(ByteBuffer.wrap("data".getBytes(StandardCharsets.UTF_8)));
+        PutRecordsRequest request = new PutRecordsRequest();
+        request.setStreamName("stream");
+        request.setRecords(Collections.singletonList(entry));
+        byte[] expected = JsonUtils.objToJson(request).getBytes(StandardCharsets.UTF_8);
+
+        RequestBody body = RequestBody.json(request, true);
+        Assert.assertArrayEquals(expected, body.toByteArray());
+
+        HashedInputStream content = body.newInputStream();
+        Assert.assertEquals(BinaryUtils.toHex(MessageDigest.getInstance("SHA-256").digest(expected)),
+            content.getContentSha256());
+        Assert.assertEquals(expected.length, content.available());
+
+        ByteArrayOutputStream sent = new ByteArrayOutputStream();
+        body.toEntity().writeTo(sent);
+        Assert.assertArrayEquals(expected, sent.toByteArray());
+        body.release();
+    }
+
+    @Test
+    public void testWrappedBodyNotCopied()
+    {
+        byte[] content = "payload".getBytes(StandardCharsets.UTF_8);
+        RequestBody body = RequestBody.wrap(content);
+        Assert.assertEquals(content.length, body.toEntity().getContentLength());
+        Assert.assertEquals(content.length, body.newInputStream().available());
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2002-2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.g42cloud.dis.http;
+
+import java.io.Closeable;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.g42cloud.dis.DISConfig;
+
+public class SharedClientsTest
+{
+    @Test
+    public void testClientsKeyedByTransportSettings()
+    {
+        SharedClients<FakeClient> clients = new SharedClients<>(FakeClient::new);
+        DISConfig small = config("10");
+        DISConfig large = config("100");
+
+        FakeClient first = clients.acquire(small);
+        FakeClient second = clients.acquire(config("10"));
+        FakeClient other = clients.acquire(large);
+        Assert.assertSame(first, second);
+        Assert.assertNotSame(first, other);
+        Assert.assertEquals(2, clients.size());
+
+        // 最后一个引用释放时才关闭
+        clients.release(small, first);
+        Assert.assertFalse(first.closed);
+        clients.release(small, second);
+        Assert.assertTrue(first.closed);
+        Assert.assertFalse(other.closed);
+        Assert.assertEquals(1, clients.size());
+
+        Assert.assertNotSame(first, clients.acquire(small));
+    }
+
+    @Test
+    public void testPinnedClientNeverClosed()
+    {
+        SharedClients<FakeClient> clients = new SharedClients<>(FakeClient::new);
+        DISConfig disConfig = config("10");
+        FakeClient acquired = clients.acquire(disConfig);
+        FakeClient pinned = clients.get(disConfig);
+        Assert.assertSame(acquired, pinned);
+        Assert.assertSame(pinned, clients.get(disConfig));
+
+        clients.release(disConfig, acquired);
+        Assert.assertFalse(pinned.closed);
+        Assert.assertSame(pinned, clients.acquire(disConfig));
+    }
+
+    private static DISConfig config(String maxTotal)
+    {
+        DISConfig disConfig = new DISConfig();
+        disConfig.set(DISConfig.PROPERTY_MAX_TOTAL, maxTotal);
+        return disConfig;
+    }
+
+    private static final class FakeClient implements Closeable
+    {
+        private boolean closed;
+
+        FakeClient(DISConfig disConfig)
+        {
+        }
+
+        @Override
+        public void close()
+        {
+            closed = true;
+        }
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2002-2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.g42cloud.dis.http.converter;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.g42cloud.dis.http.converter.json.JsonHttpMessageConverter;
+import com.g42cloud.dis.http.converter.protobuf.ProtobufHttpMessageConverter;
+import com.g42cloud.dis.iface.api.protobuf.Message;
+import com.g42cloud.dis.iface.data.response.GetRecordsResult;
+import com.g42cloud.dis.iface.data.response.Record;
+import com.g42cloud.dis.util.JsonUtils;
+import com.google.protobuf.ByteString;
+
+public class StreamingConverterTest
+{
+    @Test
+    public void testJsonParsedFromStream() throws Exception
+    {
+        Record record = new Record();
+        record.setSequenceNumber("1");
+        record.setData(ByteBuffer.wrap("data".getBytes(StandardCharsets.UTF_8)));
+        GetRecordsResult result = new GetRecordsResult();
+        result.setNextPartitionCursor("cursor");
+        result.setRecords(Collections.singletonList(record));
+        byte[] json = JsonUtils.objToJson(result).getBytes(StandardCharsets.UTF_8);
+
+        GetRecordsResult parsed = (GetRecordsResult) new JsonHttpMessageConverter().read(GetRecordsResult.class,
+            new ByteArrayEntity(json, ContentType.APPLICATION_JSON));
+        Assert.assertEquals("cursor", parsed.getNextPartitionCursor());
+        Assert.assertEquals("1", parsed.getRecords().get(0).getSequenceNumber());
+        Assert.assertEquals(record.getData(), parsed.getRecords().get(0).getData());
+
+        Assert.assertEquals(new String(json, StandardCharsets.UTF_8), new JsonHttpMessageConverter().read(String.class,
+            new ByteArrayEntity(json, ContentType.APPLICATION_JSON)));
+    }
+
+    @Test
+    public void testProtobufParsedFromStream() throws Exception
+    {
+        Message.GetRecordsResult result = Message.GetRecordsResult.newBuilder()
+            .setNextShardIterator("cursor")
+            .addRecords(Message.Record.newBuilder().setSequenceNumber("1").setData(ByteString.copyFromUtf8("data")))
+            .build();
+
+        Object parsed = new ProtobufHttpMessageConverter().read(Message.GetRecordsResult.class,
+            new ByteArrayEntity(result.toByteArray(), ProtobufHttpMessageConverter.PROTOBUF));
+        Assert.assertEquals(result, parsed);
+    }
+}
@@ -0,0 +1,255 @@
+/*
+ * Copyright 2002-2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.g42cloud.dis.producer;
+
+import java.io.File;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.g42cloud.dis.DISAsync;
+import com.g42cloud.dis.DISConfig;
+import com.g42cloud.dis.core.handler.AsyncHandler;
+import com.g42cloud.dis.exception.DISClientException;
+import com.g42cloud.dis.iface.data.request.PutRecordsRequest;
+import com.g42cloud.dis.iface.data.request.PutRecordsRequestEntry;
+import com.g42cloud.dis.iface.data.response.PutRecordsResult;
+import com.g42cloud.dis.iface.data.response.PutRecordsResultEntry;
+import com.g42cloud.dis.iface.stream.request.DescribeStreamRequest;
+import com.g42cloud.dis.iface.stream.response.DescribeStreamResult;
+import com.g42cloud.dis.iface.stream.response.PartitionResult;
+import com.g42cloud.dis.producer.internals.ProducerJournal;
+
+public class DISProducerTest
+{
+    @Test
+    public void testSendByStreamIdOnly()
+        throws Exception
+    {
+        FakeClient client = new FakeClient();
+        DISProducer producer = new DISProducer(new DISConfig(), client.proxy());
+        try
+        {
+            // 只设置流ID时按流ID查询路由信息
+            PutRecordsResult result = producer.putRecordsAsync(newRequest(null, "stream-id", "key"), null)
+                .get(10, TimeUnit.SECONDS);
+            Assert.assertEquals(1, result.getRecords().size());
+            Assert.assertEquals(1, client.describeRequests.size());
+            Assert.assertNull(client.describeRequests.get(0).getStreamName());
+            Assert.assertEquals("stream-id", client.describeRequests.get(0).getStreamId());
+            Assert.assertEquals("stream-id", client.putRequests.get(0).getStreamId());
+
+            // 流名称和流ID都未设置时不查询路由信息，直接发送
+            producer.putRecordsAsync(newRequest(null, null, "key"), null).get(10, TimeUnit.SECONDS);
+            Assert.assertEquals(1, client.describeRequests.size());
+            Assert.assertEquals(2, client.putRequests.size());
+        }
+        finally
+        {
+            producer.close();
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void testUnexpectedResultCountFailsBatch()
+        throws Exception
+    {
+        FakeClient client = new FakeClient();
+        // 服务端少返回一条结果
+        client.missingResults = 1;
+        DISProducer producer = new DISProducer(new DISConfig(), client.proxy());
+        try
+        {
+            Future<PutRecordsResult> future = producer.putRecordsAsync(newRequest("stream", null, "key"), null);
+            try
+            {
+                future.get(10, TimeUnit.SECONDS);
+                Assert.fail();
+            }
+            catch (ExecutionException e)
+            {
+                Assert.assertTrue(e.getCause().getMessage().contains("Unexpected result count 0"));
+            }
+            // 批次已完成，flush不会一直等待
+            producer.flush();
+        }
+        finally
+        {
+            producer.close();
+        }
+    }
+
+    @Test
+    public void testRecoveryFailureInSegmentDoesNotSendAgain()
+        throws Exception
+    {
+        File dir = Files.createTempDirectory("dis-journal").toFile();
+        // 上次运行留下的一个分段：b所在的流查询路由信息失败，a已发送后c未发送
+        ProducerJournal previous = new ProducerJournal(dir, 1024 * 1024, -1);
+        previous.append(newRequest("stream", null, "a"));
+        previous.append(newRequest("bad-stream", null, "b"));
+        previous.append(newRequest("stream", null, "c"));
+        previous.close();
+
+        FakeClient client = new FakeClient();
+        client.failingStreams.add("bad-stream");
+        DISConfig config = new DISConfig();
+        config.set(DISConfig.PROPERTY_PRODUCER_JOURNAL_ENABLED, "true");
+        config.set(DISConfig.PROPERTY_PRODUCER_JOURNAL_DIR, dir.getAbsolutePath());
+        // 每个请求各占一个分段
+        config.set(DISConfig.PROPERTY_PRODUCER_JOURNAL_SEGMENT_BYTES, "1");
+        config.set(DISConfig.PROPERTY_ORDER_BY_PARTITION, "true");
+        DISProducer producer = new DISProducer(config, client.proxy());
+        try
+        {
+            producer.flush();
+            Assert.assertEquals(1, client.putRequests.size());
+            Assert.assertEquals("a", client.putRequests.get(0).getRecords().get(0).getPartitionKey());
+            Assert.assertTrue(producer.getJournal().getRecoveredSegments().isEmpty());
+        }
+        finally
+        {
+            producer.close();
+        }
+
+        // 下次启动只恢复未发送的b和c
+        ProducerJournal next = new ProducerJournal(dir, 1024 * 1024, -1);
+        List<String> keys = new ArrayList<>();
+        for (File segment : next.getRecoveredSegments())
+        {
+            for (PutRecordsRequest request : next.readRecovered(segment))
+            {
+                keys.add(request.getRecords().get(0).getPartitionKey());
+            }
+        }
+        next.close();
+        Assert.assertEquals(Arrays.asList("b", "c"), keys);
+    }
+
+    static PutRecordsRequest newRequest(String streamName, String streamId, String partitionKey)
+    {
+        PutRecordsRequestEntry entry = new PutRecordsRequestEntry();
+        entry.setData(ByteBuffer.wrap(new byte[10]));
+        entry.setPartitionKey(partitionKey);
+        PutRecordsRequest request = new PutRecordsRequest();
+        request.setStreamName(streamName);
+        request.setStreamId(streamId);
+        request.setRecords(new ArrayList<>(Collections.singletonList(entry)));
+        return request;
+    }
+
+    /**
+     * A client of a stream with two partitions, every record is written successfully.
+     */
+    static class FakeClient implements InvocationHandler
+    {
+        final List<DescribeStreamRequest> describeRequests = new CopyOnWriteArrayList<>();
+
+        final List<PutRecordsRequest> putRequests = new CopyOnWriteArrayList<>();
+
+        // 查询路由信息失败的流
+        final Set<String> failingStreams = new CopyOnWriteArraySet<>();
+
+        // 比发送的记录数少返回的结果数
+        volatile int missingResults;
+
+        DISAsync proxy()
+        {
+            return (DISAsync) Proxy.newProxyInstance(DISAsync.class.getClassLoader(), new Class<?>[] {DISAsync.class},
+                this);
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public Object invoke(Object proxy, Method method, Object[] args)
+            throws Throwable
+        {
+            if (method.getDeclaringClass() == Object.class)
+            {
+                return method.invoke(this, args);
+            }
+            switch (method.getName())
+            {
+                case "describeStream":
+                    DescribeStreamRequest describeRequest = (DescribeStreamRequest) args[0];
+                    describeRequests.add(describeRequest);
+                    if (failingStreams.contains(describeRequest.getStreamName()))
+                    {
+                        throw new DISClientException("Failed to describe " + describeRequest.getStreamName());
+                    }
+                    return describeStream();
+                case "putRecordsAsync":
+                    PutRecordsRequest request = (PutRecordsRequest) args[0];
+                    putRequests.add(request);
+                    PutRecordsResult result = putRecords(request);
+                    ((AsyncHandler<PutRecordsResult>) args[1]).onSuccess(result);
+                    return CompletableFuture.completedFuture(result);
+                case "close":
+                    return null;
+                default:
+                    throw new UnsupportedOperationException(method.getName());
+            }
+        }
+
+        private static DescribeStreamResult describeStream()
+        {
+            List<PartitionResult> partitions = new ArrayList<>();
+            for (int i = 0; i < 2; i++)
+            {
+                PartitionResult partition = new PartitionResult();
+                partition.setPartitionId("shardId-000000000" + i);
+                partition.setStatus("ACTIVE");
+                partitions.add(partition);
+            }
+            DescribeStreamResult result = new DescribeStreamResult();
+            result.setWritablePartitionCount(2);
+            result.setPartitions(partitions);
+            return result;
+        }
+
+        private PutRecordsResult putRecords(PutRecordsRequest request)
+        {
+            List<PutRecordsResultEntry> entries = new ArrayList<>();
+            for (int i = 0; i < request.getRecords().size() - missingResults; i++)
+            {
+                entries.add(new PutRecordsResultEntry());
+            }
+            PutRecordsResult result = new PutRecordsResult();
+            result.setFailedRecordCount(new AtomicInteger(0));
+            result.setRecords(entries);
+            return result;
+        }
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright 2002-2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.g42cloud.dis.producer;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.g42cloud.dis.iface.data.request.PutRecordsRequestEntry;
+
+public class DefaultPartitionerTest
+{
+    private static final String STREAM = "stream";
+
+    private final PartitionRoutingTable routingTable = PartitionRoutingTable.build(4, null);
+
+    @Test
+    public void testKeyedRecordsRouteByHashKey()
+    {
+        DefaultPartitioner partitioner = new DefaultPartitioner();
+        PutRecordsRequestEntry record = new PutRecordsRequestEntry();
+        record.setExplicitHashKey("0");
+        Assert.assertEquals(0, partitioner.partition(STREAM, record, routingTable));
+
+        record = new PutRecordsRequestEntry();
+        record.setPartitionKey("key");
+        Assert.assertEquals(routingTable.route(PartitionKeyUtils.getHash("key")),
+            partitioner.partition(STREAM, record, routingTable));
+    }
+
+    @Test
+    public void testKeylessRecordsStickUntilNewBatch()
+    {
+        DefaultPartitioner partitioner = new DefaultPartitioner();
+        PutRecordsRequestEntry record = new PutRecordsRequestEntry();
+        int sticky = partitioner.partition(STREAM, record, routingTable);
+        for (int i = 0; i < 100; i++)
+        {
+            Assert.assertEquals(sticky, partitioner.partition(STREAM, record, routingTable));
+        }
+
+        partitioner.onNewBatch(STREAM, routingTable, sticky);
+        int next = partitioner.partition(STREAM, record, routingTable);
+        Assert.assertNotEquals(sticky, next);
+
+        // 其他线程已切换过分区时不再切换
+        partitioner.onNewBatch(STREAM, routingTable, sticky);
+        Assert.assertEquals(next, partitioner.partition(STREAM, record, routingTable));
+
+        // 路由信息刷新后重新选择分区
+        PartitionRoutingTable refreshed = PartitionRoutingTable.build(1, null);
+        Assert.assertEquals(0, partitioner.partition(STREAM, record, refreshed));
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright 2002-2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.g42cloud.dis.producer;
+
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+
+import org.junit.Assert;
+import org.junit.Ignore;
+import org.junit.Test;
+
+public class PartitionKeyUtilsTest
+{
+    @Test
+    public void testHashIsMd5OfUtf8()
+        throws Exception
+    {
+        StringBuilder longKey = new StringBuilder();
+        for (int i = 0; i < 500; i++)
+        {
+            longKey.append("key-分区-").append(i);
+        }
+        for (String key : new String[] {"", "a", "partition-key-1", "分区键", "😀", longKey.toString()})
+        {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes(StandardCharsets.UTF_8));
+            long expected = PartitionKeyUtils.getLong(digest) & Long.MAX_VALUE;
+            Assert.assertEquals(key, expected, PartitionKeyUtils.getHash(key));
+            // 第二次命中缓存
+            Assert.assertEquals(key, expected, PartitionKeyUtils.getHash(key));
+        }
+    }
+
+    @Test
+    public void testPartitionNumberFromShardId()
+    {
+        Assert.assertEquals(0, PartitionKeyUtils.getPartitionNumberFromShardId("shardId-0000000000"));
+        Assert.assertEquals(12, PartitionKeyUtils.getPartitionNumberFromShardId("shardId-0000000012"));
+        Assert.assertEquals(7, PartitionKeyUtils.getPartitionNumberFromShardId("SHARDID-7"));
+        Assert.assertEquals(5, PartitionKeyUtils.getPartitionNumberFromShardId("5"));
+        for (String invalid : new String[] {"shardId-", "shardId-1-2", "shardId-abc", "-5", "abc", "shardId-99999999999"})
+        {
+            try
+            {
+                PartitionKeyUtils.getPartitionNumberFromShardId(invalid);
+                Assert.fail(invalid);
+            }
+            catch (RuntimeException e)
+            {
+                Assert.assertEquals("invalid shardId", e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Hashing benchmark: time and heap allocation per call of the hot paths, on a heavy-hitter key set.
+     */
+    @Test
+    @Ignore
+    public void benchmarkHashing()
+    {
+        String[] keys = new String[64];
+        String[] shardIds = new String[64];
+        for (int i = 0; i < keys.length; i++)
+        {
+            keys[i] = "device-" + i + "-" + Long.toHexString(i * 0x9E3779B97F4A7C15L);
+            shardIds[i] = "shardId-" + String.format("%010d", i);
+        }
+        // 远多于缓存容量的分区键，几乎总是未命中缓存
+        String[] coldKeys = new String[1 << 16];
+        for (int i = 0; i < coldKeys.length; i++)
+        {
+            coldKeys[i] = "user-" + i;
+        }
+        int iterations = 5000000;
+        long sink = 0;
+        for (int round = 0; round < 3; round++)
+        {
+            long allocated = allocatedBytes();
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++)
+            {
+                sink += PartitionKeyUtils.getHash(keys[i & 63]);
+            }
+            report("getHash", start, allocated, iterations);
+
+            allocated = allocatedBytes();
+            start = System.nanoTime();
+            for (int i = 0; i < iterations; i++)
+            {
+                sink += PartitionKeyUtils.getHash(coldKeys[i & (coldKeys.length - 1)]);
+            }
+            report("getHash (cold keys)", start, allocated, iterations);
+
+            allocated = allocatedBytes();
+            start = System.nanoTime();
+            for (int i = 0; i < iterations; i++)
+            {
+                sink += PartitionKeyUtils.getPartitionNumberFromShardId(shardIds[i & 63]);
+            }
+            report("getPartitionNumberFromShardId", start, allocated, iterations);
+        }
+        System.out.println(sink);
+    }
+
+    private static void report(String name, long start, long allocated, int iterations)
+    {
+        long elapsed = System.nanoTime() - start;
+        System.out.println(String.format("%-32s %8.1f ns/op %8.1f B/op", name, (double) elapsed / iterations,
+            (double) (allocatedBytes() - allocated) / iterations));
+    }
+
+    private static long allocatedBytes()
+    {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+            .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
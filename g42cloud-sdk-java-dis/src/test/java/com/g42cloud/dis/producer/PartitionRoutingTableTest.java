@@ -0,0 +1,79 @@
+/*
+ * Copyright 2002-2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.g42cloud.dis.producer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.g42cloud.dis.iface.stream.response.PartitionResult;
+
+public class PartitionRoutingTableTest
+{
+    @Test
+    public void testParseHashRange()
+    {
+        Assert.assertArrayEquals(new long[] {0L, 4611686018427387902L},
+            PartitionRoutingTable.parseHashRange("[0 : 4611686018427387902]"));
+        Assert.assertArrayEquals(new long[] {5L, 9L}, PartitionRoutingTable.parseHashRange("5:9"));
+        Assert.assertNull(PartitionRoutingTable.parseHashRange(null));
+        Assert.assertNull(PartitionRoutingTable.parseHashRange("[abc : 1]"));
+        Assert.assertNull(PartitionRoutingTable.parseHashRange("[9 : 5]"));
+    }
+
+    @Test
+    public void testRouteByHashRange()
+    {
+        List<PartitionResult> partitions = new ArrayList<>();
+        // 分区0已分裂为分区2和分区3
+        partitions.add(newPartition("shardId-0000000000", "DELETED", "[0 : 4611686018427387902]"));
+        partitions.add(newPartition("shardId-0000000001", "ACTIVE", "[4611686018427387903 : 9223372036854775807]"));
+        partitions.add(newPartition("shardId-0000000002", "ACTIVE", "[0 : 2305843009213693950]"));
+        partitions.add(newPartition("shardId-0000000003", "ACTIVE", "[2305843009213693951 : 4611686018427387902]"));
+
+        PartitionRoutingTable table = PartitionRoutingTable.build(3, partitions);
+        Assert.assertEquals(2, table.route(0L));
+        Assert.assertEquals(2, table.route(2305843009213693950L));
+        Assert.assertEquals(3, table.route(2305843009213693951L));
+        Assert.assertEquals(1, table.route(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void testRouteWithoutHashRange()
+    {
+        List<PartitionResult> partitions = new ArrayList<>();
+        partitions.add(newPartition("shardId-0000000000", "ACTIVE", null));
+        partitions.add(newPartition("shardId-0000000001", "ACTIVE", null));
+
+        PartitionRoutingTable table = PartitionRoutingTable.build(2, partitions);
+        for (long hashKey : new long[] {0L, 12345L, Long.MAX_VALUE / 2 + 1, Long.MAX_VALUE})
+        {
+            Assert.assertEquals(PartitionKeyUtils.calPartitionIndex(2, hashKey), table.route(hashKey));
+        }
+    }
+
+    private static PartitionResult newPartition(String partitionId, String status, String hashRange)
+    {
+        PartitionResult partition = new PartitionResult();
+        partition.setPartitionId(partitionId);
+        partition.setStatus(status);
+        partition.setHashRange(hashRange);
+        return partition;
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2002-2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.g42cloud.dis.producer.internals;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class AdaptiveBatchSizerTest
+{
+    private static final long BATCH_SIZE = 1024 * 1024;
+
+    @Test
+    public void testDisabledKeepsConfiguredValues()
+    {
+        AdaptiveBatchSizer sizer = new AdaptiveBatchSizer(false, 50, BATCH_SIZE, 1000);
+        long now = System.currentTimeMillis();
+        sizer.recordAppend(100 * BATCH_SIZE, now + AdaptiveBatchSizer.RATE_WINDOW_MS);
+        sizer.recordResponse(10000, true, now);
+
+        Assert.assertEquals(50, sizer.getLingerMs());
+        Assert.assertEquals(BATCH_SIZE, sizer.getBatchSize());
+        Assert.assertEquals(1000, sizer.getBatchCount());
+    }
+
+    @Test
+    public void testAdditiveIncreaseMultiplicativeDecrease()
+    {
+        AdaptiveBatchSizer sizer = new AdaptiveBatchSizer(true, 50, BATCH_SIZE, 1000);
+        long now = System.currentTimeMillis();
+
+        sizer.recordResponse(10, true, now);
+        Assert.assertEquals(BATCH_SIZE / 2, sizer.getBatchSize());
+        Assert.assertEquals(500, sizer.getBatchCount());
+
+        // 一个往返时间内的多次流控只减半一次
+        sizer.recordResponse(10, true, now + 1);
+        Assert.assertEquals(BATCH_SIZE / 2, sizer.getBatchSize());
+
+        // 往返时间明显变长也视为拥塞
+        sizer.recordResponse(1000, false, now + 1000);
+        Assert.assertEquals(BATCH_SIZE / 4, sizer.getBatchSize());
+        Assert.assertEquals(2, sizer.getBatchSizeDecreases());
+
+        sizer.recordResponse(10, false, now + 1100);
+        Assert.assertEquals(BATCH_SIZE / 4 + BATCH_SIZE / 16, sizer.getBatchSize());
+        Assert.assertEquals(1, sizer.getBatchSizeIncreases());
+    }
+
+    @Test
+    public void testLingerFollowsArrivalRate()
+    {
+        AdaptiveBatchSizer sizer = new AdaptiveBatchSizer(true, 50, BATCH_SIZE, 1000);
+        long now = System.currentTimeMillis() + AdaptiveBatchSizer.RATE_WINDOW_MS;
+
+        // 流量小，linger.ms内攒不满一个批次，最多等待一个往返时间
+        sizer.recordResponse(10, false, now);
+        sizer.recordAppend(1024, now);
+        Assert.assertEquals(10, sizer.getLingerMs());
+
+        // 流量大，攒满一个批次所需的时间小于linger.ms
+        now += AdaptiveBatchSizer.RATE_WINDOW_MS;
+        sizer.recordAppend(1000 * BATCH_SIZE, now);
+        Assert.assertTrue(sizer.getLingerMs() < 10);
+        Assert.assertTrue(sizer.getArrivalBytesPerSecond() > 0);
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2002-2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.g42cloud.dis.producer.internals;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.g42cloud.dis.exception.DISBufferExhaustedException;
+
+public class BufferPoolTest
+{
+    @Test
+    public void testAllocateAndDeallocate()
+        throws Exception
+    {
+        BufferPool pool = new BufferPool(100, 2);
+        pool.allocate(60, 1, 0);
+        pool.allocate(40, 1, 0);
+        Assert.assertEquals(100L, pool.getReservedBytes());
+        Assert.assertEquals(2, pool.getReservedBatches());
+
+        pool.deallocate(100, 2);
+        Assert.assertEquals(0L, pool.getReservedBytes());
+        Assert.assertEquals(0, pool.getReservedBatches());
+    }
+
+    @Test
+    public void testOversizedRequestWhenPoolIsFree()
+        throws Exception
+    {
+        BufferPool pool = new BufferPool(100, 2);
+        pool.allocate(1000, 1, 0);
+        Assert.assertEquals(100L, pool.getReservedBytes());
+
+        pool.deallocate(1000, 1);
+        Assert.assertEquals(0L, pool.getReservedBytes());
+    }
+
+    @Test(expected = DISBufferExhaustedException.class)
+    public void testAllocateTimeout()
+        throws Exception
+    {
+        BufferPool pool = new BufferPool(100, 2);
+        pool.allocate(100, 0, 0);
+        try
+        {
+            pool.allocate(1, 0, 50);
+        }
+        finally
+        {
+            Assert.assertEquals(1L, pool.getExhaustedAllocations());
+            Assert.assertEquals(0, pool.getQueuedThreads());
+        }
+    }
+
+    @Test
+    public void testWaitersAreServedInOrder()
+        throws Exception
+    {
+        final BufferPool pool = new BufferPool(100, 10);
+        pool.allocate(100, 0, 0);
+
+        final List<Integer> order = new CopyOnWriteArrayList<>();
+        Thread[] waiters = new Thread[3];
+        for (int i = 0; i < waiters.length; i++)
+        {
+            final int id = i;
+            waiters[i] = new Thread(() -> {
+                try
+                {
+                    pool.allocate(50, 0, Long.MAX_VALUE);
+                    order.add(id);
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            waiters[i].start();
+            // 保证线程按顺序进入等待队列
+            while (pool.getQueuedThreads() != i + 1)
+            {
+                Thread.sleep(1);
+            }
+        }
+
+        for (int i = 0; i < waiters.length; i++)
+        {
+            pool.deallocate(50, 0);
+            waiters[i].join(5000);
+        }
+
+        Assert.assertEquals(0, pool.getQueuedThreads());
+        Assert.assertEquals(3L, pool.getBlockedAllocations());
+        Assert.assertEquals(0, order.get(0).intValue());
+        Assert.assertEquals(1, order.get(1).intValue());
+        Assert.assertEquals(2, order.get(2).intValue());
+    }
+}
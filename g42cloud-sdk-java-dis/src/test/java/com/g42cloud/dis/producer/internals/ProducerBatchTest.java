@@ -0,0 +1,232 @@
+/*
+ * Copyright 2002-2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.g42cloud.dis.producer.internals;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.g42cloud.dis.Constants;
+import com.g42cloud.dis.exception.DISClientException;
+import com.g42cloud.dis.iface.api.protobuf.Message;
+import com.g42cloud.dis.iface.api.protobuf.ProtobufUtils;
+import com.g42cloud.dis.iface.data.request.PutRecordsRequest;
+import com.g42cloud.dis.iface.data.request.PutRecordsRequestEntry;
+import com.g42cloud.dis.iface.data.response.PutRecordsResult;
+import com.g42cloud.dis.iface.data.response.PutRecordsResultEntry;
+
+public class ProducerBatchTest
+{
+    private static final StreamPartition TP = new StreamPartition("stream", "0");
+
+    private static final Predicate<String> RETRIABLE = errorCode -> errorCode.contains("DIS.4303");
+
+    @Test
+    public void testRetryOnlyRetriableRecords()
+        throws Exception
+    {
+        ProducerBatch batch = new ProducerBatch(TP, 1024, 100);
+        FutureRecordsMetadata first = batch.tryAppend(System.currentTimeMillis(), newRequest(2), null);
+        FutureRecordsMetadata second = batch.tryAppend(System.currentTimeMillis(), newRequest(2), null);
+
+        Assert.assertTrue(batch.completeAttempt(newResult(null, "DIS.4303", "DIS.4001", null), RETRIABLE, 3));
+        List<PutRecordsRequestEntry> retry = batch.recordsToSend();
+        Assert.assertEquals(1, retry.size());
+        Assert.assertSame(batch.getBatchPutRecordsRequestEntrys().get(1), retry.get(0));
+
+        Assert.assertFalse(batch.completeAttempt(newResult((String) null), RETRIABLE, 3));
+        batch.done(batch.mergedResult(), null);
+
+        PutRecordsResult firstResult = first.get();
+        Assert.assertEquals(0, firstResult.getFailedRecordCount().get());
+        Assert.assertEquals("0", firstResult.getRecords().get(0).getSequenceNumber());
+        // 第二条记录的结果来自重试请求
+        Assert.assertNull(firstResult.getRecords().get(1).getErrorCode());
+        Assert.assertNotNull(firstResult.getRecords().get(1).getSequenceNumber());
+
+        PutRecordsResult secondResult = second.get();
+        Assert.assertEquals(1, secondResult.getFailedRecordCount().get());
+        Assert.assertEquals("DIS.4001", secondResult.getRecords().get(0).getErrorCode());
+    }
+
+    @Test
+    public void testRetriesExhausted()
+    {
+        ProducerBatch batch = new ProducerBatch(TP, 1024, 100);
+        batch.tryAppend(System.currentTimeMillis(), newRequest(1), null);
+
+        Assert.assertTrue(batch.completeAttempt(newResult("DIS.4303"), RETRIABLE, 1));
+        Assert.assertFalse(batch.completeAttempt(newResult("DIS.4303"), RETRIABLE, 1));
+        Assert.assertEquals(1, batch.mergedResult().getFailedRecordCount().get());
+    }
+
+    @Test
+    public void testFailedRetryKeepsEarlierResults()
+    {
+        ProducerBatch batch = new ProducerBatch(TP, 1024, 100);
+        batch.tryAppend(System.currentTimeMillis(), newRequest(2), null);
+
+        Assert.assertTrue(batch.completeAttempt(newResult(null, "DIS.4303"), RETRIABLE, 3));
+        batch.failAttempt(new DISClientException("connection reset"));
+        PutRecordsResult result = batch.mergedResult();
+        Assert.assertEquals(1, result.getFailedRecordCount().get());
+        Assert.assertNull(result.getRecords().get(0).getErrorCode());
+        Assert.assertEquals(Constants.ERROR_CODE_SDK_SEND_FAILED, result.getRecords().get(1).getErrorCode());
+        Assert.assertTrue(result.getRecords().get(1).getErrorMessage().contains("connection reset"));
+    }
+
+    @Test
+    public void testRetryBackoffIsPerPartition()
+        throws Exception
+    {
+        RecordAccumulator accumulator =
+            new RecordAccumulator(RecordAccumulatorTest.newConfig(1024, 100, 1024 * 1024, 1000, 0, true, 1));
+        StreamPartition other = new StreamPartition("stream", "1");
+        accumulator.append(TP, System.currentTimeMillis(), newRequest(1), null, Long.MAX_VALUE);
+
+        long now = System.currentTimeMillis();
+        ProducerBatch batch = accumulator.drain(now, 0, 1).get(0);
+        batch.completeAttempt(newResult("DIS.4303"), RETRIABLE, 3);
+        batch.retryBackoff(60000, now);
+        accumulator.reenqueue(batch, now);
+        accumulator.append(other, now, newRequest(1), null, Long.MAX_VALUE);
+
+        List<ProducerBatch> drained = accumulator.drain(now, 0, 1);
+        Assert.assertEquals(1, drained.size());
+        Assert.assertEquals(other, drained.get(0).getTp());
+
+        drained = accumulator.drain(now + 60000, 0, 1);
+        Assert.assertEquals(1, drained.size());
+        Assert.assertSame(batch, drained.get(0));
+    }
+
+    @Test
+    public void testRecordsEncodedOnAppend()
+        throws Exception
+    {
+        ProducerBatch batch = new ProducerBatch(TP, 1024 * 1024, 1000, true);
+        PutRecordsRequest request = newRequest(3);
+        request.getRecords().get(0).setPartitionKey("key");
+        request.getRecords().get(1).setPartitionId("shardId-0000000001");
+        request.getRecords().get(1).setTimestamp(System.currentTimeMillis());
+        request.getRecords().get(2).setExplicitHashKey("12345");
+        request.getRecords().get(2).setData(ByteBuffer.wrap(new byte[200]));
+        batch.tryAppend(System.currentTimeMillis(), request, null);
+        request.setStreamId("id");
+
+        Assert.assertEquals(ProtobufUtils.toProtobufPutRecordsRequest(request), parse(batch, request));
+
+        // 重试时只编码需要重试的记录
+        Assert.assertTrue(batch.completeAttempt(newResult(null, "DIS.4303", "DIS.4303"), RETRIABLE, 3));
+        request.setRecords(batch.recordsToSend());
+        Assert.assertEquals(ProtobufUtils.toProtobufPutRecordsRequest(request), parse(batch, request));
+    }
+
+    @Test
+    public void testPayloadsCopiedToArenaAndRecycled()
+    {
+        PayloadArena arena = new PayloadArena(64, 1024);
+        ProducerBatch batch = new ProducerBatch(TP, 1024, 100, false, arena);
+        PutRecordsRequest request = newRequest(3);
+        for (PutRecordsRequestEntry entry : request.getRecords())
+        {
+            entry.setData(ByteBuffer.wrap(new byte[30]));
+            entry.getData().put(0, (byte) 7);
+        }
+        request.getRecords().get(2).setPartitionKey("key");
+        PutRecordsRequestEntry large = new PutRecordsRequestEntry();
+        large.setData(ByteBuffer.wrap(new byte[100]));
+        request.getRecords().add(large);
+        batch.tryAppend(System.currentTimeMillis(), request, null);
+
+        List<PutRecordsRequestEntry> records = batch.recordsToSend();
+        for (int i = 0; i < 3; i++)
+        {
+            Assert.assertTrue(records.get(i).getData().isDirect());
+            Assert.assertEquals(request.getRecords().get(i).getData(), records.get(i).getData());
+        }
+        Assert.assertEquals("key", records.get(2).getPartitionKey());
+        // 大于内存块的数据保留在堆内
+        Assert.assertSame(large, records.get(3));
+        Assert.assertEquals(2, arena.getSlabsInUse());
+
+        // 请求仍在读取数据时，批次完成也不能回收内存块
+        batch.retainPayloads();
+        batch.done(null, new RuntimeException("expired"));
+        Assert.assertEquals(2, arena.getSlabsInUse());
+        batch.releasePayloads();
+        Assert.assertEquals(0, arena.getSlabsInUse());
+        Assert.assertEquals(2, arena.getPooledSlabs());
+
+        new ProducerBatch(TP, 1024, 100, false, arena).tryAppend(System.currentTimeMillis(), newRequest(1), null);
+        Assert.assertEquals(2, arena.getAllocatedSlabs());
+    }
+
+    private static Message.PutRecordsRequest parse(ProducerBatch batch, PutRecordsRequest request)
+        throws Exception
+    {
+        byte[] body = new byte[EncodedRecords.headerSize(request.getStreamName(), request.getStreamId())
+            + batch.encodedSizeToSend()];
+        int position = EncodedRecords.writeHeader(request.getStreamName(), request.getStreamId(), body);
+        Assert.assertEquals(body.length, batch.writeEncodedRecordsTo(body, position));
+        return Message.PutRecordsRequest.parseFrom(body);
+    }
+
+    private static PutRecordsRequest newRequest(int records)
+    {
+        List<PutRecordsRequestEntry> entries = new ArrayList<>();
+        for (int i = 0; i < records; i++)
+        {
+            PutRecordsRequestEntry entry = new PutRecordsRequestEntry();
+            entry.setData(ByteBuffer.wrap(new byte[10]));
+            entries.add(entry);
+        }
+        PutRecordsRequest request = new PutRecordsRequest();
+        request.setStreamName(TP.topic());
+        request.setRecords(entries);
+        return request;
+    }
+
+    private static PutRecordsResult newResult(String... errorCodes)
+    {
+        List<PutRecordsResultEntry> entries = new ArrayList<>();
+        int failed = 0;
+        for (int i = 0; i < errorCodes.length; i++)
+        {
+            PutRecordsResultEntry entry = new PutRecordsResultEntry();
+            if (errorCodes[i] == null)
+            {
+                entry.setSequenceNumber(String.valueOf(i));
+            }
+            else
+            {
+                entry.setErrorCode(errorCodes[i]);
+                failed++;
+            }
+            entries.add(entry);
+        }
+        PutRecordsResult result = new PutRecordsResult();
+        result.setFailedRecordCount(new AtomicInteger(failed));
+        result.setRecords(entries);
+        return result;
+    }
+}
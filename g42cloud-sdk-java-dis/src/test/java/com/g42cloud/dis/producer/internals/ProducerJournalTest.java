@@ -0,0 +1,250 @@
+/*
+ * Copyright 2002-2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.g42cloud.dis.producer.internals;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import com.g42cloud.dis.exception.DISClientException;
+import com.g42cloud.dis.iface.data.request.PutRecordsRequest;
+import com.g42cloud.dis.iface.data.request.PutRecordsRequestEntry;
+import com.g42cloud.dis.iface.data.response.PutRecordsResult;
+import com.g42cloud.dis.iface.data.response.PutRecordsResultEntry;
+
+public class ProducerJournalTest
+{
+    @Test
+    public void testRecoverEntriesNotReleased()
+        throws Exception
+    {
+        File dir = Files.createTempDirectory("dis-journal").toFile();
+        // 每个分段只容纳一个请求
+        ProducerJournal journal = new ProducerJournal(dir, 64, -1);
+        ProducerJournal.Entry first = journal.append(newRequest("a", 20));
+        journal.append(newRequest("b", 20));
+        ProducerJournal.Entry third = journal.append(newRequest("c", 20));
+        Assert.assertEquals(3, journal.getSegmentCount());
+
+        // 全部释放的分段被删除，当前分段在关闭时删除
+        journal.release(first);
+        journal.releaseOnCompletion(third, null).onSuccess(new PutRecordsResult());
+        Assert.assertEquals(1, journal.getPendingEntries());
+        Assert.assertEquals(2, journal.getSegmentCount());
+        journal.close();
+
+        journal = new ProducerJournal(dir, 64, -1);
+        List<File> segments = journal.getRecoveredSegments();
+        Assert.assertEquals(1, segments.size());
+        List<PutRecordsRequest> recovered = journal.readRecovered(segments.get(0));
+        Assert.assertEquals(1, recovered.size());
+        PutRecordsRequest request = recovered.get(0);
+        Assert.assertEquals("stream", request.getStreamName());
+        Assert.assertEquals("b", request.getRecords().get(0).getPartitionKey());
+        Assert.assertEquals(20, request.getRecords().get(0).getData().remaining());
+
+        // 重新发送的请求写入新的分段
+        journal.append(request);
+        journal.deleteRecovered(segments.get(0));
+        Assert.assertTrue(journal.getRecoveredSegments().isEmpty());
+        journal.close();
+        journal = new ProducerJournal(dir, 64, -1);
+        Assert.assertEquals(1, journal.getRecoveredSegments().size());
+        journal.close();
+    }
+
+    @Test
+    public void testSegmentsBoundedAcrossRolls()
+        throws Exception
+    {
+        File dir = Files.createTempDirectory("dis-journal").toFile();
+        ProducerJournal journal = new ProducerJournal(dir, 64, -1);
+        ProducerJournal.Entry previous = null;
+        for (int i = 0; i < 1000; i++)
+        {
+            // 每次写入都新建分段，上一个分段释放后解除映射并删除
+            ProducerJournal.Entry entry = journal.append(newRequest("key", 20));
+            if (previous != null)
+            {
+                journal.release(previous);
+            }
+            previous = entry;
+            Assert.assertTrue(journal.getSegmentCount() <= 2);
+            Assert.assertTrue(dir.list((d, name) -> name.startsWith("journal-")).length <= 2);
+        }
+        journal.release(previous);
+        journal.close();
+        Assert.assertEquals(0, dir.list((d, name) -> name.startsWith("journal-")).length);
+
+        // 当前JVM上映射可以立即解除
+        try (RandomAccessFile file = new RandomAccessFile(new File(dir, "mapped"), "rw"))
+        {
+            Assert.assertTrue(MappedBuffers.unmap(
+                file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, 64)));
+        }
+    }
+
+    @Test
+    public void testTornTailIsSkipped()
+        throws Exception
+    {
+        File dir = Files.createTempDirectory("dis-journal").toFile();
+        ProducerJournal journal = new ProducerJournal(dir, 1024, 0);
+        journal.append(newRequest("a", 20));
+        journal.append(newRequest("b", 20));
+        Assert.assertTrue(journal.getSyncCount() > 0);
+        journal.close();
+
+        File[] segments = dir.listFiles((d, name) -> name.startsWith("journal-"));
+        Assert.assertEquals(1, segments.length);
+        File segment = segments[0];
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw"))
+        {
+            // 破坏第二个请求的最后一个字节
+            int firstLength = file.readInt();
+            long lastByte = 8 + firstLength + 8 + firstLength - 1;
+            file.seek(lastByte);
+            byte b = file.readByte();
+            file.seek(lastByte);
+            file.writeByte(b + 1);
+        }
+
+        journal = new ProducerJournal(dir, 1024, 0);
+        List<PutRecordsRequest> recovered = journal.readRecovered(segment);
+        Assert.assertEquals(1, recovered.size());
+        Assert.assertEquals("a", recovered.get(0).getRecords().get(0).getPartitionKey());
+        journal.close();
+    }
+
+    @Test
+    public void testDirUsedByOneJournalOnly()
+        throws Exception
+    {
+        File dir = Files.createTempDirectory("dis-journal").toFile();
+        ProducerJournal journal = new ProducerJournal(dir, 1024, -1);
+        try
+        {
+            new ProducerJournal(dir, 1024, -1);
+            Assert.fail();
+        }
+        catch (DISClientException e)
+        {
+            Assert.assertTrue(e.getMessage().contains("used by another producer"));
+        }
+        journal.close();
+        new ProducerJournal(dir, 1024, -1).close();
+    }
+
+    /**
+     * Journal overhead benchmark: appends per second into the accumulator with and without the journal.
+     */
+    @Test
+    @Ignore
+    public void benchmarkJournalOverhead()
+        throws Exception
+    {
+        int iterations = 500000;
+        for (int round = 0; round < 3; round++)
+        {
+            double plain = runAppendBenchmark(null, iterations);
+            File dir = Files.createTempDirectory("dis-journal").toFile();
+            ProducerJournal journal = new ProducerJournal(dir, 64 * 1024 * 1024, 50);
+            double journaled = runAppendBenchmark(journal, iterations);
+            journal.close();
+            System.out.println(String.format("plain %.0f appends/s, journaled %.0f appends/s (%.1f%%)", plain, journaled,
+                journaled * 100 / plain));
+        }
+    }
+
+    private static double runAppendBenchmark(ProducerJournal journal, int iterations)
+        throws Exception
+    {
+        StreamPartition tp = new StreamPartition("stream", "0");
+        RecordAccumulator accumulator = new RecordAccumulator(
+            RecordAccumulatorTest.newConfig(512 * 1024, 500, 64 * 1024 * 1024, 1000, 0, false, 1));
+        PutRecordsRequest request = newRequest("key", 1024);
+        AtomicInteger completed = new AtomicInteger();
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++)
+        {
+            if (journal == null)
+            {
+                accumulator.append(tp, System.currentTimeMillis(), request, null, Long.MAX_VALUE);
+            }
+            else
+            {
+                ProducerJournal.Entry entry = journal.append(request);
+                accumulator.append(tp, System.currentTimeMillis(), request, journal.releaseOnCompletion(entry, null),
+                    Long.MAX_VALUE);
+            }
+            if ((i & 1023) == 0)
+            {
+                completeAll(accumulator, completed);
+            }
+        }
+        completeAll(accumulator, completed);
+        return iterations * 1e9 / (System.nanoTime() - start);
+    }
+
+    private static void completeAll(RecordAccumulator accumulator, AtomicInteger completed)
+    {
+        accumulator.beginFlush();
+        for (ProducerBatch batch : accumulator.drain(System.currentTimeMillis(), 0, 1))
+        {
+            List<PutRecordsResultEntry> entries = new ArrayList<>();
+            for (int i = 0; i < batch.getRelativeOffset(); i++)
+            {
+                entries.add(new PutRecordsResultEntry());
+            }
+            PutRecordsResult result = new PutRecordsResult();
+            result.setFailedRecordCount(new AtomicInteger(0));
+            result.setRecords(entries);
+            batch.done(result, null);
+            accumulator.batchIsDone(batch);
+            completed.addAndGet(entries.size());
+        }
+        try
+        {
+            accumulator.awaitFlushCompletion(0);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static PutRecordsRequest newRequest(String partitionKey, int size)
+    {
+        PutRecordsRequestEntry entry = new PutRecordsRequestEntry();
+        entry.setData(ByteBuffer.wrap(new byte[size]));
+        entry.setPartitionKey(partitionKey);
+        PutRecordsRequest request = new PutRecordsRequest();
+        request.setStreamName("stream");
+        request.setRecords(new ArrayList<>(Collections.singletonList(entry)));
+        return request;
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright 2002-2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.g42cloud.dis.producer.internals;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ProducerRateLimiterTest
+{
+    private static final long MB = 1024 * 1024L;
+
+    @Test
+    public void testQuotaDerivedFromStreamType()
+    {
+        ProducerRateLimiter rateLimiter = new ProducerRateLimiter(0, 0, "nb");
+        StreamPartition tp = new StreamPartition("stream", "0");
+        long now = 1000000L;
+        // 未知配额的流不限流
+        for (int i = 0; i < 10; i++)
+        {
+            Assert.assertTrue(rateLimiter.tryAcquire(tp, 1000, 10 * MB, now));
+        }
+
+        rateLimiter.setStreamQuota("stream", "ADVANCED", 3);
+        Assert.assertTrue(rateLimiter.tryAcquire(tp, 1, 5 * MB, now));
+        Assert.assertFalse(rateLimiter.tryAcquire(tp, 1, 1, now));
+        Assert.assertTrue(rateLimiter.tryAcquire(tp, 1, 1, now + 1001));
+
+        // 不按分区路由时共用所有可写分区的配额
+        StreamPartition stream = new StreamPartition("stream", "nb");
+        Assert.assertTrue(rateLimiter.tryAcquire(stream, 5999, 1, now));
+        Assert.assertTrue(rateLimiter.tryAcquire(stream, 1, 1, now));
+        Assert.assertFalse(rateLimiter.tryAcquire(stream, 1, 1, now));
+    }
+
+    @Test
+    public void testLargeBatchIsLetThroughAndPaidBack()
+    {
+        ProducerRateLimiter rateLimiter = new ProducerRateLimiter(0, MB, "nb");
+        rateLimiter.setStreamQuota("stream", null, 1);
+        StreamPartition tp = new StreamPartition("stream", "0");
+        long now = 1000000L;
+        Assert.assertTrue(rateLimiter.tryAcquire(tp, 1, 3 * MB, now));
+        Assert.assertFalse(rateLimiter.tryAcquire(tp, 1, 1, now + 1999));
+        Assert.assertTrue(rateLimiter.tryAcquire(tp, 1, 2 * MB, now + 2001));
+        Assert.assertEquals(1, rateLimiter.getThrottledCount());
+        Assert.assertEquals(2, rateLimiter.getThrottledTimeMs());
+
+        // 配额不变时刷新不会重置令牌
+        rateLimiter.setStreamQuota("stream", "COMMON", 1);
+        Assert.assertFalse(rateLimiter.tryAcquire(tp, 1, 1, now + 2002));
+    }
+}
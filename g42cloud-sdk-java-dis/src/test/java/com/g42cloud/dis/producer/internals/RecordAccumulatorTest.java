@@ -0,0 +1,606 @@
+/*
+ * Copyright 2002-2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.g42cloud.dis.producer.internals;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.junit.Assert;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import com.g42cloud.dis.DISConfig;
+import com.g42cloud.dis.exception.DISBufferExhaustedException;
+import com.g42cloud.dis.exception.DISClientException;
+import com.g42cloud.dis.exception.DISDeliveryTimeoutException;
+import com.g42cloud.dis.iface.data.request.PutRecordsRequest;
+import com.g42cloud.dis.iface.data.request.PutRecordsRequestEntry;
+import com.g42cloud.dis.iface.data.response.PutRecordsResult;
+import com.g42cloud.dis.iface.data.response.PutRecordsResultEntry;
+
+public class RecordAccumulatorTest
+{
+    private static final StreamPartition TP = new StreamPartition("stream", "nb");
+
+    @Test
+    public void testConcurrentAppendAndDrain()
+        throws Exception
+    {
+        final int threads = 8;
+        final int recordsPerThread = 2000;
+        final RecordAccumulator accumulator =
+            new RecordAccumulator(newConfig(1024, 100, 1024 * 1024, 1000, 0, false, 4));
+
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int i = 0; i < threads; i++)
+        {
+            new Thread(() -> {
+                try
+                {
+                    for (int j = 0; j < recordsPerThread; j++)
+                    {
+                        accumulator.append(TP, System.currentTimeMillis(), newRequest(10), null, Long.MAX_VALUE);
+                    }
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                }
+                finally
+                {
+                    done.countDown();
+                }
+            }).start();
+        }
+
+        long drainedRecords = 0;
+        while (done.getCount() > 0 || accumulator.hasUndrained())
+        {
+            for (ProducerBatch batch : accumulator.drain(System.currentTimeMillis(), 0, 1))
+            {
+                drainedRecords += batch.getRelativeOffset();
+                accumulator.batchIsDone(batch);
+            }
+        }
+
+        Assert.assertEquals((long) threads * recordsPerThread, drainedRecords);
+        Assert.assertEquals(0L, accumulator.bufferSize());
+        Assert.assertEquals(0, accumulator.bufferCount());
+    }
+
+    @Test
+    public void testOrderByPartitionUsesSingleStripe()
+        throws Exception
+    {
+        RecordAccumulator accumulator = new RecordAccumulator(newConfig(1024, 100, 1024 * 1024, 1000, 0, true, 8));
+        accumulator.append(TP, System.currentTimeMillis(), newRequest(10), null, Long.MAX_VALUE);
+
+        Assert.assertEquals(1, accumulator.batches().get(TP).stripeCount());
+    }
+
+    @Test
+    public void testInFlightWindowPerPartition()
+        throws Exception
+    {
+        // 每个批次只容纳一条记录
+        RecordAccumulator accumulator = new RecordAccumulator(newConfig(1024, 1, 1024 * 1024, 1000, 0, true, 1)
+            .set(DISConfig.PROPERTY_MAX_IN_FLIGHT_REQUESTS_PER_PARTITION, "2"));
+        for (int i = 0; i < 5; i++)
+        {
+            accumulator.append(TP, System.currentTimeMillis(), newRequest(10), null, Long.MAX_VALUE);
+        }
+
+        List<ProducerBatch> drained = accumulator.drain(System.currentTimeMillis(), 0, 1);
+        Assert.assertEquals(2, drained.size());
+        Assert.assertTrue(accumulator.drain(System.currentTimeMillis(), 0, 1).isEmpty());
+
+        accumulator.batchIsDone(drained.get(0));
+        Assert.assertEquals(1, accumulator.drain(System.currentTimeMillis(), 0, 1).size());
+    }
+
+    @Test
+    public void testDrainOnlyOwnedShard()
+        throws Exception
+    {
+        int shardCount = 3;
+        RecordAccumulator accumulator = new RecordAccumulator(newConfig(1024, 100, 1024 * 1024, 1000, 0, false, 1));
+        accumulator.append(TP, System.currentTimeMillis(), newRequest(10), null, Long.MAX_VALUE);
+
+        int owner = RecordAccumulator.shardOf(TP, shardCount);
+        for (int shard = 0; shard < shardCount; shard++)
+        {
+            if (shard != owner)
+            {
+                Assert.assertFalse(accumulator.hasUndrained(shard, shardCount));
+                Assert.assertTrue(accumulator.drain(System.currentTimeMillis(), shard, shardCount).isEmpty());
+            }
+        }
+        Assert.assertTrue(accumulator.hasUndrained(owner, shardCount));
+        Assert.assertEquals(1, accumulator.drain(System.currentTimeMillis(), owner, shardCount).size());
+    }
+
+    @Test
+    public void testFlushBypassesLingerAndWaitsForIncompleteBatches()
+        throws Exception
+    {
+        final RecordAccumulator accumulator =
+            new RecordAccumulator(newConfig(1024, 100, 1024 * 1024, 1000, 60000, false, 1));
+        accumulator.append(TP, System.currentTimeMillis(), newRequest(10), null, Long.MAX_VALUE);
+        Assert.assertTrue(accumulator.drain(System.currentTimeMillis(), 0, 1).isEmpty());
+
+        accumulator.beginFlush();
+        List<ProducerBatch> drained = accumulator.drain(System.currentTimeMillis(), 0, 1);
+        Assert.assertEquals(1, drained.size());
+        Assert.assertFalse(accumulator.awaitFlushCompletion(10));
+
+        accumulator.beginFlush();
+        final AtomicBoolean flushed = new AtomicBoolean();
+        Thread flusher = new Thread(() -> {
+            try
+            {
+                flushed.set(accumulator.awaitFlushCompletion(Long.MAX_VALUE));
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+        });
+        flusher.start();
+
+        ProducerBatch batch = drained.get(0);
+        PutRecordsResult result = new PutRecordsResult();
+        result.setFailedRecordCount(new AtomicInteger(0));
+        result.setRecords(Collections.singletonList(new PutRecordsResultEntry()));
+        batch.done(result, null);
+        accumulator.batchIsDone(batch);
+
+        flusher.join(5000);
+        Assert.assertTrue(flushed.get());
+        Assert.assertFalse(accumulator.hasIncomplete());
+        Assert.assertFalse(accumulator.flushInProgress());
+    }
+
+    @Test
+    public void testExpiredBatchesReleaseBuffer()
+        throws Exception
+    {
+        // 每个批次只容纳一条记录，发送超时时间1000ms
+        RecordAccumulator accumulator = new RecordAccumulator(newConfig(1024, 1, 1024 * 1024, 1000, 0, false, 1)
+            .set(DISConfig.PROPERTY_MAX_IN_FLIGHT_REQUESTS_PER_PARTITION, "1")
+            .set(DISConfig.PROPERTY_DELIVERY_TIMEOUT_MS, "1000"));
+        accumulator.append(TP, System.currentTimeMillis(), newRequest(10), null, Long.MAX_VALUE);
+        accumulator.append(TP, System.currentTimeMillis(), newRequest(10), null, Long.MAX_VALUE);
+
+        long now = System.currentTimeMillis();
+        ProducerBatch inFlight = accumulator.drain(now, 0, 1).get(0);
+        Assert.assertTrue(accumulator.expiredBatches(now, 0, 1).isEmpty());
+
+        List<ProducerBatch> expired = accumulator.expiredBatches(now + 1000, 0, 1);
+        Assert.assertEquals(2, expired.size());
+        for (ProducerBatch batch : expired)
+        {
+            Assert.assertTrue(batch.done(null, new DISDeliveryTimeoutException("expired")));
+            accumulator.deallocate(batch);
+        }
+        Assert.assertEquals(0, accumulator.bufferPool().getReservedBatches());
+        Assert.assertFalse(accumulator.hasIncomplete());
+        Assert.assertFalse(accumulator.hasUndrained());
+
+        // 在途的批次在请求返回前仍占用分片的在途窗口
+        accumulator.append(TP, now, newRequest(10), null, Long.MAX_VALUE);
+        Assert.assertTrue(accumulator.drain(now, 0, 1).isEmpty());
+        Assert.assertFalse(inFlight.done(null, new DISDeliveryTimeoutException("again")));
+        accumulator.completeInFlight(inFlight);
+        Assert.assertEquals(1, accumulator.drain(now, 0, 1).size());
+    }
+
+    @Test
+    public void testAbortOnNewBatch()
+        throws Exception
+    {
+        RecordAccumulator accumulator = new RecordAccumulator(newConfig(1024, 1, 1024 * 1024, 1000, 0, false, 1));
+        RecordAccumulator.RecordAppendResult result =
+            accumulator.append(TP, System.currentTimeMillis(), newRequest(10), null, Long.MAX_VALUE, true);
+        Assert.assertTrue(result.abortForNewBatch);
+        Assert.assertNull(result.future);
+        Assert.assertEquals(0L, accumulator.bufferSize());
+
+        accumulator.append(TP, System.currentTimeMillis(), newRequest(10), null, Long.MAX_VALUE, false);
+        // 批次已满，追加需要新建批次
+        Assert.assertTrue(accumulator.append(TP, System.currentTimeMillis(), newRequest(10), null, Long.MAX_VALUE, true).abortForNewBatch);
+        Assert.assertEquals(1, accumulator.bufferCount());
+    }
+
+    @Test
+    public void testBlockOnBytesAndBatchWithinMaxTimeToBlock()
+        throws Exception
+    {
+        // 缓存只容纳一个批次和100字节
+        RecordAccumulator accumulator = new RecordAccumulator(newConfig(1024, 1, 100, 1, 0, false, 1));
+        accumulator.append(TP, System.currentTimeMillis(), newRequest(60), null, Long.MAX_VALUE);
+
+        // 300ms后只释放字节，批次一直不释放
+        Thread releaser = new Thread(() -> {
+            LockSupport.parkNanos(300_000_000L);
+            accumulator.bufferPool().deallocate(60, 0);
+        });
+        releaser.start();
+
+        long start = System.currentTimeMillis();
+        try
+        {
+            accumulator.append(new StreamPartition("stream", "other"), start, newRequest(60), null, 400);
+            Assert.fail();
+        }
+        catch (DISBufferExhaustedException e)
+        {
+            // 等待字节与等待批次共用400ms，而不是各等400ms
+            long elapsed = System.currentTimeMillis() - start;
+            Assert.assertTrue("blocked " + elapsed + " ms", elapsed >= 300 && elapsed < 650);
+        }
+        releaser.join();
+        Assert.assertEquals(0L, accumulator.bufferPool().getReservedBytes());
+    }
+
+    @Test
+    public void testSpillWhenBufferFullAndReadBackInOrder()
+        throws Exception
+    {
+        File dir = new File(Files.createTempDirectory("dis-spill").toFile(), "spill");
+        SpillLog spillLog = new SpillLog(dir, 1024 * 1024, 64);
+        // 缓冲只容纳一个批次
+        RecordAccumulator accumulator = new RecordAccumulator(newConfig(1024, 1, 1024 * 1024, 1, 0, false, 1)
+            .set(DISConfig.PROPERTY_MAX_IN_FLIGHT_REQUESTS_PER_PARTITION, "1"));
+        accumulator.setSpillLog(spillLog);
+        accumulator.append(TP, System.currentTimeMillis(), newRequest(10), null, Long.MAX_VALUE);
+        PutRecordsRequest spilled = newRequest(20);
+        spilled.getRecords().get(0).setPartitionKey("key");
+        Future<PutRecordsResult> spilledFuture =
+            accumulator.append(TP, System.currentTimeMillis(), spilled, null, Long.MAX_VALUE).future;
+        Future<PutRecordsResult> lastFuture =
+            accumulator.append(TP, System.currentTimeMillis(), newRequest(30), null, Long.MAX_VALUE).future;
+        Assert.assertEquals(2, spillLog.getPendingRequests());
+        Assert.assertFalse(accumulator.replaySpilled(System.currentTimeMillis()));
+
+        long now = System.currentTimeMillis();
+        ProducerBatch first = accumulator.drain(now, 0, 1).get(0);
+        first.done(successResult(1), null);
+        accumulator.batchIsDone(first);
+
+        // 缓冲释放后按溢写顺序读回，每次只读回缓冲容纳得下的数据
+        Assert.assertTrue(accumulator.replaySpilled(now));
+        Assert.assertEquals(1, spillLog.getPendingRequests());
+        ProducerBatch second = accumulator.drain(now, 0, 1).get(0);
+        PutRecordsRequestEntry entry = second.getBatchPutRecordsRequestEntrys().get(0);
+        Assert.assertEquals(20, entry.getData().remaining());
+        Assert.assertEquals("key", entry.getPartitionKey());
+        Assert.assertFalse(spilledFuture.isDone());
+        second.done(successResult(1), null);
+        accumulator.batchIsDone(second);
+        Assert.assertEquals(1, spilledFuture.get().getRecords().size());
+
+        // 关闭时未读回的数据以失败结束，溢写文件被删除
+        spillLog.close(new DISClientException("closed"));
+        try
+        {
+            lastFuture.get();
+            Assert.fail();
+        }
+        catch (ExecutionException e)
+        {
+            Assert.assertEquals("closed", e.getCause().getMessage());
+        }
+        Assert.assertFalse(dir.exists());
+    }
+
+    @Test
+    public void testSpilledSlicedRecordReleasesReservation()
+        throws Exception
+    {
+        File dir = new File(Files.createTempDirectory("dis-spill").toFile(), "spill");
+        SpillLog spillLog = new SpillLog(dir, 1024 * 1024, 64);
+        RecordAccumulator accumulator = new RecordAccumulator(newConfig(1024, 1, 1024 * 1024, 1, 0, false, 1)
+            .set(DISConfig.PROPERTY_MAX_IN_FLIGHT_REQUESTS_PER_PARTITION, "1"));
+        accumulator.setSpillLog(spillLog);
+        accumulator.append(TP, System.currentTimeMillis(), newRequest(10), null, Long.MAX_VALUE);
+        // 记录只占用数组中的一段
+        PutRecordsRequest sliced = newRequest(0);
+        sliced.getRecords().get(0).setData(ByteBuffer.wrap(new byte[100], 20, 30));
+        accumulator.append(TP, System.currentTimeMillis(), sliced, null, Long.MAX_VALUE);
+        Assert.assertEquals(1, spillLog.getPendingRequests());
+
+        long now = System.currentTimeMillis();
+        ProducerBatch first = accumulator.drain(now, 0, 1).get(0);
+        first.done(successResult(1), null);
+        accumulator.batchIsDone(first);
+
+        Assert.assertTrue(accumulator.replaySpilled(now));
+        ProducerBatch replayed = accumulator.drain(now, 0, 1).get(0);
+        Assert.assertEquals(30, replayed.getBatchPutRecordsRequestEntrys().get(0).getData().remaining());
+        replayed.done(successResult(1), null);
+        accumulator.batchIsDone(replayed);
+
+        Assert.assertEquals(0L, accumulator.bufferPool().getReservedBytes());
+        Assert.assertEquals(0, accumulator.bufferPool().getReservedBatches());
+        spillLog.close(new DISClientException("closed"));
+    }
+
+    @Test
+    public void testDrainPacksBatchesOfPartitionIntoOneRequest()
+        throws Exception
+    {
+        RecordAccumulator accumulator = new RecordAccumulator(newConfig(1024, 100, 1024 * 1024, 1000, 0, false, 1));
+        PutRecordsRequest request = newRequest(10);
+        request.getRecords().add(request.getRecords().get(0));
+        accumulator.append(TP, System.currentTimeMillis(), request, null, Long.MAX_VALUE);
+
+        long now = System.currentTimeMillis();
+        ProducerBatch retry = accumulator.drain(now, 0, 1).get(0);
+        PutRecordsResultEntry success = new PutRecordsResultEntry();
+        success.setSequenceNumber("0");
+        PutRecordsResultEntry failure = new PutRecordsResultEntry();
+        failure.setErrorCode("DIS.4303");
+        PutRecordsResult result = new PutRecordsResult();
+        result.setFailedRecordCount(new AtomicInteger(1));
+        result.setRecords(Arrays.asList(success, failure));
+        Assert.assertTrue(retry.completeAttempt(result, errorCode -> true, 3));
+        accumulator.reenqueue(retry, now);
+        accumulator.append(TP, now, newRequest(10), null, Long.MAX_VALUE);
+
+        // 重试的批次与新批次合计不超过batch.size，合并为一个请求
+        List<List<ProducerBatch>> requests = accumulator.drainRequests(now, 0, 1);
+        Assert.assertEquals(1, requests.size());
+        Assert.assertEquals(2, requests.get(0).size());
+        Assert.assertSame(retry, requests.get(0).get(0));
+    }
+
+    @Test
+    public void testDrainPacedByPartitionQuota()
+        throws Exception
+    {
+        RecordAccumulator accumulator = new RecordAccumulator(newConfig(1024, 1, 1024 * 1024, 1000, 0, false, 1)
+            .set(DISConfig.PROPERTY_MAX_IN_FLIGHT_REQUESTS_PER_PARTITION, "100"));
+        ProducerRateLimiter rateLimiter = new ProducerRateLimiter(2, 0, TP.partition());
+        rateLimiter.setStreamQuota(TP.topic(), "COMMON", 1);
+        accumulator.setRateLimiter(rateLimiter);
+        for (int i = 0; i < 4; i++)
+        {
+            accumulator.append(TP, System.currentTimeMillis(), newRequest(10), null, Long.MAX_VALUE);
+        }
+
+        // 每秒2条，空闲时最多积累一秒的配额
+        long now = System.currentTimeMillis();
+        Assert.assertEquals(2, accumulator.drain(now, 0, 1).size());
+        Assert.assertTrue(accumulator.drain(now, 0, 1).isEmpty());
+        Assert.assertEquals(1, rateLimiter.getThrottledCount());
+        Assert.assertEquals(1, accumulator.drain(now + 500, 0, 1).size());
+        Assert.assertEquals(500, rateLimiter.getThrottledTimeMs());
+        Assert.assertTrue(accumulator.drain(now + 500, 0, 1).isEmpty());
+        Assert.assertEquals(1, accumulator.drain(now + 1000, 0, 1).size());
+    }
+
+    /**
+     * Fairness benchmark: many streams share one slow sender. The p99 latency from batch creation to send completion
+     * should be about the same for every stream, not grow with the position of the stream in the accumulator.
+     */
+    @Test
+    @Ignore
+    public void benchmarkDrainFairness()
+        throws Exception
+    {
+        final int streams = 40;
+        final RecordAccumulator accumulator =
+            new RecordAccumulator(newConfig(64 * 1024, 500, 256 * 1024 * 1024, 50000, 5, false, 1));
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final List<StreamPartition> tps = new ArrayList<>();
+        final List<List<Long>> latencies = new ArrayList<>();
+        for (int i = 0; i < streams; i++)
+        {
+            tps.add(new StreamPartition("stream-" + i, "nb"));
+            latencies.add(new ArrayList<>());
+        }
+
+        Thread appender = new Thread(() -> {
+            try
+            {
+                while (running.get())
+                {
+                    for (StreamPartition tp : tps)
+                    {
+                        accumulator.append(tp, System.currentTimeMillis(), newRequest(100), null, Long.MAX_VALUE);
+                    }
+                    Thread.sleep(1);
+                }
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+        });
+
+        Thread sender = new Thread(() -> {
+            while (running.get())
+            {
+                for (List<ProducerBatch> request : accumulator.drainRequests(System.currentTimeMillis(), 0, 1))
+                {
+                    // 模拟一次请求的发送耗时
+                    LockSupport.parkNanos(200000L);
+                    long now = System.currentTimeMillis();
+                    for (ProducerBatch batch : request)
+                    {
+                        latencies.get(tps.indexOf(batch.getTp())).add(now - batch.getCreatedMs());
+                        accumulator.batchIsDone(batch);
+                    }
+                }
+            }
+        });
+
+        appender.start();
+        sender.start();
+        Thread.sleep(5000);
+        running.set(false);
+        appender.join();
+        sender.join();
+
+        long minP99 = Long.MAX_VALUE;
+        long maxP99 = 0;
+        for (int i = 0; i < streams; i++)
+        {
+            List<Long> latency = latencies.get(i);
+            Collections.sort(latency);
+            long p99 = latency.isEmpty() ? 0 : latency.get((int) (latency.size() * 0.99));
+            minP99 = Math.min(minP99, p99);
+            maxP99 = Math.max(maxP99, p99);
+            System.out.println(String.format("%s: %6d batches, p99 %4d ms", tps.get(i).topic(), latency.size(), p99));
+        }
+        System.out.println(String.format("p99 across streams: min %d ms, max %d ms", minP99, maxP99));
+    }
+
+    /**
+     * Contention benchmark: many threads appending to a single stream. Append throughput should grow with the number
+     * of threads up to the number of cores instead of collapsing on one monitor.
+     */
+    @Test
+    @Ignore
+    public void benchmarkAppendContention()
+        throws Exception
+    {
+        int cores = Runtime.getRuntime().availableProcessors();
+        for (int threads = 1; threads <= cores * 2; threads *= 2)
+        {
+            System.out.println(String.format("threads %3d, stripes %3d: %,12.0f appends/s",
+                threads, cores, runAppendBenchmark(threads, cores, 2000)));
+            System.out.println(String.format("threads %3d, stripes %3d: %,12.0f appends/s",
+                threads, 1, runAppendBenchmark(threads, 1, 2000)));
+        }
+    }
+
+    private double runAppendBenchmark(int threads, int stripes, long durationMs)
+        throws InterruptedException
+    {
+        final RecordAccumulator accumulator =
+            new RecordAccumulator(newConfig(64 * 1024, 500, 256 * 1024 * 1024, 50000, 0, false, stripes));
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final AtomicLong appends = new AtomicLong();
+        final PutRecordsRequest request = newRequest(100);
+
+        List<Thread> appenders = new ArrayList<>();
+        for (int i = 0; i < threads; i++)
+        {
+            Thread t = new Thread(() -> {
+                long count = 0;
+                try
+                {
+                    while (running.get())
+                    {
+                        accumulator.append(TP, System.currentTimeMillis(), request, null, Long.MAX_VALUE);
+                        count++;
+                    }
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                }
+                appends.addAndGet(count);
+            });
+            appenders.add(t);
+        }
+
+        Thread drainer = new Thread(() -> {
+            while (running.get() || accumulator.hasUndrained())
+            {
+                for (ProducerBatch batch : accumulator.drain(System.currentTimeMillis(), 0, 1))
+                {
+                    accumulator.batchIsDone(batch);
+                }
+            }
+        });
+
+        long start = System.nanoTime();
+        drainer.start();
+        for (Thread t : appenders)
+        {
+            t.start();
+        }
+        Thread.sleep(durationMs);
+        running.set(false);
+        for (Thread t : appenders)
+        {
+            t.join();
+        }
+        drainer.join();
+        long elapsed = System.nanoTime() - start;
+
+        return appends.get() * 1e9 / elapsed;
+    }
+
+    /*
+     * The producer config of an accumulator whose batches never expire
+     */
+    static DISConfig newConfig(long batchSize, int batchCount, long bufferSize, int bufferCount, long lingerMs,
+        boolean orderByPartition, int stripes)
+    {
+        return new DISConfig().set(DISConfig.PROPERTY_PRODUCER_BATCH_SIZE, String.valueOf(batchSize))
+            .set(DISConfig.PROPERTY_PRODUCER_BATCH_COUNT, String.valueOf(batchCount))
+            .set(DISConfig.PROPERTY_PRODUCER_BUFFER_MEMORY, String.valueOf(bufferSize))
+            .set(DISConfig.PROPERTY_PRODUCER_BUFFER_COUNT, String.valueOf(bufferCount))
+            .set(DISConfig.PROPERTY_PRODUCER_LINGER_MS, String.valueOf(lingerMs))
+            .set(DISConfig.PROPERTY_ORDER_BY_PARTITION, String.valueOf(orderByPartition))
+            .set(DISConfig.PROPERTY_PRODUCER_ACCUMULATOR_STRIPES, String.valueOf(stripes))
+            .set(DISConfig.PROPERTY_MAX_IN_FLIGHT_REQUESTS_PER_PARTITION,
+                String.valueOf(orderByPartition ? 1 : Integer.MAX_VALUE))
+            .set(DISConfig.PROPERTY_DELIVERY_TIMEOUT_MS, "0");
+    }
+
+    private static PutRecordsResult successResult(int records)
+    {
+        PutRecordsResult result = new PutRecordsResult();
+        result.setFailedRecordCount(new AtomicInteger(0));
+        List<PutRecordsResultEntry> entries = new ArrayList<>();
+        for (int i = 0; i < records; i++)
+        {
+            entries.add(new PutRecordsResultEntry());
+        }
+        result.setRecords(entries);
+        return result;
+    }
+
+    private static PutRecordsRequest newRequest(int size)
+    {
+        PutRecordsRequestEntry entry = new PutRecordsRequestEntry();
+        entry.setData(ByteBuffer.wrap(new byte[size]));
+        List<PutRecordsRequestEntry> records = new ArrayList<>();
+        records.add(entry);
+
+        PutRecordsRequest request = new PutRecordsRequest();
+        request.setStreamName(TP.topic());
+        request.setRecords(records);
+        return request;
+    }
+}
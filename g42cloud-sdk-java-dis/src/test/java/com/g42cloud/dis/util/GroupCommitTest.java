@@ -0,0 +1,174 @@
+/*
+ * Copyright 2002-2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.g42cloud.dis.util;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.g42cloud.dis.exception.DISClientException;
+import com.g42cloud.dis.iface.data.request.PutRecordsRequest;
+import com.g42cloud.dis.iface.data.request.PutRecordsRequestEntry;
+import com.g42cloud.dis.iface.data.response.PutRecordsResult;
+import com.g42cloud.dis.iface.data.response.PutRecordsResultEntry;
+
+public class GroupCommitTest
+{
+    @Test
+    public void testConcurrentCallsMergedAndSliced() throws Exception
+    {
+        int callers = 8;
+        List<Integer> requestSizes = Collections.synchronizedList(new ArrayList<>());
+        // 合并的上限恰好为全部调用的记录数，组满即发送
+        GroupCommit groupCommit = new GroupCommit(10000, callers * 2, Long.MAX_VALUE, request -> {
+            requestSizes.add(request.getRecords().size());
+            return echo(request);
+        });
+
+        ExecutorService executor = Executors.newFixedThreadPool(callers);
+        try
+        {
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<PutRecordsResult>> results = new ArrayList<>();
+            for (int i = 0; i < callers; i++)
+            {
+                PutRecordsRequest request = request("stream", "c" + i + "-0", "c" + i + "-1");
+                results.add(executor.submit(() -> {
+                    start.await();
+                    return groupCommit.putRecords(request);
+                }));
+            }
+            start.countDown();
+            for (int i = 0; i < callers; i++)
+            {
+                PutRecordsResult result = results.get(i).get();
+                Assert.assertEquals(2, result.getRecords().size());
+                Assert.assertEquals("c" + i + "-0", result.getRecords().get(0).getSequenceNumber());
+                Assert.assertEquals("c" + i + "-1", result.getRecords().get(1).getSequenceNumber());
+                Assert.assertEquals(0, result.getFailedRecordCount().get());
+            }
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+        Assert.assertEquals(Collections.singletonList(callers * 2), requestSizes);
+    }
+
+    @Test
+    public void testSingleCallSentAfterLinger()
+    {
+        AtomicInteger requests = new AtomicInteger();
+        GroupCommit groupCommit = new GroupCommit(1, 100, Long.MAX_VALUE, request -> {
+            requests.incrementAndGet();
+            return echo(request);
+        });
+        PutRecordsRequest request = request("stream", "a");
+        Assert.assertEquals("a", groupCommit.putRecords(request).getRecords().get(0).getSequenceNumber());
+        Assert.assertEquals("a", groupCommit.putRecords(request).getRecords().get(0).getSequenceNumber());
+        Assert.assertEquals(2, requests.get());
+    }
+
+    @Test
+    public void testErrorOfLeaderFailsAllMembers() throws Exception
+    {
+        int callers = 4;
+        GroupCommit groupCommit = new GroupCommit(10000, callers, Long.MAX_VALUE, request -> {
+            throw new AssertionError("send failed");
+        });
+
+        ExecutorService executor = Executors.newFixedThreadPool(callers);
+        try
+        {
+            List<Future<PutRecordsResult>> results = new ArrayList<>();
+            for (int i = 0; i < callers; i++)
+            {
+                PutRecordsRequest request = request("stream", "c" + i);
+                results.add(executor.submit(() -> groupCommit.putRecords(request)));
+            }
+            // 发送的线程抛出原始的Error，其他线程也都失败而不是一直等待
+            int errors = 0;
+            for (Future<PutRecordsResult> result : results)
+            {
+                try
+                {
+                    result.get(10, TimeUnit.SECONDS);
+                    Assert.fail();
+                }
+                catch (ExecutionException e)
+                {
+                    if (e.getCause() instanceof AssertionError)
+                    {
+                        errors++;
+                    }
+                    else
+                    {
+                        Assert.assertTrue(e.getCause() instanceof DISClientException);
+                    }
+                }
+            }
+            Assert.assertEquals(1, errors);
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+
+    private static PutRecordsRequest request(String streamName, String... keys)
+    {
+        List<PutRecordsRequestEntry> entries = new ArrayList<>();
+        for (String key : keys)
+        {
+            PutRecordsRequestEntry entry = new PutRecordsRequestEntry();
+            entry.setPartitionKey(key);
+            entry.setData(ByteBuffer.allocate(1));
+            entries.add(entry);
+        }
+        PutRecordsRequest request = new PutRecordsRequest();
+        request.setStreamName(streamName);
+        request.setRecords(entries);
+        return request;
+    }
+
+    // 以分区键作为序列号返回，便于核对每个调用拿到的结果
+    private static PutRecordsResult echo(PutRecordsRequest request)
+    {
+        List<PutRecordsResultEntry> entries = new ArrayList<>();
+        for (PutRecordsRequestEntry record : request.getRecords())
+        {
+            PutRecordsResultEntry entry = new PutRecordsResultEntry();
+            entry.setSequenceNumber(record.getPartitionKey());
+            entries.add(entry);
+        }
+        PutRecordsResult result = new PutRecordsResult();
+        result.setFailedRecordCount(new AtomicInteger());
+        result.setRecords(entries);
+        return result;
+    }
+}
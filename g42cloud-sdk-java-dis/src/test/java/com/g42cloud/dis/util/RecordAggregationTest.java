@@ -0,0 +1,122 @@
+/*
+ * Copyright 2002-2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.g42cloud.dis.util;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.g42cloud.dis.iface.data.request.PutRecordsRequestEntry;
+import com.g42cloud.dis.iface.data.response.GetRecordsResult;
+import com.g42cloud.dis.iface.data.response.Record;
+import com.g42cloud.dis.producer.internals.RecordAggregator;
+
+public class RecordAggregationTest
+{
+    @Test
+    public void testRoundTrip()
+    {
+        for (boolean compress : new boolean[] {false, true})
+        {
+            List<PutRecordsRequestEntry> entries = new ArrayList<>();
+            entries.add(entry("k1", 100L, "hello hello hello hello hello"));
+            entries.add(entry(null, null, ""));
+            entries.add(entry("分区", 200L, "hello hello hello hello world"));
+            ByteBuffer data = RecordAggregation.aggregate(entries, compress);
+            Assert.assertTrue(RecordAggregation.isAggregated(data));
+
+            List<UserRecord> userRecords = RecordAggregation.deaggregate(record("7", 300L, data));
+            Assert.assertEquals(3, userRecords.size());
+            for (int i = 0; i < userRecords.size(); i++)
+            {
+                UserRecord userRecord = userRecords.get(i);
+                Assert.assertTrue(userRecord.isAggregated());
+                Assert.assertEquals("7", userRecord.getSequenceNumber());
+                Assert.assertEquals(i, userRecord.getSubSequenceNumber());
+                Assert.assertEquals(entries.get(i).getPartitionKey(), userRecord.getPartitionKey());
+                Assert.assertEquals(entries.get(i).getData(), userRecord.getData());
+            }
+            Assert.assertEquals(Long.valueOf(100L), userRecords.get(0).getTimestamp());
+            Assert.assertEquals(Long.valueOf(300L), userRecords.get(1).getTimestamp());
+        }
+    }
+
+    @Test
+    public void testPlainAndCorruptRecordsPassThrough()
+    {
+        ByteBuffer corrupt = RecordAggregation.aggregate(Arrays.asList(entry("k", null, "a"), entry("k", null, "b")),
+            false);
+        corrupt.put(corrupt.limit() - 1, (byte) (corrupt.get(corrupt.limit() - 1) + 1));
+        ByteBuffer plain = ByteBuffer.wrap("plain".getBytes(StandardCharsets.UTF_8));
+
+        GetRecordsResult result = new GetRecordsResult();
+        result.setRecords(Arrays.asList(record("1", null, plain), record("2", null, corrupt)));
+        List<UserRecord> userRecords = RecordAggregation.deaggregate(result);
+        Assert.assertEquals(2, userRecords.size());
+        Assert.assertFalse(userRecords.get(0).isAggregated());
+        Assert.assertSame(plain, userRecords.get(0).getData());
+        Assert.assertFalse(userRecords.get(1).isAggregated());
+        Assert.assertSame(corrupt, userRecords.get(1).getData());
+    }
+
+    @Test
+    public void testAggregatorGroupsConsecutiveRecordsOfPartition()
+    {
+        List<PutRecordsRequestEntry> entries = new ArrayList<>();
+        for (int i = 0; i < 5; i++)
+        {
+            entries.add(entry("a", null, "0123456789"));
+        }
+        entries.add(entry("b", null, "0123456789"));
+        entries.add(entry("a", null, "0123456789"));
+
+        // 每条聚合记录最多容纳3条用户记录
+        int maxBytes = RecordAggregation.OVERHEAD + 1 + 3 * RecordAggregation.encodedSize(entries.get(0));
+        RecordAggregator aggregator = new RecordAggregator(maxBytes, false);
+        List<PutRecordsRequestEntry> aggregated = aggregator.aggregate(entries).getRecords();
+        Assert.assertEquals(4, aggregated.size());
+        Assert.assertEquals(3, RecordAggregation.deaggregate(record("1", null, aggregated.get(0).getData())).size());
+        Assert.assertEquals(2, RecordAggregation.deaggregate(record("2", null, aggregated.get(1).getData())).size());
+        Assert.assertSame(entries.get(5), aggregated.get(2));
+        Assert.assertSame(entries.get(6), aggregated.get(3));
+        Assert.assertEquals(7, aggregator.getUserRecords());
+        Assert.assertEquals(4, aggregator.getAggregatedRecords());
+    }
+
+    private static PutRecordsRequestEntry entry(String key, Long timestamp, String data)
+    {
+        PutRecordsRequestEntry entry = new PutRecordsRequestEntry();
+        entry.setPartitionKey(key);
+        entry.setTimestamp(timestamp);
+        entry.setData(ByteBuffer.wrap(data.getBytes(StandardCharsets.UTF_8)));
+        return entry;
+    }
+
+    private static Record record(String sequenceNumber, Long timestamp, ByteBuffer data)
+    {
+        Record record = new Record();
+        record.setSequenceNumber(sequenceNumber);
+        record.setTimestamp(timestamp);
+        record.setData(data);
+        return record;
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2002-2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.g42cloud.dis.util;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.g42cloud.dis.Constants;
+import com.g42cloud.dis.exception.DISRequestEntityTooLargeException;
+import com.g42cloud.dis.iface.data.request.PutRecordsRequest;
+import com.g42cloud.dis.iface.data.request.PutRecordsRequestEntry;
+import com.g42cloud.dis.iface.data.response.PutRecordsResult;
+import com.g42cloud.dis.iface.data.response.PutRecordsResultEntry;
+
+public class RequestSizeCeilingTest
+{
+    @Test
+    public void testSplitInHalfBySize()
+    {
+        PutRecordsRequest request = newRequest(10, 10, 10, 10, 40);
+        List<PutRecordsRequest> halves = RequestSizeCeiling.split(request);
+        Assert.assertEquals(4, halves.get(0).getRecords().size());
+        Assert.assertEquals(1, halves.get(1).getRecords().size());
+        Assert.assertEquals("stream", halves.get(1).getStreamName());
+
+        // 第一条记录超过一半时也至少拆出一条
+        halves = RequestSizeCeiling.split(newRequest(100, 1, 1));
+        Assert.assertEquals(1, halves.get(0).getRecords().size());
+        Assert.assertEquals(2, halves.get(1).getRecords().size());
+    }
+
+    @Test
+    public void testLearnFromRejections()
+    {
+        RequestSizeCeiling ceiling = new RequestSizeCeiling();
+        PutRecordsRequest request = newRequest(50, 50);
+        Assert.assertFalse(ceiling.exceeds(request));
+        Assert.assertEquals(Long.MAX_VALUE, ceiling.getCeiling("stream", null));
+
+        ceiling.onRejected(newRequest(60, 60));
+        Assert.assertEquals(119, ceiling.getCeiling("stream", null));
+        Assert.assertFalse(ceiling.exceeds(request));
+
+        ceiling.onRejected(request);
+        Assert.assertTrue(ceiling.exceeds(request));
+        // 更大的拒绝不会抬高上限，单条记录无法拆分
+        ceiling.onRejected(newRequest(200, 200));
+        Assert.assertEquals(99, ceiling.getCeiling("stream", null));
+        Assert.assertFalse(ceiling.exceeds(newRequest(500)));
+        Assert.assertEquals(Long.MAX_VALUE, ceiling.getCeiling("other", null));
+    }
+
+    @Test
+    public void testMergeInOrder()
+    {
+        PutRecordsRequest request = newRequest(10, 10, 10);
+        List<PutRecordsRequest> halves = RequestSizeCeiling.split(request);
+        PutRecordsResult first = new PutRecordsResult();
+        PutRecordsResultEntry entry = new PutRecordsResultEntry();
+        entry.setSequenceNumber("0");
+        first.setRecords(new ArrayList<>(Collections.singletonList(entry)));
+        first.setFailedRecordCount(new AtomicInteger(0));
+
+        PutRecordsResult merged = RequestSizeCeiling.merge(halves, Arrays.asList(first, null),
+            Arrays.asList(null, new DISRequestEntityTooLargeException("too large")));
+        Assert.assertEquals(3, merged.getRecords().size());
+        Assert.assertEquals(2, merged.getFailedRecordCount().get());
+        Assert.assertEquals("0", merged.getRecords().get(0).getSequenceNumber());
+        Assert.assertEquals(Constants.ERROR_CODE_SDK_SEND_FAILED, merged.getRecords().get(2).getErrorCode());
+        Assert.assertEquals("too large", merged.getRecords().get(2).getErrorMessage());
+    }
+
+    private static PutRecordsRequest newRequest(int... sizes)
+    {
+        List<PutRecordsRequestEntry> records = new ArrayList<>();
+        for (int size : sizes)
+        {
+            PutRecordsRequestEntry entry = new PutRecordsRequestEntry();
+            entry.setData(ByteBuffer.wrap(new byte[size]));
+            records.add(entry);
+        }
+        PutRecordsRequest request = new PutRecordsRequest();
+        request.setStreamName("stream");
+        request.setRecords(records);
+        return request;
+    }
+}
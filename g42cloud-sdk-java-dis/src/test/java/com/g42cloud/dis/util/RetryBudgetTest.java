@@ -0,0 +1,61 @@
+/*
+ * Copyright 2002-2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.g42cloud.dis.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class RetryBudgetTest
+{
+    @Test
+    public void testRetriesCappedBySuccesses()
+    {
+        AtomicLong now = new AtomicLong(10_000);
+        RetryBudget budget = new RetryBudget(0.5, 1, now::get);
+
+        // 没有成功请求时只允许最少的重试次数
+        Assert.assertTrue(budget.tryAcquire());
+        Assert.assertFalse(budget.tryAcquire());
+
+        for (int i = 0; i < 10; i++)
+        {
+            budget.onSuccess();
+        }
+        Assert.assertEquals(5, acquireAll(budget));
+
+        // 下一秒的预算按上一秒的成功数计算
+        now.addAndGet(1000);
+        Assert.assertEquals(6, acquireAll(budget));
+
+        // 间隔超过一秒后之前的成功数不再计入
+        now.addAndGet(2000);
+        Assert.assertEquals(1, acquireAll(budget));
+    }
+
+    private static int acquireAll(RetryBudget budget)
+    {
+        int acquired = 0;
+        while (budget.tryAcquire())
+        {
+            acquired++;
+        }
+        return acquired;
+    }
+}
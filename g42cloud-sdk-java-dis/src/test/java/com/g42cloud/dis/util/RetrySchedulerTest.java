@@ -0,0 +1,68 @@
+/*
+ * Copyright 2002-2010 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.g42cloud.dis.util;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class RetrySchedulerTest
+{
+    @Test
+    public void testDelayWithinBackoff()
+    {
+        for (int retryIndex = 0; retryIndex < 30; retryIndex++)
+        {
+            long bound = Math.min(250L << Math.min(retryIndex, 20), 2000L);
+            long delay = RetryScheduler.nextDelayMs(retryIndex, 2000L);
+            Assert.assertTrue(delay >= 0 && delay <= bound);
+        }
+    }
+
+    @Test
+    public void testRetrySubmittedAfterDelay() throws Exception
+    {
+        long start = System.nanoTime();
+        Future<String> future = RetryScheduler.schedule(() -> CompletableFuture.completedFuture("retried"), 50);
+        Assert.assertEquals("retried", future.get(10, TimeUnit.SECONDS));
+        Assert.assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+        Assert.assertTrue(future.isDone());
+    }
+
+    @Test
+    public void testSubmitFailure() throws Exception
+    {
+        IllegalStateException failure = new IllegalStateException("closed");
+        Future<String> future = RetryScheduler.schedule(() -> {
+            throw failure;
+        }, 0);
+        try
+        {
+            future.get();
+            Assert.fail();
+        }
+        catch (ExecutionException e)
+        {
+            Assert.assertSame(failure, e.getCause());
+        }
+    }
+}